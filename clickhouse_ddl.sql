@@ -2,6 +2,19 @@
 -- Created: July 28, 2025
 -- Purpose: Create separated tables for different types of analytics events
 
+-- The event tables are sampled by session: the read cost guard narrows large queries with
+-- SAMPLE, which only skips data on a table with a SAMPLE BY key. Tables created before it was
+-- added keep running those queries exact. To add the key to an existing table, create it again
+-- under a new name with this DDL, copy the rows over and swap the two:
+--   INSERT INTO click_events_sampled SELECT * FROM click_events;
+--   EXCHANGE TABLES click_events_sampled AND click_events;
+
+-- Bulk imports tag every insert with insert_deduplication_token so that a chunk repeated after a
+-- crash is dropped rather than written twice. A non-replicated MergeTree only remembers the
+-- tokens of its last non_replicated_deduplication_window inserts, which is 0 unless set. To turn
+-- it on for an existing table:
+--   ALTER TABLE click_events MODIFY SETTING non_replicated_deduplication_window = 1000;
+
 -- Database creation (REQUIRED - creates the analytics database)
 CREATE DATABASE IF NOT EXISTS analytics;
 USE analytics;
@@ -35,12 +48,15 @@ CREATE TABLE IF NOT EXISTS page_view_events (
     time_on_page UInt32,
     is_bounce UInt8,
     entry_page UInt8,
-    exit_page UInt8
+    exit_page UInt8,
+    -- Server time of the insert; splits rows between a new rollup view and its backfill
+    ingested_at DateTime MATERIALIZED now()
 ) ENGINE = MergeTree()
 PARTITION BY toYYYYMM(timestamp)
-ORDER BY (timestamp, session_id, user_id)
+ORDER BY (toStartOfHour(timestamp), cityHash64(session_id), timestamp, session_id, user_id)
+SAMPLE BY cityHash64(session_id)
 TTL timestamp + INTERVAL 90 DAY
-SETTINGS index_granularity = 8192;
+SETTINGS index_granularity = 8192, non_replicated_deduplication_window = 1000;
 
 -- Indexes for page view events
 CREATE INDEX IF NOT EXISTS idx_page_view_session ON page_view_events (session_id) TYPE bloom_filter GRANULARITY 1;
@@ -81,9 +97,10 @@ CREATE TABLE IF NOT EXISTS click_events (
     is_double_click UInt8
 ) ENGINE = MergeTree()
 PARTITION BY toYYYYMM(timestamp)
-ORDER BY (timestamp, session_id, user_id)
+ORDER BY (toStartOfHour(timestamp), cityHash64(session_id), timestamp, session_id, user_id)
+SAMPLE BY cityHash64(session_id)
 TTL timestamp + INTERVAL 90 DAY
-SETTINGS index_granularity = 8192;
+SETTINGS index_granularity = 8192, non_replicated_deduplication_window = 1000;
 
 -- Indexes for click events
 CREATE INDEX IF NOT EXISTS idx_click_session ON click_events (session_id) TYPE bloom_filter GRANULARITY 1;
@@ -122,9 +139,10 @@ CREATE TABLE IF NOT EXISTS scroll_events (
     time_to_scroll UInt32
 ) ENGINE = MergeTree()
 PARTITION BY toYYYYMM(timestamp)
-ORDER BY (timestamp, session_id, user_id)
+ORDER BY (toStartOfHour(timestamp), cityHash64(session_id), timestamp, session_id, user_id)
+SAMPLE BY cityHash64(session_id)
 TTL timestamp + INTERVAL 90 DAY
-SETTINGS index_granularity = 8192;
+SETTINGS index_granularity = 8192, non_replicated_deduplication_window = 1000;
 
 -- Indexes for scroll events
 CREATE INDEX IF NOT EXISTS idx_scroll_session ON scroll_events (session_id) TYPE bloom_filter GRANULARITY 1;
@@ -161,55 +179,107 @@ CREATE TABLE IF NOT EXISTS session_events (
     total_scroll_depth UInt32,
     is_bounce UInt8,
     entry_page String,
-    exit_page String
+    exit_page String,
+    ingested_at DateTime MATERIALIZED now()
 ) ENGINE = MergeTree()
 PARTITION BY toYYYYMM(timestamp)
-ORDER BY (timestamp, session_id, user_id)
+ORDER BY (toStartOfHour(timestamp), cityHash64(session_id), timestamp, session_id, user_id)
+SAMPLE BY cityHash64(session_id)
 TTL timestamp + INTERVAL 90 DAY
-SETTINGS index_granularity = 8192;
+SETTINGS index_granularity = 8192, non_replicated_deduplication_window = 1000;
 
 -- Indexes for session events
 CREATE INDEX IF NOT EXISTS idx_session_id ON session_events (session_id) TYPE bloom_filter GRANULARITY 1;
 CREATE INDEX IF NOT EXISTS idx_session_type ON session_events (event_type) TYPE bloom_filter GRANULARITY 1;
 
 -- =============================================================================
--- MATERIALIZED VIEWS FOR AGGREGATED DATA (OPTIONAL)
+-- ROLLUP TABLES AND MATERIALIZED VIEWS
 -- =============================================================================
 
--- Real-time hourly page view aggregations
-CREATE MATERIALIZED VIEW IF NOT EXISTS page_views_hourly_mv
-ENGINE = SummingMergeTree()
-PARTITION BY toYYYYMM(hour)
-ORDER BY (hour, page_url)
-AS SELECT
-    toStartOfHour(timestamp) as hour,
-    page_url,
-    page_title,
-    count() as views,
-    uniq(session_id) as unique_sessions,
-    uniq(user_id) as unique_users,
-    avg(page_load_time) as avg_load_time,
-    countIf(is_bounce = 1) as bounces
+-- The analytics service creates and backfills these rollups itself
+-- (ClickHouseSchemaManager, disable with clickhouse.rollups.enabled=false) and
+-- routes 24h/7d/30d dashboard, page view and session queries to them once the
+-- backfill is recorded in analytics_schema_state. Views created from this file
+-- have no such record, so the service rebuilds them with a backfill. Uniques
+-- and averages are stored as -State aggregates so buckets merge exactly.
+
+-- Hourly page view rollup
+CREATE TABLE IF NOT EXISTS page_views_hourly_agg (
+    period DateTime,
+    page_views SimpleAggregateFunction(sum, UInt64),
+    unique_sessions AggregateFunction(uniq, String),
+    unique_users AggregateFunction(uniq, Nullable(String)),
+    avg_load_time AggregateFunction(avg, Float64),
+    avg_time_on_page AggregateFunction(avg, Float64)
+) ENGINE = AggregatingMergeTree()
+PARTITION BY toYYYYMM(period)
+ORDER BY period;
+
+CREATE MATERIALIZED VIEW IF NOT EXISTS page_views_hourly_agg_mv TO page_views_hourly_agg AS
+SELECT
+    toStartOfHour(timestamp) as period,
+    count() as page_views,
+    uniqState(CAST(session_id AS String)) as unique_sessions,
+    uniqState(CAST(user_id AS Nullable(String))) as unique_users,
+    avgState(toFloat64(page_load_time)) as avg_load_time,
+    avgState(toFloat64(time_on_page)) as avg_time_on_page
 FROM page_view_events
-GROUP BY hour, page_url, page_title;
-
--- Daily session aggregations
-CREATE MATERIALIZED VIEW IF NOT EXISTS sessions_daily_mv
-ENGINE = SummingMergeTree()
-PARTITION BY toYYYYMM(day)
-ORDER BY (day, country, device_type)
-AS SELECT
-    toStartOfDay(timestamp) as day,
-    country,
-    device_type,
-    browser,
-    count() as sessions,
-    uniq(user_id) as unique_users,
-    avg(session_duration) as avg_duration,
-    countIf(is_bounce = 1) as bounces
+GROUP BY period;
+
+-- Hourly and daily session rollups (session_end events only)
+CREATE TABLE IF NOT EXISTS sessions_hourly_agg (
+    period DateTime,
+    total_sessions SimpleAggregateFunction(sum, UInt64),
+    unique_users AggregateFunction(uniq, Nullable(String)),
+    avg_session_duration AggregateFunction(avg, Float64),
+    avg_page_count AggregateFunction(avg, Float64)
+) ENGINE = AggregatingMergeTree()
+PARTITION BY toYYYYMM(period)
+ORDER BY period;
+
+CREATE MATERIALIZED VIEW IF NOT EXISTS sessions_hourly_agg_mv TO sessions_hourly_agg AS
+SELECT
+    toStartOfHour(timestamp) as period,
+    count() as total_sessions,
+    uniqState(CAST(user_id AS Nullable(String))) as unique_users,
+    avgState(toFloat64(session_duration)) as avg_session_duration,
+    avgState(toFloat64(page_count)) as avg_page_count
+FROM session_events
+WHERE event_type = 'session_end'
+GROUP BY period;
+
+CREATE TABLE IF NOT EXISTS sessions_daily_agg AS sessions_hourly_agg;
+
+CREATE MATERIALIZED VIEW IF NOT EXISTS sessions_daily_agg_mv TO sessions_daily_agg AS
+SELECT
+    toStartOfDay(timestamp) as period,
+    count() as total_sessions,
+    uniqState(CAST(user_id AS Nullable(String))) as unique_users,
+    avgState(toFloat64(session_duration)) as avg_session_duration,
+    avgState(toFloat64(page_count)) as avg_page_count
 FROM session_events
 WHERE event_type = 'session_end'
-GROUP BY day, country, device_type, browser;
+GROUP BY period;
+
+-- =============================================================================
+-- SESSION-ORDERED JOURNEY PROJECTIONS
+-- =============================================================================
+
+-- The raw tables are sorted by timestamp, so a lookup by session_id has to scan
+-- them. The analytics service adds these narrow projections on startup
+-- (disable with clickhouse.projections.enabled=false); journey queries filter on
+-- session_id and ClickHouse reads them from the projection automatically.
+ALTER TABLE page_view_events ADD PROJECTION IF NOT EXISTS journey_by_session
+    (SELECT session_id, timestamp, event_id, page_url, page_title ORDER BY session_id, timestamp);
+ALTER TABLE page_view_events MATERIALIZE PROJECTION journey_by_session;
+
+ALTER TABLE click_events ADD PROJECTION IF NOT EXISTS journey_by_session
+    (SELECT session_id, timestamp, event_id, page_url, element_tag, element_id ORDER BY session_id, timestamp);
+ALTER TABLE click_events MATERIALIZE PROJECTION journey_by_session;
+
+ALTER TABLE scroll_events ADD PROJECTION IF NOT EXISTS journey_by_session
+    (SELECT session_id, timestamp, event_id, page_url, scroll_depth ORDER BY session_id, timestamp);
+ALTER TABLE scroll_events MATERIALIZE PROJECTION journey_by_session;
 
 -- =============================================================================
 -- USEFUL QUERIES FOR TESTING
@@ -242,8 +312,12 @@ GROUP BY day, country, device_type, browser;
 -- DROP TABLE IF EXISTS click_events;
 -- DROP TABLE IF EXISTS scroll_events;
 -- DROP TABLE IF EXISTS session_events;
--- DROP VIEW IF EXISTS page_views_hourly_mv;
--- DROP VIEW IF EXISTS sessions_daily_mv;
+-- DROP VIEW IF EXISTS page_views_hourly_agg_mv;
+-- DROP VIEW IF EXISTS sessions_hourly_agg_mv;
+-- DROP VIEW IF EXISTS sessions_daily_agg_mv;
+-- DROP TABLE IF EXISTS page_views_hourly_agg;
+-- DROP TABLE IF EXISTS sessions_hourly_agg;
+-- DROP TABLE IF EXISTS sessions_daily_agg;
 
 -- =============================================================================
 -- PERFORMANCE OPTIMIZATION SETTINGS
@@ -1,6 +1,19 @@
 -- ClickHouse Database Schema for Separated Analytics Tables
 -- Run these commands to create the required tables for the analytics service
 
+-- The event tables are sampled by session: the read cost guard narrows large queries with
+-- SAMPLE, which only skips data on a table with a SAMPLE BY key. Tables created before it was
+-- added keep running those queries exact. To add the key to an existing table, create it again
+-- under a new name with this DDL, copy the rows over and swap the two:
+--   INSERT INTO click_events_sampled SELECT * FROM click_events;
+--   EXCHANGE TABLES click_events_sampled AND click_events;
+
+-- Bulk imports tag every insert with insert_deduplication_token so that a chunk repeated after a
+-- crash is dropped rather than written twice. A non-replicated MergeTree only remembers the
+-- tokens of its last non_replicated_deduplication_window inserts, which is 0 unless set. To turn
+-- it on for an existing table:
+--   ALTER TABLE click_events MODIFY SETTING non_replicated_deduplication_window = 1000;
+
 -- Create database if not exists
 CREATE DATABASE IF NOT EXISTS analytics;
 
@@ -35,8 +48,10 @@ CREATE TABLE IF NOT EXISTS page_view_events (
     entry_page UInt8,
     exit_page UInt8
 ) ENGINE = MergeTree()
-ORDER BY (timestamp, session_id)
-PARTITION BY toYYYYMM(timestamp);
+ORDER BY (toStartOfHour(timestamp), cityHash64(session_id), timestamp, session_id)
+SAMPLE BY cityHash64(session_id)
+PARTITION BY toYYYYMM(timestamp)
+SETTINGS non_replicated_deduplication_window = 1000;
 
 -- 2. Click Events Table
 CREATE TABLE IF NOT EXISTS click_events (
@@ -68,8 +83,10 @@ CREATE TABLE IF NOT EXISTS click_events (
     click_type String,
     is_double_click UInt8
 ) ENGINE = MergeTree()
-ORDER BY (timestamp, session_id)
-PARTITION BY toYYYYMM(timestamp);
+ORDER BY (toStartOfHour(timestamp), cityHash64(session_id), timestamp, session_id)
+SAMPLE BY cityHash64(session_id)
+PARTITION BY toYYYYMM(timestamp)
+SETTINGS non_replicated_deduplication_window = 1000;
 
 -- 3. Scroll Events Table
 CREATE TABLE IF NOT EXISTS scroll_events (
@@ -99,8 +116,10 @@ CREATE TABLE IF NOT EXISTS scroll_events (
     scroll_speed UInt32,
     time_to_scroll UInt32
 ) ENGINE = MergeTree()
-ORDER BY (timestamp, session_id)
-PARTITION BY toYYYYMM(timestamp);
+ORDER BY (toStartOfHour(timestamp), cityHash64(session_id), timestamp, session_id)
+SAMPLE BY cityHash64(session_id)
+PARTITION BY toYYYYMM(timestamp)
+SETTINGS non_replicated_deduplication_window = 1000;
 
 -- 4. Session Events Table
 CREATE TABLE IF NOT EXISTS session_events (
@@ -132,8 +151,10 @@ CREATE TABLE IF NOT EXISTS session_events (
     entry_page String,
     exit_page String
 ) ENGINE = MergeTree()
-ORDER BY (timestamp, session_id)
-PARTITION BY toYYYYMM(timestamp);
+ORDER BY (toStartOfHour(timestamp), cityHash64(session_id), timestamp, session_id)
+SAMPLE BY cityHash64(session_id)
+PARTITION BY toYYYYMM(timestamp)
+SETTINGS non_replicated_deduplication_window = 1000;
 
 -- Create indexes for better query performance
 -- Page View Events indexes
@@ -0,0 +1,67 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service;
+
+import ch.qos.logback.classic.Level;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto.AnalyticsEventRequest;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.LoggerFactory;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * The statement binding loops of the ClickHouse inserts against a connection that discards
+ * everything, so the driver's own serialization and the network are left out
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ClickHouseInsertBenchmark {
+
+	@Param({ "1", "100", "1000" })
+	int batchSize;
+
+	private ClickHouseService clickHouseService;
+	private AnalyticsEventRequest request;
+
+	@Setup
+	public void setUp() {
+		// The per-batch info line would otherwise be most of what is measured
+		((ch.qos.logback.classic.Logger) LoggerFactory.getLogger(ClickHouseService.class)).setLevel(Level.WARN);
+		clickHouseService = new ClickHouseService();
+		ReflectionTestUtils.setField(clickHouseService, "clickHouseConnection", IngestFixtures.noOpConnection());
+		request = IngestFixtures.request(batchSize);
+	}
+
+	@Benchmark
+	public void insertPageViews() throws SQLException {
+		clickHouseService.insertPageViewEvents(request.getPageViews());
+	}
+
+	@Benchmark
+	public void insertClicks() throws SQLException {
+		clickHouseService.insertClickEvents(request.getClicks());
+	}
+
+	@Benchmark
+	public void insertScrolls() throws SQLException {
+		clickHouseService.insertScrollEvents(request.getScrolls());
+	}
+
+	@Benchmark
+	public void insertSessions() throws SQLException {
+		clickHouseService.insertSessionEvents(request.getSessions());
+	}
+}
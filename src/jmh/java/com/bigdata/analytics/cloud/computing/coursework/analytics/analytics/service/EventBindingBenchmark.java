@@ -0,0 +1,46 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service;
+
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto.AnalyticsEventRequest;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+/** Jackson binding of a POST /analytics/events body, with the mapper settings Spring Boot uses */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EventBindingBenchmark {
+
+	/** Events of each kind in the request */
+	@Param({ "1", "25" })
+	int batchSize;
+
+	private ObjectMapper objectMapper;
+	private byte[] body;
+
+	@Setup
+	public void setUp() throws IOException {
+		objectMapper = Jackson2ObjectMapperBuilder.json().build();
+		body = objectMapper.writeValueAsBytes(IngestFixtures.request(batchSize));
+	}
+
+	@Benchmark
+	public AnalyticsEventRequest bindRequest() throws IOException {
+		return objectMapper.readValue(body, AnalyticsEventRequest.class);
+	}
+}
@@ -0,0 +1,69 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service;
+
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.model.BaseAnalyticsEvent;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.model.ClickEvent;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.model.PageViewEvent;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * User agent parsing and defaults of one event, cycling through a mix of user agents so branch
+ * prediction does not settle on a single browser
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EventEnrichmentBenchmark {
+
+	@Param({ "desktop", "mobile", "mixed" })
+	String userAgentMix;
+
+	private EventEnrichmentService enrichmentService;
+	private String[] userAgents;
+	private PageViewEvent pageView;
+	private ClickEvent click;
+	private int next;
+
+	@Setup
+	public void setUp() {
+		enrichmentService = new EventEnrichmentService();
+		userAgents = IngestFixtures.userAgents(userAgentMix);
+		pageView = IngestFixtures.pageView(1);
+		click = IngestFixtures.click(1);
+	}
+
+	@Benchmark
+	public PageViewEvent enrichPageView() {
+		return enrichmentService.enrichPageViewEvent(reset(pageView), null);
+	}
+
+	@Benchmark
+	public ClickEvent enrichClick() {
+		return enrichmentService.enrichClickEvent(reset(click), null);
+	}
+
+	/** Clear what the previous call filled in, so every call parses its user agent again */
+	private <T extends BaseAnalyticsEvent> T reset(T event) {
+		event.setUserAgent(userAgents[next]);
+		next = next + 1 == userAgents.length ? 0 : next + 1;
+		event.setBrowser(null);
+		event.setOs(null);
+		event.setDeviceType(null);
+		event.setCountry(null);
+		event.setCity(null);
+		return event;
+	}
+}
@@ -0,0 +1,62 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service;
+
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.model.ClickEvent;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.model.PageViewEvent;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.model.ScrollEvent;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.model.SessionEvent;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Required field checks of one valid event of each kind */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EventValidationBenchmark {
+
+	private AnalyticsService analyticsService;
+	private PageViewEvent pageView;
+	private ClickEvent click;
+	private ScrollEvent scroll;
+	private SessionEvent session;
+
+	@Setup
+	public void setUp() {
+		analyticsService = new AnalyticsService();
+		pageView = IngestFixtures.pageView(1);
+		click = IngestFixtures.click(1);
+		scroll = IngestFixtures.scroll(1);
+		session = IngestFixtures.session(1);
+	}
+
+	@Benchmark
+	public void validatePageView() {
+		analyticsService.validatePageViewEvent(pageView);
+	}
+
+	@Benchmark
+	public void validateClick() {
+		analyticsService.validateClickEvent(click);
+	}
+
+	@Benchmark
+	public void validateScroll() {
+		analyticsService.validateScrollEvent(scroll);
+	}
+
+	@Benchmark
+	public void validateSession() {
+		analyticsService.validateSessionEvent(session);
+	}
+}
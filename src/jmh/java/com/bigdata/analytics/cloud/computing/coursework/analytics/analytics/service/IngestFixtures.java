@@ -0,0 +1,147 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service;
+
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto.AnalyticsEventRequest;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.model.BaseAnalyticsEvent;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.model.ClickEvent;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.model.PageViewEvent;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.model.ScrollEvent;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.model.SessionEvent;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Events and a do-nothing JDBC connection shared by the ingest benchmarks */
+final class IngestFixtures {
+
+	/** User agents roughly in the proportions the tracker sees them */
+	static final String[] DESKTOP = {
+			"Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0.0.0 Safari/537.36",
+			"Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0.0.0 Safari/537.36",
+			"Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0.0.0 Safari/537.36 Edg/120.0.2210.91",
+			"Mozilla/5.0 (Macintosh; Intel Mac OS X 10_15_7) AppleWebKit/605.1.15 (KHTML, like Gecko) Version/17.2 Safari/605.1.15",
+			"Mozilla/5.0 (X11; Linux x86_64; rv:121.0) Gecko/20100101 Firefox/121.0" };
+
+	static final String[] MOBILE = {
+			"Mozilla/5.0 (iPhone; CPU iPhone OS 17_2 like Mac OS X) AppleWebKit/605.1.15 (KHTML, like Gecko) Version/17.2 Mobile/15E148 Safari/604.1",
+			"Mozilla/5.0 (iPhone; CPU iPhone OS 17_2 like Mac OS X) AppleWebKit/605.1.15 (KHTML, like Gecko) Version/17.2 Mobile/15E148 Safari/604.1",
+			"Mozilla/5.0 (Linux; Android 14; Pixel 8) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0.6099.144 Mobile Safari/537.36",
+			"Mozilla/5.0 (Linux; Android 13; SM-S918B) AppleWebKit/537.36 (KHTML, like Gecko) SamsungBrowser/23.0 Chrome/115.0.0.0 Mobile Safari/537.36",
+			"Mozilla/5.0 (iPad; CPU OS 17_2 like Mac OS X) AppleWebKit/605.1.15 (KHTML, like Gecko) Version/17.2 Mobile/15E148 Safari/604.1" };
+
+	/** Desktop and mobile, plus a crawler, a script and a request without one */
+	static final String[] MIXED = {
+			DESKTOP[0], MOBILE[0], DESKTOP[2], MOBILE[2], DESKTOP[3], MOBILE[3], DESKTOP[4],
+			"Mozilla/5.0 (compatible; Googlebot/2.1; +http://www.google.com/bot.html)",
+			"curl/8.4.0",
+			"" };
+
+	private static final int[] NO_UPDATE_COUNTS = new int[0];
+
+	private IngestFixtures() {
+	}
+
+	static String[] userAgents(String mix) {
+		return switch (mix) {
+			case "desktop" -> DESKTOP;
+			case "mobile" -> MOBILE;
+			case "mixed" -> MIXED;
+			default -> throw new IllegalArgumentException("Unknown user agent mix: " + mix);
+		};
+	}
+
+	/** A request with {@code size} events of each kind, as a browser batch would send them */
+	static AnalyticsEventRequest request(int size) {
+		AnalyticsEventRequest request = new AnalyticsEventRequest();
+		List<PageViewEvent> pageViews = new ArrayList<>(size);
+		List<ClickEvent> clicks = new ArrayList<>(size);
+		List<ScrollEvent> scrolls = new ArrayList<>(size);
+		List<SessionEvent> sessions = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) {
+			pageViews.add(pageView(i));
+			clicks.add(click(i));
+			scrolls.add(scroll(i));
+			sessions.add(session(i));
+		}
+		request.setPageViews(pageViews);
+		request.setClicks(clicks);
+		request.setScrolls(scrolls);
+		request.setSessions(sessions);
+		return request;
+	}
+
+	static PageViewEvent pageView(int i) {
+		PageViewEvent event = base(new PageViewEvent(), i);
+		event.setPageTitle("Game " + i + " | LUGX Gaming");
+		event.setReferrer("https://www.google.com/");
+		event.setLoadTime(300 + i % 900);
+		return event;
+	}
+
+	static ClickEvent click(int i) {
+		ClickEvent event = base(new ClickEvent(), i);
+		event.setElementId("add-to-cart-" + i % 12);
+		event.setElementText("Add to cart");
+		event.setClickX(i % 1920);
+		event.setClickY(i % 1080);
+		return event;
+	}
+
+	static ScrollEvent scroll(int i) {
+		ScrollEvent event = base(new ScrollEvent(), i);
+		event.setScrollDepth(i % 4000);
+		event.setScrollPercentage(i % 100 / 100.0);
+		return event;
+	}
+
+	static SessionEvent session(int i) {
+		SessionEvent event = base(new SessionEvent(), i);
+		event.setEventType(i % 2 == 0 ? "session_start" : "session_end");
+		event.setDuration(i % 1800);
+		event.setPageCount(1 + i % 8);
+		return event;
+	}
+
+	private static <T extends BaseAnalyticsEvent> T base(T event, int i) {
+		event.setSessionId("sess_" + (1_700_000_000_000L + i / 20) + "_k3j9x2");
+		event.setUserId(i % 3 == 0 ? "user_" + i % 500 : null);
+		event.setPageUrl("/games/" + i % 40);
+		event.setTimestamp("2024-01-01 10:00:" + String.format("%02d", i % 60) + ".000");
+		event.setUserAgent(MIXED[i % MIXED.length]);
+		event.setIpAddress("203.0.113." + i % 250);
+		return event;
+	}
+
+	/**
+	 * A connection whose statements accept and discard every call, so a benchmark of an insert
+	 * measures only the binding loop around the driver. Each call through the proxy allocates its
+	 * argument array; that is a constant per bound column and does not hide a regression.
+	 */
+	static Connection noOpConnection() {
+		PreparedStatement statement = noOp(PreparedStatement.class);
+		return (Connection) Proxy.newProxyInstance(IngestFixtures.class.getClassLoader(),
+				new Class<?>[] { Connection.class },
+				(proxy, method, args) -> method.getName().equals("prepareStatement") ? statement
+						: defaultValue(method.getReturnType()));
+	}
+
+	private static <T> T noOp(Class<T> type) {
+		return type.cast(Proxy.newProxyInstance(IngestFixtures.class.getClassLoader(), new Class<?>[] { type },
+				(proxy, method, args) -> method.getName().equals("executeBatch") ? NO_UPDATE_COUNTS
+						: defaultValue(method.getReturnType())));
+	}
+
+	private static Object defaultValue(Class<?> type) {
+		if (type == boolean.class) {
+			return false;
+		}
+		if (type == int.class) {
+			return 0;
+		}
+		if (type == long.class) {
+			return 0L;
+		}
+		return null;
+	}
+}
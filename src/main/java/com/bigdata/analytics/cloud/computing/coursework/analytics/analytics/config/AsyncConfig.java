@@ -10,13 +10,37 @@ import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 @EnableAsync
 public class AsyncConfig {
 
-    @Bean(name = "s3ExportExecutor")
-    public Executor s3ExportExecutor() {
+    @Bean(name = "cacheRefreshExecutor")
+    public Executor cacheRefreshExecutor() {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(1);
+        executor.setMaxPoolSize(2);
+        executor.setQueueCapacity(20);
+        executor.setThreadNamePrefix("CacheRefresh-");
+        executor.initialize();
+        return executor;
+    }
+
+    @Bean(name = "queryJobExecutor")
+    public ThreadPoolTaskExecutor queryJobExecutor() {
+        // Jobs are heavy scans; a couple at a time with a short queue, rejected beyond that
         ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
         executor.setCorePoolSize(2);
-        executor.setMaxPoolSize(5);
-        executor.setQueueCapacity(100);
-        executor.setThreadNamePrefix("S3Export-");
+        executor.setMaxPoolSize(2);
+        executor.setQueueCapacity(20);
+        executor.setThreadNamePrefix("QueryJob-");
+        executor.initialize();
+        return executor;
+    }
+
+    @Bean(name = "rollupBuildExecutor")
+    public Executor rollupBuildExecutor() {
+        // Builds wait out mutations and backfills for hours; one thread, off the scheduler's pool
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(1);
+        executor.setMaxPoolSize(1);
+        executor.setQueueCapacity(1);
+        executor.setThreadNamePrefix("RollupBuild-");
         executor.initialize();
         return executor;
     }
@@ -0,0 +1,60 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.config;
+
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service.Bulkhead;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+/**
+ * Separate pools for event ingest, analytics reads and streamed responses. Each request is handed
+ * to its pool and the Tomcat thread is released, so a burst of dashboard queries can only fill the
+ * query pool while ingest keeps its own threads, and its own ClickHouse connection (see
+ * {@link ClickHouseConfig}). Streams, such as hour-long exports, hold their thread for as long as
+ * the client reads, so they get a pool of their own rather than starving interactive reads.
+ */
+@Configuration
+public class BulkheadConfig implements WebMvcConfigurer {
+
+    @Value("${analytics.bulkhead.ingest.threads:16}")
+    private int ingestThreads;
+
+    @Value("${analytics.bulkhead.ingest.queue:500}")
+    private int ingestQueue;
+
+    @Value("${analytics.bulkhead.query.threads:8}")
+    private int queryThreads;
+
+    @Value("${analytics.bulkhead.query.queue:50}")
+    private int queryQueue;
+
+    @Value("${analytics.bulkhead.stream.threads:8}")
+    private int streamThreads;
+
+    @Value("${analytics.bulkhead.stream.queue:8}")
+    private int streamQueue;
+
+    @Bean(destroyMethod = "shutdown")
+    public Bulkhead ingestBulkhead() {
+        // Inserts are short, so a deep queue absorbs bursts without rejecting events
+        return new Bulkhead("Ingest", ingestThreads, ingestQueue);
+    }
+
+    @Bean(destroyMethod = "shutdown")
+    public Bulkhead queryBulkhead() {
+        // Queries are long; a short queue rejects early instead of piling up stale refreshes
+        return new Bulkhead("Query", queryThreads, queryQueue);
+    }
+
+    @Bean(destroyMethod = "shutdown")
+    public Bulkhead streamBulkhead() {
+        return new Bulkhead("Stream", streamThreads, streamQueue);
+    }
+
+    @Override
+    public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+        // Used by every StreamingResponseBody; WebAsyncTasks name the ingest or query pool themselves
+        configurer.setTaskExecutor(streamBulkhead().getExecutor());
+    }
+}
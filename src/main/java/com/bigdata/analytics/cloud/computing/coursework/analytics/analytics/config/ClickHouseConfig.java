@@ -28,8 +28,28 @@ public class ClickHouseConfig {
     @Value("${clickhouse.database}")
     private String database;
 
+    @Value("${clickhouse.socket-timeout-ms:120000}")
+    private int socketTimeoutMs;
+
+    @Value("${clickhouse.write.max-connections:10}")
+    private int writeMaxConnections;
+
+    @Value("${clickhouse.read.max-connections:10}")
+    private int readMaxConnections;
+
+    /** Ingest and schema management. Kept apart from reads so slow queries cannot hold up inserts */
     @Bean
     public Connection clickHouseConnection() throws SQLException {
+        return connect("write", writeMaxConnections);
+    }
+
+    /** Analytics reads, with their own HTTP connection pool */
+    @Bean
+    public Connection clickHouseReadConnection() throws SQLException {
+        return connect("read", readMaxConnections);
+    }
+
+    private Connection connect(String role, int maxConnections) throws SQLException {
         try {
             Class.forName("com.clickhouse.jdbc.ClickHouseDriver");
 
@@ -38,20 +58,23 @@ public class ClickHouseConfig {
             props.setProperty("password", password);
             props.setProperty("compress", "0");
             props.setProperty("decompress", "0");
-            props.setProperty("socket_timeout", "30000");
+            // Only a backstop: each query's deadline is sent as max_execution_time, and this must
+            // stay above the longest of them so the server reports the timeout, not the socket
+            props.setProperty("socket_timeout", String.valueOf(socketTimeoutMs));
             props.setProperty("connection_timeout", "10000");
+            props.setProperty("max_open_connections", String.valueOf(maxConnections));
 
-            logger.info("Connecting to ClickHouse at: {} with database: {}", clickhouseUrl, database);
+            logger.info("Connecting to ClickHouse ({}) at: {} with database: {}", role, clickhouseUrl, database);
             Connection connection = DriverManager.getConnection(clickhouseUrl, props);
 
-            logger.info("Successfully connected to ClickHouse database: {}", database);
+            logger.info("Successfully connected to ClickHouse database: {} ({})", database, role);
 
             return connection;
         } catch (ClassNotFoundException e) {
             logger.error("ClickHouse JDBC driver not found", e);
             throw new RuntimeException("ClickHouse JDBC driver not found", e);
         } catch (SQLException e) {
-            logger.error("Failed to connect to ClickHouse: {}", e.getMessage(), e);
+            logger.error("Failed to connect to ClickHouse ({}): {}", role, e.getMessage(), e);
             throw e;
         }
     }
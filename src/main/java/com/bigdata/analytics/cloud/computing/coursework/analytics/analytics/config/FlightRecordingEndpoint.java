@@ -0,0 +1,145 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.config;
+
+import jakarta.annotation.PreDestroy;
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.annotation.DeleteOperation;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Selector;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.boot.actuate.endpoint.web.WebEndpointResponse;
+import org.springframework.boot.actuate.endpoint.web.annotation.WebEndpoint;
+import org.springframework.core.io.InputStreamResource;
+import org.springframework.core.io.Resource;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Actuator endpoint for an on-demand JFR recording, which includes the analytics.* events of ingest
+ * and ClickHouse calls. At most one recording exists at a time, and it is bounded in length, age
+ * and size so that it cannot be left running or fill the disk:
+ *
+ * <ul>
+ *   <li>{@code GET /actuator/flightrecording}: state of the current recording
+ *   <li>{@code POST /actuator/flightrecording} with an optional {@code duration}: start one
+ *   <li>{@code GET /actuator/flightrecording/{id}}: download what it has recorded so far as .jfr
+ *   <li>{@code DELETE /actuator/flightrecording}: stop and discard it
+ * </ul>
+ *
+ * <p>The recording belongs to the pod that started it, so all calls must reach the same pod. The
+ * actuator is only served on the management port, which no Service or ingress routes. Events that
+ * copy the environment, system properties or command lines, where credentials live, are never
+ * recorded, whichever settings are configured.
+ */
+@Component
+@WebEndpoint(id = "flightrecording")
+public class FlightRecordingEndpoint {
+
+    private static final Logger logger = LoggerFactory.getLogger(FlightRecordingEndpoint.class);
+
+    /** JDK events that carry environment variables, -D flags or process arguments */
+    static final List<String> SENSITIVE_EVENTS = List.of(
+            "jdk.InitialEnvironmentVariable",
+            "jdk.InitialSystemProperty",
+            "jdk.JVMInformation",
+            "jdk.SystemProcess");
+
+    @Value("${analytics.jfr.settings:default}")
+    private String settings;
+
+    @Value("${analytics.jfr.max-duration:PT10M}")
+    private Duration maxDuration;
+
+    @Value("${analytics.jfr.max-age:PT10M}")
+    private Duration maxAge;
+
+    @Value("${analytics.jfr.max-size:128MB}")
+    private DataSize maxSize;
+
+    private Recording recording;
+
+    @ReadOperation
+    public synchronized Map<String, Object> status() {
+        return describe(recording);
+    }
+
+    /** Start a recording for {@code duration}, capped at the maximum; a running one is kept */
+    @WriteOperation
+    public synchronized Map<String, Object> start(@Nullable Duration duration) throws IOException, ParseException {
+        if (recording != null && recording.getState() == RecordingState.RUNNING) {
+            return describe(recording);
+        }
+        discard();
+
+        Duration length = duration == null || duration.compareTo(maxDuration) > 0 ? maxDuration : duration;
+        Recording started = new Recording(Configuration.getConfiguration(settings));
+        SENSITIVE_EVENTS.forEach(started::disable);
+        started.setName("analytics-on-demand");
+        started.setToDisk(true);
+        started.setDuration(length);
+        started.setMaxAge(maxAge);
+        started.setMaxSize(maxSize.toBytes());
+        started.start();
+        recording = started;
+        logger.info("Started JFR recording {} for {} with '{}' settings", started.getId(), length, settings);
+        return describe(started);
+    }
+
+    /** The recording with {@code id} as a .jfr file, also while it is still running */
+    @ReadOperation(produces = "application/octet-stream")
+    public synchronized WebEndpointResponse<Resource> dump(@Selector long id) throws IOException {
+        if (recording == null || recording.getId() != id || recording.getState() == RecordingState.NEW) {
+            return new WebEndpointResponse<>(WebEndpointResponse.STATUS_NOT_FOUND);
+        }
+        Path file = Files.createTempFile("analytics-" + id + "-", ".jfr");
+        try {
+            recording.dump(file);
+            return new WebEndpointResponse<>(
+                    new InputStreamResource(Files.newInputStream(file, StandardOpenOption.DELETE_ON_CLOSE)));
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+    }
+
+    @DeleteOperation
+    @PreDestroy
+    public synchronized void discard() {
+        if (recording != null) {
+            recording.close();
+            recording = null;
+        }
+    }
+
+    private static Map<String, Object> describe(Recording recording) {
+        Map<String, Object> status = new LinkedHashMap<>();
+        if (recording == null) {
+            status.put("state", "NONE");
+            return status;
+        }
+        status.put("id", recording.getId());
+        status.put("state", recording.getState());
+        status.put("startTime", recording.getStartTime());
+        status.put("stopTime", recording.getStopTime());
+        status.put("duration", recording.getDuration());
+        status.put("maxAge", recording.getMaxAge());
+        status.put("maxSize", recording.getMaxSize());
+        status.put("size", recording.getSize());
+        return status;
+    }
+}
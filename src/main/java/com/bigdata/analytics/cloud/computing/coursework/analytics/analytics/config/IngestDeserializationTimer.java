@@ -0,0 +1,53 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.config;
+
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto.AnalyticsEventRequest;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service.IngestMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.MethodParameter;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.web.bind.annotation.ControllerAdvice;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.servlet.mvc.method.annotation.RequestBodyAdviceAdapter;
+
+import java.lang.reflect.Type;
+
+/**
+ * Times the deserialize stage of ingest: reading an {@link AnalyticsEventRequest} body off the
+ * socket and binding it with Jackson, which Spring MVC does before the controller runs. Bodies
+ * that fail to parse are answered 400 and not timed.
+ */
+@ControllerAdvice
+public class IngestDeserializationTimer extends RequestBodyAdviceAdapter {
+
+    private static final String STARTED_AT = IngestDeserializationTimer.class.getName() + ".startedAt";
+
+    @Autowired
+    private IngestMetrics ingestMetrics;
+
+    @Override
+    public boolean supports(MethodParameter methodParameter, Type targetType,
+                            Class<? extends HttpMessageConverter<?>> converterType) {
+        return targetType == AnalyticsEventRequest.class;
+    }
+
+    @Override
+    public HttpInputMessage beforeBodyRead(HttpInputMessage inputMessage, MethodParameter parameter, Type targetType,
+                                           Class<? extends HttpMessageConverter<?>> converterType) {
+        RequestContextHolder.currentRequestAttributes()
+                .setAttribute(STARTED_AT, System.nanoTime(), RequestAttributes.SCOPE_REQUEST);
+        return inputMessage;
+    }
+
+    @Override
+    public Object afterBodyRead(Object body, HttpInputMessage inputMessage, MethodParameter parameter,
+                                Type targetType, Class<? extends HttpMessageConverter<?>> converterType) {
+        Object startedAt = RequestContextHolder.currentRequestAttributes()
+                .getAttribute(STARTED_AT, RequestAttributes.SCOPE_REQUEST);
+        if (startedAt instanceof Long start) {
+            ingestMetrics.recordDeserialization(System.nanoTime() - start);
+        }
+        return body;
+    }
+}
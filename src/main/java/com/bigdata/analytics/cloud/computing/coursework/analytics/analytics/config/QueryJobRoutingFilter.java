@@ -0,0 +1,130 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.config;
+
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service.QueryJobService;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Sends requests for a report job to the pod that owns it. A job and its results only exist on the
+ * pod that accepted it, while the Service spreads polls over all pods; the owner's address is
+ * read from the job id, and only forwarded to if its signature checks out (see
+ * {@link QueryJobService#ownerOf}). The owner's answer, including the
+ * server-sent events of {@code /events}, is streamed back as it arrives.
+ */
+@Component
+public class QueryJobRoutingFilter extends OncePerRequestFilter {
+
+    private static final Logger logger = LoggerFactory.getLogger(QueryJobRoutingFilter.class);
+
+    private static final String JOBS_PATH = "/analytics/jobs/";
+
+    /** Set on forwarded requests, so that they are never forwarded a second time */
+    static final String FORWARDED_HEADER = "X-Analytics-Job-Forwarded";
+
+    private static final List<String> COPIED_HEADERS =
+            List.of(HttpHeaders.CONTENT_TYPE, HttpHeaders.CACHE_CONTROL, HttpHeaders.CONTENT_DISPOSITION);
+
+    @Autowired
+    private QueryJobService queryJobService;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    private final HttpClient httpClient = HttpClient.newBuilder()
+            .connectTimeout(Duration.ofSeconds(2))
+            .build();
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        return request.getHeader(FORWARDED_HEADER) != null || jobIdOf(request) == null;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        String jobId = jobIdOf(request);
+        Optional<InetSocketAddress> owner = queryJobService.ownerOf(jobId);
+        if (owner.isEmpty()) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        String host = owner.get().getAddress().getHostAddress();
+        URI target = URI.create("http://" + (host.contains(":") ? "[" + host + "]" : host) + ":"
+                + owner.get().getPort() + request.getRequestURI()
+                + (request.getQueryString() == null ? "" : "?" + request.getQueryString()));
+        HttpRequest.Builder forwarded = HttpRequest.newBuilder(target)
+                .method(request.getMethod(), HttpRequest.BodyPublishers.noBody())
+                .header(FORWARDED_HEADER, "1");
+        if (request.getHeader(HttpHeaders.ACCEPT) != null) {
+            forwarded.header(HttpHeaders.ACCEPT, request.getHeader(HttpHeaders.ACCEPT));
+        }
+
+        HttpResponse<InputStream> answer;
+        try {
+            answer = httpClient.send(forwarded.build(), HttpResponse.BodyHandlers.ofInputStream());
+        } catch (IOException e) {
+            // The pod is gone, and its jobs with it
+            logger.info("Owner {} of job {} is unreachable: {}", target.getAuthority(), jobId, e.getMessage());
+            response.setStatus(HttpStatus.NOT_FOUND.value());
+            response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+            objectMapper.writeValue(response.getOutputStream(),
+                    Map.of("error", "Job " + jobId + " was lost with the pod that ran it"));
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ServletException("Interrupted forwarding job " + jobId, e);
+        }
+
+        response.setStatus(answer.statusCode());
+        for (String name : COPIED_HEADERS) {
+            answer.headers().firstValue(name).ifPresent(value -> response.setHeader(name, value));
+        }
+        // Flushed after every read, so that events reach the client as the owner sends them
+        try (InputStream in = answer.body()) {
+            OutputStream out = response.getOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+                out.flush();
+            }
+        }
+    }
+
+    /** The job id of a request under /analytics/jobs/{jobId}, or null for any other request */
+    private static String jobIdOf(HttpServletRequest request) {
+        String path = request.getRequestURI().substring(request.getContextPath().length());
+        if (!path.startsWith(JOBS_PATH)) {
+            return null;
+        }
+        String rest = path.substring(JOBS_PATH.length());
+        int slash = rest.indexOf('/');
+        String jobId = slash < 0 ? rest : rest.substring(0, slash);
+        return jobId.isEmpty() ? null : jobId;
+    }
+}
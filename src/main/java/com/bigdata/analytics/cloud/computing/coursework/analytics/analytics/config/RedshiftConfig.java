@@ -1,5 +1,7 @@
 package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.config;
 
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
@@ -9,13 +11,9 @@ import org.springframework.context.annotation.Configuration;
 import software.amazon.awssdk.auth.credentials.DefaultCredentialsProvider;
 import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.redshift.RedshiftClient;
-import software.amazon.awssdk.services.redshiftdata.RedshiftDataClient;
+import software.amazon.awssdk.services.redshiftdata.RedshiftDataAsyncClient;
 
-import javax.sql.DataSource;
-import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.SQLException;
-import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 
 @Configuration
 @ConditionalOnProperty(name = "aws.redshift.enabled", havingValue = "true", matchIfMissing = false)
@@ -44,6 +42,15 @@ public class RedshiftConfig {
     @Value("${aws.redshift.connection.timeout:30}")
     private int connectionTimeout;
 
+    @Value("${aws.redshift.pool.max-size:4}")
+    private int poolMaxSize;
+
+    @Value("${aws.redshift.pool.min-idle:1}")
+    private int poolMinIdle;
+
+    @Value("${aws.redshift.pool.max-lifetime-minutes:30}")
+    private long poolMaxLifetimeMinutes;
+
     @Bean
     public RedshiftClient redshiftClient() {
         try {
@@ -60,10 +67,14 @@ public class RedshiftConfig {
         }
     }
 
-    @Bean
-    public RedshiftDataClient redshiftDataClient() {
+    /**
+     * Non-blocking Data API client; statements are followed by RedshiftStatementTracker
+     * rather than by a thread waiting on them
+     */
+    @Bean(destroyMethod = "close")
+    public RedshiftDataAsyncClient redshiftDataAsyncClient() {
         try {
-            RedshiftDataClient client = RedshiftDataClient.builder()
+            RedshiftDataAsyncClient client = RedshiftDataAsyncClient.builder()
                     .region(Region.of(awsRegion))
                     .credentialsProvider(DefaultCredentialsProvider.create())
                     .build();
@@ -76,53 +87,47 @@ public class RedshiftConfig {
         }
     }
 
-    @Bean(name = "redshiftConnection")
-    public Connection redshiftConnection() {
-        try {
-            String jdbcUrl;
-            
-            if (redshiftEndpoint.startsWith("jdbc:redshift://")) {
-                // For Redshift Serverless, use the Amazon Redshift JDBC driver
-                Class.forName("com.amazon.redshift.jdbc.Driver");
-                jdbcUrl = redshiftEndpoint + "/" + redshiftDatabase;
-                logger.info("Using Amazon Redshift JDBC driver for Redshift Serverless");
-            } else {
-                // For regular Redshift cluster endpoints, use PostgreSQL driver
-                Class.forName("org.postgresql.Driver");
-                jdbcUrl = String.format("jdbc:postgresql://%s:%d/%s", 
-                    redshiftEndpoint, redshiftPort, redshiftDatabase);
-                logger.info("Using PostgreSQL JDBC driver for Redshift cluster");
-            }
-            
-            Properties props = new Properties();
-            props.setProperty("user", redshiftUsername);
-            props.setProperty("password", redshiftPassword);
-            props.setProperty("ssl", "true");
-            
-            // Different SSL settings for different drivers
-            if (redshiftEndpoint.startsWith("jdbc:redshift://")) {
-                props.setProperty("sslMode", "require");
-            } else {
-                props.setProperty("sslfactory", "org.postgresql.ssl.NonValidatingFactory");
-            }
-            
-            props.setProperty("loginTimeout", String.valueOf(connectionTimeout));
-            props.setProperty("socketTimeout", String.valueOf(connectionTimeout * 1000));
-            props.setProperty("tcpKeepAlive", "true");
-            
-            Connection connection = DriverManager.getConnection(jdbcUrl, props);
-            connection.setAutoCommit(false); // Use transactions for better performance
-            
-            logger.info("Redshift JDBC connection established successfully to: {}", jdbcUrl);
-            return connection;
-            
-        } catch (ClassNotFoundException e) {
-            logger.error("JDBC driver not found", e);
-            throw new RuntimeException("JDBC driver not found", e);
-        } catch (SQLException e) {
-            logger.error("Failed to connect to Redshift: {}", e.getMessage(), e);
-            throw new RuntimeException("Failed to connect to Redshift", e);
+    @Bean(name = "redshiftDataSource", destroyMethod = "close")
+    public HikariDataSource redshiftDataSource() {
+        HikariConfig config = new HikariConfig();
+        config.setPoolName("redshift");
+        
+        if (redshiftEndpoint.startsWith("jdbc:redshift://")) {
+            // For Redshift Serverless, use the Amazon Redshift JDBC driver
+            config.setDriverClassName("com.amazon.redshift.jdbc.Driver");
+            config.setJdbcUrl(redshiftEndpoint + "/" + redshiftDatabase);
+            config.addDataSourceProperty("sslMode", "require");
+            logger.info("Using Amazon Redshift JDBC driver for Redshift Serverless");
+        } else {
+            // For regular Redshift cluster endpoints, use PostgreSQL driver
+            config.setDriverClassName("org.postgresql.Driver");
+            config.setJdbcUrl(String.format("jdbc:postgresql://%s:%d/%s", 
+                redshiftEndpoint, redshiftPort, redshiftDatabase));
+            config.addDataSourceProperty("sslfactory", "org.postgresql.ssl.NonValidatingFactory");
+            logger.info("Using PostgreSQL JDBC driver for Redshift cluster");
         }
+        
+        config.setUsername(redshiftUsername);
+        config.setPassword(redshiftPassword);
+        config.addDataSourceProperty("ssl", "true");
+        config.addDataSourceProperty("loginTimeout", String.valueOf(connectionTimeout));
+        config.addDataSourceProperty("socketTimeout", String.valueOf(connectionTimeout * 1000));
+        config.addDataSourceProperty("tcpKeepAlive", "true");
+        
+        // Each flush borrows its own connection and owns its transaction
+        config.setAutoCommit(false);
+        config.setMaximumPoolSize(poolMaxSize);
+        config.setMinimumIdle(poolMinIdle);
+        config.setConnectionTimeout(TimeUnit.SECONDS.toMillis(connectionTimeout));
+        // Redshift drops idle sessions; retire and probe connections well before that happens
+        config.setMaxLifetime(TimeUnit.MINUTES.toMillis(poolMaxLifetimeMinutes));
+        config.setKeepaliveTime(TimeUnit.MINUTES.toMillis(2));
+        // Start even if Redshift is unreachable; connections are opened on first use
+        config.setInitializationFailTimeout(-1);
+        
+        HikariDataSource dataSource = new HikariDataSource(config);
+        logger.info("Redshift connection pool created for: {} (max {} connections)", config.getJdbcUrl(), poolMaxSize);
+        return dataSource;
     }
 
     @Bean
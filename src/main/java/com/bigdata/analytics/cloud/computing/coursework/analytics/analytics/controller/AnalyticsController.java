@@ -2,24 +2,61 @@ package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.con
 
 import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto.AnalyticsEventRequest;
 import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto.ApiResponse;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto.ClientInfo;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto.JourneyPage;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto.PagePerformanceRow;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto.QueryResult;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto.RealtimeMetricsRow;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto.TopPageRow;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.exception.RateLimitExceededException;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.exception.ResponseAbortedException;
 import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service.AnalyticsService;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service.Bulkhead;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service.ClickHouseHttpClient;
 import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service.ClickHouseService;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service.CsvExportService;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service.EventSinkDispatcher;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service.IngestMetrics;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service.QueryCostGuard.GuardedQuery;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service.QueryScope;
 import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service.RateLimitService;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service.RealtimeMetricsAggregator;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service.TrendingTracker;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.validation.Valid;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.context.request.async.WebAsyncTask;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.nio.charset.StandardCharsets;
 import java.sql.SQLException;
+import java.time.Duration;
+import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 @RestController
 @RequestMapping("/analytics")
@@ -27,6 +64,8 @@ public class AnalyticsController {
     
     private static final Logger logger = LoggerFactory.getLogger(AnalyticsController.class);
     
+    private static final long DEADLINE_GRACE_MS = 2000;
+    
     @Autowired
     private AnalyticsService analyticsService;
     
@@ -36,19 +75,112 @@ public class AnalyticsController {
     @Autowired
     private RateLimitService rateLimitService;
     
+    @Autowired
+    private RealtimeMetricsAggregator realtimeMetricsAggregator;
+    
+    @Autowired
+    private TrendingTracker trendingTracker;
+    
+    @Autowired
+    private ObjectMapper objectMapper;
+    
+    @Autowired
+    private Bulkhead ingestBulkhead;
+    
+    @Autowired
+    private Bulkhead queryBulkhead;
+    
+    @Autowired
+    private Bulkhead streamBulkhead;
+    
+    @Autowired
+    private EventSinkDispatcher sinkDispatcher;
+    
+    @Autowired
+    private CsvExportService csvExportService;
+    
+    @Autowired
+    private IngestMetrics ingestMetrics;
+    
+    @Value("${analytics.journey.max-page-size:5000}")
+    private int maxJourneyPageSize;
+    
+    @Value("${analytics.bulkhead.ingest.timeout-ms:10000}")
+    private long ingestTimeoutMs;
+    
+    @Value("${analytics.query-timeout.dashboard:15}")
+    private int dashboardTimeoutSeconds;
+    
+    @Value("${analytics.query-timeout.realtime:5}")
+    private int realtimeTimeoutSeconds;
+    
+    @Value("${analytics.query-timeout.clicks:60}")
+    private int clicksTimeoutSeconds;
+    
+    @Value("${analytics.query-timeout.journey:15}")
+    private int journeyTimeoutSeconds;
+    
+    @Value("${analytics.query-timeout.performance:30}")
+    private int performanceTimeoutSeconds;
+    
+    @Value("${analytics.query-timeout.export:3600}")
+    private int exportTimeoutSeconds;
+    
+    /**
+     * Ingests a batch on the ingest pool. The work and the timeout race to claim the batch: a batch
+     * that never started is answered 503 with Retry-After, while one that did is left to finish and
+     * answered 202, since its inserts may already be committed and a resend would duplicate them.
+     */
     @PostMapping("/events")
-    public ResponseEntity<ApiResponse<Void>> processEvents(
+    public DeferredResult<ResponseEntity<ApiResponse<Void>>> processEvents(
             @Valid @RequestBody AnalyticsEventRequest request, 
             HttpServletRequest httpRequest) {
 
-        String clientIP = getClientIP(httpRequest);
-        if (!rateLimitService.isAllowed(clientIP)) {
-            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
-                    .body(ApiResponse.error("Too many requests from this IP"));
+        // Turned away here, so that rejected clients never take a slot in the ingest pool
+        if (!rateLimitService.isAllowed(getClientIP(httpRequest))) {
+            ingestMetrics.rejected(request);
+            throw new RateLimitExceededException("Too many requests from this IP");
         }
+        // The servlet request is recycled once a response is sent, so the work gets a copy
+        ClientInfo client = ClientInfo.of(httpRequest);
+        DeferredResult<ResponseEntity<ApiResponse<Void>>> result = new DeferredResult<>(ingestTimeoutMs);
+        AtomicBoolean claimed = new AtomicBoolean();
+        
+        result.onTimeout(() -> {
+            if (claimed.compareAndSet(false, true)) {
+                logger.warn("Gave up on a queued batch of {} events after {} ms", request.getTotalEventCount(),
+                        ingestTimeoutMs);
+                result.setResult(ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                        .header(HttpHeaders.RETRY_AFTER, "1")
+                        .body(ApiResponse.error("Timed out waiting to ingest events, retry shortly")));
+            } else {
+                logger.warn("Batch of {} events still being written after {} ms, answering before it finishes",
+                        request.getTotalEventCount(), ingestTimeoutMs);
+                result.setResult(ResponseEntity.status(HttpStatus.ACCEPTED).body(ApiResponse.success()));
+            }
+        });
+        result.onError(error -> {
+            // Queued work for a client that has gone is dropped; started work finishes regardless
+            if (claimed.compareAndSet(false, true)) {
+                result.setResult(ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                        .body(ApiResponse.error("Request aborted")));
+            }
+        });
         
+        // Ingest runs on its own pool so that query traffic cannot starve event collection; a full
+        // pool throws TaskRejectedException, answered 503
+        ingestBulkhead.getExecutor().execute(() -> {
+            if (!claimed.compareAndSet(false, true)) {
+                return;
+            }
+            result.setResult(ingest(request, client));
+        });
+        return result;
+    }
+    
+    private ResponseEntity<ApiResponse<Void>> ingest(AnalyticsEventRequest request, ClientInfo client) {
         try {
-            ApiResponse<Void> response = analyticsService.processEvents(request, httpRequest);
+            ApiResponse<Void> response = analyticsService.processEvents(request, client);
             
             if (response.isSuccess()) {
                 return ResponseEntity.ok(response);
@@ -64,90 +196,250 @@ public class AnalyticsController {
     }
     
     @GetMapping("/dashboard")
-    public ResponseEntity<Map<String, Object>> getDashboardData(
+    public WebAsyncTask<ResponseEntity<Map<String, Object>>> getDashboardData(
             @RequestParam(defaultValue = "24h") String timeRange,
             @RequestParam(defaultValue = "UTC") String timezone) {
         
-        try {
-            Map<String, Object> dashboardData = new HashMap<>();
-            dashboardData.put("timeRange", timeRange);
-            dashboardData.put("generatedAt", LocalDateTime.now().format(DateTimeFormatter.ISO_LOCAL_DATE_TIME));
+        return withQueryDeadline("dashboard", dashboardTimeoutSeconds, () -> {
+            try {
+                Map<String, Object> dashboardData = new HashMap<>();
+                dashboardData.put("timeRange", timeRange);
+                dashboardData.put("generatedAt", LocalDateTime.now().format(DateTimeFormatter.ISO_LOCAL_DATE_TIME));
             
-            Map<String, Object> data = new HashMap<>();
-            data.put("hourlyViews", clickHouseService.getDashboardData(timeRange));
-            data.put("topPages", clickHouseService.getTopPages(timeRange));
+                Map<String, Object> data = new HashMap<>();
+                data.put("hourlyViews", clickHouseService.getDashboardData(timeRange));
+                QueryResult<TopPageRow> topPages = clickHouseService.getTopPages(timeRange);
+                data.put("topPages", topPages.rows());
+                data.put("topPagesPrecision", topPages.precision());
             
-            dashboardData.put("data", data);
+                dashboardData.put("data", data);
             
-            return ResponseEntity.ok(dashboardData);
+                return ResponseEntity.ok(dashboardData);
             
-        } catch (SQLException e) {
-            logger.error("Error fetching dashboard data", e);
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
-                    .body(Map.of("error", "Failed to fetch dashboard data"));
-        }
+            } catch (SQLException e) {
+                logger.error("Error fetching dashboard data", e);
+                return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                        .body(Map.of("error", "Failed to fetch dashboard data"));
+            }
+        });
     }
     
     @GetMapping("/realtime")
-    public ResponseEntity<Map<String, Object>> getRealtimeMetrics() {
-        try {
-            Map<String, Object> response = new HashMap<>();
-            response.put("realtime", true);
-            response.put("timestamp", LocalDateTime.now().format(DateTimeFormatter.ISO_LOCAL_DATE_TIME));
-            response.put("metrics", clickHouseService.getRealtimeMetrics());
+    public WebAsyncTask<ResponseEntity<Map<String, Object>>> getRealtimeMetrics() {
+        return withQueryDeadline("realtime", realtimeTimeoutSeconds, () -> {
+            try {
+                Map<String, Object> response = new HashMap<>();
+                response.put("realtime", true);
+                response.put("timestamp", LocalDateTime.now().format(DateTimeFormatter.ISO_LOCAL_DATE_TIME));
             
-            return ResponseEntity.ok(response);
+                // Serve from the pods' merged sketches once they cover a full hour
+                Optional<RealtimeMetricsRow> inMemory = realtimeMetricsAggregator.getRealtimeMetrics();
+                if (inMemory.isPresent()) {
+                    response.put("source", "in_memory");
+                    response.put("metrics", inMemory.get());
+                } else {
+                    response.put("source", "clickhouse");
+                    response.put("metrics", clickHouseService.getRealtimeMetrics());
+                }
             
-        } catch (SQLException e) {
-            logger.error("Error fetching realtime metrics", e);
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
-                    .body(Map.of("error", "Failed to fetch real-time metrics"));
-        }
+                return ResponseEntity.ok(response);
+            
+            } catch (SQLException e) {
+                logger.error("Error fetching realtime metrics", e);
+                return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                        .body(Map.of("error", "Failed to fetch real-time metrics"));
+            }
+        });
+    }
+    
+    @GetMapping("/trending")
+    public ResponseEntity<Map<String, Object>> getTrending(
+            @RequestParam(defaultValue = "pages") String dimension,
+            @RequestParam(defaultValue = "15") int windowMinutes,
+            @RequestParam(defaultValue = "10") int limit) {
+        
+        TrendingTracker.Dimension trackedDimension = switch (dimension) {
+            case "pages" -> TrendingTracker.Dimension.PAGES;
+            case "elements" -> TrendingTracker.Dimension.ELEMENTS;
+            default -> throw new IllegalArgumentException("Unknown trending dimension: " + dimension);
+        };
+        
+        Map<String, Object> response = new HashMap<>();
+        response.put("timestamp", LocalDateTime.now().format(DateTimeFormatter.ISO_LOCAL_DATE_TIME));
+        response.put("trending", trendingTracker.getTrending(trackedDimension, windowMinutes, Math.max(1, limit)));
+        return ResponseEntity.ok(response);
+    }
+    
+    @GetMapping("/clicks")
+    public ResponseEntity<StreamingResponseBody> getClickAnalytics(
+            @RequestParam(defaultValue = "24h") String timeRange) throws SQLException {
+        
+        // Over-budget ranges are rejected here, before the streamed response has started
+        GuardedQuery query = clickHouseService.planClickAnalytics(timeRange);
+        
+        // Rows are written as they come off the result set instead of being collected first. Nothing
+        // is written before the first row, so a query that fails up front still gets an error status.
+        StreamingResponseBody body = streamWithDeadline("clicks", clicksTimeoutSeconds, out -> {
+            JsonGenerator json = objectMapper.createGenerator(out);
+            AtomicBoolean started = new AtomicBoolean();
+            long count;
+            try {
+                count = clickHouseService.streamClickAnalytics(query, row -> {
+                    if (started.compareAndSet(false, true)) {
+                        writeClicksHeader(json, timeRange, query);
+                    }
+                    json.writeObject(row);
+                });
+            } catch (SQLException e) {
+                logger.error("Error streaming click analytics", e);
+                throw new IOException("Failed to fetch click analytics", e);
+            }
+            if (!started.get()) {
+                writeClicksHeader(json, timeRange, query);
+            }
+            json.writeEndArray();
+            json.writeNumberField("count", count);
+            json.writeEndObject();
+            json.close();
+        });
+        
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(body);
     }
     
     @GetMapping("/user-journey/{sessionId}")
-    public ResponseEntity<Map<String, Object>> getUserJourney(@PathVariable String sessionId) {
-        try {
-            List<Map<String, Object>> journey = clickHouseService.getUserJourney(sessionId);
-            
-            Map<String, Object> response = new HashMap<>();
-            response.put("sessionId", sessionId);
-            response.put("events", journey);
+    public WebAsyncTask<ResponseEntity<Map<String, Object>>> getUserJourney(
+            @PathVariable String sessionId,
+            @RequestParam(required = false) String cursor,
+            @RequestParam(defaultValue = "500") int limit) {
+        
+        if (limit < 1 || limit > maxJourneyPageSize) {
+            throw new IllegalArgumentException("limit must be between 1 and " + maxJourneyPageSize);
+        }
+        
+        return withQueryDeadline("user_journey", journeyTimeoutSeconds, () -> {
+            try {
+                JourneyPage page = clickHouseService.getUserJourney(sessionId, cursor, limit);
             
-            // Calculate summary
-            Map<String, Object> summary = new HashMap<>();
-            summary.put("totalEvents", journey.size());
-            summary.put("pagesVisited", journey.stream()
-                    .filter(event -> "page_view".equals(event.get("event_type")))
-                    .map(event -> event.get("page_url"))
-                    .distinct()
-                    .count());
+                Map<String, Object> response = new HashMap<>();
+                response.put("sessionId", sessionId);
+                response.put("events", page.events());
+                response.put("nextCursor", page.nextCursor());
+                response.put("hasMore", page.nextCursor() != null);
             
-            response.put("summary", summary);
+                // The summary covers the whole session, so it is only computed for the first page
+                if (cursor == null || cursor.isBlank()) {
+                    response.put("summary", clickHouseService.getUserJourneySummary(sessionId));
+                }
             
-            return ResponseEntity.ok(response);
+                return ResponseEntity.ok(response);
             
-        } catch (SQLException e) {
-            logger.error("Error fetching user journey", e);
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
-                    .body(Map.of("error", "Failed to fetch user journey"));
-        }
+            } catch (SQLException e) {
+                logger.error("Error fetching user journey", e);
+                return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                        .body(Map.of("error", "Failed to fetch user journey"));
+            }
+        });
+    }
+    
+    @GetMapping(value = "/user-journey/{sessionId}", params = "format")
+    public ResponseEntity<StreamingResponseBody> streamUserJourney(
+            @PathVariable String sessionId,
+            @RequestParam String format) {
+        
+        ClickHouseHttpClient.Format passThroughFormat = parsePassThroughFormat(format);
+        StreamingResponseBody body = streamWithDeadline("user_journey", journeyTimeoutSeconds,
+                out -> clickHouseService.streamUserJourney(sessionId, passThroughFormat, out));
+        
+        return ResponseEntity.ok()
+                .contentType(passThroughFormat.getMediaType())
+                .body(body);
+    }
+    
+    @GetMapping(value = "/performance", params = "format")
+    public ResponseEntity<StreamingResponseBody> streamPerformanceMetrics(@RequestParam String format)
+            throws SQLException {
+        ClickHouseHttpClient.Format passThroughFormat = parsePassThroughFormat(format);
+        GuardedQuery query = clickHouseService.planPerformanceMetrics();
+        StreamingResponseBody body = streamWithDeadline("performance", performanceTimeoutSeconds,
+                out -> clickHouseService.streamPerformanceMetrics(query, passThroughFormat, out));
+        
+        // The raw body has no room for metadata, so precision travels in headers
+        return ResponseEntity.ok()
+                .contentType(passThroughFormat.getMediaType())
+                .header("X-Query-Precision", query.precision().mode())
+                .header("X-Query-Sample-Fraction", String.valueOf(query.precision().sampleFraction()))
+                .body(body);
+    }
+    
+    /**
+     * Raw rows of one event table between {@code from} (inclusive) and {@code to} (exclusive) as
+     * gzipped CSV. Each line carries an export_cursor; pass the last one received as {@code cursor}
+     * to resume an export that broke off.
+     */
+    @GetMapping("/export/{table}")
+    public ResponseEntity<StreamingResponseBody> exportTable(
+            @PathVariable String table,
+            @RequestParam String from,
+            @RequestParam(required = false) String to,
+            @RequestParam(required = false) String cursor) {
+        
+        CsvExportService.Plan plan = csvExportService.plan(table, parseInstant("from", from),
+                to == null ? Instant.now() : parseInstant("to", to), cursor);
+        StreamingResponseBody body = streamWithDeadline("export", exportTimeoutSeconds, out -> {
+            try {
+                csvExportService.write(plan, out);
+            } catch (SQLException e) {
+                logger.error("Error exporting {}", table, e);
+                throw new IOException("Failed to export " + table, e);
+            }
+        });
+        
+        return ResponseEntity.ok()
+                .contentType(new MediaType("text", "csv", StandardCharsets.UTF_8))
+                .header(HttpHeaders.CONTENT_ENCODING, "gzip")
+                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + table + ".csv\"")
+                .body(body);
     }
     
     @GetMapping("/performance")
-    public ResponseEntity<Map<String, Object>> getPerformanceMetrics() {
-        try {
-            Map<String, Object> response = new HashMap<>();
-            response.put("timestamp", LocalDateTime.now().format(DateTimeFormatter.ISO_LOCAL_DATE_TIME));
-            response.put("pagePerformance", clickHouseService.getPerformanceMetrics());
+    public WebAsyncTask<ResponseEntity<Map<String, Object>>> getPerformanceMetrics() {
+        return withQueryDeadline("performance", performanceTimeoutSeconds, () -> {
+            try {
+                Map<String, Object> response = new HashMap<>();
+                response.put("timestamp", LocalDateTime.now().format(DateTimeFormatter.ISO_LOCAL_DATE_TIME));
+                QueryResult<PagePerformanceRow> performance = clickHouseService.getPerformanceMetrics();
+                response.put("pagePerformance", performance.rows());
+                response.put("precision", performance.precision());
             
-            return ResponseEntity.ok(response);
+                return ResponseEntity.ok(response);
             
-        } catch (SQLException e) {
-            logger.error("Error fetching performance metrics", e);
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
-                    .body(Map.of("error", "Failed to fetch performance metrics"));
-        }
+            } catch (SQLException e) {
+                logger.error("Error fetching performance metrics", e);
+                return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                        .body(Map.of("error", "Failed to fetch performance metrics"));
+            }
+        });
+    }
+    
+    @GetMapping("/cache-stats")
+    public ResponseEntity<ApiResponse<Map<String, Object>>> getCacheStats() {
+        return ResponseEntity.ok(ApiResponse.success(clickHouseService.getCacheStats()));
+    }
+    
+    @GetMapping("/bulkheads")
+    public ResponseEntity<ApiResponse<Map<String, Object>>> getBulkheadStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("ingest", ingestBulkhead.getStats());
+        stats.put("query", queryBulkhead.getStats());
+        stats.put("stream", streamBulkhead.getStats());
+        return ResponseEntity.ok(ApiResponse.success(stats));
+    }
+
+    @GetMapping("/sinks")
+    public ResponseEntity<ApiResponse<Map<String, Object>>> getSinkStats() {
+        return ResponseEntity.ok(ApiResponse.success(sinkDispatcher.getStats()));
     }
     
     @GetMapping("/database-info")
@@ -166,6 +458,126 @@ public class AnalyticsController {
         }
     }
     
+    /**
+     * Run a read request on the query executor under a deadline. ClickHouse is given the same
+     * deadline, and the request's queries are killed if it passes or the client disconnects first.
+     */
+    private WebAsyncTask<ResponseEntity<Map<String, Object>>> withQueryDeadline(
+            String endpoint, int timeoutSeconds, Callable<ResponseEntity<Map<String, Object>>> work) {
+        QueryScope scope = QueryScope.open(endpoint, Duration.ofSeconds(timeoutSeconds));
+        
+        // Slightly longer than the query deadline, so ClickHouse's own timeout normally fires first
+        WebAsyncTask<ResponseEntity<Map<String, Object>>> task = new WebAsyncTask<>(
+                TimeUnit.SECONDS.toMillis(timeoutSeconds) + DEADLINE_GRACE_MS,
+                queryBulkhead.getExecutor(),
+                () -> scope.call(work));
+        task.onTimeout(() -> {
+            scope.cancel("deadline passed");
+            return ResponseEntity.status(HttpStatus.GATEWAY_TIMEOUT)
+                    .body(Map.of("error", "Query exceeded the " + timeoutSeconds + "s deadline for " + endpoint));
+        });
+        task.onError(() -> {
+            scope.cancel("client disconnected");
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body(Map.of("error", "Request aborted"));
+        });
+        return task;
+    }
+    
+    /** Opens the /clicks document up to its clicks array, once the first row is ready */
+    private void writeClicksHeader(JsonGenerator json, String timeRange, GuardedQuery query) throws IOException {
+        json.writeStartObject();
+        json.writeStringField("timeRange", timeRange);
+        json.writeStringField("timestamp", LocalDateTime.now().format(DateTimeFormatter.ISO_LOCAL_DATE_TIME));
+        json.writeObjectField("precision", query.precision());
+        json.writeArrayFieldStart("clicks");
+    }
+    
+    /**
+     * Streaming counterpart of {@link #withQueryDeadline}; a failed write cancels the queries.
+     * Failures before anything reached the response are answered with an error status. Once part of
+     * the body is out they become a {@link ResponseAbortedException}, which drops the connection.
+     */
+    private StreamingResponseBody streamWithDeadline(String endpoint, int timeoutSeconds, StreamingResponseBody body) {
+        return out -> {
+            QueryScope scope = QueryScope.open(endpoint, Duration.ofSeconds(timeoutSeconds));
+            ResponseOutputStream response = new ResponseOutputStream(out);
+            try {
+                scope.call(() -> {
+                    body.writeTo(response);
+                    return null;
+                });
+            } catch (IOException e) {
+                scope.cancel("stream aborted");
+                throw abortIfStarted(endpoint, response, e);
+            } catch (Exception e) {
+                throw abortIfStarted(endpoint, response, new IOException("Failed to stream " + endpoint, e));
+            }
+        };
+    }
+    
+    private static IOException abortIfStarted(String endpoint, ResponseOutputStream response, IOException e) {
+        // A failed write means the client is gone, and there is nobody left to tell
+        if (!response.written || response.failed) {
+            return e;
+        }
+        return new ResponseAbortedException("Stream of " + endpoint + " failed after it had started", e);
+    }
+    
+    /** Raw ClickHouse output formats that can be passed through without decoding */
+    private ClickHouseHttpClient.Format parsePassThroughFormat(String format) {
+        return switch (format) {
+            case "ndjson" -> ClickHouseHttpClient.Format.JSON_EACH_ROW;
+            case "compact" -> ClickHouseHttpClient.Format.JSON_COMPACT;
+            default -> throw new IllegalArgumentException("Unknown format: " + format + " (expected ndjson or compact)");
+        };
+    }
+    
+    private Instant parseInstant(String name, String value) {
+        try {
+            return Instant.parse(value);
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException(name + " must be an ISO-8601 instant, e.g. 2024-01-01T00:00:00Z");
+        }
+    }
+    
+    /** Tells whether anything was written to the response, and whether writing to it failed */
+    private static final class ResponseOutputStream extends FilterOutputStream {
+        
+        private volatile boolean written;
+        private volatile boolean failed;
+        
+        private ResponseOutputStream(OutputStream out) {
+            super(out);
+        }
+        
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            try {
+                out.write(b, off, len);
+                written |= len > 0;
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+        
+        @Override
+        public void flush() throws IOException {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+    }
+    
     private String getClientIP(HttpServletRequest request) {
         String xForwardedFor = request.getHeader("X-Forwarded-For");
         if (xForwardedFor != null && !xForwardedFor.isEmpty()) {
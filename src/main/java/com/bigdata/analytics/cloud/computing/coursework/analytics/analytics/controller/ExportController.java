@@ -0,0 +1,35 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.controller;
+
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service.HourlyArchiveExporter;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Status of the data exports.
+ */
+@RestController
+@RequestMapping("/analytics/exports")
+public class ExportController {
+
+    @Autowired(required = false)
+    private HourlyArchiveExporter hourlyArchiveExporter;
+
+    /**
+     * Progress of the hourly columnar archive: next hour per table, files written, last error
+     */
+    @GetMapping("/archive")
+    public ResponseEntity<Map<String, Object>> getArchiveStatus() {
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("enabled", hourlyArchiveExporter != null);
+        if (hourlyArchiveExporter != null) {
+            response.putAll(hourlyArchiveExporter.getStatus());
+        }
+        return ResponseEntity.ok(response);
+    }
+}
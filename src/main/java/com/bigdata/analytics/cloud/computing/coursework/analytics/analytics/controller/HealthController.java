@@ -26,6 +26,9 @@ public class HealthController {
     @Value("${aws.redshift.enabled:false}")
     private boolean redshiftEnabled;
     
+    @Value("${analytics.export.enabled:false}")
+    private boolean archiveExportEnabled;
+    
     @GetMapping("/health")
     public ResponseEntity<Map<String, Object>> healthCheck() {
         Map<String, Object> response = new HashMap<>();
@@ -64,7 +67,7 @@ public class HealthController {
             response.put("features", Map.of(
                 "clickhouse", true,
                 "redshift", redshiftEnabled,
-                "s3_export", true
+                "archive_export", archiveExportEnabled
             ));
             
             if (overallHealthy) {
@@ -0,0 +1,42 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.controller;
+
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service.BulkImportService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bulk backfill of historical events from NDJSON files in the import directory.
+ */
+@RestController
+@RequestMapping("/analytics/imports")
+public class ImportController {
+
+    @Autowired
+    private BulkImportService bulkImportService;
+
+    /**
+     * Start importing a file, relative to {@code analytics.import.dir}; resumes from its last committed offset
+     */
+    @PostMapping
+    public ResponseEntity<Map<String, Object>> startImport(@RequestParam String file) {
+        return ResponseEntity.status(HttpStatus.ACCEPTED).body(bulkImportService.start(file));
+    }
+
+    @GetMapping
+    public ResponseEntity<List<Map<String, Object>>> getImports() {
+        return ResponseEntity.ok(bulkImportService.getStatus());
+    }
+
+    /**
+     * Progress of one import: committed offset, events imported, rows per second
+     */
+    @GetMapping(params = "file")
+    public ResponseEntity<Map<String, Object>> getImport(@RequestParam String file) {
+        return ResponseEntity.of(bulkImportService.getStatus(file));
+    }
+}
@@ -0,0 +1,93 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.controller;
+
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service.QueryJobService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.Map;
+
+/**
+ * Background report jobs: submit, poll or follow progress, page through results, cancel.
+ */
+@RestController
+@RequestMapping("/analytics/jobs")
+public class QueryJobController {
+    
+    private static final Logger logger = LoggerFactory.getLogger(QueryJobController.class);
+    
+    @Autowired
+    private QueryJobService queryJobService;
+    
+    @Value("${analytics.jobs.max-page-size:5000}")
+    private int maxPageSize;
+    
+    @PostMapping
+    public ResponseEntity<Map<String, Object>> submitJob(
+            @RequestParam String report,
+            @RequestParam(defaultValue = "24h") String timeRange) {
+        
+        QueryJobService.Report jobReport;
+        try {
+            jobReport = QueryJobService.Report.valueOf(report.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown report: " + report);
+        }
+        
+        try {
+            return ResponseEntity.status(HttpStatus.ACCEPTED).body(queryJobService.submit(jobReport, timeRange));
+        } catch (TaskRejectedException e) {
+            logger.warn("Job queue full, rejecting {} job", report);
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                    .body(Map.of("error", "Too many report jobs queued, try again later"));
+        } catch (SQLException e) {
+            logger.error("Error planning report job", e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body(Map.of("error", "Failed to submit report job"));
+        }
+    }
+    
+    @GetMapping("/{jobId}")
+    public ResponseEntity<Map<String, Object>> getJob(@PathVariable String jobId) {
+        return ResponseEntity.of(queryJobService.getJob(jobId));
+    }
+    
+    @GetMapping("/{jobId}/events")
+    public ResponseEntity<SseEmitter> followJob(@PathVariable String jobId) {
+        return ResponseEntity.of(queryJobService.subscribe(jobId));
+    }
+    
+    @GetMapping("/{jobId}/results")
+    public ResponseEntity<Map<String, Object>> getResults(
+            @PathVariable String jobId,
+            @RequestParam(defaultValue = "0") long offset,
+            @RequestParam(defaultValue = "1000") int limit) {
+        
+        if (offset < 0 || limit < 1 || limit > maxPageSize) {
+            throw new IllegalArgumentException("offset must be >= 0 and limit between 1 and " + maxPageSize);
+        }
+        
+        try {
+            return ResponseEntity.of(queryJobService.getResults(jobId, offset, limit));
+        } catch (IllegalStateException e) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(Map.of("error", e.getMessage()));
+        } catch (IOException e) {
+            logger.error("Error reading job results", e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body(Map.of("error", "Failed to read job results"));
+        }
+    }
+    
+    @DeleteMapping("/{jobId}")
+    public ResponseEntity<Map<String, Object>> cancelJob(@PathVariable String jobId) {
+        return ResponseEntity.of(queryJobService.cancel(jobId));
+    }
+}
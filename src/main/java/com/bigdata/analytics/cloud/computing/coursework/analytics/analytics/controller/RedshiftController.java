@@ -1,18 +1,27 @@
 package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.controller;
 
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service.RedshiftReconciler;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service.RedshiftReplicationBuffer;
 import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service.RedshiftService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import software.amazon.awssdk.services.redshiftdata.model.ResourceNotFoundException;
+import software.amazon.awssdk.services.redshiftdata.model.ValidationException;
 
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
 
 @RestController
 @RequestMapping("/redshift")
@@ -24,6 +33,15 @@ public class RedshiftController {
     @Autowired
     private RedshiftService redshiftService;
 
+    @Autowired
+    private RedshiftReplicationBuffer redshiftReplicationBuffer;
+
+    @Autowired(required = false)
+    private RedshiftReconciler redshiftReconciler;
+
+    @Value("${aws.redshift.data-api.ddl-wait-ms:20000}")
+    private long ddlWaitMs;
+
     /**
      * Get Redshift health status
      */
@@ -57,44 +75,114 @@ public class RedshiftController {
     }
 
     /**
-     * Execute DDL statement using Redshift Data API
+     * Execute DDL statement using Redshift Data API. Answers once the statement has finished, or
+     * with 202 and the statement id if it is still running after ddl-wait-ms.
      */
     @PostMapping("/ddl")
-    public ResponseEntity<Map<String, Object>> executeDDL(@RequestBody Map<String, String> request) {
+    public CompletableFuture<ResponseEntity<Map<String, Object>>> executeDDL(@RequestBody Map<String, String> request) {
         Map<String, Object> response = new HashMap<>();
-        
-        try {
-            String sql = request.get("sql");
-            if (sql == null || sql.trim().isEmpty()) {
-                response.put("error", "SQL statement is required");
-                return ResponseEntity.badRequest().body(response);
-            }
-            
-            // Basic validation to allow only DDL statements
-            String upperSql = sql.trim().toUpperCase();
-            if (!upperSql.startsWith("CREATE") && !upperSql.startsWith("ALTER") && 
-                !upperSql.startsWith("DROP") && !upperSql.startsWith("GRANT") && 
-                !upperSql.startsWith("REVOKE")) {
-                response.put("error", "Only DDL statements (CREATE, ALTER, DROP, GRANT, REVOKE) are allowed");
-                return ResponseEntity.badRequest().body(response);
-            }
-            
-            redshiftService.executeDDL(sql);
-            
-            response.put("status", "success");
-            response.put("message", "DDL statement executed successfully");
-            response.put("timestamp", LocalDateTime.now().format(DateTimeFormatter.ISO_LOCAL_DATE_TIME));
-            
-            return ResponseEntity.ok(response);
-            
-        } catch (Exception e) {
-            logger.error("Failed to execute DDL statement", e);
-            response.put("status", "error");
-            response.put("error", e.getMessage());
-            response.put("timestamp", LocalDateTime.now().format(DateTimeFormatter.ISO_LOCAL_DATE_TIME));
-            
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(response);
+
+        String sql = request.get("sql");
+        if (sql == null || sql.trim().isEmpty()) {
+            response.put("error", "SQL statement is required");
+            return CompletableFuture.completedFuture(ResponseEntity.badRequest().body(response));
+        }
+
+        // Basic validation to allow only DDL statements
+        String upperSql = sql.trim().toUpperCase();
+        if (!upperSql.startsWith("CREATE") && !upperSql.startsWith("ALTER") &&
+            !upperSql.startsWith("DROP") && !upperSql.startsWith("GRANT") &&
+            !upperSql.startsWith("REVOKE")) {
+            response.put("error", "Only DDL statements (CREATE, ALTER, DROP, GRANT, REVOKE) are allowed");
+            return CompletableFuture.completedFuture(ResponseEntity.badRequest().body(response));
         }
+
+        return redshiftService.executeStatement(sql)
+                .thenCompose(statementId -> redshiftService.awaitStatement(statementId)
+                        .thenApply(description -> {
+                            response.put("status", "success");
+                            response.put("message", "DDL statement executed successfully");
+                            response.put("statement_id", statementId);
+                            response.put("timestamp", LocalDateTime.now().format(DateTimeFormatter.ISO_LOCAL_DATE_TIME));
+                            return ResponseEntity.ok(response);
+                        })
+                        .completeOnTimeout(accepted(statementId), ddlWaitMs, TimeUnit.MILLISECONDS))
+                .exceptionally(error -> {
+                    logger.error("Failed to execute DDL statement", error);
+                    return failure(error);
+                });
+    }
+
+    /**
+     * Get the status of a Redshift Data API statement or batch; 404 for an unknown id, 400 for a
+     * malformed one
+     */
+    @GetMapping("/statements/{id}")
+    public CompletableFuture<ResponseEntity<Map<String, Object>>> getStatement(@PathVariable String id) {
+        return redshiftService.describeStatement(id)
+                .thenApply(description -> {
+                    Map<String, Object> response = new HashMap<>();
+                    response.put("statement_id", description.id());
+                    response.put("status", description.statusAsString());
+                    response.put("sub_statements", description.hasSubStatements() ? description.subStatements().size() : 0);
+                    if (description.error() != null) {
+                        response.put("error", description.error());
+                    }
+                    if (description.duration() != null && description.duration() >= 0) {
+                        response.put("duration_ms", TimeUnit.NANOSECONDS.toMillis(description.duration()));
+                    }
+                    response.put("timestamp", LocalDateTime.now().format(DateTimeFormatter.ISO_LOCAL_DATE_TIME));
+                    return ResponseEntity.ok(response);
+                })
+                .exceptionally(error -> {
+                    logger.warn("Failed to describe Redshift statement {}: {}", id, error.getMessage());
+                    return failure(error, describeFailureStatus(error));
+                });
+    }
+
+    /**
+     * Get pending and replicated event counts of the batched replication
+     */
+    @GetMapping("/replication")
+    public ResponseEntity<Map<String, Object>> getReplicationStats() {
+        Map<String, Object> response = new HashMap<>(redshiftReplicationBuffer.getStats());
+        response.put("timestamp", LocalDateTime.now().format(DateTimeFormatter.ISO_LOCAL_DATE_TIME));
+        return ResponseEntity.ok(response);
+    }
+
+    /**
+     * Get hours checked and repaired by the ClickHouse to Redshift reconciliation
+     */
+    @GetMapping("/reconcile")
+    public ResponseEntity<Map<String, Object>> getReconcileStatus() {
+        if (redshiftReconciler == null) {
+            return ResponseEntity.notFound().build();
+        }
+        Map<String, Object> response = new HashMap<>(redshiftReconciler.getStatus());
+        response.put("timestamp", LocalDateTime.now().format(DateTimeFormatter.ISO_LOCAL_DATE_TIME));
+        return ResponseEntity.ok(response);
+    }
+
+    /**
+     * Start a reconciliation run now instead of waiting for the next scheduled one
+     */
+    @PostMapping("/reconcile")
+    public ResponseEntity<Map<String, Object>> runReconcile() {
+        if (redshiftReconciler == null) {
+            return ResponseEntity.notFound().build();
+        }
+        redshiftReconciler.runNow();
+        return ResponseEntity.status(HttpStatus.ACCEPTED).body(redshiftReconciler.getStatus());
+    }
+
+    /**
+     * Get active, idle and waiting counts of the Redshift connection pool
+     */
+    @GetMapping("/pool")
+    public ResponseEntity<Map<String, Object>> getPoolStats() {
+        Map<String, Object> response = new HashMap<>(redshiftService.getPoolStats());
+        response.put("timestamp", LocalDateTime.now().format(DateTimeFormatter.ISO_LOCAL_DATE_TIME));
+        return ResponseEntity.ok(response);
     }
 
     /**
@@ -130,129 +218,154 @@ public class RedshiftController {
     }
 
     /**
-     * Initialize Redshift tables (for setup purposes)
+     * Initialize Redshift tables (for setup purposes). The DDL is submitted as one batch and the
+     * batch id returned at once; follow it with GET /redshift/statements/{id}.
      */
     @PostMapping("/init-tables")
-    public ResponseEntity<Map<String, Object>> initializeTables() {
-        Map<String, Object> response = new HashMap<>();
-        
-        try {
-            // Create tables using DDL
-            String pageViewTableDDL = """
-                CREATE TABLE IF NOT EXISTS public.page_view_events (
-                    session_id VARCHAR(255) NOT NULL,
-                    user_id VARCHAR(255),
-                    page_url VARCHAR(2048) NOT NULL,
-                    page_title VARCHAR(1024),
-                    referrer VARCHAR(2048),
-                    load_time INTEGER,
-                    timestamp TIMESTAMP NOT NULL,
-                    user_agent VARCHAR(1024),
-                    ip_address VARCHAR(45),
-                    device_type VARCHAR(50),
-                    browser VARCHAR(100),
-                    os VARCHAR(100),
-                    country VARCHAR(100),
-                    city VARCHAR(100),
-                    created_at TIMESTAMP DEFAULT GETDATE()
-                )
-                DISTSTYLE KEY
-                DISTKEY (session_id)
-                SORTKEY (timestamp, session_id)
-                """;
-                
-            String clickEventTableDDL = """
-                CREATE TABLE IF NOT EXISTS public.click_events (
-                    session_id VARCHAR(255) NOT NULL,
-                    user_id VARCHAR(255),
-                    element_id VARCHAR(255),
-                    element_text VARCHAR(1024),
-                    page_url VARCHAR(2048) NOT NULL,
-                    click_x INTEGER,
-                    click_y INTEGER,
-                    timestamp TIMESTAMP NOT NULL,
-                    user_agent VARCHAR(1024),
-                    ip_address VARCHAR(45),
-                    device_type VARCHAR(50),
-                    browser VARCHAR(100),
-                    os VARCHAR(100),
-                    country VARCHAR(100),
-                    city VARCHAR(100),
-                    created_at TIMESTAMP DEFAULT GETDATE()
-                )
-                DISTSTYLE KEY
-                DISTKEY (session_id)
-                SORTKEY (timestamp, session_id)
-                """;
-                
-            String scrollEventTableDDL = """
-                CREATE TABLE IF NOT EXISTS public.scroll_events (
-                    session_id VARCHAR(255) NOT NULL,
-                    user_id VARCHAR(255),
-                    page_url VARCHAR(2048) NOT NULL,
-                    scroll_depth INTEGER,
-                    scroll_percentage DECIMAL(5,2),
-                    timestamp TIMESTAMP NOT NULL,
-                    user_agent VARCHAR(1024),
-                    ip_address VARCHAR(45),
-                    device_type VARCHAR(50),
-                    browser VARCHAR(100),
-                    os VARCHAR(100),
-                    country VARCHAR(100),
-                    city VARCHAR(100),
-                    created_at TIMESTAMP DEFAULT GETDATE()
-                )
-                DISTSTYLE KEY
-                DISTKEY (session_id)
-                SORTKEY (timestamp, session_id)
-                """;
-                
-            String sessionEventTableDDL = """
-                CREATE TABLE IF NOT EXISTS public.session_events (
-                    session_id VARCHAR(255) NOT NULL,
-                    user_id VARCHAR(255),
-                    event_type VARCHAR(50) NOT NULL,
-                    page_count INTEGER,
-                    timestamp TIMESTAMP NOT NULL,
-                    user_agent VARCHAR(1024),
-                    ip_address VARCHAR(45),
-                    device_type VARCHAR(50),
-                    browser VARCHAR(100),
-                    os VARCHAR(100),
-                    country VARCHAR(100),
-                    city VARCHAR(100),
-                    created_at TIMESTAMP DEFAULT GETDATE()
-                )
-                DISTSTYLE KEY
-                DISTKEY (session_id)
-                SORTKEY (timestamp, session_id)
-                """;
+    public CompletableFuture<ResponseEntity<Map<String, Object>>> initializeTables() {
+        // Create tables using DDL
+        String pageViewTableDDL = """
+            CREATE TABLE IF NOT EXISTS public.page_view_events (
+                session_id VARCHAR(255) NOT NULL,
+                user_id VARCHAR(255),
+                page_url VARCHAR(2048) NOT NULL,
+                page_title VARCHAR(1024),
+                referrer VARCHAR(2048),
+                load_time INTEGER,
+                timestamp TIMESTAMP NOT NULL,
+                user_agent VARCHAR(1024),
+                ip_address VARCHAR(45),
+                device_type VARCHAR(50),
+                browser VARCHAR(100),
+                os VARCHAR(100),
+                country VARCHAR(100),
+                city VARCHAR(100),
+                created_at TIMESTAMP DEFAULT GETDATE()
+            )
+            DISTSTYLE KEY
+            DISTKEY (session_id)
+            SORTKEY (timestamp, session_id)
+            """;
             
-            // Execute DDL statements
-            redshiftService.executeDDL(pageViewTableDDL);
-            redshiftService.executeDDL(clickEventTableDDL);
-            redshiftService.executeDDL(scrollEventTableDDL);
-            redshiftService.executeDDL(sessionEventTableDDL);
+        String clickEventTableDDL = """
+            CREATE TABLE IF NOT EXISTS public.click_events (
+                session_id VARCHAR(255) NOT NULL,
+                user_id VARCHAR(255),
+                element_id VARCHAR(255),
+                element_text VARCHAR(1024),
+                page_url VARCHAR(2048) NOT NULL,
+                click_x INTEGER,
+                click_y INTEGER,
+                timestamp TIMESTAMP NOT NULL,
+                user_agent VARCHAR(1024),
+                ip_address VARCHAR(45),
+                device_type VARCHAR(50),
+                browser VARCHAR(100),
+                os VARCHAR(100),
+                country VARCHAR(100),
+                city VARCHAR(100),
+                created_at TIMESTAMP DEFAULT GETDATE()
+            )
+            DISTSTYLE KEY
+            DISTKEY (session_id)
+            SORTKEY (timestamp, session_id)
+            """;
             
-            response.put("status", "success");
-            response.put("message", "Redshift tables initialized successfully");
-            response.put("tables_created", new String[]{
-                "page_view_events", 
-                "click_events", 
-                "scroll_events", 
-                "session_events"
-            });
-            response.put("timestamp", LocalDateTime.now().format(DateTimeFormatter.ISO_LOCAL_DATE_TIME));
+        String scrollEventTableDDL = """
+            CREATE TABLE IF NOT EXISTS public.scroll_events (
+                session_id VARCHAR(255) NOT NULL,
+                user_id VARCHAR(255),
+                page_url VARCHAR(2048) NOT NULL,
+                scroll_depth INTEGER,
+                scroll_percentage DECIMAL(5,2),
+                timestamp TIMESTAMP NOT NULL,
+                user_agent VARCHAR(1024),
+                ip_address VARCHAR(45),
+                device_type VARCHAR(50),
+                browser VARCHAR(100),
+                os VARCHAR(100),
+                country VARCHAR(100),
+                city VARCHAR(100),
+                created_at TIMESTAMP DEFAULT GETDATE()
+            )
+            DISTSTYLE KEY
+            DISTKEY (session_id)
+            SORTKEY (timestamp, session_id)
+            """;
             
-            return ResponseEntity.ok(response);
-            
-        } catch (Exception e) {
-            logger.error("Failed to initialize Redshift tables", e);
-            response.put("status", "error");
-            response.put("error", e.getMessage());
-            response.put("timestamp", LocalDateTime.now().format(DateTimeFormatter.ISO_LOCAL_DATE_TIME));
-            
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(response);
+        String sessionEventTableDDL = """
+            CREATE TABLE IF NOT EXISTS public.session_events (
+                session_id VARCHAR(255) NOT NULL,
+                user_id VARCHAR(255),
+                event_type VARCHAR(50) NOT NULL,
+                page_count INTEGER,
+                timestamp TIMESTAMP NOT NULL,
+                user_agent VARCHAR(1024),
+                ip_address VARCHAR(45),
+                device_type VARCHAR(50),
+                browser VARCHAR(100),
+                os VARCHAR(100),
+                country VARCHAR(100),
+                city VARCHAR(100),
+                created_at TIMESTAMP DEFAULT GETDATE()
+            )
+            DISTSTYLE KEY
+            DISTKEY (session_id)
+            SORTKEY (timestamp, session_id)
+            """;
+        
+        return redshiftService.executeBatch(List.of(
+                pageViewTableDDL, clickEventTableDDL, scrollEventTableDDL, sessionEventTableDDL))
+                .thenApply(statementId -> {
+                    ResponseEntity<Map<String, Object>> response = accepted(statementId);
+                    response.getBody().put("message", "Redshift table creation submitted");
+                    response.getBody().put("tables", List.of(
+                        "page_view_events",
+                        "click_events",
+                        "scroll_events",
+                        "session_events"
+                    ));
+                    return response;
+                })
+                .exceptionally(error -> {
+                    logger.error("Failed to initialize Redshift tables", error);
+                    return failure(error);
+                });
+    }
+
+    private ResponseEntity<Map<String, Object>> accepted(String statementId) {
+        Map<String, Object> response = new HashMap<>();
+        response.put("status", "submitted");
+        response.put("statement_id", statementId);
+        response.put("status_url", "/redshift/statements/" + statementId);
+        response.put("timestamp", LocalDateTime.now().format(DateTimeFormatter.ISO_LOCAL_DATE_TIME));
+        return ResponseEntity.status(HttpStatus.ACCEPTED).body(response);
+    }
+
+    private ResponseEntity<Map<String, Object>> failure(Throwable error) {
+        return failure(error, HttpStatus.INTERNAL_SERVER_ERROR);
+    }
+
+    private ResponseEntity<Map<String, Object>> failure(Throwable error, HttpStatus status) {
+        Map<String, Object> response = new HashMap<>();
+        response.put("status", "error");
+        response.put("error", causeOf(error).getMessage());
+        response.put("timestamp", LocalDateTime.now().format(DateTimeFormatter.ISO_LOCAL_DATE_TIME));
+        return ResponseEntity.status(status).body(response);
+    }
+
+    private static HttpStatus describeFailureStatus(Throwable error) {
+        Throwable cause = causeOf(error);
+        if (cause instanceof ResourceNotFoundException) {
+            return HttpStatus.NOT_FOUND;
+        }
+        if (cause instanceof ValidationException) {
+            return HttpStatus.BAD_REQUEST;
         }
+        return HttpStatus.INTERNAL_SERVER_ERROR;
+    }
+
+    private static Throwable causeOf(Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
     }
 }
@@ -4,6 +4,7 @@ import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.mode
 import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.model.PageViewEvent;
 import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.model.ScrollEvent;
 import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.model.SessionEvent;
+import com.fasterxml.jackson.annotation.JsonAlias;
 import jakarta.validation.Valid;
 import java.util.List;
 import lombok.Data;
@@ -11,7 +12,10 @@ import lombok.Data;
 @Data
 public class AnalyticsEventRequest {
 
-  @Valid private List<PageViewEvent> pageViews;
+  /** The frontend SDK sends {@code page_views}; both spellings are accepted */
+  @JsonAlias("page_views")
+  @Valid
+  private List<PageViewEvent> pageViews;
 
   @Valid private List<ClickEvent> clicks;
 
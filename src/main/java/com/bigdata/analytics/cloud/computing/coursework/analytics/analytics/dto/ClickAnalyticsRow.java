@@ -0,0 +1,15 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/** Click totals for one element on one page */
+public record ClickAnalyticsRow(
+    @JsonProperty("page_url") String pageUrl,
+    @JsonProperty("element_tag") String elementTag,
+    @JsonProperty("element_id") String elementId,
+    @JsonProperty("element_class") String elementClass,
+    @JsonProperty("clicks") long clicks,
+    @JsonProperty("unique_sessions") long uniqueSessions,
+    @JsonProperty("avg_x") Double avgX,
+    @JsonProperty("avg_y") Double avgY,
+    @JsonProperty("double_clicks") long doubleClicks) {}
@@ -0,0 +1,14 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto;
+
+import jakarta.servlet.http.HttpServletRequest;
+
+/**
+ * What ingest reads from the HTTP request that carried a batch, copied out before the batch is
+ * handed to another thread: the servlet request is recycled once the response has been sent.
+ */
+public record ClientInfo(String userAgent, long bodyBytes) {
+
+  public static ClientInfo of(HttpServletRequest request) {
+    return new ClientInfo(request.getHeader("User-Agent"), request.getContentLengthLong());
+  }
+}
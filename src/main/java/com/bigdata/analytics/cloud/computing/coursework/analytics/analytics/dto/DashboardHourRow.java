@@ -0,0 +1,11 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import java.time.LocalDateTime;
+
+/** One hour of the dashboard traffic chart */
+public record DashboardHourRow(
+    @JsonProperty("hour") LocalDateTime hour,
+    @JsonProperty("page_views") long pageViews,
+    @JsonProperty("unique_sessions") long uniqueSessions,
+    @JsonProperty("unique_users") long uniqueUsers) {}
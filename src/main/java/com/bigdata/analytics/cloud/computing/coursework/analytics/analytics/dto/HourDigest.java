@@ -0,0 +1,7 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto;
+
+/**
+ * Row count and checksum of one table for one hour. The checksum sums each row's epoch second and
+ * session id length, which ClickHouse and Redshift compute identically.
+ */
+public record HourDigest(long rows, long checksum) {}
@@ -0,0 +1,13 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import java.time.LocalDateTime;
+
+/** Hourly page view aggregates returned by {@code getPageViewAnalytics} */
+public record HourlyPageViewsRow(
+    @JsonProperty("hour") LocalDateTime hour,
+    @JsonProperty("page_views") long pageViews,
+    @JsonProperty("unique_sessions") long uniqueSessions,
+    @JsonProperty("unique_users") long uniqueUsers,
+    @JsonProperty("avg_load_time") Double avgLoadTime,
+    @JsonProperty("avg_time_on_page") Double avgTimeOnPage) {}
@@ -0,0 +1,22 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import java.time.LocalDateTime;
+
+/**
+ * One event in a session's journey. {@code eventKey} is a content hash that orders events sharing
+ * a timestamp; {@code (timestampMillis, eventKey)} with a count of the exact duplicates already
+ * returned makes a keyset cursor.
+ */
+public record JourneyEventRow(
+    @JsonProperty("event_type") String eventType,
+    @JsonProperty("timestamp") LocalDateTime timestamp,
+    @JsonProperty("event_key") String eventKey,
+    @JsonProperty("page_url") String pageUrl,
+    @JsonProperty("page_title") String pageTitle,
+    @JsonProperty("element_tag") String elementTag,
+    @JsonProperty("element_id") String elementId,
+    @JsonProperty("scroll_depth") long scrollDepth,
+    @JsonProperty("session_duration") long sessionDuration,
+    @JsonIgnore long timestampMillis) {}
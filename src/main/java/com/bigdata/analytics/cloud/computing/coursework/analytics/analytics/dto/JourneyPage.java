@@ -0,0 +1,6 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto;
+
+import java.util.List;
+
+/** One page of a session's journey; {@code nextCursor} is null on the last page */
+public record JourneyPage(List<JourneyEventRow> events, String nextCursor) {}
@@ -0,0 +1,10 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto;
+
+import java.time.LocalDateTime;
+
+/** Whole-session totals computed by ClickHouse, independent of how the events are paged */
+public record JourneySummaryRow(
+    long totalEvents,
+    long pagesVisited,
+    LocalDateTime firstEventAt,
+    LocalDateTime lastEventAt) {}
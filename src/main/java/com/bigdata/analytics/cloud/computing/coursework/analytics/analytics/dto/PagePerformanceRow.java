@@ -0,0 +1,11 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/** Load time distribution for one page */
+public record PagePerformanceRow(
+    @JsonProperty("page_url") String pageUrl,
+    @JsonProperty("avg_load_time") Double avgLoadTime,
+    @JsonProperty("median_load_time") Double medianLoadTime,
+    @JsonProperty("p95_load_time") Double p95LoadTime,
+    @JsonProperty("samples") long samples) {}
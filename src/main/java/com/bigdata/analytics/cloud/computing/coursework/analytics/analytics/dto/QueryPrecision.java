@@ -0,0 +1,22 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * How exact a guarded query result is. Counts in a sampled result are scaled up by {@code 1 /
+ * sampleFraction}; averages are estimated from the sample.
+ */
+public record QueryPrecision(
+    @JsonProperty("mode") String mode,
+    @JsonProperty("sample_fraction") double sampleFraction,
+    @JsonProperty("sampling_method") String samplingMethod,
+    @JsonProperty("estimated_rows") long estimatedRows,
+    @JsonProperty("estimated_bytes") long estimatedBytes) {
+
+  public static final String EXACT = "exact";
+  public static final String SAMPLED = "sampled";
+
+  public boolean isExact() {
+    return EXACT.equals(mode);
+  }
+}
@@ -0,0 +1,10 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/** A running query's entry in {@code system.processes} */
+public record QueryProgressRow(
+    @JsonProperty("read_rows") long readRows,
+    @JsonProperty("total_rows_approx") long totalRowsApprox,
+    @JsonProperty("read_bytes") long readBytes,
+    @JsonProperty("elapsed_seconds") double elapsedSeconds) {}
@@ -0,0 +1,6 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto;
+
+import java.util.List;
+
+/** Rows of a cost-guarded query together with how precise they are */
+public record QueryResult<T>(List<T> rows, QueryPrecision precision) {}
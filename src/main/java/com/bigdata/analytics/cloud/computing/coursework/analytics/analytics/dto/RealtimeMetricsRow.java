@@ -0,0 +1,11 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/** Last-hour activity counters */
+public record RealtimeMetricsRow(
+    @JsonProperty("page_views_last_hour") long pageViewsLastHour,
+    @JsonProperty("clicks_last_hour") long clicksLastHour,
+    @JsonProperty("scroll_events_last_hour") long scrollEventsLastHour,
+    @JsonProperty("active_sessions") long activeSessions,
+    @JsonProperty("active_users") long activeUsers) {}
@@ -0,0 +1,11 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/** Scroll depth figures for one page */
+public record ScrollAnalyticsRow(
+    @JsonProperty("page_url") String pageUrl,
+    @JsonProperty("avg_scroll_percentage") Double avgScrollPercentage,
+    @JsonProperty("avg_scroll_depth") Double avgScrollDepth,
+    @JsonProperty("scroll_events") long scrollEvents,
+    @JsonProperty("unique_sessions") long uniqueSessions) {}
@@ -0,0 +1,10 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/** Session totals over a time range */
+public record SessionSummaryRow(
+    @JsonProperty("avg_session_duration") Double avgSessionDuration,
+    @JsonProperty("avg_pages_per_session") Double avgPagesPerSession,
+    @JsonProperty("total_sessions") long totalSessions,
+    @JsonProperty("unique_users") long uniqueUsers) {}
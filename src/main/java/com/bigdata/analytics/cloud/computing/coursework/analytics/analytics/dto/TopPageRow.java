@@ -0,0 +1,14 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/** Most viewed page with engagement figures */
+public record TopPageRow(
+    @JsonProperty("page_url") String pageUrl,
+    @JsonProperty("page_title") String pageTitle,
+    @JsonProperty("views") long views,
+    @JsonProperty("unique_sessions") long uniqueSessions,
+    @JsonProperty("avg_load_time") Double avgLoadTime,
+    @JsonProperty("avg_time_on_page") Double avgTimeOnPage,
+    @JsonProperty("bounces") long bounces,
+    @JsonProperty("bounce_rate") Double bounceRate) {}
@@ -3,6 +3,8 @@ package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.exc
 import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto.ApiResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.http.converter.HttpMessageNotReadableException;
@@ -46,6 +48,35 @@ public class GlobalExceptionHandler {
         return ResponseEntity.badRequest().body(ApiResponse.error(ex.getMessage()));
     }
     
+    @ExceptionHandler(QueryBudgetExceededException.class)
+    public ResponseEntity<ApiResponse<Void>> handleQueryBudgetExceeded(QueryBudgetExceededException ex) {
+        logger.warn("Rejected over-budget query: {}", ex.getMessage());
+        return ResponseEntity.status(HttpStatus.UNPROCESSABLE_ENTITY).body(ApiResponse.error(ex.getMessage()));
+    }
+    
+    @ExceptionHandler(RateLimitExceededException.class)
+    public ResponseEntity<ApiResponse<Void>> handleRateLimitExceeded(RateLimitExceededException ex) {
+        return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS).body(ApiResponse.error(ex.getMessage()));
+    }
+    
+    @ExceptionHandler(TaskRejectedException.class)
+    public ResponseEntity<ApiResponse<Void>> handleTaskRejected(TaskRejectedException ex) {
+        logger.warn("Rejected request, pool saturated: {}", ex.getMessage());
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, "1")
+                .body(ApiResponse.error("Server busy, retry shortly"));
+    }
+    
+    /**
+     * Rethrown to the servlet container: it answers 500 if nothing was sent yet, and otherwise closes
+     * the connection, so that a client never takes a cut-off body for a whole one.
+     */
+    @ExceptionHandler(ResponseAbortedException.class)
+    public void handleResponseAborted(ResponseAbortedException ex) throws ResponseAbortedException {
+        logger.error("Aborting a streamed response after part of it was sent", ex);
+        throw ex;
+    }
+    
     @ExceptionHandler(NoHandlerFoundException.class)
     public ResponseEntity<Map<String, String>> handleNotFoundException(NoHandlerFoundException ex) {
         Map<String, String> response = new HashMap<>();
@@ -0,0 +1,22 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.exception;
+
+/** Thrown when a read query is estimated to scan more than the configured budget allows */
+public class QueryBudgetExceededException extends RuntimeException {
+
+    private final long estimatedRows;
+    private final long estimatedBytes;
+
+    public QueryBudgetExceededException(String message, long estimatedRows, long estimatedBytes) {
+        super(message);
+        this.estimatedRows = estimatedRows;
+        this.estimatedBytes = estimatedBytes;
+    }
+
+    public long getEstimatedRows() {
+        return estimatedRows;
+    }
+
+    public long getEstimatedBytes() {
+        return estimatedBytes;
+    }
+}
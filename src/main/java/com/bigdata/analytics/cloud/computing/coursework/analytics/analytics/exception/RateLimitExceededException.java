@@ -0,0 +1,9 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.exception;
+
+/** Thrown when a client has used up its request allowance */
+public class RateLimitExceededException extends RuntimeException {
+
+    public RateLimitExceededException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,14 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.exception;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a streamed response fails after part of its body was written. It is left to the
+ * servlet container, which closes the connection instead of ending the body as if it were complete.
+ */
+public class ResponseAbortedException extends IOException {
+
+    public ResponseAbortedException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -2,11 +2,11 @@ package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.ser
 
 import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto.AnalyticsEventRequest;
 import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto.ApiResponse;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto.ClientInfo;
 import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.model.ClickEvent;
 import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.model.PageViewEvent;
 import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.model.ScrollEvent;
 import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.model.SessionEvent;
-import jakarta.servlet.http.HttpServletRequest;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -31,13 +31,29 @@ public class AnalyticsService {
 
   @Autowired private ClickHouseService clickHouseService;
 
-  public ApiResponse<Void> processEvents(
-      AnalyticsEventRequest request, HttpServletRequest httpRequest) {
+  @Autowired private RealtimeMetricsAggregator realtimeMetricsAggregator;
+
+  @Autowired private TrendingTracker trendingTracker;
+
+  @Autowired private EventSinkDispatcher sinkDispatcher;
+
+  @Autowired private IngestMetrics ingestMetrics;
+
+  public ApiResponse<Void> processEvents(AnalyticsEventRequest request, ClientInfo client) {
+    IngestRequestEvent event = new IngestRequestEvent();
+    event.begin();
+    ApiResponse<Void> response = ingest(request, client);
+    event.end(request, client, response);
+    return response;
+  }
+
+  private ApiResponse<Void> ingest(AnalyticsEventRequest request, ClientInfo client) {
     if (request.isEmpty()) {
       return ApiResponse.error("No events provided");
     }
 
     if (request.getTotalEventCount() > 1000) {
+      ingestMetrics.rejected(request);
       return ApiResponse.error("Too many events in single request (max 1000)");
     }
 
@@ -46,12 +62,15 @@ public class AnalyticsService {
 
     try {
       if (request.getPageViews() != null && !request.getPageViews().isEmpty()) {
+        IngestMetrics.Batch metrics =
+            ingestMetrics.start(EventBatch.Kind.PAGE_VIEWS, request.getPageViews().size());
         List<PageViewEvent> enrichedPageViews = new ArrayList<>();
         for (int i = 0; i < request.getPageViews().size(); i++) {
           try {
             PageViewEvent event = request.getPageViews().get(i);
-            validatePageViewEvent(event);
-            PageViewEvent enrichedEvent = enrichmentService.enrichPageViewEvent(event, httpRequest);
+            metrics.validate(() -> validatePageViewEvent(event));
+            PageViewEvent enrichedEvent =
+                metrics.enrich(() -> enrichmentService.enrichPageViewEvent(event, client));
             enrichedPageViews.add(enrichedEvent);
           } catch (Exception e) {
             errors.add(new ApiResponse.ValidationError(i, "Page View: " + e.getMessage()));
@@ -59,19 +78,28 @@ public class AnalyticsService {
         }
 
         if (!enrichedPageViews.isEmpty()) {
-          clickHouseService.insertPageViewEvents(enrichedPageViews);
+          metrics.insert(
+              enrichedPageViews.size(),
+              () -> clickHouseService.insertPageViewEvents(enrichedPageViews));
+          sinkDispatcher.dispatch(EventBatch.pageViews(enrichedPageViews));
+          realtimeMetricsAggregator.recordPageViews(enrichedPageViews);
+          trendingTracker.recordPageViews(enrichedPageViews);
           processedCount += enrichedPageViews.size();
           logger.info("Processed {} page view events", enrichedPageViews.size());
         }
+        metrics.finish();
       }
 
       if (request.getClicks() != null && !request.getClicks().isEmpty()) {
+        IngestMetrics.Batch metrics =
+            ingestMetrics.start(EventBatch.Kind.CLICKS, request.getClicks().size());
         List<ClickEvent> enrichedClicks = new ArrayList<>();
         for (int i = 0; i < request.getClicks().size(); i++) {
           try {
             ClickEvent event = request.getClicks().get(i);
-            validateClickEvent(event);
-            ClickEvent enrichedEvent = enrichmentService.enrichClickEvent(event, httpRequest);
+            metrics.validate(() -> validateClickEvent(event));
+            ClickEvent enrichedEvent =
+                metrics.enrich(() -> enrichmentService.enrichClickEvent(event, client));
             enrichedClicks.add(enrichedEvent);
           } catch (Exception e) {
             errors.add(new ApiResponse.ValidationError(i, "Click: " + e.getMessage()));
@@ -79,19 +107,27 @@ public class AnalyticsService {
         }
 
         if (!enrichedClicks.isEmpty()) {
-          clickHouseService.insertClickEvents(enrichedClicks);
+          metrics.insert(
+              enrichedClicks.size(), () -> clickHouseService.insertClickEvents(enrichedClicks));
+          sinkDispatcher.dispatch(EventBatch.clicks(enrichedClicks));
+          realtimeMetricsAggregator.recordClicks(enrichedClicks.size());
+          trendingTracker.recordClicks(enrichedClicks);
           processedCount += enrichedClicks.size();
           logger.info("Processed {} click events", enrichedClicks.size());
         }
+        metrics.finish();
       }
 
       if (request.getScrolls() != null && !request.getScrolls().isEmpty()) {
+        IngestMetrics.Batch metrics =
+            ingestMetrics.start(EventBatch.Kind.SCROLLS, request.getScrolls().size());
         List<ScrollEvent> enrichedScrolls = new ArrayList<>();
         for (int i = 0; i < request.getScrolls().size(); i++) {
           try {
             ScrollEvent event = request.getScrolls().get(i);
-            validateScrollEvent(event);
-            ScrollEvent enrichedEvent = enrichmentService.enrichScrollEvent(event, httpRequest);
+            metrics.validate(() -> validateScrollEvent(event));
+            ScrollEvent enrichedEvent =
+                metrics.enrich(() -> enrichmentService.enrichScrollEvent(event, client));
             enrichedScrolls.add(enrichedEvent);
           } catch (Exception e) {
             errors.add(new ApiResponse.ValidationError(i, "Scroll: " + e.getMessage()));
@@ -99,19 +135,26 @@ public class AnalyticsService {
         }
 
         if (!enrichedScrolls.isEmpty()) {
-          clickHouseService.insertScrollEvents(enrichedScrolls);
+          metrics.insert(
+              enrichedScrolls.size(), () -> clickHouseService.insertScrollEvents(enrichedScrolls));
+          sinkDispatcher.dispatch(EventBatch.scrolls(enrichedScrolls));
+          realtimeMetricsAggregator.recordScrolls(enrichedScrolls.size());
           processedCount += enrichedScrolls.size();
           logger.info("Processed {} scroll events", enrichedScrolls.size());
         }
+        metrics.finish();
       }
 
       if (request.getSessions() != null && !request.getSessions().isEmpty()) {
+        IngestMetrics.Batch metrics =
+            ingestMetrics.start(EventBatch.Kind.SESSIONS, request.getSessions().size());
         List<SessionEvent> enrichedSessions = new ArrayList<>();
         for (int i = 0; i < request.getSessions().size(); i++) {
           try {
             SessionEvent event = request.getSessions().get(i);
-            validateSessionEvent(event);
-            SessionEvent enrichedEvent = enrichmentService.enrichSessionEvent(event, httpRequest);
+            metrics.validate(() -> validateSessionEvent(event));
+            SessionEvent enrichedEvent =
+                metrics.enrich(() -> enrichmentService.enrichSessionEvent(event, client));
             enrichedSessions.add(enrichedEvent);
           } catch (Exception e) {
             errors.add(new ApiResponse.ValidationError(i, "Session: " + e.getMessage()));
@@ -119,10 +162,14 @@ public class AnalyticsService {
         }
 
         if (!enrichedSessions.isEmpty()) {
-          clickHouseService.insertSessionEvents(enrichedSessions);
+          metrics.insert(
+              enrichedSessions.size(),
+              () -> clickHouseService.insertSessionEvents(enrichedSessions));
+          sinkDispatcher.dispatch(EventBatch.sessions(enrichedSessions));
           processedCount += enrichedSessions.size();
           logger.info("Processed {} session events", enrichedSessions.size());
         }
+        metrics.finish();
       }
 
       if (processedCount == 0) {
@@ -144,7 +191,7 @@ public class AnalyticsService {
     }
   }
 
-  private void validatePageViewEvent(PageViewEvent event) {
+  void validatePageViewEvent(PageViewEvent event) {
     List<String> missingFields = new ArrayList<>();
 
     if (event.getSessionId() == null || event.getSessionId().trim().isEmpty()) {
@@ -160,7 +207,7 @@ public class AnalyticsService {
     }
   }
 
-  private void validateClickEvent(ClickEvent event) {
+  void validateClickEvent(ClickEvent event) {
     List<String> missingFields = new ArrayList<>();
 
     if (event.getSessionId() == null || event.getSessionId().trim().isEmpty()) {
@@ -176,7 +223,7 @@ public class AnalyticsService {
     }
   }
 
-  private void validateScrollEvent(ScrollEvent event) {
+  void validateScrollEvent(ScrollEvent event) {
     List<String> missingFields = new ArrayList<>();
 
     if (event.getSessionId() == null || event.getSessionId().trim().isEmpty()) {
@@ -192,7 +239,7 @@ public class AnalyticsService {
     }
   }
 
-  private void validateSessionEvent(SessionEvent event) {
+  void validateSessionEvent(SessionEvent event) {
     List<String> missingFields = new ArrayList<>();
 
     if (event.getSessionId() == null || event.getSessionId().trim().isEmpty()) {
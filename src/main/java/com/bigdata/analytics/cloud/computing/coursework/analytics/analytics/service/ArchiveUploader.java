@@ -0,0 +1,17 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Ships a finished archive file to long-term storage, such as an S3 bucket. Without an uploader
+ * bean, {@link HourlyArchiveExporter} leaves its files in the export directory.
+ */
+public interface ArchiveUploader {
+
+  /**
+   * Upload {@code file} under {@code key}, its path relative to the export directory with {@code
+   * /} separators. Throwing leaves the hour to be exported and uploaded again on the next run.
+   */
+  void upload(Path file, String key) throws IOException;
+}
@@ -0,0 +1,611 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service;
+
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto.AnalyticsEventRequest;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.model.BaseAnalyticsEvent;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.model.ClickEvent;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.model.PageViewEvent;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.model.ScrollEvent;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.model.SessionEvent;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service.EventBatch.Kind;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+/**
+ * Backfills historical events from NDJSON files under {@code analytics.import.dir}.
+ *
+ * <p>Each line is either one flat event as logged by the old Node collector, routed by its {@code
+ * event_type}, or a request body in the shape of {@link AnalyticsEventRequest}. The file is
+ * memory-mapped in chunks of {@code chunk-size} that end on a line boundary; up to {@code
+ * parallelism} chunks are parsed, validated and enriched at once, exactly as {@link
+ * AnalyticsService} does for live events. Chunks are then inserted strictly in file order, one
+ * large batch per table, which the ClickHouse driver sends as RowBinary.
+ *
+ * <p>After a chunk's inserts succeed its end offset is written to a checkpoint file, and an import
+ * of the same file, including one picked up again at startup, resumes from there. A crash between
+ * the inserts and the checkpoint repeats that one chunk, so each insert carries an {@code
+ * insert_deduplication_token} made of the file, the chunk's offsets and the table, and ClickHouse
+ * drops the rows it already has.
+ *
+ * <p>Imported events bypass the {@link EventSink}s by default, whose queues are sized for live
+ * traffic. Redshift instead gets the imported hours from the {@link RedshiftReconciler}, which is
+ * asked to verify each table again from the earliest hour a chunk wrote. With {@code
+ * dispatch-to-sinks=true} every batch goes to the sinks as well, waiting for room in their queues
+ * rather than being dropped.
+ */
+@Service
+public class BulkImportService {
+
+  private static final Logger logger = LoggerFactory.getLogger(BulkImportService.class);
+
+  private static final DateTimeFormatter CLICKHOUSE_TIMESTAMP =
+      DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneOffset.UTC);
+
+  /** Validation failures logged per import; the rest are only counted */
+  private static final int LOGGED_ERRORS = 20;
+
+  public enum State {
+    QUEUED,
+    RUNNING,
+    COMPLETED,
+    FAILED
+  }
+
+  @Autowired private AnalyticsService analyticsService;
+
+  @Autowired private EventEnrichmentService enrichmentService;
+
+  @Autowired private ClickHouseService clickHouseService;
+
+  @Autowired private EventSinkDispatcher sinkDispatcher;
+
+  @Autowired(required = false)
+  private RedshiftReconciler redshiftReconciler;
+
+  @Autowired private ObjectMapper objectMapper;
+
+  @Value("${analytics.import.dir:${java.io.tmpdir}/analytics-import}")
+  private Path importDir;
+
+  @Value("${analytics.import.chunk-size:16MB}")
+  private DataSize chunkSize;
+
+  @Value("${analytics.import.parallelism:4}")
+  private int parallelism;
+
+  @Value("${analytics.import.dispatch-to-sinks:false}")
+  private boolean dispatchToSinks;
+
+  @Value("${analytics.import.resume-on-startup:true}")
+  private boolean resumeOnStartup;
+
+  private Path checkpointFile;
+  private final Properties checkpoint = new Properties();
+
+  private final Map<String, ImportJob> jobs = new ConcurrentHashMap<>();
+
+  private ExecutorService runner;
+  private ExecutorService parsers;
+
+  @PostConstruct
+  void init() throws IOException {
+    Files.createDirectories(importDir);
+    checkpointFile = importDir.resolve("import-checkpoint.properties");
+    if (Files.exists(checkpointFile)) {
+      try (Reader reader = Files.newBufferedReader(checkpointFile)) {
+        checkpoint.load(reader);
+      }
+    }
+
+    // Imports run one at a time; within one, parsing fans out over the parser pool
+    runner =
+        Executors.newSingleThreadExecutor(
+            runnable -> {
+              Thread thread = new Thread(runnable, "BulkImport");
+              thread.setDaemon(true);
+              return thread;
+            });
+    AtomicInteger threadCount = new AtomicInteger();
+    parsers =
+        Executors.newFixedThreadPool(
+            parallelism,
+            runnable -> {
+              Thread thread =
+                  new Thread(runnable, "BulkImportParse-" + threadCount.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            });
+  }
+
+  @PreDestroy
+  void shutdown() {
+    // An interrupted import keeps its last checkpoint and resumes from it on the next start
+    runner.shutdownNow();
+    parsers.shutdownNow();
+  }
+
+  /** Pick up every import the checkpoint shows as unfinished */
+  @EventListener(ApplicationReadyEvent.class)
+  public void resumeUnfinished() {
+    if (!resumeOnStartup) {
+      return;
+    }
+    for (String file : checkpoint.stringPropertyNames()) {
+      Path path = importDir.resolve(file);
+      try {
+        if (Files.isRegularFile(path) && committedOffset(file) < Files.size(path)) {
+          logger.info("Resuming import of {} from offset {}", file, committedOffset(file));
+          start(file);
+        }
+      } catch (IOException e) {
+        logger.warn("Cannot resume import of {}: {}", file, e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Start importing {@code file}, relative to the import directory, from its last committed offset.
+   * Starting a file that is already being imported returns that import.
+   */
+  public Map<String, Object> start(String file) {
+    Path path = importDir.resolve(file).normalize();
+    if (!path.startsWith(importDir.normalize()) || !Files.isRegularFile(path)) {
+      throw new IllegalArgumentException("No such import file: " + file);
+    }
+    String key = importDir.normalize().relativize(path).toString().replace('\\', '/');
+
+    ImportJob job =
+        jobs.compute(
+            key,
+            (name, existing) -> {
+              if (existing != null && existing.isActive()) {
+                return existing;
+              }
+              ImportJob created = new ImportJob(name, path);
+              runner.execute(() -> run(created));
+              return created;
+            });
+    return job.getStatus();
+  }
+
+  public List<Map<String, Object>> getStatus() {
+    return jobs.values().stream().map(ImportJob::getStatus).toList();
+  }
+
+  public Optional<Map<String, Object>> getStatus(String file) {
+    return Optional.ofNullable(jobs.get(file)).map(ImportJob::getStatus);
+  }
+
+  private void run(ImportJob job) {
+    job.start();
+    try (FileChannel channel = FileChannel.open(job.path, StandardOpenOption.READ)) {
+      job.totalBytes = channel.size();
+      long offset = committedOffset(job.file);
+      if (offset > job.totalBytes) {
+        throw new IOException(
+            "Checkpoint offset " + offset + " is past the end of the file; was it replaced?");
+      }
+      job.resumedFrom = offset;
+      job.committedOffset = offset;
+      logger.info("Importing {} ({} bytes) from offset {}", job.file, job.totalBytes, offset);
+
+      // Parse ahead in parallel, but commit strictly in file order
+      ArrayDeque<Future<ParsedChunk>> inFlight = new ArrayDeque<>();
+      long next = offset;
+      while (next < job.totalBytes || !inFlight.isEmpty()) {
+        while (next < job.totalBytes && inFlight.size() < parallelism) {
+          MappedByteBuffer chunk = mapChunk(channel, next, job.totalBytes);
+          long end = next + chunk.limit();
+          long start = next;
+          inFlight.add(parsers.submit(() -> parse(job, chunk, start, end)));
+          next = end;
+        }
+        commit(job, inFlight.poll().get());
+      }
+
+      job.state = State.COMPLETED;
+      logger.info(
+          "Imported {}: {} events in {} s ({} rows/s), {} invalid, {} skipped",
+          job.file,
+          job.importedEvents.sum(),
+          job.elapsedMillis() / 1000,
+          job.rowsPerSecond(),
+          job.invalidEvents.sum(),
+          job.skippedEvents.sum());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      job.fail("interrupted");
+    } catch (ExecutionException e) {
+      job.fail(e.getCause().getMessage());
+      logger.error("Import of {} failed at offset {}", job.file, job.committedOffset, e.getCause());
+    } catch (Exception e) {
+      job.fail(e.getMessage());
+      logger.error("Import of {} failed at offset {}", job.file, job.committedOffset, e);
+    } finally {
+      job.finish();
+    }
+  }
+
+  /**
+   * Map up to {@code chunk-size} from {@code start}, cut back to just after the last newline. A
+   * single line longer than that grows the window until it fits.
+   */
+  private MappedByteBuffer mapChunk(FileChannel channel, long start, long size) throws IOException {
+    long window = chunkSize.toBytes();
+    while (true) {
+      long length = Math.min(window, size - start);
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+      if (start + length == size) {
+        return buffer;
+      }
+      for (int i = (int) length - 1; i >= 0; i--) {
+        if (buffer.get(i) == '\n') {
+          buffer.limit(i + 1);
+          return buffer;
+        }
+      }
+      window *= 2;
+    }
+  }
+
+  private ParsedChunk parse(ImportJob job, MappedByteBuffer buffer, long start, long end) {
+    ParsedChunk chunk = new ParsedChunk(start, end);
+    byte[] line = new byte[4096];
+    int lineStart = 0;
+    int limit = buffer.limit();
+    for (int i = 0; i <= limit; i++) {
+      if (i < limit && buffer.get(i) != '\n') {
+        continue;
+      }
+      int length = i - lineStart;
+      if (length > 0 && buffer.get(i - 1) == '\r') {
+        length--;
+      }
+      if (length > 0) {
+        if (line.length < length) {
+          line = new byte[Math.max(length, line.length * 2)];
+        }
+        buffer.get(lineStart, line, 0, length);
+        parseLine(job, chunk, line, length);
+      }
+      lineStart = i + 1;
+    }
+    return chunk;
+  }
+
+  private void parseLine(ImportJob job, ParsedChunk chunk, byte[] line, int length) {
+    JsonNode node;
+    try {
+      node = objectMapper.readTree(line, 0, length);
+    } catch (JsonProcessingException e) {
+      job.invalid(chunk, "Malformed JSON: " + e.getOriginalMessage());
+      return;
+    } catch (IOException e) {
+      job.invalid(chunk, e.getMessage());
+      return;
+    }
+    if (!node.isObject()) {
+      job.invalid(chunk, "Line is not a JSON object");
+      return;
+    }
+
+    try {
+      if (node.has("event_type")) {
+        addLegacyEvent(job, chunk, (ObjectNode) node);
+      } else {
+        AnalyticsEventRequest request = objectMapper.treeToValue(node, AnalyticsEventRequest.class);
+        addAll(job, chunk, Kind.PAGE_VIEWS, request.getPageViews());
+        addAll(job, chunk, Kind.CLICKS, request.getClicks());
+        addAll(job, chunk, Kind.SCROLLS, request.getScrolls());
+        addAll(job, chunk, Kind.SESSIONS, request.getSessions());
+      }
+    } catch (IOException e) {
+      job.invalid(chunk, e.getMessage());
+    }
+  }
+
+  /** One flat event from the Node collector, renamed to this schema's fields where they differ */
+  private void addLegacyEvent(ImportJob job, ParsedChunk chunk, ObjectNode node)
+      throws IOException {
+    String eventType = node.get("event_type").asText();
+    switch (eventType) {
+      case "page_view" -> {
+        rename(node, "page_load_time", "load_time");
+        add(job, chunk, Kind.PAGE_VIEWS, objectMapper.treeToValue(node, PageViewEvent.class));
+      }
+      case "click" ->
+          add(job, chunk, Kind.CLICKS, objectMapper.treeToValue(node, ClickEvent.class));
+      case "scroll" ->
+          add(job, chunk, Kind.SCROLLS, objectMapper.treeToValue(node, ScrollEvent.class));
+      case "session_start", "session_end", "session_update" -> {
+        rename(node, "session_duration", "duration");
+        add(job, chunk, Kind.SESSIONS, objectMapper.treeToValue(node, SessionEvent.class));
+      }
+      // page_exit and custom events have no table here
+      default -> job.skippedEvents.increment();
+    }
+  }
+
+  private static void rename(ObjectNode node, String from, String to) {
+    if (node.has(from) && !node.has(to)) {
+      node.set(to, node.remove(from));
+    }
+  }
+
+  private void addAll(
+      ImportJob job,
+      ParsedChunk chunk,
+      Kind kind,
+      List<? extends BaseAnalyticsEvent> events) {
+    if (events != null) {
+      for (BaseAnalyticsEvent event : events) {
+        add(job, chunk, kind, event);
+      }
+    }
+  }
+
+  /** Validate and enrich as live ingest does, then queue the event for its table */
+  private void add(ImportJob job, ParsedChunk chunk, Kind kind, BaseAnalyticsEvent event) {
+    try {
+      switch (kind) {
+        case PAGE_VIEWS -> {
+          analyticsService.validatePageViewEvent((PageViewEvent) event);
+          enrichmentService.enrichPageViewEvent((PageViewEvent) event, null);
+        }
+        case CLICKS -> {
+          analyticsService.validateClickEvent((ClickEvent) event);
+          enrichmentService.enrichClickEvent((ClickEvent) event, null);
+        }
+        case SCROLLS -> {
+          analyticsService.validateScrollEvent((ScrollEvent) event);
+          enrichmentService.enrichScrollEvent((ScrollEvent) event, null);
+        }
+        case SESSIONS -> {
+          analyticsService.validateSessionEvent((SessionEvent) event);
+          enrichmentService.enrichSessionEvent((SessionEvent) event, null);
+        }
+      }
+      event.setTimestamp(normalizeTimestamp(event.getTimestamp()));
+    } catch (RuntimeException e) {
+      job.invalid(chunk, kind.table() + ": " + e.getMessage());
+      return;
+    }
+    chunk.events.computeIfAbsent(kind, k -> new ArrayList<>()).add(event);
+  }
+
+  /**
+   * The Node collector wrote ISO-8601 instants such as {@code 2024-01-01T10:00:00.000Z}; ClickHouse
+   * is given them as UTC in its own format. Anything else is passed through as live ingest does.
+   */
+  static String normalizeTimestamp(String timestamp) {
+    if (timestamp == null || timestamp.indexOf('T') < 0) {
+      return timestamp;
+    }
+    try {
+      return CLICKHOUSE_TIMESTAMP.format(Instant.parse(timestamp));
+    } catch (DateTimeParseException e) {
+      throw new IllegalArgumentException("Invalid timestamp: " + timestamp);
+    }
+  }
+
+  private void commit(ImportJob job, ParsedChunk chunk)
+      throws SQLException, IOException, InterruptedException {
+    for (Map.Entry<Kind, List<BaseAnalyticsEvent>> entry : chunk.events.entrySet()) {
+      EventBatch batch = new EventBatch(entry.getKey(), entry.getValue());
+      String token = chunk.deduplicationToken(job.file, batch.kind());
+      switch (batch.kind()) {
+        case PAGE_VIEWS ->
+            clickHouseService.insertPageViewEvents(batch.eventsAs(PageViewEvent.class), token);
+        case CLICKS -> clickHouseService.insertClickEvents(batch.eventsAs(ClickEvent.class), token);
+        case SCROLLS ->
+            clickHouseService.insertScrollEvents(batch.eventsAs(ScrollEvent.class), token);
+        case SESSIONS ->
+            clickHouseService.insertSessionEvents(batch.eventsAs(SessionEvent.class), token);
+      }
+      if (dispatchToSinks) {
+        job.sinkDroppedEvents.add(sinkDispatcher.dispatchAndWait(batch));
+      } else if (redshiftReconciler != null) {
+        recheckInRedshift(job, batch);
+      }
+      job.importedEvents.add(batch.size());
+    }
+
+    saveCheckpoint(job.file, chunk.end);
+    job.committedOffset = chunk.end;
+    logger.info(
+        "Import of {} at {}/{} bytes, {} events ({} rows/s)",
+        job.file,
+        chunk.end,
+        job.totalBytes,
+        job.importedEvents.sum(),
+        job.rowsPerSecond());
+  }
+
+  /** Have the reconciler copy the hours this batch added to ClickHouse over to Redshift */
+  private void recheckInRedshift(ImportJob job, EventBatch batch) throws IOException {
+    // Timestamps are all in ClickHouse's format by now, which sorts as text
+    String earliest = null;
+    for (BaseAnalyticsEvent event : batch.events()) {
+      String timestamp = event.getTimestamp();
+      if (timestamp != null && (earliest == null || timestamp.compareTo(earliest) < 0)) {
+        earliest = timestamp;
+      }
+    }
+    if (earliest == null) {
+      return;
+    }
+    try {
+      redshiftReconciler.recheckFrom(
+          batch.kind().table(), LocalDateTime.parse(earliest.substring(0, 19).replace(' ', 'T')));
+    } catch (DateTimeParseException | IndexOutOfBoundsException e) {
+      logger.warn(
+          "Import of {}: cannot tell the hour of {}, {} may miss it in Redshift",
+          job.file,
+          earliest,
+          batch.kind().table());
+    }
+  }
+
+  private long committedOffset(String file) {
+    synchronized (checkpoint) {
+      return Long.parseLong(checkpoint.getProperty(file, "0"));
+    }
+  }
+
+  /** Written to a temporary file and moved over the old one, so a crash never leaves half of it */
+  private void saveCheckpoint(String file, long offset) throws IOException {
+    Path temp = checkpointFile.resolveSibling(checkpointFile.getFileName() + ".tmp");
+    synchronized (checkpoint) {
+      checkpoint.setProperty(file, String.valueOf(offset));
+      try (Writer writer = Files.newBufferedWriter(temp)) {
+        checkpoint.store(writer, "Committed byte offset per import file");
+      }
+    }
+    Files.move(
+        temp, checkpointFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  /** Events parsed from one chunk, per table, in file order */
+  private static final class ParsedChunk {
+    private final long start;
+    private final long end;
+    private final Map<Kind, List<BaseAnalyticsEvent>> events =
+        new EnumMap<>(Kind.class);
+
+    private ParsedChunk(long start, long end) {
+      this.start = start;
+      this.end = end;
+    }
+
+    /** The same for every attempt at this chunk, so a repeated insert is dropped by ClickHouse */
+    private String deduplicationToken(String file, Kind kind) {
+      return "import:" + file + ":" + start + "-" + end + ":" + kind.table();
+    }
+  }
+
+  private static final class ImportJob {
+    private final String file;
+    private final Path path;
+
+    private final LongAdder importedEvents = new LongAdder();
+    private final LongAdder invalidEvents = new LongAdder();
+    private final LongAdder skippedEvents = new LongAdder();
+    private final LongAdder sinkDroppedEvents = new LongAdder();
+    private final AtomicInteger loggedErrors = new AtomicInteger();
+
+    private volatile State state = State.QUEUED;
+    private volatile Instant startedAt;
+    private volatile long startedNanos;
+    private volatile long finishedNanos;
+    private volatile long totalBytes;
+    private volatile long resumedFrom;
+    private volatile long committedOffset;
+    private volatile Instant finishedAt;
+    private volatile String error;
+
+    private ImportJob(String file, Path path) {
+      this.file = file;
+      this.path = path;
+    }
+
+    private boolean isActive() {
+      return state == State.QUEUED || state == State.RUNNING;
+    }
+
+    private void start() {
+      startedAt = Instant.now();
+      startedNanos = System.nanoTime();
+      state = State.RUNNING;
+    }
+
+    private void finish() {
+      finishedAt = Instant.now();
+      finishedNanos = System.nanoTime();
+    }
+
+    private void invalid(ParsedChunk chunk, String message) {
+      invalidEvents.increment();
+      if (loggedErrors.incrementAndGet() <= LOGGED_ERRORS) {
+        logger.warn(
+            "Import of {}: skipping invalid event before offset {}: {}", file, chunk.end, message);
+      }
+    }
+
+    private void fail(String message) {
+      error = message;
+      state = State.FAILED;
+    }
+
+    private long elapsedMillis() {
+      if (startedAt == null) {
+        return 0;
+      }
+      long end = finishedAt == null ? System.nanoTime() : finishedNanos;
+      return TimeUnit.NANOSECONDS.toMillis(end - startedNanos);
+    }
+
+    private long rowsPerSecond() {
+      return importedEvents.sum() * 1000 / Math.max(1, elapsedMillis());
+    }
+
+    private Map<String, Object> getStatus() {
+      Map<String, Object> status = new LinkedHashMap<>();
+      status.put("file", file);
+      status.put("state", state);
+      status.put("started_at", startedAt);
+      status.put("finished_at", finishedAt);
+      status.put("total_bytes", totalBytes);
+      status.put("resumed_from", resumedFrom);
+      status.put("committed_offset", committedOffset);
+      status.put("imported_events", importedEvents.sum());
+      status.put("rows_per_second", rowsPerSecond());
+      status.put("invalid_events", invalidEvents.sum());
+      status.put("skipped_events", skippedEvents.sum());
+      status.put("sink_dropped_events", sinkDroppedEvents.sum());
+      status.put("error", error);
+      return status;
+    }
+  }
+}
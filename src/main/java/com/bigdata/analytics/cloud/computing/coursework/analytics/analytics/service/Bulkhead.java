@@ -0,0 +1,109 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+/**
+ * A bounded thread pool reserved for one kind of work, so that a flood of one kind cannot take
+ * threads from another. Work beyond the pool and its queue is rejected immediately, and the
+ * caller turns the rejection into a {@code 503}; nothing waits for a slot.
+ */
+public class Bulkhead {
+
+  private final String name;
+  private final ThreadPoolTaskExecutor executor;
+
+  private final LongAdder rejected = new LongAdder();
+  private final LongAdder started = new LongAdder();
+  private final LongAdder queueWaitNanos = new LongAdder();
+  private final AtomicLong maxQueueWaitNanos = new AtomicLong();
+
+  public Bulkhead(String name, int threads, int queueCapacity) {
+    this.name = name;
+    this.executor = new ThreadPoolTaskExecutor();
+    executor.setCorePoolSize(threads);
+    executor.setMaxPoolSize(threads);
+    executor.setQueueCapacity(queueCapacity);
+    executor.setThreadNamePrefix(name + "-");
+    executor.setRejectedExecutionHandler(
+        (task, pool) -> {
+          rejected.increment();
+          throw new RejectedExecutionException(
+              "The " + name + " bulkhead is full (" + threads + " threads, " + queueCapacity
+                  + " queued)");
+        });
+    executor.setTaskDecorator(
+        task -> {
+          long submittedAt = System.nanoTime();
+          return () -> {
+            recordQueueWait(System.nanoTime() - submittedAt);
+            task.run();
+          };
+        });
+    executor.initialize();
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public AsyncTaskExecutor getExecutor() {
+    return executor;
+  }
+
+  public void shutdown() {
+    executor.shutdown();
+  }
+
+  public boolean isShutdown() {
+    return executor.getThreadPoolExecutor().isShutdown();
+  }
+
+  /** Tasks waiting for a thread */
+  public int getQueued() {
+    return executor.getThreadPoolExecutor().getQueue().size();
+  }
+
+  public int getQueueCapacity() {
+    return executor.getQueueCapacity();
+  }
+
+  /** Stop taking work and wait up to {@code timeout} for what is queued to finish */
+  public void drain(Duration timeout) throws InterruptedException {
+    ThreadPoolExecutor pool = executor.getThreadPoolExecutor();
+    pool.shutdown();
+    pool.awaitTermination(timeout.toMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  public Map<String, Object> getStats() {
+    ThreadPoolExecutor pool = executor.getThreadPoolExecutor();
+    long startedCount = started.sum();
+
+    Map<String, Object> stats = new LinkedHashMap<>();
+    stats.put("threads", pool.getMaximumPoolSize());
+    stats.put("active", pool.getActiveCount());
+    stats.put("queued", pool.getQueue().size());
+    stats.put("queue_remaining", pool.getQueue().remainingCapacity());
+    stats.put("completed", pool.getCompletedTaskCount());
+    stats.put("rejected", rejected.sum());
+    stats.put(
+        "avg_queue_wait_ms",
+        startedCount == 0 ? 0.0 : queueWaitNanos.sum() / 1_000_000.0 / startedCount);
+    stats.put("max_queue_wait_ms", TimeUnit.NANOSECONDS.toMillis(maxQueueWaitNanos.get()));
+    return stats;
+  }
+
+  private void recordQueueWait(long nanos) {
+    started.increment();
+    queueWaitNanos.add(nanos);
+    maxQueueWaitNanos.accumulateAndGet(nanos, Math::max);
+  }
+}
@@ -0,0 +1,88 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service;
+
+import com.clickhouse.client.ClickHouseResponse;
+import com.clickhouse.client.ClickHouseResponseSummary;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JFR event for one statement {@link ClickHouseService} sent to ClickHouse; the stack trace names
+ * the method. Rows and bytes read are as ClickHouse summarised them in the response headers. The
+ * driver does not report how large an insert's payload was, so inserts only carry their row count.
+ */
+@Name("analytics.ClickHouseCall")
+@Label("ClickHouse Call")
+@Category({"Analytics", "ClickHouse"})
+@Description("One insert or query sent to ClickHouse")
+final class ClickHouseCallEvent extends jdk.jfr.Event {
+
+  @Label("Operation")
+  String operation;
+
+  @Label("Table")
+  String table;
+
+  @Label("Rows")
+  @Description("Rows inserted, or rows handed to the caller")
+  long rows;
+
+  @Label("Rows Read")
+  long readRows;
+
+  @Label("Bytes Read")
+  @DataAmount
+  long readBytes;
+
+  @Label("Query Tag")
+  @Description("log_comment of the request the statement ran for, as in system.query_log")
+  String queryTag;
+
+  @Label("Success")
+  boolean success;
+
+  private ClickHouseCallEvent(String operation, String table) {
+    this.operation = operation;
+    this.table = table;
+  }
+
+  static ClickHouseCallEvent insert(String table) {
+    ClickHouseCallEvent event = new ClickHouseCallEvent("insert", table);
+    event.begin();
+    return event;
+  }
+
+  static ClickHouseCallEvent query() {
+    ClickHouseCallEvent event = new ClickHouseCallEvent("query", null);
+    event.begin();
+    return event;
+  }
+
+  void inserted(long rows) {
+    this.rows = rows;
+    success = true;
+  }
+
+  /** The query behind {@code rs} handed {@code rows} rows to its caller */
+  void read(ResultSet rs, long rows) throws SQLException {
+    this.rows = rows;
+    success = true;
+    if (isEnabled() && rs.isWrapperFor(ClickHouseResponse.class)) {
+      ClickHouseResponseSummary summary = rs.unwrap(ClickHouseResponse.class).getSummary();
+      readRows = summary.getReadRows();
+      readBytes = summary.getReadBytes();
+    }
+  }
+
+  /** Commit, successful or not, if a recording wants it */
+  void end(QueryScope scope) {
+    if (shouldCommit()) {
+      queryTag = scope == null ? null : scope.tag();
+      commit();
+    }
+  }
+}
@@ -0,0 +1,217 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service;
+
+import jakarta.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.SQLTimeoutException;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeoutException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Runs read queries over the ClickHouse HTTP interface and copies the response body straight to
+ * a caller-supplied stream.
+ *
+ * <p>The body arrives as pooled network buffers which the calling thread copies out and releases
+ * one at a time, so nothing is decoded into rows, a slow client never stalls the network event
+ * loop, and memory use does not grow with the result size. Query
+ * parameters are bound server-side through ClickHouse's {@code {name:Type}} placeholders.
+ *
+ * <p>Every query carries a {@code query_id} and a {@code max_execution_time} taken from the
+ * calling request's {@link QueryScope}, and asks the server to cancel it if this connection
+ * closes, which happens when the client that is being streamed to disconnects.
+ */
+@Service
+public class ClickHouseHttpClient {
+
+  private static final Logger logger = LoggerFactory.getLogger(ClickHouseHttpClient.class);
+
+  /** Time on top of max_execution_time for the server to report its own timeout */
+  private static final long DEADLINE_GRACE_SECONDS = 5;
+
+  /** Network buffers read ahead of the caller, which bounds the memory held per query */
+  private static final int PREFETCH_BUFFERS = 16;
+
+  private static final int COPY_CHUNK_BYTES = 8192;
+
+  public enum Format {
+    JSON_EACH_ROW("JSONEachRow", MediaType.parseMediaType("application/x-ndjson")),
+    JSON_COMPACT("JSONCompact", MediaType.APPLICATION_JSON),
+    /** Parquet with ZSTD-compressed pages */
+    PARQUET(
+        "Parquet",
+        MediaType.APPLICATION_OCTET_STREAM,
+        Map.of("output_format_parquet_compression_method", "zstd"),
+        null),
+    /** ClickHouse Native, the whole body ZSTD-compressed by the server and kept that way */
+    NATIVE_ZSTD(
+        "Native",
+        MediaType.APPLICATION_OCTET_STREAM,
+        Map.of("enable_http_compression", "1"),
+        "zstd");
+
+    private final String clickHouseName;
+    private final MediaType mediaType;
+    private final Map<String, String> settings;
+    private final String contentEncoding;
+
+    Format(String clickHouseName, MediaType mediaType) {
+      this(clickHouseName, mediaType, Map.of(), null);
+    }
+
+    Format(
+        String clickHouseName,
+        MediaType mediaType,
+        Map<String, String> settings,
+        String contentEncoding) {
+      this.clickHouseName = clickHouseName;
+      this.mediaType = mediaType;
+      this.settings = settings;
+      this.contentEncoding = contentEncoding;
+    }
+
+    public MediaType getMediaType() {
+      return mediaType;
+    }
+  }
+
+  @Autowired private WebClient.Builder webClientBuilder;
+
+  @Value("${clickhouse.host}")
+  private String host;
+
+  @Value("${clickhouse.username}")
+  private String username;
+
+  @Value("${clickhouse.password}")
+  private String password;
+
+  @Value("${clickhouse.database}")
+  private String database;
+
+  @Value("${clickhouse.http.timeout-seconds:60}")
+  private long timeoutSeconds;
+
+  private WebClient webClient;
+
+  @PostConstruct
+  void init() {
+    webClient =
+        webClientBuilder
+            .baseUrl(host)
+            .defaultHeader("X-ClickHouse-User", username)
+            .defaultHeader("X-ClickHouse-Key", password)
+            .defaultHeader("X-ClickHouse-Database", database)
+            .build();
+  }
+
+  /**
+   * Run {@code sql} and write the raw response in {@code format} to {@code out}.
+   *
+   * @param params values for the {@code {name:Type}} placeholders in the query
+   * @return number of bytes written
+   */
+  public long streamQuery(String sql, Map<String, String> params, Format format, OutputStream out)
+      throws IOException {
+    return streamQuery(sql, params, format, null, out);
+  }
+
+  /**
+   * Same as {@link #streamQuery(String, Map, Format, OutputStream)}, tagging the query with
+   * {@code queryId} so it can be found in {@code system.processes} and killed.
+   */
+  public long streamQuery(
+      String sql, Map<String, String> params, Format format, String queryId, OutputStream out)
+      throws IOException {
+    QueryScope scope = QueryScope.current();
+    long deadlineSeconds;
+    try {
+      deadlineSeconds = scope == null ? timeoutSeconds : scope.remainingSeconds();
+    } catch (SQLTimeoutException e) {
+      throw new IOException(e.getMessage(), e);
+    }
+    if (queryId == null) {
+      queryId = UUID.randomUUID().toString();
+    }
+
+    Map<String, String> queryParams = new LinkedHashMap<>();
+    queryParams.put("default_format", format.clickHouseName);
+    queryParams.putAll(format.settings);
+    queryParams.put("query_id", queryId);
+    queryParams.put("max_execution_time", String.valueOf(deadlineSeconds));
+    queryParams.put("cancel_http_readonly_queries_on_client_close", "1");
+    if (scope != null) {
+      queryParams.put("log_comment", scope.tag());
+    }
+    params.forEach((name, value) -> queryParams.put("param_" + name, value));
+
+    Flux<DataBuffer> body =
+        webClient
+            .post()
+            .uri(
+                uriBuilder -> {
+                  queryParams
+                      .keySet()
+                      .forEach(name -> uriBuilder.queryParam(name, "{" + name + "}"));
+                  return uriBuilder.build(queryParams);
+                })
+            .contentType(MediaType.TEXT_PLAIN)
+            .headers(
+                headers -> {
+                  if (format.contentEncoding != null) {
+                    headers.set(HttpHeaders.ACCEPT_ENCODING, format.contentEncoding);
+                  }
+                })
+            .bodyValue(sql)
+            .exchangeToFlux(
+                response ->
+                    response.statusCode().isError()
+                        ? response.createException().flatMapMany(Flux::error)
+                        : response.bodyToFlux(DataBuffer.class))
+            .takeUntilOther(
+                Mono.delay(Duration.ofSeconds(deadlineSeconds + DEADLINE_GRACE_SECONDS))
+                    .then(
+                        Mono.error(
+                            () ->
+                                new TimeoutException(
+                                    "No complete answer within "
+                                        + (deadlineSeconds + DEADLINE_GRACE_SECONDS)
+                                        + "s"))));
+
+    // Copied on this thread, never on the event loop: the event loop only queues buffers, and
+    // stops reading from the server while PREFETCH_BUFFERS of them wait for a slow writer
+    long written = 0;
+    byte[] chunk = new byte[COPY_CHUNK_BYTES];
+    try (InputStream in = DataBufferUtils.subscriberInputStream(body, PREFETCH_BUFFERS)) {
+      int read;
+      while ((read = in.read(chunk)) != -1) {
+        out.write(chunk, 0, read);
+        written += read;
+      }
+    } catch (IOException | RuntimeException e) {
+      // Network failures arrive unchecked; closing the stream cancels the exchange, closing the
+      // connection to the server
+      logger.error(
+          "ClickHouse HTTP query {} failed after {} bytes: {}", queryId, written, e.getMessage());
+      throw new IOException("ClickHouse HTTP query failed", e);
+    }
+
+    out.flush();
+    return written;
+  }
+}
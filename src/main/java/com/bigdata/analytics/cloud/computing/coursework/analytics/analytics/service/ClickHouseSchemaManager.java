@@ -0,0 +1,604 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+/**
+ * Creates and tracks the pre-aggregated rollup tables that read queries are routed to.
+ *
+ * <p>Each rollup is an AggregatingMergeTree fed by a materialized view over the raw event table.
+ * Counts are stored as {@code SimpleAggregateFunction(sum)} and uniques/averages as {@code
+ * uniqState}/{@code avgState}, so any set of buckets can be merged exactly at query time. When a
+ * rollup is created it is backfilled from the raw table for rows ingested before the view, split
+ * on an ingest-time column. A build runs on one pod at a time under a {@link ClusterLease}, and is
+ * recorded as complete in a state table once its backfill succeeds. Until then, {@link
+ * #isAvailable} returns false on every pod and callers keep scanning raw events.
+ *
+ * <p>Adding the ingest-time column rewrites every part of the raw tables and the backfill scans
+ * them in full, so builds only run where {@code clickhouse.rollups.build-enabled} is set, and on
+ * their own executor rather than the scheduler's threads. Other pods only check for completion.
+ *
+ * <p>The raw event tables are sorted by timestamp first, so it also adds a narrow projection
+ * sorted by {@code (session_id, timestamp)} to each table read by the user journey. ClickHouse
+ * picks the projection automatically for queries that filter on session_id.
+ */
+@Service
+public class ClickHouseSchemaManager {
+
+  private static final Logger logger = LoggerFactory.getLogger(ClickHouseSchemaManager.class);
+
+  private static final String SESSION_COLUMNS =
+      """
+          period DateTime,
+          total_sessions SimpleAggregateFunction(sum, UInt64),
+          unique_users AggregateFunction(uniq, Nullable(String)),
+          avg_session_duration AggregateFunction(avg, Float64),
+          avg_page_count AggregateFunction(avg, Float64)
+         \s""";
+
+  /** Stored session columns, with the plain sum read as UInt64 so it unions with raw counts */
+  private static final String SESSION_STORED =
+      "period, toUInt64(total_sessions) AS total_sessions, unique_users, avg_session_duration,"
+          + " avg_page_count";
+
+  private static String sessionSelect(String bucketFunction) {
+    return """
+          SELECT
+              %s(timestamp) as period,
+              count() as total_sessions,
+              uniqState(CAST(user_id AS Nullable(String))) as unique_users,
+              avgState(toFloat64(session_duration)) as avg_session_duration,
+              avgState(toFloat64(page_count)) as avg_page_count
+          FROM default.session_events
+          WHERE event_type = 'session_end'
+         \s"""
+        .formatted(bucketFunction);
+  }
+
+  public enum Rollup {
+    PAGE_VIEWS_HOURLY(
+        "page_views_hourly_agg",
+        """
+            period DateTime,
+            page_views SimpleAggregateFunction(sum, UInt64),
+            unique_sessions AggregateFunction(uniq, String),
+            unique_users AggregateFunction(uniq, Nullable(String)),
+            avg_load_time AggregateFunction(avg, Float64),
+            avg_time_on_page AggregateFunction(avg, Float64)
+           \s""",
+        """
+            SELECT
+                toStartOfHour(timestamp) as period,
+                count() as page_views,
+                uniqState(CAST(session_id AS String)) as unique_sessions,
+                uniqState(CAST(user_id AS Nullable(String))) as unique_users,
+                avgState(toFloat64(page_load_time)) as avg_load_time,
+                avgState(toFloat64(time_on_page)) as avg_time_on_page
+            FROM default.page_view_events
+           \s""",
+        "period, toUInt64(page_views) AS page_views, unique_sessions, unique_users,"
+            + " avg_load_time, avg_time_on_page"),
+
+    SESSIONS_HOURLY(
+        "sessions_hourly_agg",
+        SESSION_COLUMNS,
+        sessionSelect("toStartOfHour"),
+        SESSION_STORED),
+
+    SESSIONS_DAILY(
+        "sessions_daily_agg",
+        SESSION_COLUMNS,
+        sessionSelect("toStartOfDay"),
+        SESSION_STORED);
+
+    private final String table;
+    private final String columns;
+    private final String select;
+    private final String stored;
+
+    Rollup(String table, String columns, String select, String stored) {
+      this.table = table;
+      this.columns = columns;
+      this.select = select;
+      this.stored = stored;
+    }
+
+    public String getTable() {
+      return "default." + table;
+    }
+
+    /** Stored buckets matching {@code condition}, in the same column types as {@link #aggregate} */
+    public String rows(String condition) {
+      return "SELECT %s FROM %s WHERE %s".formatted(stored, getTable(), condition);
+    }
+
+    /** Raw events matching {@code condition} aggregated into buckets the way the view does it */
+    public String aggregate(String condition) {
+      return "%s %s %s GROUP BY period"
+          .formatted(select, select.contains("WHERE") ? "AND" : "WHERE", condition);
+    }
+  }
+
+  static final String JOURNEY_PROJECTION = "journey_by_session";
+
+  /** Columns the journey query reads from each raw table */
+  private static final Map<String, String> JOURNEY_PROJECTION_COLUMNS =
+      Map.of(
+          "page_view_events", "session_id, timestamp, event_id, page_url, page_title",
+          "click_events", "session_id, timestamp, event_id, page_url, element_tag, element_id",
+          "scroll_events", "session_id, timestamp, event_id, page_url, scroll_depth");
+
+  /** Raw tables the rollups are fed from */
+  private static final List<String> ROLLUP_SOURCES = List.of("page_view_events", "session_events");
+
+  static final String INGEST_CLOCK = "ingested_at";
+
+  static final String STATE_TABLE = "default.analytics_schema_state";
+
+  @Autowired private Connection clickHouseConnection;
+
+  @Autowired private ClusterLease clusterLease;
+
+  @Autowired
+  @Qualifier("rollupBuildExecutor")
+  private Executor buildExecutor;
+
+  @Value("${clickhouse.rollups.enabled:true}")
+  private boolean rollupsEnabled;
+
+  @Value("${clickhouse.rollups.build-enabled:false}")
+  private boolean buildEnabled;
+
+  @Value("${clickhouse.projections.enabled:true}")
+  private boolean projectionsEnabled;
+
+  /** How far ahead of the server clock a new view's boundary is set; creating it must be quicker */
+  @Value("${clickhouse.rollups.boundary-lead-seconds:5}")
+  private int boundaryLeadSeconds;
+
+  /** How long inserts that started before a view's boundary may still be running */
+  @Value("${clickhouse.rollups.backfill-settle-seconds:120}")
+  private long settleSeconds;
+
+  @Value("${clickhouse.rollups.build-timeout:PT6H}")
+  private Duration buildTimeout;
+
+  /** How long a build waits for the mutation that writes the ingest clock into existing parts */
+  @Value("${clickhouse.rollups.mutation-timeout:PT2H}")
+  private Duration mutationTimeout;
+
+  private final Set<Rollup> available = EnumSet.noneOf(Rollup.class);
+
+  private final AtomicBoolean building = new AtomicBoolean();
+
+  private volatile boolean reportedBuildsDisabled;
+
+  /**
+   * Check which rollups are complete and, where builds are enabled, hand the ones that are not to
+   * the build executor. Runs on every pod at start and then periodically, so pods pick up a rollup
+   * another pod has finished, and a build left unfinished by a pod that died is taken over once
+   * its lease runs out.
+   */
+  @Scheduled(
+      initialDelayString = "${clickhouse.rollups.initial-delay-ms:0}",
+      fixedDelayString = "${clickhouse.rollups.check-interval-ms:60000}")
+  public void ensureRollups() {
+    if (!rollupsEnabled) {
+      return;
+    }
+
+    try {
+      ensureStateTable();
+    } catch (SQLException e) {
+      logger.error("Failed to read rollup state, read queries will scan raw events", e);
+      return;
+    }
+
+    List<Rollup> incomplete = new ArrayList<>();
+    for (Rollup rollup : Rollup.values()) {
+      try {
+        boolean complete = isComplete(rollup);
+        setAvailable(rollup, complete);
+        if (!complete) {
+          incomplete.add(rollup);
+        }
+      } catch (SQLException e) {
+        setAvailable(rollup, false);
+        logger.error("Failed to check rollup {}, falling back to raw scans", rollup.table, e);
+      }
+    }
+    if (incomplete.isEmpty()) {
+      return;
+    }
+
+    if (!buildEnabled) {
+      if (!reportedBuildsDisabled) {
+        reportedBuildsDisabled = true;
+        logger.info(
+            "Rollups {} are not built and builds are disabled on this pod, see"
+                + " clickhouse.rollups.build-enabled",
+            incomplete);
+      }
+      return;
+    }
+    if (!building.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      buildExecutor.execute(
+          () -> {
+            try {
+              buildRollups(incomplete);
+            } finally {
+              building.set(false);
+            }
+          });
+    } catch (RejectedExecutionException e) {
+      building.set(false);
+      logger.warn("Rollup build executor is shut down, skipping builds");
+    }
+  }
+
+  /** Add the ingest clock to the raw tables if needed, then build each rollup this pod can lease */
+  private void buildRollups(List<Rollup> rollups) {
+    try {
+      if (!ensureIngestClock()) {
+        return;
+      }
+    } catch (SQLException e) {
+      logger.error("Failed to prepare rollup sources, read queries will scan raw events", e);
+      return;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return;
+    }
+
+    for (Rollup rollup : rollups) {
+      try {
+        boolean complete = isComplete(rollup);
+        if (!complete && clusterLease.tryAcquire("rollup:" + rollup.table, buildTimeout)) {
+          try {
+            buildRollup(rollup);
+          } finally {
+            clusterLease.release("rollup:" + rollup.table);
+          }
+          complete = isComplete(rollup);
+        }
+        setAvailable(rollup, complete);
+      } catch (SQLException e) {
+        setAvailable(rollup, false);
+        logger.error("Failed to prepare rollup {}, falling back to raw scans", rollup.table, e);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  @EventListener(ApplicationReadyEvent.class)
+  public void ensureJourneyProjections() {
+    if (!projectionsEnabled) {
+      logger.info("ClickHouse projections disabled, journey lookups will scan by timestamp");
+      return;
+    }
+
+    for (Map.Entry<String, String> entry : JOURNEY_PROJECTION_COLUMNS.entrySet()) {
+      try {
+        ensureJourneyProjection(entry.getKey(), entry.getValue());
+      } catch (SQLException e) {
+        logger.error("Failed to add journey projection to {}", entry.getKey(), e);
+      }
+    }
+  }
+
+  /** True once the rollup has been backfilled completely, as recorded in the state table */
+  public boolean isAvailable(Rollup rollup) {
+    synchronized (available) {
+      return available.contains(rollup);
+    }
+  }
+
+  private void setAvailable(Rollup rollup, boolean complete) {
+    synchronized (available) {
+      if (complete) {
+        available.add(rollup);
+      } else {
+        available.remove(rollup);
+      }
+    }
+  }
+
+  /**
+   * Give the rollup source tables an {@code ingested_at} column holding the server time each row
+   * was inserted at, which splits rows exactly between the view and the backfill. Rows that were
+   * there before the column are stored as 0; only after that is written to disk can the column be
+   * switched to {@code now()}, or old parts would compute it at read time. The column is
+   * MATERIALIZED, so {@code SELECT *} and the inserts never see it.
+   *
+   * @return whether every source table has the column in its final form
+   */
+  private boolean ensureIngestClock() throws SQLException, InterruptedException {
+    if (ROLLUP_SOURCES.stream().allMatch(this::hasIngestClock)) {
+      return true;
+    }
+    if (!clusterLease.tryAcquire("ingest-clock", buildTimeout)) {
+      logger.info("Another pod is adding {} to the raw tables", INGEST_CLOCK);
+      return false;
+    }
+
+    try (Statement stmt = clickHouseConnection.createStatement()) {
+      for (String table : ROLLUP_SOURCES) {
+        if (hasIngestClock(table)) {
+          continue;
+        }
+        stmt.execute(
+            "ALTER TABLE default.%s ADD COLUMN IF NOT EXISTS %s DateTime MATERIALIZED toDateTime(0)"
+                .formatted(table, INGEST_CLOCK));
+        materializeIngestClock(stmt, table);
+        stmt.execute(
+            "ALTER TABLE default.%s MODIFY COLUMN %s DateTime MATERIALIZED now()"
+                .formatted(table, INGEST_CLOCK));
+        logger.info("Added {} to {}", INGEST_CLOCK, table);
+      }
+    } finally {
+      clusterLease.release("ingest-clock");
+    }
+    return true;
+  }
+
+  private boolean hasIngestClock(String table) {
+    try (PreparedStatement stmt =
+        clickHouseConnection.prepareStatement(
+            """
+                SELECT count() FROM system.columns
+                WHERE database = 'default' AND table = ? AND name = ?
+                    AND default_kind = 'MATERIALIZED' AND default_expression = 'now()'
+               \s""")) {
+      stmt.setString(1, table);
+      stmt.setString(2, INGEST_CLOCK);
+      try (ResultSet rs = stmt.executeQuery()) {
+        return rs.next() && rs.getLong(1) > 0;
+      }
+    } catch (SQLException e) {
+      logger.warn("Failed to check {} on {}", INGEST_CLOCK, table, e);
+      return false;
+    }
+  }
+
+  /**
+   * Write the ingest clock into existing parts and wait for that mutation alone. A mutation left
+   * running by an earlier attempt is waited for rather than issued again.
+   */
+  private void materializeIngestClock(Statement stmt, String table)
+      throws SQLException, InterruptedException {
+    String command = "MATERIALIZE COLUMN " + INGEST_CLOCK;
+    String[] latest = latestMutation(table, command);
+    if (latest == null || "1".equals(latest[1])) {
+      stmt.execute("ALTER TABLE default.%s %s".formatted(table, command));
+      latest = latestMutation(table, command);
+      if (latest == null) {
+        throw new SQLException("No mutation recorded for %s on %s".formatted(command, table));
+      }
+    }
+    awaitMutation(table, latest[0]);
+  }
+
+  /** Id and is_done of the newest mutation on {@code table} running {@code command}, or null */
+  private String[] latestMutation(String table, String command) throws SQLException {
+    try (PreparedStatement stmt =
+        clickHouseConnection.prepareStatement(
+            """
+                SELECT mutation_id, toString(is_done) FROM system.mutations
+                WHERE database = 'default' AND table = ? AND position(command, ?) > 0
+                ORDER BY create_time DESC LIMIT 1
+               \s""")) {
+      stmt.setString(1, table);
+      stmt.setString(2, command);
+      try (ResultSet rs = stmt.executeQuery()) {
+        return rs.next() ? new String[] {rs.getString(1), rs.getString(2)} : null;
+      }
+    }
+  }
+
+  /** Wait for one mutation, giving up after the mutation timeout */
+  private void awaitMutation(String table, String mutationId)
+      throws SQLException, InterruptedException {
+    long deadline = System.nanoTime() + mutationTimeout.toNanos();
+    try (PreparedStatement stmt =
+        clickHouseConnection.prepareStatement(
+            """
+                SELECT is_done, latest_fail_reason FROM system.mutations
+                WHERE database = 'default' AND table = ? AND mutation_id = ?
+               \s""")) {
+      stmt.setString(1, table);
+      stmt.setString(2, mutationId);
+      while (true) {
+        String failReason = null;
+        try (ResultSet rs = stmt.executeQuery()) {
+          if (rs.next()) {
+            if (rs.getInt(1) == 1) {
+              return;
+            }
+            failReason = rs.getString(2);
+          }
+        }
+        if (System.nanoTime() - deadline >= 0) {
+          throw new SQLException(
+              "Mutation %s on %s not done after %s%s, the next build waits for it again"
+                  .formatted(
+                      mutationId,
+                      table,
+                      mutationTimeout,
+                      failReason == null || failReason.isEmpty() ? "" : ": " + failReason));
+        }
+        TimeUnit.SECONDS.sleep(1);
+      }
+    }
+  }
+
+  /**
+   * Recreate the rollup and fill it. The view only takes rows ingested from a boundary a few
+   * seconds ahead, and once every insert that started before the boundary has had time to finish,
+   * the backfill takes the rows ingested before it, so each row is counted exactly once. The
+   * rollup is marked complete only after the backfill has succeeded.
+   */
+  private void buildRollup(Rollup rollup) throws SQLException, InterruptedException {
+    String view = rollup.getTable() + "_mv";
+    String boundary;
+
+    setComplete(rollup, false);
+    try (Statement stmt = clickHouseConnection.createStatement()) {
+      // Whatever exists without a completion mark is a leftover from an interrupted build
+      stmt.execute("DROP VIEW IF EXISTS " + view);
+      stmt.execute("DROP TABLE IF EXISTS " + rollup.getTable());
+      stmt.execute(
+          """
+              CREATE TABLE %s (
+              %s
+              ) ENGINE = AggregatingMergeTree()
+              PARTITION BY toYYYYMM(period)
+              ORDER BY period
+             \s"""
+              .formatted(rollup.getTable(), rollup.columns));
+
+      boundary = serverTime(boundaryLeadSeconds);
+      stmt.execute(
+          "CREATE MATERIALIZED VIEW %s TO %s AS %s"
+              .formatted(
+                  view,
+                  rollup.getTable(),
+                  rollup.aggregate("%s >= toDateTime('%s')".formatted(INGEST_CLOCK, boundary))));
+      if (serverTime(0).compareTo(boundary) >= 0) {
+        throw new SQLException(
+            "Materialized view %s took longer than %ds to create, rows may have been missed"
+                .formatted(view, boundaryLeadSeconds));
+      }
+
+      TimeUnit.SECONDS.sleep(boundaryLeadSeconds + settleSeconds);
+      stmt.execute(
+          "INSERT INTO %s %s"
+              .formatted(
+                  rollup.getTable(),
+                  rollup.aggregate("%s < toDateTime('%s')".formatted(INGEST_CLOCK, boundary))));
+    }
+    setComplete(rollup, true);
+
+    logger.info("Created and backfilled rollup {} up to {}", rollup.table, boundary);
+  }
+
+  private void ensureStateTable() throws SQLException {
+    try (Statement stmt = clickHouseConnection.createStatement()) {
+      stmt.execute(
+          """
+              CREATE TABLE IF NOT EXISTS %s (
+                  name String,
+                  complete UInt8,
+                  version UInt64
+              ) ENGINE = ReplacingMergeTree(version)
+              ORDER BY name
+             \s"""
+              .formatted(STATE_TABLE));
+    }
+  }
+
+  /** Complete only if the last build finished and the view it created still exists */
+  private boolean isComplete(Rollup rollup) throws SQLException {
+    try (PreparedStatement stmt =
+        clickHouseConnection.prepareStatement(
+            "SELECT argMax(complete, version) FROM %s WHERE name = ?".formatted(STATE_TABLE))) {
+      stmt.setString(1, rollup.table);
+      try (ResultSet rs = stmt.executeQuery()) {
+        if (!rs.next() || rs.getInt(1) != 1) {
+          return false;
+        }
+      }
+    }
+    return tableExists(rollup.table + "_mv");
+  }
+
+  private void setComplete(Rollup rollup, boolean complete) throws SQLException {
+    try (PreparedStatement stmt =
+        clickHouseConnection.prepareStatement(
+            "INSERT INTO %s (name, complete, version) VALUES (?, ?, ?)".formatted(STATE_TABLE))) {
+      stmt.setString(1, rollup.table);
+      stmt.setInt(2, complete ? 1 : 0);
+      stmt.setLong(3, System.currentTimeMillis());
+      stmt.executeUpdate();
+    }
+  }
+
+  private void ensureJourneyProjection(String table, String columns) throws SQLException {
+    if (hasProjection(table, JOURNEY_PROJECTION)) {
+      logger.info("Journey projection already present on {}", table);
+      return;
+    }
+
+    try (Statement stmt = clickHouseConnection.createStatement()) {
+      stmt.execute(
+          """
+              ALTER TABLE default.%s
+              ADD PROJECTION IF NOT EXISTS %s (SELECT %s ORDER BY session_id, timestamp)
+             \s"""
+              .formatted(table, JOURNEY_PROJECTION, columns));
+      // New parts get the projection on insert; existing parts are rebuilt by a background mutation
+      stmt.execute(
+          "ALTER TABLE default.%s MATERIALIZE PROJECTION %s".formatted(table, JOURNEY_PROJECTION));
+    }
+
+    logger.info("Added journey projection to {}, materializing existing parts", table);
+  }
+
+  private boolean hasProjection(String table, String projection) throws SQLException {
+    String sql =
+        "SELECT create_table_query FROM system.tables WHERE database = 'default' AND name = ?";
+    try (PreparedStatement stmt = clickHouseConnection.prepareStatement(sql)) {
+      stmt.setString(1, table);
+      try (ResultSet rs = stmt.executeQuery()) {
+        return rs.next() && rs.getString(1).contains("PROJECTION " + projection + " ");
+      }
+    }
+  }
+
+  private boolean tableExists(String table) throws SQLException {
+    try (PreparedStatement stmt =
+        clickHouseConnection.prepareStatement(
+            "SELECT count() FROM system.tables WHERE database = 'default' AND name = ?")) {
+      stmt.setString(1, table);
+      try (ResultSet rs = stmt.executeQuery()) {
+        return rs.next() && rs.getLong(1) > 0;
+      }
+    }
+  }
+
+  private String serverTime(int plusSeconds) throws SQLException {
+    try (PreparedStatement stmt =
+            clickHouseConnection.prepareStatement(
+                "SELECT toString(now() + INTERVAL %d SECOND)".formatted(plusSeconds));
+        ResultSet rs = stmt.executeQuery()) {
+      rs.next();
+      return rs.getString(1);
+    }
+  }
+}
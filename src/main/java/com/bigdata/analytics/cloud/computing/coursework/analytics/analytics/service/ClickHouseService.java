@@ -1,29 +1,258 @@
 package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service;
 
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto.ClickAnalyticsRow;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto.DashboardHourRow;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto.HourDigest;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto.HourlyPageViewsRow;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto.JourneyEventRow;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto.JourneyPage;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto.JourneySummaryRow;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto.PagePerformanceRow;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto.QueryProgressRow;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto.QueryResult;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto.RealtimeMetricsRow;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto.ScrollAnalyticsRow;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto.SessionSummaryRow;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto.TopPageRow;
 import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.model.ClickEvent;
 import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.model.PageViewEvent;
 import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.model.ScrollEvent;
 import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.model.SessionEvent;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service.ClickHouseSchemaManager.Rollup;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service.QueryCostGuard.GuardedQuery;
+import com.clickhouse.jdbc.ClickHouseStatement;
+import io.micrometer.core.annotation.Timed;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.ArrayList;
+import java.sql.Statement;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+/**
+ * Every public method is timed as {@code analytics.clickhouse.query}, tagged with its name. Calls
+ * one method makes to another are not timed separately. Inserts and row-reading queries are also
+ * JFR {@link ClickHouseCallEvent}s while a recording wants them.
+ */
 @Service
+@Timed(value = "analytics.clickhouse.query", description = "ClickHouseService calls, by method")
 public class ClickHouseService {
 
   private static final Logger logger = LoggerFactory.getLogger(ClickHouseService.class);
 
+  private static final RowReader<HourlyPageViewsRow> HOURLY_PAGE_VIEWS =
+      RowReader.of(
+          (rs, c) ->
+              new HourlyPageViewsRow(
+                  RowReader.getLocalDateTime(rs, c[0]),
+                  rs.getLong(c[1]),
+                  rs.getLong(c[2]),
+                  rs.getLong(c[3]),
+                  RowReader.getDouble(rs, c[4]),
+                  RowReader.getDouble(rs, c[5])),
+          "hour",
+          "page_views",
+          "unique_sessions",
+          "unique_users",
+          "avg_load_time",
+          "avg_time_on_page");
+
+  private static final RowReader<DashboardHourRow> DASHBOARD_HOURS =
+      RowReader.of(
+          (rs, c) ->
+              new DashboardHourRow(
+                  RowReader.getLocalDateTime(rs, c[0]),
+                  rs.getLong(c[1]),
+                  rs.getLong(c[2]),
+                  rs.getLong(c[3])),
+          "hour",
+          "page_views",
+          "unique_sessions",
+          "unique_users");
+
+  private static final RowReader<TopPageRow> TOP_PAGES =
+      RowReader.of(
+          (rs, c) ->
+              new TopPageRow(
+                  rs.getString(c[0]),
+                  rs.getString(c[1]),
+                  rs.getLong(c[2]),
+                  rs.getLong(c[3]),
+                  RowReader.getDouble(rs, c[4]),
+                  RowReader.getDouble(rs, c[5]),
+                  rs.getLong(c[6]),
+                  RowReader.getDouble(rs, c[7])),
+          "page_url",
+          "page_title",
+          "views",
+          "unique_sessions",
+          "avg_load_time",
+          "avg_time_on_page",
+          "bounces",
+          "bounce_rate");
+
+  private static final RowReader<ClickAnalyticsRow> CLICK_ANALYTICS =
+      RowReader.of(
+          (rs, c) ->
+              new ClickAnalyticsRow(
+                  rs.getString(c[0]),
+                  rs.getString(c[1]),
+                  rs.getString(c[2]),
+                  rs.getString(c[3]),
+                  rs.getLong(c[4]),
+                  rs.getLong(c[5]),
+                  RowReader.getDouble(rs, c[6]),
+                  RowReader.getDouble(rs, c[7]),
+                  rs.getLong(c[8])),
+          "page_url",
+          "element_tag",
+          "element_id",
+          "element_class",
+          "clicks",
+          "unique_sessions",
+          "avg_x",
+          "avg_y",
+          "double_clicks");
+
+  private static final RowReader<ScrollAnalyticsRow> SCROLL_ANALYTICS =
+      RowReader.of(
+          (rs, c) ->
+              new ScrollAnalyticsRow(
+                  rs.getString(c[0]),
+                  RowReader.getDouble(rs, c[1]),
+                  RowReader.getDouble(rs, c[2]),
+                  rs.getLong(c[3]),
+                  rs.getLong(c[4])),
+          "page_url",
+          "avg_scroll_percentage",
+          "avg_scroll_depth",
+          "scroll_events",
+          "unique_sessions");
+
+  private static final RowReader<SessionSummaryRow> SESSION_SUMMARY =
+      RowReader.of(
+          (rs, c) ->
+              new SessionSummaryRow(
+                  RowReader.getDouble(rs, c[0]),
+                  RowReader.getDouble(rs, c[1]),
+                  rs.getLong(c[2]),
+                  rs.getLong(c[3])),
+          "avg_session_duration",
+          "avg_pages_per_session",
+          "total_sessions",
+          "unique_users");
+
+  private static final RowReader<RealtimeMetricsRow> REALTIME_METRICS =
+      RowReader.of(
+          (rs, c) ->
+              new RealtimeMetricsRow(
+                  rs.getLong(c[0]),
+                  rs.getLong(c[1]),
+                  rs.getLong(c[2]),
+                  rs.getLong(c[3]),
+                  rs.getLong(c[4])),
+          "page_views_last_hour",
+          "clicks_last_hour",
+          "scroll_events_last_hour",
+          "active_sessions",
+          "active_users");
+
+  private static final int JOURNEY_BRANCHES = 3;
+
+  /** Hour bounds are compared as wall-clock time, the way events are written to both stores */
+  private static final DateTimeFormatter WALL_CLOCK =
+      DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+  private static final RowReader<JourneyEventRow> JOURNEY_EVENTS =
+      RowReader.of(
+          (rs, c) ->
+              new JourneyEventRow(
+                  rs.getString(c[0]),
+                  RowReader.getLocalDateTime(rs, c[1]),
+                  rs.getString(c[2]),
+                  rs.getString(c[3]),
+                  rs.getString(c[4]),
+                  rs.getString(c[5]),
+                  rs.getString(c[6]),
+                  rs.getLong(c[7]),
+                  rs.getLong(c[8]),
+                  rs.getLong(c[9])),
+          "event_type",
+          "timestamp",
+          "event_key",
+          "page_url",
+          "page_title",
+          "element_tag",
+          "element_id",
+          "scroll_depth",
+          "session_duration",
+          "timestamp_ms");
+
+  private static final RowReader<JourneySummaryRow> JOURNEY_SUMMARY =
+      RowReader.of(
+          (rs, c) -> {
+            long totalEvents = rs.getLong(c[0]);
+            // min/max over an empty session come back as the epoch rather than NULL
+            return new JourneySummaryRow(
+                totalEvents,
+                rs.getLong(c[1]),
+                totalEvents == 0 ? null : RowReader.getLocalDateTime(rs, c[2]),
+                totalEvents == 0 ? null : RowReader.getLocalDateTime(rs, c[3]));
+          },
+          "total_events",
+          "pages_visited",
+          "first_event_at",
+          "last_event_at");
+
+  private static final RowReader<QueryProgressRow> QUERY_PROGRESS =
+      RowReader.of(
+          (rs, c) ->
+              new QueryProgressRow(
+                  rs.getLong(c[0]), rs.getLong(c[1]), rs.getLong(c[2]), rs.getDouble(c[3])),
+          "read_rows",
+          "total_rows_approx",
+          "read_bytes",
+          "elapsed");
+
+  private static final RowReader<PagePerformanceRow> PAGE_PERFORMANCE =
+      RowReader.of(
+          (rs, c) ->
+              new PagePerformanceRow(
+                  rs.getString(c[0]),
+                  RowReader.getDouble(rs, c[1]),
+                  RowReader.getDouble(rs, c[2]),
+                  RowReader.getDouble(rs, c[3]),
+                  rs.getLong(c[4])),
+          "page_url",
+          "avg_load_time",
+          "median_load_time",
+          "p95_load_time",
+          "samples");
+
+  /** Inserts only; reads go through {@link #clickHouseReadConnection} */
   @Autowired private Connection clickHouseConnection;
+
+  @Autowired private Connection clickHouseReadConnection;
+
+  @Autowired private ClickHouseHttpClient clickHouseHttpClient;
+
+  @Autowired private QueryResultCache queryResultCache;
+
+  @Autowired private ClickHouseSchemaManager schemaManager;
+
+  @Autowired private QueryCostGuard costGuard;
   
   @Autowired(required = false) 
   private RedshiftService redshiftService;
@@ -31,7 +260,15 @@ public class ClickHouseService {
   @Value("${aws.redshift.enabled:false}")
   private boolean redshiftEnabled;
 
+  @Value("${analytics.query-timeout.default:30}")
+  private int defaultQueryTimeoutSeconds;
+
   public void insertPageViewEvents(List<PageViewEvent> events) throws SQLException {
+    insertPageViewEvents(events, null);
+  }
+
+  public void insertPageViewEvents(List<PageViewEvent> events, String deduplicationToken)
+      throws SQLException {
     String sql =
         """
             INSERT INTO default.page_view_events (
@@ -41,6 +278,7 @@ public class ClickHouseService {
            \s""";
 
     try (PreparedStatement stmt = clickHouseConnection.prepareStatement(sql)) {
+      deduplicateBy(stmt, deduplicationToken);
       for (PageViewEvent event : events) {
         stmt.setString(1, event.getSessionId());
         stmt.setString(2, event.getUserId());
@@ -60,18 +298,17 @@ public class ClickHouseService {
         stmt.addBatch();
       }
 
-      stmt.executeBatch();
+      executeBatch(stmt, "page_view_events", events.size());
       logger.info("Successfully inserted {} page view events into ClickHouse", events.size());
-      
-      // Also insert to Redshift if enabled
-      if (redshiftEnabled && redshiftService != null) {
-        redshiftService.insertPageViewEventsAsync(events);
-        logger.debug("Triggered async Redshift insert for {} page view events", events.size());
-      }
     }
   }
 
   public void insertClickEvents(List<ClickEvent> events) throws SQLException {
+    insertClickEvents(events, null);
+  }
+
+  public void insertClickEvents(List<ClickEvent> events, String deduplicationToken)
+      throws SQLException {
     String sql =
         """
             INSERT INTO default.click_events (
@@ -82,6 +319,7 @@ public class ClickHouseService {
            \s""";
 
     try (PreparedStatement stmt = clickHouseConnection.prepareStatement(sql)) {
+      deduplicateBy(stmt, deduplicationToken);
       for (ClickEvent event : events) {
         stmt.setString(1, event.getSessionId());
         stmt.setString(2, event.getUserId());
@@ -102,18 +340,17 @@ public class ClickHouseService {
         stmt.addBatch();
       }
 
-      stmt.executeBatch();
+      executeBatch(stmt, "click_events", events.size());
       logger.info("Successfully inserted {} click events into ClickHouse", events.size());
-      
-      // Also insert to Redshift if enabled
-      if (redshiftEnabled && redshiftService != null) {
-        redshiftService.insertClickEventsAsync(events);
-        logger.debug("Triggered async Redshift insert for {} click events", events.size());
-      }
     }
   }
 
   public void insertScrollEvents(List<ScrollEvent> events) throws SQLException {
+    insertScrollEvents(events, null);
+  }
+
+  public void insertScrollEvents(List<ScrollEvent> events, String deduplicationToken)
+      throws SQLException {
     String sql =
         """
             INSERT INTO default.scroll_events (
@@ -123,6 +360,7 @@ public class ClickHouseService {
            \s""";
 
     try (PreparedStatement stmt = clickHouseConnection.prepareStatement(sql)) {
+      deduplicateBy(stmt, deduplicationToken);
       for (ScrollEvent event : events) {
         stmt.setString(1, event.getSessionId());
         stmt.setString(2, event.getUserId());
@@ -141,18 +379,17 @@ public class ClickHouseService {
         stmt.addBatch();
       }
 
-      stmt.executeBatch();
+      executeBatch(stmt, "scroll_events", events.size());
       logger.info("Successfully inserted {} scroll events into ClickHouse", events.size());
-      
-      // Also insert to Redshift if enabled
-      if (redshiftEnabled && redshiftService != null) {
-        redshiftService.insertScrollEventsAsync(events);
-        logger.debug("Triggered async Redshift insert for {} scroll events", events.size());
-      }
     }
   }
 
   public void insertSessionEvents(List<SessionEvent> events) throws SQLException {
+    insertSessionEvents(events, null);
+  }
+
+  public void insertSessionEvents(List<SessionEvent> events, String deduplicationToken)
+      throws SQLException {
     String sql =
         """
             INSERT INTO default.session_events (
@@ -162,6 +399,7 @@ public class ClickHouseService {
             """;
 
     try (PreparedStatement stmt = clickHouseConnection.prepareStatement(sql)) {
+      deduplicateBy(stmt, deduplicationToken);
       for (SessionEvent event : events) {
         stmt.setString(1, event.getSessionId());
         stmt.setString(2, event.getUserId());
@@ -179,19 +417,13 @@ public class ClickHouseService {
         stmt.addBatch();
       }
 
-      stmt.executeBatch();
+      executeBatch(stmt, "session_events", events.size());
       logger.info("Successfully inserted {} session events into ClickHouse", events.size());
-      
-      // Also insert to Redshift if enabled
-      if (redshiftEnabled && redshiftService != null) {
-        redshiftService.insertSessionEventsAsync(events);
-        logger.debug("Triggered async Redshift insert for {} session events", events.size());
-      }
     }
   }
 
   public boolean isHealthy() {
-    try (PreparedStatement stmt = clickHouseConnection.prepareStatement("SELECT 1")) {
+    try (PreparedStatement stmt = clickHouseReadConnection.prepareStatement("SELECT 1")) {
       ResultSet rs = stmt.executeQuery();
       boolean clickHouseHealthy = rs.next() && rs.getInt(1) == 1;
       
@@ -211,7 +443,7 @@ public class ClickHouseService {
 
   public String getCurrentDatabase() {
     try (PreparedStatement stmt =
-        clickHouseConnection.prepareStatement("SELECT currentDatabase()")) {
+        clickHouseReadConnection.prepareStatement("SELECT currentDatabase()")) {
       ResultSet rs = stmt.executeQuery();
       if (rs.next()) {
         String currentDb = rs.getString(1);
@@ -225,105 +457,240 @@ public class ClickHouseService {
     }
   }
 
-  public List<Map<String, Object>> getPageViewAnalytics(String timeRange) throws SQLException {
+  public List<HourlyPageViewsRow> getPageViewAnalytics(String timeRange) throws SQLException {
+    return executeQuery(planPageViewAnalytics(timeRange).sql(), HOURLY_PAGE_VIEWS);
+  }
+
+  /** Hourly page views; the rollup is cheap, raw scans are cost-guarded like the other reads */
+  public GuardedQuery planPageViewAnalytics(String timeRange) throws SQLException {
     String interval = getIntervalFromTimeRange(timeRange);
 
-    String sql =
-        """
-            SELECT\s
-                toStartOfHour(timestamp) as hour,
-                count() as page_views,
-                uniq(session_id) as unique_sessions,
-                uniq(user_id) as unique_users,
-                avg(page_load_time) as avg_load_time,
-                avg(time_on_page) as avg_time_on_page
-            FROM default.page_view_events\s
-            WHERE timestamp >= now() - INTERVAL %s
-            GROUP BY hour\s
-            ORDER BY hour
-           \s"""
-            .formatted(interval);
+    if (useRollup(timeRange, Rollup.PAGE_VIEWS_HOURLY)) {
+      String sql =
+          """
+              SELECT\s
+                  period as hour,
+                  sum(page_views) as page_views,
+                  uniqMerge(unique_sessions) as unique_sessions,
+                  uniqMerge(unique_users) as unique_users,
+                  avgMerge(avg_load_time) as avg_load_time,
+                  avgMerge(avg_time_on_page) as avg_time_on_page
+              FROM (%s)
+              GROUP BY hour\s
+              ORDER BY hour
+             \s"""
+              .formatted(hourlyRollupSince(Rollup.PAGE_VIEWS_HOURLY, interval));
 
-    return executeQuery(sql);
+      return QueryCostGuard.unguarded(sql);
+    }
+
+    String table = "default.page_view_events";
+
+    return costGuard.guard(
+        "page_views_" + normalizeTimeRange(timeRange),
+        table,
+        sampling ->
+            """
+                SELECT\s
+                    toStartOfHour(timestamp) as hour,
+                    %s as page_views,
+                    %s as unique_sessions,
+                    %s as unique_users,
+                    avg(page_load_time) as avg_load_time,
+                    avg(time_on_page) as avg_time_on_page
+                FROM %s\s
+                WHERE timestamp >= now() - INTERVAL %s
+                GROUP BY hour\s
+                ORDER BY hour
+               \s"""
+                .formatted(
+                    sampling.scaled("count()"),
+                    sampling.scaled("uniq(session_id)"),
+                    sampling.scaled("uniq(user_id)"),
+                    sampling.from(table),
+                    interval));
   }
 
-  public List<Map<String, Object>> getTopPages(String timeRange) throws SQLException {
+  public QueryResult<TopPageRow> getTopPages(String timeRange) throws SQLException {
+    String range = normalizeTimeRange(timeRange);
+    return queryResultCache.get("top_pages", range, () -> queryTopPages(range));
+  }
+
+  private QueryResult<TopPageRow> queryTopPages(String timeRange) throws SQLException {
+    GuardedQuery query = planTopPages(timeRange);
+    return new QueryResult<>(executeQuery(query.sql(), TOP_PAGES), query.precision());
+  }
+
+  public GuardedQuery planTopPages(String timeRange) throws SQLException {
     String interval = getIntervalFromTimeRange(timeRange);
+    String table = "default.page_view_events";
 
-    String sql =
-        """
-            SELECT\s
-                page_url,
-                page_title,
-                count() as views,
-                uniq(session_id) as unique_sessions,
-                avg(page_load_time) as avg_load_time,
-                avg(time_on_page) as avg_time_on_page,
-                countIf(is_bounce = 1) as bounces,
-                (countIf(is_bounce = 1) / count()) * 100 as bounce_rate
-            FROM default.page_view_events\s
-            WHERE timestamp >= now() - INTERVAL %s
-            GROUP BY page_url, page_title\s
-            ORDER BY views DESC\s
-            LIMIT 20
-           \s"""
-            .formatted(interval);
+    return costGuard.guard(
+        "top_pages_" + normalizeTimeRange(timeRange),
+        table,
+        sampling ->
+            """
+                SELECT\s
+                    page_url,
+                    page_title,
+                    %s as views,
+                    %s as unique_sessions,
+                    avg(page_load_time) as avg_load_time,
+                    avg(time_on_page) as avg_time_on_page,
+                    %s as bounces,
+                    (countIf(is_bounce = 1) / count()) * 100 as bounce_rate
+                FROM %s\s
+                WHERE timestamp >= now() - INTERVAL %s
+                GROUP BY page_url, page_title\s
+                ORDER BY views DESC\s
+                LIMIT 20
+               \s"""
+                .formatted(
+                    sampling.scaled("count()"),
+                    sampling.scaled("uniq(session_id)"),
+                    sampling.scaled("countIf(is_bounce = 1)"),
+                    sampling.from(table),
+                    interval));
+  }
 
-    return executeQuery(sql);
+  public QueryResult<ClickAnalyticsRow> getClickAnalytics(String timeRange) throws SQLException {
+    GuardedQuery query = planClickAnalytics(timeRange);
+    return new QueryResult<>(executeQuery(query.sql(), CLICK_ANALYTICS), query.precision());
   }
 
-  public List<Map<String, Object>> getClickAnalytics(String timeRange) throws SQLException {
+  /**
+   * Cost-check the click analytics query up front, so an over-budget range is rejected before a
+   * streaming response has been started.
+   */
+  public GuardedQuery planClickAnalytics(String timeRange) throws SQLException {
     String interval = getIntervalFromTimeRange(timeRange);
+    String table = "default.click_events";
 
-    String sql =
-        """
-            SELECT\s
-                page_url,
-                element_tag,
-                element_id,
-                element_class,
-                count() as clicks,
-                uniq(session_id) as unique_sessions,
-                avg(click_x) as avg_x,
-                avg(click_y) as avg_y,
-                countIf(is_double_click = 1) as double_clicks
-            FROM default.click_events\s
-            WHERE timestamp >= now() - INTERVAL %s
-            GROUP BY page_url, element_tag, element_id, element_class
-            HAVING clicks > 5
-            ORDER BY clicks DESC
-            LIMIT 50
-           \s"""
-            .formatted(interval);
+    return costGuard.guard(
+        "click_analytics_" + normalizeTimeRange(timeRange),
+        table,
+        sampling ->
+            """
+                SELECT\s
+                    page_url,
+                    element_tag,
+                    element_id,
+                    element_class,
+                    %s as clicks,
+                    %s as unique_sessions,
+                    avg(click_x) as avg_x,
+                    avg(click_y) as avg_y,
+                    %s as double_clicks
+                FROM %s\s
+                WHERE timestamp >= now() - INTERVAL %s
+                GROUP BY page_url, element_tag, element_id, element_class
+                HAVING clicks > 5
+                ORDER BY clicks DESC
+                LIMIT 50
+               \s"""
+                .formatted(
+                    sampling.scaled("count()"),
+                    sampling.scaled("uniq(session_id)"),
+                    sampling.scaled("countIf(is_double_click = 1)"),
+                    sampling.from(table),
+                    interval));
+  }
 
-    return executeQuery(sql);
+  /** Write click analytics rows to {@code handler} as they are read, without buffering them */
+  public long streamClickAnalytics(
+      GuardedQuery query, RowReader.RowHandler<ClickAnalyticsRow> handler)
+      throws SQLException, IOException {
+    try (PreparedStatement stmt = clickHouseReadConnection.prepareStatement(query.sql())) {
+      QueryScope scope = applyDeadline(stmt);
+      ClickHouseCallEvent event = ClickHouseCallEvent.query();
+      try (ResultSet rs = stmt.executeQuery()) {
+        long count = CLICK_ANALYTICS.stream(rs, handler);
+        event.read(rs, count);
+        return count;
+      } catch (IOException e) {
+        // The client went away mid-stream; stop the scan rather than let it run to completion
+        stmt.cancel();
+        throw e;
+      } finally {
+        event.end(scope);
+        if (scope != null) {
+          scope.unregister(stmt);
+        }
+      }
+    }
   }
 
-  public List<Map<String, Object>> getScrollAnalytics(String timeRange) throws SQLException {
-    String interval = getIntervalFromTimeRange(timeRange);
+  public QueryResult<ScrollAnalyticsRow> getScrollAnalytics(String timeRange)
+      throws SQLException {
+    GuardedQuery query = planScrollAnalytics(timeRange);
+    return new QueryResult<>(executeQuery(query.sql(), SCROLL_ANALYTICS), query.precision());
+  }
 
-    String sql =
-        """
-            SELECT\s
-                page_url,
-                avg(scroll_percentage) as avg_scroll_percentage,
-                avg(scroll_depth) as avg_scroll_depth,
-                count() as scroll_events,
-                uniq(session_id) as unique_sessions
-            FROM default.scroll_events\s
-            WHERE timestamp >= now() - INTERVAL %s
-            GROUP BY page_url
-            ORDER BY avg_scroll_percentage DESC
-            LIMIT 20
-           \s"""
-            .formatted(interval);
+  public GuardedQuery planScrollAnalytics(String timeRange) throws SQLException {
+    String interval = getIntervalFromTimeRange(timeRange);
+    String table = "default.scroll_events";
 
-    return executeQuery(sql);
+    return costGuard.guard(
+        "scroll_analytics_" + normalizeTimeRange(timeRange),
+        table,
+        sampling ->
+            """
+                SELECT\s
+                    page_url,
+                    avg(scroll_percentage) as avg_scroll_percentage,
+                    avg(scroll_depth) as avg_scroll_depth,
+                    %s as scroll_events,
+                    %s as unique_sessions
+                FROM %s\s
+                WHERE timestamp >= now() - INTERVAL %s
+                GROUP BY page_url
+                ORDER BY avg_scroll_percentage DESC
+                LIMIT 20
+               \s"""
+                .formatted(
+                    sampling.scaled("count()"),
+                    sampling.scaled("uniq(session_id)"),
+                    sampling.from(table),
+                    interval));
   }
 
-  public List<Map<String, Object>> getSessionAnalytics(String timeRange) throws SQLException {
+  public List<SessionSummaryRow> getSessionAnalytics(String timeRange) throws SQLException {
     String interval = getIntervalFromTimeRange(timeRange);
 
+    if (useRollup(timeRange, Rollup.SESSIONS_HOURLY)) {
+      String source;
+      if (!"24h".equals(normalizeTimeRange(timeRange))
+          && schemaManager.isAvailable(Rollup.SESSIONS_DAILY)) {
+        // Whole days come from the daily rollup, the rest of the first day from the hourly one
+        String firstWholeDay =
+            "toStartOfDay(now() - INTERVAL %s) + INTERVAL 1 DAY".formatted(interval);
+        source =
+            """
+                %s
+                UNION ALL
+                %s
+               \s"""
+                .formatted(
+                    Rollup.SESSIONS_DAILY.rows("period >= " + firstWholeDay),
+                    hourlyRollupBetween(Rollup.SESSIONS_HOURLY, interval, firstWholeDay));
+      } else {
+        source = hourlyRollupSince(Rollup.SESSIONS_HOURLY, interval);
+      }
+
+      String sql =
+          """
+              SELECT\s
+                  avgMerge(avg_session_duration) as avg_session_duration,
+                  avgMerge(avg_page_count) as avg_pages_per_session,
+                  sum(total_sessions) as total_sessions,
+                  uniqMerge(unique_users) as unique_users
+              FROM (%s)
+             \s"""
+              .formatted(source);
+
+      return executeQuery(sql, SESSION_SUMMARY);
+    }
+
     String sql =
         """
             SELECT\s
@@ -337,10 +704,10 @@ public class ClickHouseService {
            \s"""
             .formatted(interval);
 
-    return executeQuery(sql);
+    return executeQuery(sql, SESSION_SUMMARY);
   }
 
-  public Map<String, Object> getRealtimeMetrics() throws SQLException {
+  public RealtimeMetricsRow getRealtimeMetrics() throws SQLException {
     String sql =
         """
             SELECT\s
@@ -351,82 +718,204 @@ public class ClickHouseService {
                 (SELECT uniq(user_id) FROM default.page_view_events WHERE timestamp >= now() - INTERVAL 1 HOUR) as active_users
            \s""";
 
-    List<Map<String, Object>> results = executeQuery(sql);
-    return results.isEmpty() ? new HashMap<>() : results.get(0);
+    List<RealtimeMetricsRow> results = executeQuery(sql, REALTIME_METRICS);
+    return results.isEmpty() ? new RealtimeMetricsRow(0, 0, 0, 0, 0) : results.get(0);
+  }
+
+  /**
+   * One page of a session's journey ordered by (timestamp, event key), resuming at {@code cursor}
+   * past the events it has already seen there. Every branch filters on session_id and timestamp so
+   * it is served from the session-ordered journey projection instead of scanning the table.
+   */
+  public JourneyPage getUserJourney(String sessionId, String cursor, int limit)
+      throws SQLException {
+    JourneyCursor after = JourneyCursor.decode(cursor);
+    String branchFilter =
+        after == null ? "" : "AND timestamp >= toDateTime(intDiv(toInt64(?), 1000))";
+    String sql =
+        """
+            SELECT *
+            FROM (%s)
+            %s
+            ORDER BY timestamp_ms, event_key
+            LIMIT ? OFFSET ?
+           \s"""
+            .formatted(
+                userJourneySql("?", branchFilter),
+                after == null ? "" : "WHERE (timestamp_ms, event_key) >= (?, toUInt64(?))");
+
+    List<JourneyEventRow> events;
+    try (PreparedStatement stmt = clickHouseReadConnection.prepareStatement(sql)) {
+      int index = 1;
+      for (int branch = 0; branch < JOURNEY_BRANCHES; branch++) {
+        stmt.setString(index++, sessionId);
+        if (after != null) {
+          stmt.setLong(index++, after.timestampMillis());
+        }
+      }
+      if (after != null) {
+        stmt.setLong(index++, after.timestampMillis());
+        stmt.setString(index++, after.eventKey());
+      }
+      // One extra row tells us whether another page follows
+      stmt.setInt(index++, limit + 1);
+      stmt.setLong(index, after == null ? 0 : after.seen());
+      events = executeQuery(stmt, JOURNEY_EVENTS);
+    }
+
+    if (events.size() <= limit) {
+      return new JourneyPage(events, null);
+    }
+    events = events.subList(0, limit);
+    return new JourneyPage(events, JourneyCursor.after(events, after).encode());
+  }
+
+  /** Whole-session totals, computed in ClickHouse rather than from a page of events */
+  public JourneySummaryRow getUserJourneySummary(String sessionId) throws SQLException {
+    String sql =
+        """
+            SELECT
+                count() as total_events,
+                uniqExactIf(page_url, event_type = 'page_view') as pages_visited,
+                min(timestamp) as first_event_at,
+                max(timestamp) as last_event_at
+            FROM (%s)
+           \s"""
+            .formatted(userJourneySql("?", ""));
+
+    try (PreparedStatement stmt = clickHouseReadConnection.prepareStatement(sql)) {
+      for (int branch = 1; branch <= JOURNEY_BRANCHES; branch++) {
+        stmt.setString(branch, sessionId);
+      }
+      return executeQuery(stmt, JOURNEY_SUMMARY).get(0);
+    }
   }
 
-  public List<Map<String, Object>> getUserJourney(String sessionId) throws SQLException {
+  /** Copy the session's journey to {@code out} exactly as ClickHouse renders it */
+  public long streamUserJourney(
+      String sessionId, ClickHouseHttpClient.Format format, OutputStream out) throws IOException {
     String sql =
+        "SELECT * FROM (%s) ORDER BY timestamp_ms, event_key"
+            .formatted(userJourneySql("{session_id:String}", ""));
+    return clickHouseHttpClient.streamQuery(sql, Map.of("session_id", sessionId), format, out);
+  }
+
+  /**
+   * Union of the per-table journey branches. The event key hashes everything an event shows, so
+   * only exact duplicates share one, and the cursor counts those rather than telling them apart.
+   */
+  private static String userJourneySql(String sessionParameter, String branchFilter) {
+    return
         """
             SELECT\s
                 'page_view' as event_type,
                 timestamp,
+                cityHash64('page_view', event_id, page_url, page_title) as event_key,
                 page_url,
                 page_title,
                 '' as element_tag,
                 '' as element_id,
                 0 as scroll_depth,
-                0 as session_duration
+                0 as session_duration,
+                toUnixTimestamp64Milli(toDateTime64(timestamp, 3)) as timestamp_ms
             FROM default.page_view_events\s
-            WHERE session_id = ?
+            WHERE session_id = %1$s %2$s
            \s
             UNION ALL
            \s
             SELECT\s
                 'click' as event_type,
                 timestamp,
+                cityHash64('click', event_id, page_url, element_tag, element_id) as event_key,
                 page_url,
                 '' as page_title,
                 element_tag,
                 element_id,
                 0 as scroll_depth,
-                0 as session_duration
+                0 as session_duration,
+                toUnixTimestamp64Milli(toDateTime64(timestamp, 3)) as timestamp_ms
             FROM default.click_events\s
-            WHERE session_id = ?
+            WHERE session_id = %1$s %2$s
            \s
             UNION ALL
            \s
             SELECT\s
                 'scroll' as event_type,
                 timestamp,
+                cityHash64('scroll', event_id, page_url, scroll_depth) as event_key,
                 page_url,
                 '' as page_title,
                 '' as element_tag,
                 '' as element_id,
                 scroll_depth,
-                0 as session_duration
+                0 as session_duration,
+                toUnixTimestamp64Milli(toDateTime64(timestamp, 3)) as timestamp_ms
             FROM default.scroll_events\s
-            WHERE session_id = ?
-           \s
-            ORDER BY timestamp
-           \s""";
+            WHERE session_id = %1$s %2$s
+           \s"""
+            .formatted(sessionParameter, branchFilter);
+  }
 
-    try (PreparedStatement stmt = clickHouseConnection.prepareStatement(sql)) {
-      stmt.setString(1, sessionId);
-      stmt.setString(2, sessionId);
-      stmt.setString(3, sessionId);
-      return executeQuery(stmt);
-    }
+  public QueryResult<PagePerformanceRow> getPerformanceMetrics() throws SQLException {
+    GuardedQuery query = planPerformanceMetrics();
+    return new QueryResult<>(executeQuery(query.sql(), PAGE_PERFORMANCE), query.precision());
   }
 
-  public List<Map<String, Object>> getPerformanceMetrics() throws SQLException {
+  public GuardedQuery planPerformanceMetrics() throws SQLException {
+    String table = "default.page_view_events";
+
+    return costGuard.guard(
+        "page_performance",
+        table,
+        sampling ->
+            """
+                SELECT
+                    page_url,
+                    avg(load_time) as avg_load_time,
+                    quantile(0.5)(load_time) as median_load_time,
+                    quantile(0.95)(load_time) as p95_load_time,
+                    %s as samples
+                FROM %s
+                WHERE load_time > 0
+                    AND timestamp >= now() - INTERVAL 24 HOUR
+                GROUP BY page_url
+                HAVING samples >= 10
+                ORDER BY avg_load_time DESC
+                """
+                .formatted(
+                    sampling.scaled("count()"), sampling.from(table)));
+  }
+
+  /** Copy the page performance report to {@code out} exactly as ClickHouse renders it */
+  public long streamPerformanceMetrics(
+      GuardedQuery query, ClickHouseHttpClient.Format format, OutputStream out)
+      throws IOException {
+    return clickHouseHttpClient.streamQuery(query.sql(), Map.of(), format, out);
+  }
+
+  /** Progress of a running query, or empty once it has finished */
+  public Optional<QueryProgressRow> getQueryProgress(String queryId) throws SQLException {
     String sql =
         """
-            SELECT
-                page_url,
-                avg(load_time) as avg_load_time,
-                quantile(0.5)(load_time) as median_load_time,
-                quantile(0.95)(load_time) as p95_load_time,
-                count() as samples
-            FROM default.page_view_events
-            WHERE load_time > 0
-                AND timestamp >= now() - INTERVAL 24 HOUR
-            GROUP BY page_url
-            HAVING samples >= 10
-            ORDER BY avg_load_time DESC
-            """;
+            SELECT read_rows, total_rows_approx, read_bytes, elapsed
+            FROM system.processes
+            WHERE query_id = ?
+           \s""";
+
+    try (PreparedStatement stmt = clickHouseReadConnection.prepareStatement(sql)) {
+      stmt.setString(1, queryId);
+      return executeQuery(stmt, QUERY_PROGRESS).stream().findFirst();
+    }
+  }
 
-    return executeQuery(sql);
+  /** Ask the server to stop a query; returns without waiting for it to finish */
+  public void killQuery(String queryId) throws SQLException {
+    try (PreparedStatement stmt =
+        clickHouseReadConnection.prepareStatement("KILL QUERY WHERE query_id = ? ASYNC")) {
+      stmt.setString(1, queryId);
+      stmt.execute();
+    }
+    logger.info("Requested kill of ClickHouse query {}", queryId);
   }
 
   private String getIntervalFromTimeRange(String timeRange) {
@@ -439,9 +928,70 @@ public class ClickHouseService {
     };
   }
 
-  public List<Map<String, Object>> getDashboardData(String timeRange) throws SQLException {
+  /** {@link #hourlyRollupBetween} up to now */
+  private static String hourlyRollupSince(Rollup rollup, String interval) {
+    return hourlyRollupBetween(rollup, interval, null);
+  }
+
+  /**
+   * Buckets from {@code interval} ago up to {@code until}, or now, counted exactly as a raw scan
+   * from {@code now() - interval} would count them: whole hours come from the rollup, and the part
+   * of the first hour inside the window is aggregated from raw events into the same states.
+   */
+  private static String hourlyRollupBetween(Rollup rollup, String interval, String until) {
+    String firstWholeHour =
+        "toStartOfHour(now() - INTERVAL %s) + INTERVAL 1 HOUR".formatted(interval);
+    String wholeHours =
+        "period >= " + firstWholeHour + (until == null ? "" : " AND period < " + until);
+    return """
+        %s
+        UNION ALL
+        %s
+       \s"""
+        .formatted(
+            rollup.rows(wholeHours),
+            rollup.aggregate(
+                "timestamp >= now() - INTERVAL %s AND timestamp < %s"
+                    .formatted(interval, firstWholeHour)));
+  }
+
+  /** The last hour is cheap enough on raw events and too fine-grained for hourly buckets */
+  private boolean useRollup(String timeRange, Rollup rollup) {
+    return !"1h".equals(timeRange) && schemaManager.isAvailable(rollup);
+  }
+
+  private String normalizeTimeRange(String timeRange) {
+    return switch (timeRange) {
+      case "1h", "24h", "7d", "30d" -> timeRange;
+      default -> "24h";
+    };
+  }
+
+  public List<DashboardHourRow> getDashboardData(String timeRange) throws SQLException {
+    String range = normalizeTimeRange(timeRange);
+    return queryResultCache.get("dashboard", range, () -> queryDashboardData(range));
+  }
+
+  private List<DashboardHourRow> queryDashboardData(String timeRange) throws SQLException {
     String interval = getIntervalFromTimeRange(timeRange);
 
+    if (useRollup(timeRange, Rollup.PAGE_VIEWS_HOURLY)) {
+      String sql =
+          """
+              SELECT\s
+                  period as hour,
+                  sum(page_views) as page_views,
+                  uniqMerge(unique_sessions) as unique_sessions,
+                  uniqMerge(unique_users) as unique_users
+              FROM (%s)
+              GROUP BY hour\s
+              ORDER BY hour
+             \s"""
+              .formatted(hourlyRollupSince(Rollup.PAGE_VIEWS_HOURLY, interval));
+
+      return executeQuery(sql, DASHBOARD_HOURS);
+    }
+
     String sql =
         """
             SELECT\s
@@ -456,32 +1006,164 @@ public class ClickHouseService {
            \s"""
             .formatted(interval);
 
-    return executeQuery(sql);
+    return executeQuery(sql, DASHBOARD_HOURS);
   }
 
-  private List<Map<String, Object>> executeQuery(String sql) throws SQLException {
-    try (PreparedStatement stmt = clickHouseConnection.prepareStatement(sql)) {
-      return executeQuery(stmt);
+  /**
+   * Row count and checksum per hour of one table over [from, to), keyed by the hour's wall-clock
+   * epoch second so that they line up with {@link RedshiftService#getHourlyDigests}.
+   */
+  public Map<Long, HourDigest> getHourlyDigests(
+      String table, LocalDateTime from, LocalDateTime to) throws SQLException {
+    String sql =
+        """
+            SELECT
+                toUnixTimestamp(toStartOfHour(timestamp))
+                    + timeZoneOffset(toStartOfHour(timestamp)) AS hour,
+                count() AS row_count,
+                sum(toInt64(toUnixTimestamp(timestamp)) + timeZoneOffset(timestamp)
+                    + length(session_id)) AS checksum
+            FROM default.%s
+            WHERE timestamp >= toDateTime(?) AND timestamp < toDateTime(?)
+            GROUP BY hour
+           \s"""
+            .formatted(table);
+
+    Map<Long, HourDigest> digests = new HashMap<>();
+    try (PreparedStatement stmt = clickHouseReadConnection.prepareStatement(sql)) {
+      stmt.setString(1, WALL_CLOCK.format(from));
+      stmt.setString(2, WALL_CLOCK.format(to));
+      QueryScope scope = applyDeadline(stmt);
+      try (ResultSet rs = stmt.executeQuery()) {
+        while (rs.next()) {
+          digests.put(rs.getLong(1), new HourDigest(rs.getLong(2), rs.getLong(3)));
+        }
+      } finally {
+        if (scope != null) {
+          scope.unregister(stmt);
+        }
+      }
+    }
+    return digests;
+  }
+
+  /**
+   * Stream {@code columns} of one table over [from, to) in timestamp order, one array per row. The
+   * timestamp comes back as text, the form in which events are written everywhere else.
+   */
+  public long streamRows(
+      String table,
+      List<String> columns,
+      LocalDateTime from,
+      LocalDateTime to,
+      RowReader.RowHandler<Object[]> handler)
+      throws SQLException, IOException {
+    String sql =
+        """
+            SELECT %s
+            FROM default.%s
+            WHERE timestamp >= toDateTime(?) AND timestamp < toDateTime(?)
+            ORDER BY timestamp
+           \s"""
+            .formatted(String.join(", ", columns), table);
+
+    int timestampColumn = columns.indexOf("timestamp");
+    try (PreparedStatement stmt = clickHouseReadConnection.prepareStatement(sql)) {
+      stmt.setString(1, WALL_CLOCK.format(from));
+      stmt.setString(2, WALL_CLOCK.format(to));
+      QueryScope scope = applyDeadline(stmt);
+      ClickHouseCallEvent event = ClickHouseCallEvent.query();
+      try (ResultSet rs = stmt.executeQuery()) {
+        long count = 0;
+        while (rs.next()) {
+          Object[] row = new Object[columns.size()];
+          for (int i = 0; i < row.length; i++) {
+            row[i] = i == timestampColumn ? rs.getString(i + 1) : rs.getObject(i + 1);
+          }
+          handler.handle(row);
+          count++;
+        }
+        event.read(rs, count);
+        return count;
+      } catch (IOException e) {
+        // The consumer gave up; stop the scan rather than let it run to completion
+        stmt.cancel();
+        throw e;
+      } finally {
+        event.end(scope);
+        if (scope != null) {
+          scope.unregister(stmt);
+        }
+      }
     }
   }
 
-  private List<Map<String, Object>> executeQuery(PreparedStatement stmt) throws SQLException {
-    List<Map<String, Object>> results = new ArrayList<>();
+  private <T> List<T> executeQuery(String sql, RowReader<T> reader) throws SQLException {
+    try (PreparedStatement stmt = clickHouseReadConnection.prepareStatement(sql)) {
+      return executeQuery(stmt, reader);
+    }
+  }
 
+  public Map<String, Object> getCacheStats() {
+    return queryResultCache.getStats();
+  }
+
+  private <T> List<T> executeQuery(PreparedStatement stmt, RowReader<T> reader)
+      throws SQLException {
+    QueryScope scope = applyDeadline(stmt);
+    ClickHouseCallEvent event = ClickHouseCallEvent.query();
     try (ResultSet rs = stmt.executeQuery()) {
-      int columnCount = rs.getMetaData().getColumnCount();
-
-      while (rs.next()) {
-        Map<String, Object> row = new HashMap<>();
-        for (int i = 1; i <= columnCount; i++) {
-          String columnName = rs.getMetaData().getColumnName(i);
-          Object value = rs.getObject(i);
-          row.put(columnName, value);
-        }
-        results.add(row);
+      List<T> rows = reader.readAll(rs);
+      event.read(rs, rows.size());
+      return rows;
+    } finally {
+      event.end(scope);
+      if (scope != null) {
+        scope.unregister(stmt);
       }
     }
+  }
+
+  /**
+   * Have ClickHouse drop this insert if one with the same token already went into the table, as
+   * {@link ClusterLease} does for its terms. A null token leaves the insert as it is.
+   */
+  private static void deduplicateBy(PreparedStatement stmt, String token) throws SQLException {
+    if (token != null) {
+      stmt.unwrap(ClickHouseStatement.class)
+          .getRequest()
+          .set("insert_deduplication_token", token);
+    }
+  }
+
+  private void executeBatch(PreparedStatement stmt, String table, int rows) throws SQLException {
+    ClickHouseCallEvent event = ClickHouseCallEvent.insert(table);
+    try {
+      stmt.executeBatch();
+      event.inserted(rows);
+    } finally {
+      event.end(QueryScope.current());
+    }
+  }
+
+  /**
+   * Bound the statement by the calling request's deadline, sent to ClickHouse as {@code
+   * max_execution_time}, and register it for cancellation. Outside a request the default timeout
+   * applies and nothing is registered.
+   *
+   * @return the scope the statement was registered with, or null
+   */
+  QueryScope applyDeadline(Statement stmt) throws SQLException {
+    QueryScope scope = QueryScope.current();
+    if (scope == null) {
+      stmt.setQueryTimeout(defaultQueryTimeoutSeconds);
+      return null;
+    }
 
-    return results;
+    stmt.setQueryTimeout(scope.remainingSeconds());
+    // The driver assigns each execution its own query_id; the scope tag ties them to the request
+    stmt.unwrap(ClickHouseStatement.class).getRequest().set("log_comment", scope.tag());
+    scope.register(stmt);
+    return scope;
   }
 }
@@ -0,0 +1,165 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.UUID;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+/**
+ * Named leases shared by every replica, so that background work which must not run twice at once
+ * (rollup rebuilds, archive exports, Redshift repairs) runs on one pod at a time.
+ *
+ * <p>Leases live in a ClickHouse table as numbered terms. To take a lease a pod reads the latest
+ * term, and if it has expired, or is its own, inserts the next term with the term number as the
+ * insert deduplication token. ClickHouse keeps only the first insert for a token, so of several
+ * pods racing for the same term exactly one row survives, and reading it back tells each pod
+ * whether it won. This needs ClickHouse 22.2 or later for {@code insert_deduplication_token}.
+ *
+ * <p>A lease is held until it is released or its term runs out; callers pick a term longer than
+ * the work it guards, or take the lease again before it ends to extend it.
+ */
+@Service
+public class ClusterLease {
+
+  private static final Logger logger = LoggerFactory.getLogger(ClusterLease.class);
+
+  static final String TABLE = "default.analytics_leases";
+
+  @Autowired private Connection clickHouseConnection;
+
+  private final String owner = hostName() + "/" + UUID.randomUUID().toString().substring(0, 8);
+
+  private volatile boolean tableReady;
+
+  /** Take or extend the lease {@code name} for {@code term}; false if another pod holds it */
+  public boolean tryAcquire(String name, Duration term) throws SQLException {
+    ensureTable();
+
+    long next = 0;
+    try (PreparedStatement stmt =
+        clickHouseConnection.prepareStatement(
+            "SELECT term, owner, expires_at > now() FROM %s WHERE name = ? ORDER BY term DESC LIMIT 1"
+                .formatted(TABLE))) {
+      stmt.setString(1, name);
+      try (ResultSet rs = stmt.executeQuery()) {
+        if (rs.next()) {
+          if (rs.getBoolean(3) && !owner.equals(rs.getString(2))) {
+            return false;
+          }
+          next = rs.getLong(1) + 1;
+        }
+      }
+    }
+
+    insertTerm(name, next, owner, Math.max(1, term.toSeconds()));
+    String holder = holderOf(name, next);
+    if (!owner.equals(holder)) {
+      logger.debug("Lease {} term {} went to {}", name, next, holder);
+      return false;
+    }
+    return true;
+  }
+
+  /** Give up the lease {@code name} if this pod holds it, so another pod can take it at once */
+  public void release(String name) {
+    try (PreparedStatement stmt =
+        clickHouseConnection.prepareStatement(
+            "SELECT term, owner FROM %s WHERE name = ? ORDER BY term DESC LIMIT 1"
+                .formatted(TABLE))) {
+      stmt.setString(1, name);
+      try (ResultSet rs = stmt.executeQuery()) {
+        if (rs.next() && owner.equals(rs.getString(2))) {
+          // An already expired term, which the next pod replaces without waiting
+          insertTerm(name, rs.getLong(1) + 1, "", 0);
+        }
+      }
+    } catch (SQLException e) {
+      logger.warn("Failed to release lease {}, it will expire at the end of its term", name, e);
+    }
+  }
+
+  String getOwner() {
+    return owner;
+  }
+
+  private void insertTerm(String name, long term, String holder, long seconds)
+      throws SQLException {
+    String expiresAt = seconds > 0 ? "now() + INTERVAL %d SECOND".formatted(seconds) : "now()";
+    try (Statement stmt = clickHouseConnection.createStatement()) {
+      stmt.execute(
+          """
+              INSERT INTO %s (name, term, owner, expires_at)
+              SETTINGS insert_deduplication_token = '%s'
+              VALUES ('%s', %d, '%s', %s)
+             \s"""
+              .formatted(
+                  TABLE,
+                  quote(name + ":" + term),
+                  quote(name),
+                  term,
+                  quote(holder),
+                  expiresAt));
+    }
+  }
+
+  private String holderOf(String name, long term) throws SQLException {
+    try (PreparedStatement stmt =
+        clickHouseConnection.prepareStatement(
+            "SELECT owner FROM %s WHERE name = ? AND term = ? ORDER BY acquired_at LIMIT 1"
+                .formatted(TABLE))) {
+      stmt.setString(1, name);
+      stmt.setLong(2, term);
+      try (ResultSet rs = stmt.executeQuery()) {
+        return rs.next() ? rs.getString(1) : null;
+      }
+    }
+  }
+
+  private void ensureTable() throws SQLException {
+    if (tableReady) {
+      return;
+    }
+    try (Statement stmt = clickHouseConnection.createStatement()) {
+      stmt.execute(
+          """
+              CREATE TABLE IF NOT EXISTS %s (
+                  name String,
+                  term UInt64,
+                  owner String,
+                  acquired_at DateTime DEFAULT now(),
+                  expires_at DateTime
+              ) ENGINE = MergeTree()
+              ORDER BY (name, term)
+              TTL acquired_at + INTERVAL 30 DAY
+              SETTINGS non_replicated_deduplication_window = 1000
+             \s"""
+              .formatted(TABLE));
+    }
+    tableReady = true;
+  }
+
+  private static String quote(String value) {
+    return value.replace("\\", "\\\\").replace("'", "\\'");
+  }
+
+  private static String hostName() {
+    String pod = System.getenv("HOSTNAME");
+    if (pod != null && !pod.isBlank()) {
+      return pod;
+    }
+    try {
+      return InetAddress.getLocalHost().getHostName();
+    } catch (UnknownHostException e) {
+      return "unknown";
+    }
+  }
+}
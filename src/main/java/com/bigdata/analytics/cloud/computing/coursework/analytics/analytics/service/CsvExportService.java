@@ -0,0 +1,181 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service;
+
+import com.opencsv.CSVWriter;
+import com.opencsv.ICSVWriter;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+/**
+ * Streams the raw rows of one event table as gzipped CSV, straight from the ClickHouse result set
+ * through an opencsv writer into the response, so memory use does not grow with the export.
+ *
+ * <p>Rows come out in the tables' sort order, (hour, session hash, timestamp), and then by a row
+ * key hashing every column, so ClickHouse streams them as it reads the parts instead of sorting the
+ * whole range first. Each line ends with an {@code export_cursor} column. A client whose download
+ * breaks off passes the cursor of the last complete line back to resume right after it. Identical
+ * rows share a row key, so a resume landing between two exact duplicates skips the second. A failed
+ * export leaves the gzip stream without its trailer, which decoders report as truncated.
+ */
+@Service
+public class CsvExportService {
+
+  private static final Logger logger = LoggerFactory.getLogger(CsvExportService.class);
+
+  static final Set<String> TABLES =
+      Arrays.stream(EventBatch.Kind.values())
+          .map(EventBatch.Kind::table)
+          .collect(Collectors.toUnmodifiableSet());
+
+  /** Trailing helper columns of the export query, replaced by the cursor in the CSV */
+  private static final int KEY_COLUMNS = 4;
+
+  /** Ordered by a prefix of the tables' sorting key; timestamp may be DateTime or DateTime64(3) */
+  private static final String EXPORT_QUERY =
+      """
+      SELECT
+          *,
+          toUnixTimestamp(toStartOfHour(timestamp)) AS export_hour,
+          cityHash64(session_id) AS export_session,
+          toUnixTimestamp64Milli(toDateTime64(timestamp, 3)) AS export_ts,
+          cityHash64(*) AS export_key
+      FROM default.%s
+      WHERE timestamp >= fromUnixTimestamp64Milli(toInt64(?))
+        AND timestamp < fromUnixTimestamp64Milli(toInt64(?))
+        %s
+      ORDER BY toStartOfHour(timestamp), cityHash64(session_id), timestamp, export_key
+      """;
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /** A validated export, planned before the response starts so bad input can still get a 400 */
+  public record Plan(String table, Instant from, Instant to, ExportCursor after) {}
+
+  @Autowired private Connection clickHouseReadConnection;
+
+  @Autowired private ClickHouseService clickHouseService;
+
+  public Plan plan(String table, Instant from, Instant to, String cursor) {
+    if (!TABLES.contains(table)) {
+      throw new IllegalArgumentException(
+          "Unknown table: " + table + " (expected one of " + TABLES + ")");
+    }
+    if (!from.isBefore(to)) {
+      throw new IllegalArgumentException("from must be before to");
+    }
+    return new Plan(table, from, to, ExportCursor.decode(cursor, table));
+  }
+
+  /** Write the export to {@code out} as gzipped CSV; returns the number of rows written */
+  public long write(Plan plan, OutputStream out) throws SQLException, IOException {
+    ExportCursor after = plan.after();
+    // Nothing before the cursor's hour is needed again, so the scan starts there
+    long fromMillis =
+        after == null
+            ? plan.from().toEpochMilli()
+            : Math.max(plan.from().toEpochMilli(), after.hourSeconds() * 1000);
+    String sql =
+        EXPORT_QUERY.formatted(
+            plan.table(),
+            after == null
+                ? ""
+                : "AND (export_hour, export_session, export_ts, export_key)"
+                    + " > (?, toUInt64(?), ?, toUInt64(?))");
+
+    try (PreparedStatement stmt = clickHouseReadConnection.prepareStatement(sql)) {
+      stmt.setLong(1, fromMillis);
+      stmt.setLong(2, plan.to().toEpochMilli());
+      if (after != null) {
+        stmt.setLong(3, after.hourSeconds());
+        stmt.setString(4, after.sessionHash());
+        stmt.setLong(5, after.timestampMillis());
+        stmt.setString(6, after.rowKey());
+      }
+
+      QueryScope scope = clickHouseService.applyDeadline(stmt);
+      try (ResultSet rs = stmt.executeQuery()) {
+        long rows = writeCsv(plan.table(), rs, out);
+        logger.info(
+            "Exported {} rows of {} between {} and {}", rows, plan.table(), plan.from(), plan.to());
+        return rows;
+      } catch (IOException e) {
+        // The client went away mid-export; stop the scan rather than let it run to completion
+        stmt.cancel();
+        throw e;
+      } finally {
+        if (scope != null) {
+          scope.unregister(stmt);
+        }
+      }
+    }
+  }
+
+  private static long writeCsv(String table, ResultSet rs, OutputStream out)
+      throws SQLException, IOException {
+    ResultSetMetaData metaData = rs.getMetaData();
+    int dataColumns = metaData.getColumnCount() - KEY_COLUMNS;
+    String[] line = new String[dataColumns + 1];
+
+    GZIPOutputStream gzip = new GZIPOutputStream(out, BUFFER_SIZE);
+    // Quoting every value keeps '' apart from NULL, which is written as a bare empty field
+    CSVWriter csv =
+        new CSVWriter(
+            new BufferedWriter(new OutputStreamWriter(gzip, StandardCharsets.UTF_8), BUFFER_SIZE),
+            ICSVWriter.DEFAULT_SEPARATOR,
+            ICSVWriter.DEFAULT_QUOTE_CHARACTER,
+            ICSVWriter.DEFAULT_ESCAPE_CHARACTER,
+            "\n");
+
+    for (int i = 0; i < dataColumns; i++) {
+      line[i] = metaData.getColumnLabel(i + 1);
+    }
+    line[dataColumns] = "export_cursor";
+    writeLine(csv, line);
+
+    long rows = 0;
+    while (rs.next()) {
+      for (int i = 0; i < dataColumns; i++) {
+        line[i] = rs.getString(i + 1);
+      }
+      line[dataColumns] =
+          new ExportCursor(
+                  table,
+                  rs.getLong(dataColumns + 1),
+                  rs.getString(dataColumns + 2),
+                  rs.getLong(dataColumns + 3),
+                  rs.getString(dataColumns + 4))
+              .encode();
+      writeLine(csv, line);
+      rows++;
+    }
+
+    csv.flush();
+    // Finish rather than close: the servlet owns the response stream
+    gzip.finish();
+    return rows;
+  }
+
+  /** CSVWriter records write failures instead of throwing, which would hide a disconnect */
+  private static void writeLine(CSVWriter csv, String[] line) throws IOException {
+    csv.writeNext(line, true);
+    if (csv.getException() != null) {
+      throw csv.getException();
+    }
+  }
+}
@@ -0,0 +1,40 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service;
+
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.model.BaseAnalyticsEvent;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/** JFR event for the enrichment of a single analytics event, most of which is user agent parsing */
+@Name("analytics.Enrichment")
+@Label("Event Enrichment")
+@Category({"Analytics", "Ingest"})
+@Description("Defaults and user agent details filled into one analytics event")
+@StackTrace(false)
+final class EnrichmentEvent extends jdk.jfr.Event {
+
+  @Label("Event Type")
+  String eventType;
+
+  @Label("User Agent Parsed")
+  boolean userAgentParsed;
+
+  @Label("Browser")
+  String browser;
+
+  @Label("Device Type")
+  String deviceType;
+
+  void end(BaseAnalyticsEvent event, boolean userAgentParsed) {
+    if (!shouldCommit()) {
+      return;
+    }
+    eventType = event.getClass().getSimpleName();
+    this.userAgentParsed = userAgentParsed;
+    browser = event.getBrowser();
+    deviceType = event.getDeviceType();
+    commit();
+  }
+}
@@ -0,0 +1,55 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service;
+
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.model.BaseAnalyticsEvent;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.model.ClickEvent;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.model.PageViewEvent;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.model.ScrollEvent;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.model.SessionEvent;
+import java.util.List;
+
+/** Events of one kind that ClickHouse has accepted, as handed to each {@link EventSink} */
+public record EventBatch(Kind kind, List<? extends BaseAnalyticsEvent> events) {
+
+  public enum Kind {
+    PAGE_VIEWS("page_view_events"),
+    CLICKS("click_events"),
+    SCROLLS("scroll_events"),
+    SESSIONS("session_events");
+
+    private final String table;
+
+    Kind(String table) {
+      this.table = table;
+    }
+
+    public String table() {
+      return table;
+    }
+  }
+
+  public static EventBatch pageViews(List<PageViewEvent> events) {
+    return new EventBatch(Kind.PAGE_VIEWS, events);
+  }
+
+  public static EventBatch clicks(List<ClickEvent> events) {
+    return new EventBatch(Kind.CLICKS, events);
+  }
+
+  public static EventBatch scrolls(List<ScrollEvent> events) {
+    return new EventBatch(Kind.SCROLLS, events);
+  }
+
+  public static EventBatch sessions(List<SessionEvent> events) {
+    return new EventBatch(Kind.SESSIONS, events);
+  }
+
+  public int size() {
+    return events.size();
+  }
+
+  /** The events as the class that matches {@link #kind()} */
+  @SuppressWarnings("unchecked")
+  public <T extends BaseAnalyticsEvent> List<T> eventsAs(Class<T> type) {
+    return (List<T>) events;
+  }
+}
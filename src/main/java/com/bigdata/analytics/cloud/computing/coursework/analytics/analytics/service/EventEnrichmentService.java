@@ -1,29 +1,34 @@
 package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service;
 
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto.ClientInfo;
 import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.model.BaseAnalyticsEvent;
 import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.model.ClickEvent;
 import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.model.PageViewEvent;
 import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.model.ScrollEvent;
 import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.model.SessionEvent;
 import eu.bitwalker.useragentutils.UserAgent;
-import jakarta.servlet.http.HttpServletRequest;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import org.springframework.stereotype.Service;
 
+/**
+ * Fills in defaults and user agent details. The client is null for events that did not arrive over
+ * HTTP, such as a bulk import, which then keep only what they carry themselves. Each event enriched
+ * is a JFR {@link EnrichmentEvent} while a recording wants it.
+ */
 @Service
 public class EventEnrichmentService {
 
-  public PageViewEvent enrichPageViewEvent(PageViewEvent event, HttpServletRequest request) {
-    enrichBaseEvent(event, request);
+  public PageViewEvent enrichPageViewEvent(PageViewEvent event, ClientInfo client) {
+    enrichBaseEvent(event, client);
 
     if (event.getPageTitle() == null) event.setPageTitle("");
 
     return event;
   }
 
-  public ClickEvent enrichClickEvent(ClickEvent event, HttpServletRequest request) {
-    enrichBaseEvent(event, request);
+  public ClickEvent enrichClickEvent(ClickEvent event, ClientInfo client) {
+    enrichBaseEvent(event, client);
 
     if (event.getClickX() == null) event.setClickX(0);
     if (event.getClickY() == null) event.setClickY(0);
@@ -33,8 +38,8 @@ public class EventEnrichmentService {
     return event;
   }
 
-  public ScrollEvent enrichScrollEvent(ScrollEvent event, HttpServletRequest request) {
-    enrichBaseEvent(event, request);
+  public ScrollEvent enrichScrollEvent(ScrollEvent event, ClientInfo client) {
+    enrichBaseEvent(event, client);
 
     if (event.getScrollDepth() == null) event.setScrollDepth(0);
     if (event.getScrollPercentage() == null) event.setScrollPercentage(0.0);
@@ -42,8 +47,8 @@ public class EventEnrichmentService {
     return event;
   }
 
-  public SessionEvent enrichSessionEvent(SessionEvent event, HttpServletRequest request) {
-    enrichBaseEvent(event, request);
+  public SessionEvent enrichSessionEvent(SessionEvent event, ClientInfo client) {
+    enrichBaseEvent(event, client);
 
     if (event.getEventType() == null) event.setEventType("session_start");
     if (event.getPageCount() == null) event.setPageCount(1);
@@ -51,7 +56,9 @@ public class EventEnrichmentService {
     return event;
   }
 
-  private void enrichBaseEvent(BaseAnalyticsEvent event, HttpServletRequest request) {
+  private void enrichBaseEvent(BaseAnalyticsEvent event, ClientInfo client) {
+    EnrichmentEvent jfrEvent = new EnrichmentEvent();
+    jfrEvent.begin();
 
     if (event.getTimestamp() == null || event.getTimestamp().isEmpty()) {
       LocalDateTime parsedTimestamp = LocalDateTime.now(); // assuming ISO format
@@ -61,12 +68,13 @@ public class EventEnrichmentService {
     }
 
     String userAgentString = event.getUserAgent();
-    if (userAgentString == null || userAgentString.isEmpty()) {
-      userAgentString = request.getHeader("User-Agent");
+    if ((userAgentString == null || userAgentString.isEmpty()) && client != null) {
+      userAgentString = client.userAgent();
       event.setUserAgent(userAgentString);
     }
 
-    if (userAgentString != null) {
+    boolean userAgentParsed = userAgentString != null;
+    if (userAgentParsed) {
       UserAgent userAgent = UserAgent.parseUserAgentString(userAgentString);
 
       if (event.getBrowser() == null || event.getBrowser().isEmpty()) {
@@ -82,7 +90,6 @@ public class EventEnrichmentService {
       }
     }
 
-    String clientIP = getClientIP(request);
     if (event.getCountry() == null || event.getCountry().isEmpty()) {
       event.setCountry("Unknown");
     }
@@ -91,20 +98,7 @@ public class EventEnrichmentService {
     }
 
     ensureBaseFieldsNotNull(event);
-  }
-
-  private String getClientIP(HttpServletRequest request) {
-    String xForwardedFor = request.getHeader("X-Forwarded-For");
-    if (xForwardedFor != null && !xForwardedFor.isEmpty()) {
-      return xForwardedFor.split(",")[0].trim();
-    }
-
-    String xRealIP = request.getHeader("X-Real-IP");
-    if (xRealIP != null && !xRealIP.isEmpty()) {
-      return xRealIP;
-    }
-
-    return request.getRemoteAddr();
+    jfrEvent.end(event, userAgentParsed);
   }
 
   private void ensureBaseFieldsNotNull(BaseAnalyticsEvent event) {
@@ -0,0 +1,14 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service;
+
+/**
+ * A destination for ingested events besides ClickHouse. Implementations are Spring beans picked up
+ * by {@link EventSinkDispatcher}, which calls {@link #write} from the sink's own worker pool.
+ */
+public interface EventSink {
+
+  /** Short name, used in stats and in the {@code analytics.sinks.<name>.*} properties */
+  String name();
+
+  /** Deliver one batch; throwing makes the dispatcher retry it */
+  void write(EventBatch batch) throws Exception;
+}
@@ -0,0 +1,220 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Service;
+
+/**
+ * Fans every batch that ClickHouse has accepted out to the registered {@link EventSink}s.
+ *
+ * <p>Each sink gets its own {@link Bulkhead}, sized by {@code analytics.sinks.<name>.threads} and
+ * {@code .queue}, and its own retry policy ({@code .max-attempts}, {@code .backoff-ms}), falling
+ * back to {@code analytics.sinks.default.*}. Dispatching only enqueues, so a slow or failing sink
+ * backs up its own queue and nothing else; once that queue is full its batches are dropped and
+ * counted. Bulk traffic, such as an import, waits instead of being dropped, and only while a queue
+ * is less than half full, so that live batches always find room.
+ */
+@Service
+public class EventSinkDispatcher {
+
+  private static final Logger logger = LoggerFactory.getLogger(EventSinkDispatcher.class);
+
+  /** How often bulk dispatch looks again at a sink queue it is waiting on */
+  private static final long BULK_POLL_MS = 20;
+
+  @Autowired(required = false)
+  private List<EventSink> sinks = List.of();
+
+  @Autowired private Environment environment;
+
+  @Value("${analytics.sinks.default.threads:2}")
+  private int defaultThreads;
+
+  @Value("${analytics.sinks.default.queue:1000}")
+  private int defaultQueue;
+
+  @Value("${analytics.sinks.default.max-attempts:3}")
+  private int defaultMaxAttempts;
+
+  @Value("${analytics.sinks.default.backoff-ms:200}")
+  private long defaultBackoffMs;
+
+  @Value("${analytics.sinks.drain-timeout-ms:10000}")
+  private long drainTimeoutMs;
+
+  private List<SinkQueue> queues;
+
+  @PostConstruct
+  void init() {
+    queues = sinks.stream().map(SinkQueue::new).toList();
+    logger.info("Event sinks: {}", sinks.stream().map(EventSink::name).toList());
+  }
+
+  /** Deliver what is already queued before the sinks behind it shut down */
+  @PreDestroy
+  void shutdown() throws InterruptedException {
+    for (SinkQueue queue : queues) {
+      queue.bulkhead.drain(Duration.ofMillis(drainTimeoutMs));
+    }
+  }
+
+  /** Queue a batch for every sink; never blocks */
+  public void dispatch(EventBatch batch) {
+    if (batch.events() == null || batch.events().isEmpty()) {
+      return;
+    }
+    for (SinkQueue queue : queues) {
+      queue.submit(batch);
+    }
+  }
+
+  /**
+   * Queue a batch for every sink, waiting while a sink's queue is half full or more instead of
+   * dropping the batch. Returns the events that a sink which is shutting down could not take,
+   * counted once per sink.
+   */
+  public long dispatchAndWait(EventBatch batch) throws InterruptedException {
+    if (batch.events() == null || batch.events().isEmpty()) {
+      return 0;
+    }
+    long dropped = 0;
+    for (SinkQueue queue : queues) {
+      if (!queue.submitAndWait(batch)) {
+        dropped += batch.size();
+      }
+    }
+    return dropped;
+  }
+
+  public Map<String, Object> getStats() {
+    Map<String, Object> stats = new LinkedHashMap<>();
+    for (SinkQueue queue : queues) {
+      stats.put(queue.sink.name(), queue.getStats());
+    }
+    return stats;
+  }
+
+  private final class SinkQueue {
+    private final EventSink sink;
+    private final Bulkhead bulkhead;
+    private final int maxAttempts;
+    private final long backoffMs;
+
+    private final LongAdder deliveredBatches = new LongAdder();
+    private final LongAdder deliveredEvents = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder failedEvents = new LongAdder();
+    private final LongAdder droppedEvents = new LongAdder();
+    private final LongAdder bulkWaitMillis = new LongAdder();
+
+    private SinkQueue(EventSink sink) {
+      this.sink = sink;
+      String prefix = "analytics.sinks." + sink.name() + ".";
+      this.bulkhead =
+          new Bulkhead(
+              "Sink-" + sink.name(),
+              environment.getProperty(prefix + "threads", Integer.class, defaultThreads),
+              environment.getProperty(prefix + "queue", Integer.class, defaultQueue));
+      this.maxAttempts =
+          environment.getProperty(prefix + "max-attempts", Integer.class, defaultMaxAttempts);
+      this.backoffMs = environment.getProperty(prefix + "backoff-ms", Long.class, defaultBackoffMs);
+    }
+
+    private void submit(EventBatch batch) {
+      try {
+        bulkhead.getExecutor().execute(() -> deliver(batch));
+      } catch (RejectedExecutionException e) {
+        droppedEvents.add(batch.size());
+        logger.warn(
+            "Sink {} is backed up, dropping {} {}",
+            sink.name(),
+            batch.size(),
+            batch.kind().table());
+      }
+    }
+
+    private boolean submitAndWait(EventBatch batch) throws InterruptedException {
+      long startNanos = System.nanoTime();
+      try {
+        while (!bulkhead.isShutdown()) {
+          if (bulkhead.getQueued() < Math.max(1, bulkhead.getQueueCapacity() / 2)) {
+            try {
+              bulkhead.getExecutor().execute(() -> deliver(batch));
+              return true;
+            } catch (RejectedExecutionException e) {
+              // Live batches took the room in between; wait for the queue to drain again
+            }
+          }
+          Thread.sleep(BULK_POLL_MS);
+        }
+      } finally {
+        bulkWaitMillis.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+      }
+      droppedEvents.add(batch.size());
+      logger.warn(
+          "Sink {} is shut down, dropping {} {}", sink.name(), batch.size(), batch.kind().table());
+      return false;
+    }
+
+    private void deliver(EventBatch batch) {
+      for (int attempt = 1; ; attempt++) {
+        try {
+          sink.write(batch);
+          deliveredBatches.increment();
+          deliveredEvents.add(batch.size());
+          return;
+        } catch (Exception e) {
+          if (attempt >= maxAttempts) {
+            failedEvents.add(batch.size());
+            logger.error(
+                "Sink {} failed to take {} {} after {} attempts",
+                sink.name(),
+                batch.size(),
+                batch.kind().table(),
+                attempt,
+                e);
+            return;
+          }
+          retries.increment();
+          logger.warn(
+              "Sink {} failed (attempt {}/{}), retrying: {}",
+              sink.name(),
+              attempt,
+              maxAttempts,
+              e.getMessage());
+        }
+        try {
+          // Only this sink's worker waits; other sinks and ingest carry on
+          Thread.sleep(backoffMs * attempt);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          failedEvents.add(batch.size());
+          return;
+        }
+      }
+    }
+
+    private Map<String, Object> getStats() {
+      Map<String, Object> stats = new LinkedHashMap<>(bulkhead.getStats());
+      stats.put("delivered_batches", deliveredBatches.sum());
+      stats.put("delivered_events", deliveredEvents.sum());
+      stats.put("retries", retries.sum());
+      stats.put("failed_events", failedEvents.sum());
+      stats.put("dropped_events", droppedEvents.sum());
+      stats.put("bulk_wait_ms", bulkWaitMillis.sum());
+      return stats;
+    }
+  }
+}
@@ -0,0 +1,55 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Opaque keyset position in a table export: the table, and the last written row's sort position
+ * (hour, session hash, timestamp) and row key. Carrying the table stops a token from one export
+ * resuming another.
+ */
+record ExportCursor(
+    String table, long hourSeconds, String sessionHash, long timestampMillis, String rowKey) {
+
+  String encode() {
+    String raw =
+        String.join(
+            ":",
+            table,
+            String.valueOf(hourSeconds),
+            sessionHash,
+            String.valueOf(timestampMillis),
+            rowKey);
+    return Base64.getUrlEncoder()
+        .withoutPadding()
+        .encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /** Parse a cursor from an earlier export of {@code table}; null or blank means the start */
+  static ExportCursor decode(String cursor, String table) {
+    if (cursor == null || cursor.isBlank()) {
+      return null;
+    }
+    ExportCursor decoded;
+    try {
+      String raw = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+      String[] parts = raw.split(":", -1);
+      if (parts.length != 5) {
+        throw new IllegalArgumentException();
+      }
+      decoded =
+          new ExportCursor(
+              parts[0],
+              Long.parseLong(parts[1]),
+              Long.toUnsignedString(Long.parseUnsignedLong(parts[2])),
+              Long.parseLong(parts[3]),
+              Long.toUnsignedString(Long.parseUnsignedLong(parts[4])));
+    } catch (RuntimeException e) {
+      throw new IllegalArgumentException("Invalid export cursor");
+    }
+    if (!decoded.table().equals(table)) {
+      throw new IllegalArgumentException("Export cursor belongs to " + decoded.table());
+    }
+    return decoded;
+  }
+}
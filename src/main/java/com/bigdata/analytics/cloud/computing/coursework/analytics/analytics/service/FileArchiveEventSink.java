@@ -0,0 +1,53 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service;
+
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.model.BaseAnalyticsEvent;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+/**
+ * Appends every batch as NDJSON to {@code <dir>/<table>/yyyy-MM-dd-HH.ndjson}, one file per table
+ * and UTC hour, as a raw archive that can be replayed or shipped elsewhere.
+ */
+@Service
+@ConditionalOnProperty(name = "analytics.sinks.archive.enabled", havingValue = "true")
+public class FileArchiveEventSink implements EventSink {
+
+  private static final DateTimeFormatter HOUR =
+      DateTimeFormatter.ofPattern("yyyy-MM-dd-HH").withZone(ZoneOffset.UTC);
+
+  @Autowired private ObjectMapper objectMapper;
+
+  @Value("${analytics.sinks.archive.dir:${java.io.tmpdir}/analytics-archive}")
+  private Path archiveDir;
+
+  @Override
+  public String name() {
+    return "archive";
+  }
+
+  /** Synchronized so that batches from several workers never interleave within a line */
+  @Override
+  public synchronized void write(EventBatch batch) throws IOException {
+    Path file =
+        archiveDir.resolve(batch.kind().table()).resolve(HOUR.format(Instant.now()) + ".ndjson");
+    Files.createDirectories(file.getParent());
+    try (BufferedWriter out =
+        Files.newBufferedWriter(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+      for (BaseAnalyticsEvent event : batch.events()) {
+        out.write(objectMapper.writeValueAsString(event));
+        out.newLine();
+      }
+    }
+  }
+}
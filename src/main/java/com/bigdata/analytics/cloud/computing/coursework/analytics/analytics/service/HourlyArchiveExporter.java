@@ -0,0 +1,321 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service;
+
+import jakarta.annotation.PostConstruct;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+/**
+ * Exports every closed hour of the four event tables from ClickHouse into compressed columnar
+ * files under {@code analytics.export.dir}, laid out as {@code <table>/date=<day>/hour=<HH>/}.
+ *
+ * <p>ClickHouse renders the hour as Parquet with ZSTD pages, or as Native compressed with ZSTD, and
+ * the bytes are streamed straight into a {@code .part} file that is renamed into place once
+ * complete, so no partition is ever held in memory. An hour counts as closed {@code lag-minutes}
+ * after it ends, leaving late events time to arrive, and an hour without rows leaves no file.
+ * Finished files go to the {@link ArchiveUploader}, if there is one.
+ *
+ * <p>Runs are scheduled on every replica, but only the one holding the {@link ClusterLease} does
+ * any work. The next hour to export per table is checkpointed in a ClickHouse table, so whichever
+ * pod takes the lease next resumes where the last one stopped, and a crash repeats at most the hour
+ * in progress.
+ */
+@Service
+@ConditionalOnProperty(name = "analytics.export.enabled", havingValue = "true")
+public class HourlyArchiveExporter {
+
+  private static final Logger logger = LoggerFactory.getLogger(HourlyArchiveExporter.class);
+
+  static final List<String> TABLES =
+      List.of("page_view_events", "click_events", "scroll_events", "session_events");
+
+  static final String LEASE = "archive-export";
+
+  static final String CHECKPOINT_TABLE = "default.archive_export_checkpoints";
+
+  private static final String COUNT_QUERY =
+      "SELECT count() FROM %s WHERE timestamp >= toDateTime(?) AND timestamp < toDateTime(?)";
+
+  private static final String HOUR_QUERY =
+      """
+      SELECT *
+      FROM %s
+      WHERE timestamp >= toDateTime({from:UInt32}) AND timestamp < toDateTime({to:UInt32})
+      ORDER BY timestamp
+      """;
+
+  private static final DateTimeFormatter DAY =
+      DateTimeFormatter.ofPattern("yyyy-MM-dd").withZone(ZoneOffset.UTC);
+  private static final DateTimeFormatter HOUR =
+      DateTimeFormatter.ofPattern("HH").withZone(ZoneOffset.UTC);
+  private static final DateTimeFormatter FILE_HOUR =
+      DateTimeFormatter.ofPattern("yyyyMMddHH").withZone(ZoneOffset.UTC);
+
+  public enum ExportFormat {
+    PARQUET(ClickHouseHttpClient.Format.PARQUET, ".parquet"),
+    NATIVE(ClickHouseHttpClient.Format.NATIVE_ZSTD, ".native.zst");
+
+    private final ClickHouseHttpClient.Format format;
+    private final String extension;
+
+    ExportFormat(ClickHouseHttpClient.Format format, String extension) {
+      this.format = format;
+      this.extension = extension;
+    }
+  }
+
+  @Autowired private ClickHouseHttpClient clickHouseHttpClient;
+
+  @Autowired private Connection clickHouseConnection;
+
+  @Autowired private ClusterLease clusterLease;
+
+  @Autowired(required = false)
+  private ArchiveUploader archiveUploader;
+
+  @Value("${analytics.export.dir:${java.io.tmpdir}/analytics-export}")
+  private Path exportDir;
+
+  @Value("${analytics.export.format:parquet}")
+  private ExportFormat exportFormat;
+
+  @Value("${analytics.export.lag-minutes:10}")
+  private long lagMinutes;
+
+  @Value("${analytics.export.initial-hours:24}")
+  private long initialHours;
+
+  @Value("${analytics.export.max-hours-per-run:24}")
+  private int maxHoursPerRun;
+
+  @Value("${analytics.export.query-timeout-seconds:1800}")
+  private long queryTimeoutSeconds;
+
+  /** How long the lease lasts without being extended; it is extended before every hour */
+  @Value("${analytics.export.lease-term:PT1H}")
+  private Duration leaseTerm;
+
+  private volatile boolean tableReady;
+
+  private final LongAdder exportedFiles = new LongAdder();
+  private final LongAdder exportedBytes = new LongAdder();
+  private final LongAdder emptyHours = new LongAdder();
+  private final LongAdder failures = new LongAdder();
+  private volatile Instant lastRunAt;
+  private volatile String lastError;
+
+  @PostConstruct
+  void init() throws IOException {
+    Files.createDirectories(exportDir);
+  }
+
+  @Scheduled(
+      fixedDelayString = "${analytics.export.interval-ms:300000}",
+      initialDelayString = "${analytics.export.initial-delay-ms:60000}")
+  public void exportClosedHours() {
+    if (!holdLease()) {
+      logger.debug("Another pod is exporting the archive");
+      return;
+    }
+    try {
+      exportTables();
+    } finally {
+      clusterLease.release(LEASE);
+    }
+  }
+
+  private void exportTables() {
+    lastRunAt = Instant.now();
+    Instant firstOpenHour =
+        Instant.now().minus(Duration.ofMinutes(lagMinutes)).truncatedTo(ChronoUnit.HOURS);
+
+    Map<String, Instant> checkpoint;
+    try {
+      checkpoint = readCheckpoint();
+    } catch (SQLException e) {
+      failures.increment();
+      lastError = "checkpoint: " + e.getMessage();
+      logger.error("Failed to read the archive export checkpoint", e);
+      return;
+    }
+
+    for (String table : TABLES) {
+      Instant hour =
+          checkpoint.getOrDefault(table, firstOpenHour.minus(initialHours, ChronoUnit.HOURS));
+      int exported = 0;
+      while (hour.isBefore(firstOpenHour) && exported++ < maxHoursPerRun) {
+        if (!holdLease()) {
+          return;
+        }
+        try {
+          exportHour(table, hour);
+          hour = hour.plus(1, ChronoUnit.HOURS);
+          saveCheckpoint(table, hour);
+        } catch (Exception e) {
+          // Left at this hour; the next run tries it again
+          failures.increment();
+          lastError = table + " " + hour + ": " + e.getMessage();
+          logger.error("Archive export of {} for hour {} failed", table, hour, e);
+          break;
+        }
+      }
+    }
+  }
+
+  public Map<String, Object> getStatus() {
+    Map<String, Object> status = new LinkedHashMap<>();
+    status.put("format", exportFormat);
+    status.put("dir", exportDir.toString());
+    status.put("uploader", archiveUploader == null ? "none" : archiveUploader.getClass().getName());
+    status.put("last_run_at", lastRunAt);
+    status.put("exported_files", exportedFiles.sum());
+    status.put("exported_bytes", exportedBytes.sum());
+    status.put("empty_hours", emptyHours.sum());
+    status.put("failures", failures.sum());
+    status.put("last_error", lastError);
+    Map<String, Object> nextHours = new LinkedHashMap<>();
+    try {
+      Map<String, Instant> checkpoint = readCheckpoint();
+      for (String table : TABLES) {
+        nextHours.put(table, checkpoint.get(table));
+      }
+    } catch (SQLException e) {
+      logger.warn("Failed to read the archive export checkpoint", e);
+    }
+    status.put("next_hour", nextHours);
+    return status;
+  }
+
+  private void exportHour(String table, Instant hour) throws Exception {
+    long from = hour.getEpochSecond();
+    if (countRows(table, from) == 0) {
+      // Nothing to archive for this hour; an empty Parquet or Native file still has bytes
+      emptyHours.increment();
+      return;
+    }
+
+    Path target =
+        exportDir
+            .resolve(table)
+            .resolve("date=" + DAY.format(hour))
+            .resolve("hour=" + HOUR.format(hour))
+            .resolve(table + "-" + FILE_HOUR.format(hour) + exportFormat.extension);
+    Path part = target.resolveSibling(target.getFileName() + ".part");
+    Files.createDirectories(target.getParent());
+
+    long bytes;
+    try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(part))) {
+      bytes =
+          QueryScope.open("export", Duration.ofSeconds(queryTimeoutSeconds))
+              .call(
+                  () ->
+                      clickHouseHttpClient.streamQuery(
+                          HOUR_QUERY.formatted(table),
+                          Map.of("from", String.valueOf(from), "to", String.valueOf(from + 3600)),
+                          exportFormat.format,
+                          out));
+    } catch (Exception e) {
+      Files.deleteIfExists(part);
+      throw e;
+    }
+
+    Files.move(part, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    exportedFiles.increment();
+    exportedBytes.add(bytes);
+    logger.info("Archived {} hour {} to {} ({} bytes)", table, hour, target, bytes);
+
+    if (archiveUploader != null) {
+      archiveUploader.upload(target, exportDir.relativize(target).toString().replace('\\', '/'));
+    }
+  }
+
+  private long countRows(String table, long from) throws SQLException {
+    try (PreparedStatement stmt =
+        clickHouseConnection.prepareStatement(COUNT_QUERY.formatted(table))) {
+      stmt.setLong(1, from);
+      stmt.setLong(2, from + 3600);
+      try (ResultSet rs = stmt.executeQuery()) {
+        return rs.next() ? rs.getLong(1) : 0;
+      }
+    }
+  }
+
+  /** The next hour to export per table, as saved by whichever pod exported last */
+  private Map<String, Instant> readCheckpoint() throws SQLException {
+    ensureTable();
+    Map<String, Instant> checkpoint = new LinkedHashMap<>();
+    try (Statement stmt = clickHouseConnection.createStatement();
+        ResultSet rs =
+            stmt.executeQuery(
+                "SELECT table_name, toUnixTimestamp(max(next_hour)) FROM %s GROUP BY table_name"
+                    .formatted(CHECKPOINT_TABLE))) {
+      while (rs.next()) {
+        checkpoint.put(rs.getString(1), Instant.ofEpochSecond(rs.getLong(2)));
+      }
+    }
+    return checkpoint;
+  }
+
+  private void saveCheckpoint(String table, Instant nextHour) throws SQLException {
+    try (PreparedStatement stmt =
+        clickHouseConnection.prepareStatement(
+            "INSERT INTO %s (table_name, next_hour) VALUES (?, toDateTime(?))"
+                .formatted(CHECKPOINT_TABLE))) {
+      stmt.setString(1, table);
+      stmt.setLong(2, nextHour.getEpochSecond());
+      stmt.executeUpdate();
+    }
+  }
+
+  private void ensureTable() throws SQLException {
+    if (tableReady) {
+      return;
+    }
+    try (Statement stmt = clickHouseConnection.createStatement()) {
+      stmt.execute(
+          """
+              CREATE TABLE IF NOT EXISTS %s (
+                  table_name String,
+                  next_hour DateTime('UTC')
+              ) ENGINE = ReplacingMergeTree(next_hour)
+              ORDER BY table_name
+             \s"""
+              .formatted(CHECKPOINT_TABLE));
+    }
+    tableReady = true;
+  }
+
+  /** Take or extend the cluster-wide lease, so that only one pod exports at a time */
+  private boolean holdLease() {
+    try {
+      return clusterLease.tryAcquire(LEASE, leaseTerm);
+    } catch (SQLException e) {
+      logger.warn("Failed to take the archive export lease, skipping this run: {}", e.getMessage());
+      return false;
+    }
+  }
+}
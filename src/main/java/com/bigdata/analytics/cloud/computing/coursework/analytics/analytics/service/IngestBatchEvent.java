@@ -0,0 +1,43 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/** JFR event for one request's events of one type, spanning one {@link IngestMetrics.Batch} */
+@Name("analytics.IngestBatch")
+@Label("Ingest Batch")
+@Category({"Analytics", "Ingest"})
+@Description("Validation, enrichment and ClickHouse insert of one request's events of one type")
+@StackTrace(false)
+final class IngestBatchEvent extends jdk.jfr.Event {
+
+  @Label("Event Type")
+  String eventType;
+
+  @Label("Batch Size")
+  int batchSize;
+
+  @Label("Accepted")
+  int accepted;
+
+  @Label("Rejected")
+  int rejected;
+
+  @Label("Failed")
+  int failed;
+
+  void end(String eventType, int batchSize, int accepted, int failed) {
+    if (!shouldCommit()) {
+      return;
+    }
+    this.eventType = eventType;
+    this.batchSize = batchSize;
+    this.accepted = accepted;
+    this.failed = failed;
+    this.rejected = batchSize - accepted - failed;
+    commit();
+  }
+}
@@ -0,0 +1,217 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service;
+
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto.AnalyticsEventRequest;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import java.sql.SQLException;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+/**
+ * Micrometer meters of the ingest pipeline, tagged with the event type:
+ *
+ * <ul>
+ *   <li>{@code analytics.ingest.stage}, a timer per {@link Stage}. Validation and enrichment are
+ *       added up over a request's events of one type, so each is one sample per batch like the
+ *       insert. Deserialization covers the whole request body and is tagged {@code all};
+ *       replication is one flush of the Redshift buffer.
+ *   <li>{@code analytics.ingest.batch.size}, how many events of the type a request carried.
+ *   <li>{@code analytics.ingest.events}, counted by outcome: accepted, rejected (invalid, or the
+ *       request was refused as a whole) or failed (valid, but the ClickHouse insert failed).
+ * </ul>
+ *
+ * <p>Each batch is also a JFR {@link IngestBatchEvent}, committed only while a recording wants it.
+ */
+@Service
+public class IngestMetrics {
+
+  public enum Stage {
+    DESERIALIZE,
+    VALIDATE,
+    ENRICH,
+    CLICKHOUSE_INSERT,
+    REDSHIFT_REPLICATE
+  }
+
+  enum Outcome {
+    ACCEPTED,
+    REJECTED,
+    FAILED
+  }
+
+  @FunctionalInterface
+  public interface SqlRunnable {
+    void run() throws SQLException;
+  }
+
+  @Autowired private MeterRegistry meterRegistry;
+
+  private final Map<EventBatch.Kind, Map<Stage, Timer>> stageTimers =
+      new EnumMap<>(EventBatch.Kind.class);
+  private final Map<EventBatch.Kind, DistributionSummary> batchSizes =
+      new EnumMap<>(EventBatch.Kind.class);
+  private final Map<EventBatch.Kind, Map<Outcome, Counter>> eventCounters =
+      new EnumMap<>(EventBatch.Kind.class);
+  private Timer deserialization;
+
+  @PostConstruct
+  void init() {
+    // Registered up front so the hot path only reads maps, and every series exists from the start
+    for (EventBatch.Kind kind : EventBatch.Kind.values()) {
+      Map<Stage, Timer> timers = new EnumMap<>(Stage.class);
+      for (Stage stage : Stage.values()) {
+        if (stage != Stage.DESERIALIZE) {
+          timers.put(stage, stageTimer(stage, tag(kind)));
+        }
+      }
+      stageTimers.put(kind, timers);
+
+      batchSizes.put(
+          kind,
+          DistributionSummary.builder("analytics.ingest.batch.size")
+              .description("Events of one type in an ingest request")
+              .baseUnit("events")
+              .tag("event_type", tag(kind))
+              .register(meterRegistry));
+
+      Map<Outcome, Counter> counters = new EnumMap<>(Outcome.class);
+      for (Outcome outcome : Outcome.values()) {
+        counters.put(
+            outcome,
+            Counter.builder("analytics.ingest.events")
+                .description("Ingested events by outcome")
+                .tag("event_type", tag(kind))
+                .tag("outcome", tag(outcome))
+                .register(meterRegistry));
+      }
+      eventCounters.put(kind, counters);
+    }
+    deserialization = stageTimer(Stage.DESERIALIZE, "all");
+  }
+
+  /** Start measuring a request's {@code size} events of one type */
+  public Batch start(EventBatch.Kind kind, int size) {
+    return new Batch(kind, size);
+  }
+
+  /** Time taken to read and bind one request body */
+  public void recordDeserialization(long nanos) {
+    deserialization.record(nanos, TimeUnit.NANOSECONDS);
+  }
+
+  /** Time taken by one flush of the Redshift replication buffer */
+  public void recordReplication(EventBatch.Kind kind, long nanos) {
+    stageTimers.get(kind).get(Stage.REDSHIFT_REPLICATE).record(nanos, TimeUnit.NANOSECONDS);
+  }
+
+  /** Count every event of a request that was refused before any of it was looked at */
+  public void rejected(AnalyticsEventRequest request) {
+    rejected(EventBatch.Kind.PAGE_VIEWS, request.getPageViews());
+    rejected(EventBatch.Kind.CLICKS, request.getClicks());
+    rejected(EventBatch.Kind.SCROLLS, request.getScrolls());
+    rejected(EventBatch.Kind.SESSIONS, request.getSessions());
+  }
+
+  private void rejected(EventBatch.Kind kind, List<?> events) {
+    if (events != null && !events.isEmpty()) {
+      eventCounters.get(kind).get(Outcome.REJECTED).increment(events.size());
+    }
+  }
+
+  private Timer stageTimer(Stage stage, String eventType) {
+    return Timer.builder("analytics.ingest.stage")
+        .description("Time spent in one stage of the ingest pipeline")
+        .tag("stage", tag(stage))
+        .tag("event_type", eventType)
+        .register(meterRegistry);
+  }
+
+  private static String tag(Enum<?> value) {
+    return value.name().toLowerCase(Locale.ROOT);
+  }
+
+  /**
+   * Stage times and outcomes of one request's events of one type. Only used by the request's own
+   * thread; {@link #finish} records it.
+   */
+  public final class Batch {
+
+    private final EventBatch.Kind kind;
+    private final int size;
+    private final IngestBatchEvent event = new IngestBatchEvent();
+
+    private long validateNanos;
+    private long enrichNanos;
+    private int accepted;
+    private int failed;
+    private boolean finished;
+
+    private Batch(EventBatch.Kind kind, int size) {
+      this.kind = kind;
+      this.size = size;
+      event.begin();
+    }
+
+    public void validate(Runnable validation) {
+      long start = System.nanoTime();
+      try {
+        validation.run();
+      } finally {
+        validateNanos += System.nanoTime() - start;
+      }
+    }
+
+    public <T> T enrich(Supplier<T> enrichment) {
+      long start = System.nanoTime();
+      try {
+        return enrichment.get();
+      } finally {
+        enrichNanos += System.nanoTime() - start;
+      }
+    }
+
+    /** Run the ClickHouse insert of {@code count} events; if it throws, they count as failed */
+    public void insert(int count, SqlRunnable insert) throws SQLException {
+      long start = System.nanoTime();
+      try {
+        insert.run();
+        accepted = count;
+      } catch (SQLException | RuntimeException e) {
+        failed = count;
+        finish();
+        throw e;
+      } finally {
+        timer(Stage.CLICKHOUSE_INSERT).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+      }
+    }
+
+    /** Record the batch; events neither accepted nor failed were rejected */
+    public void finish() {
+      if (finished) {
+        return;
+      }
+      finished = true;
+      timer(Stage.VALIDATE).record(validateNanos, TimeUnit.NANOSECONDS);
+      timer(Stage.ENRICH).record(enrichNanos, TimeUnit.NANOSECONDS);
+      batchSizes.get(kind).record(size);
+      Map<Outcome, Counter> counters = eventCounters.get(kind);
+      counters.get(Outcome.ACCEPTED).increment(accepted);
+      counters.get(Outcome.FAILED).increment(failed);
+      counters.get(Outcome.REJECTED).increment(size - accepted - failed);
+      event.end(tag(kind), size, accepted, failed);
+    }
+
+    private Timer timer(Stage stage) {
+      return stageTimers.get(kind).get(stage);
+    }
+  }
+}
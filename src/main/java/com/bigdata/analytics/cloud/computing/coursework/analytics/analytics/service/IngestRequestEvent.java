@@ -0,0 +1,49 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service;
+
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto.AnalyticsEventRequest;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto.ApiResponse;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto.ClientInfo;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/** JFR event for one call of {@link AnalyticsService#processEvents}, after the body was bound */
+@Name("analytics.IngestRequest")
+@Label("Ingest Request")
+@Category({"Analytics", "Ingest"})
+@Description("Validation, enrichment and ClickHouse inserts of one ingest request")
+@StackTrace(false)
+final class IngestRequestEvent extends jdk.jfr.Event {
+
+  @Label("Events")
+  int events;
+
+  @Label("Processed")
+  int processed;
+
+  @Label("Errors")
+  int errors;
+
+  @Label("Body Size")
+  @DataAmount
+  long bodyBytes;
+
+  @Label("Success")
+  boolean success;
+
+  /** Commit with the request's outcome, if a recording wants it */
+  void end(AnalyticsEventRequest request, ClientInfo client, ApiResponse<?> response) {
+    if (!shouldCommit()) {
+      return;
+    }
+    events = request.getTotalEventCount();
+    processed = response.getProcessed() == null ? 0 : response.getProcessed();
+    errors = response.getErrors() == null ? 0 : response.getErrors().size();
+    bodyBytes = client == null ? -1 : client.bodyBytes();
+    success = response.isSuccess();
+    commit();
+  }
+}
@@ -0,0 +1,65 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service;
+
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto.JourneyEventRow;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Opaque keyset position in a journey: the last returned event's timestamp and event key, and how
+ * many events at exactly that position have been returned. Exact duplicates share a position, so
+ * the next page starts at it and skips {@code seen} events rather than everything after it.
+ */
+record JourneyCursor(long timestampMillis, String eventKey, long seen) {
+
+  /** Position after {@code page}, which was read from {@code previous} (null for the first page) */
+  static JourneyCursor after(List<JourneyEventRow> page, JourneyCursor previous) {
+    JourneyEventRow last = page.get(page.size() - 1);
+    long seen = 0;
+    for (int i = page.size() - 1; i >= 0 && isAt(page.get(i), last); i--) {
+      seen++;
+    }
+    // A page of nothing but the previous position's duplicates continues its count
+    if (previous != null
+        && previous.timestampMillis == last.timestampMillis()
+        && previous.eventKey.equals(last.eventKey())) {
+      seen += previous.seen;
+    }
+    return new JourneyCursor(last.timestampMillis(), last.eventKey(), seen);
+  }
+
+  private static boolean isAt(JourneyEventRow event, JourneyEventRow position) {
+    return event.timestampMillis() == position.timestampMillis()
+        && event.eventKey().equals(position.eventKey());
+  }
+
+  String encode() {
+    String raw = timestampMillis + ":" + eventKey + ":" + seen;
+    return Base64.getUrlEncoder()
+        .withoutPadding()
+        .encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /** Parse a cursor from a previous page; null or blank means the start of the journey */
+  static JourneyCursor decode(String cursor) {
+    if (cursor == null || cursor.isBlank()) {
+      return null;
+    }
+    try {
+      String[] parts =
+          new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split(":", -1);
+      if (parts.length != 3) {
+        throw new IllegalArgumentException();
+      }
+      long timestampMillis = Long.parseLong(parts[0]);
+      String eventKey = Long.toUnsignedString(Long.parseUnsignedLong(parts[1]));
+      long seen = Long.parseLong(parts[2]);
+      if (seen < 1) {
+        throw new IllegalArgumentException();
+      }
+      return new JourneyCursor(timestampMillis, eventKey, seen);
+    } catch (RuntimeException e) {
+      throw new IllegalArgumentException("Invalid journey cursor");
+    }
+  }
+}
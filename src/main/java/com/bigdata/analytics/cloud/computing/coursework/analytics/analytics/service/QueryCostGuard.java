@@ -0,0 +1,235 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service;
+
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto.QueryPrecision;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.exception.QueryBudgetExceededException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Estimates how much a read query will scan before it runs, using {@code EXPLAIN ESTIMATE} for
+ * rows and the table's average row size for bytes. The guarded queries take only a relative time
+ * range, so their SQL text is their shape, and its estimate is reused for {@code
+ * estimate-ttl-seconds}.
+ *
+ * <p>Queries under the sampling budget run unchanged. Larger ones are rebuilt to read a fraction
+ * of the data through a {@code SAMPLE} clause, with counts scaled back up. Only a sampling key lets
+ * ClickHouse skip granules, so on a table without one (created before {@code SAMPLE BY} was added
+ * to the schema) such queries run exact. Queries whose unsampled estimate is over the rejection
+ * budget are refused with {@link QueryBudgetExceededException}.
+ */
+@Service
+public class QueryCostGuard {
+
+  private static final Logger logger = LoggerFactory.getLogger(QueryCostGuard.class);
+
+  /** Sample fractions are rounded down to this many steps, keeping query texts few and stable */
+  private static final int FRACTION_STEPS = 10_000;
+
+  /** How far a query should be narrowed; {@link #EXACT} leaves it untouched */
+  public record Sampling(double fraction) {
+
+    public static final Sampling EXACT = new Sampling(1.0);
+
+    public boolean isExact() {
+      return fraction >= 1.0;
+    }
+
+    /** Table reference, followed by a SAMPLE clause unless exact */
+    public String from(String table) {
+      return isExact() ? table : table + " SAMPLE " + fraction;
+    }
+
+    /** Scale a count-like aggregate back up to the whole population */
+    public String scaled(String aggregate) {
+      return isExact() ? aggregate : "round(" + aggregate + " / " + fraction + ")";
+    }
+  }
+
+  public record GuardedQuery(String sql, QueryPrecision precision) {}
+
+  @FunctionalInterface
+  public interface SqlBuilder {
+    String build(Sampling sampling);
+  }
+
+  @Autowired private Connection clickHouseReadConnection;
+
+  @Value("${analytics.cost-guard.enabled:true}")
+  private boolean enabled;
+
+  @Value("${analytics.cost-guard.sample-above-rows:50000000}")
+  private long sampleAboveRows;
+
+  @Value("${analytics.cost-guard.reject-above-rows:5000000000}")
+  private long rejectAboveRows;
+
+  @Value("${analytics.cost-guard.reject-above-bytes:200000000000}")
+  private long rejectAboveBytes;
+
+  @Value("${analytics.cost-guard.min-sample-fraction:0.01}")
+  private double minSampleFraction;
+
+  @Value("${analytics.cost-guard.table-stats-ttl-seconds:300}")
+  private long tableStatsTtlSeconds;
+
+  @Value("${analytics.cost-guard.estimate-ttl-seconds:60}")
+  private long estimateTtlSeconds;
+
+  private volatile Map<String, TableStats> tableStats = Map.of();
+  private volatile long tableStatsLoadedAt;
+
+  /** Estimates by exact query text */
+  private final Map<String, Estimate> estimates = new ConcurrentHashMap<>();
+
+  /**
+   * Build the query for {@code table}, sampled or exact depending on its estimated cost.
+   *
+   * @throws QueryBudgetExceededException if the estimate for the unsampled query is over the
+   *     rejection budget; sampling is never used to fit a query under it
+   */
+  public GuardedQuery guard(String name, String table, SqlBuilder builder) throws SQLException {
+    String exactSql = builder.build(Sampling.EXACT);
+    if (!enabled) {
+      return new GuardedQuery(exactSql, exact(-1, -1));
+    }
+
+    Estimate estimate;
+    try {
+      estimate = estimate(exactSql);
+    } catch (SQLException e) {
+      // An estimate is an optimisation; never fail a read because EXPLAIN did
+      logger.warn("Cost estimate for {} failed, running it unguarded: {}", name, e.getMessage());
+      return new GuardedQuery(exactSql, exact(-1, -1));
+    }
+    long rows = estimate.rows();
+    long bytes = estimate.bytes();
+
+    if (rows > rejectAboveRows || bytes > rejectAboveBytes) {
+      throw new QueryBudgetExceededException(
+          ("Query %s would scan about %,d rows (%,d bytes), over the budget of %,d rows or %,d"
+                  + " bytes; narrow the time range")
+              .formatted(name, rows, bytes, rejectAboveRows, rejectAboveBytes),
+          rows,
+          bytes);
+    }
+
+    if (rows <= sampleAboveRows) {
+      return new GuardedQuery(exactSql, exact(rows, bytes));
+    }
+
+    TableStats tableStat = currentTableStats().get(table.substring(table.indexOf('.') + 1));
+    if (tableStat == null || !tableStat.hasSamplingKey) {
+      logger.info(
+          "Running {} exact: {} rows estimated, but {} has no sampling key", name, rows, table);
+      return new GuardedQuery(exactSql, exact(rows, bytes));
+    }
+
+    double fraction = Math.max(minSampleFraction, (double) sampleAboveRows / rows);
+    fraction =
+        Math.max(1.0 / FRACTION_STEPS, Math.floor(fraction * FRACTION_STEPS) / FRACTION_STEPS);
+    Sampling sampling = new Sampling(fraction);
+
+    logger.info(
+        "Sampling {} at {} ({} rows estimated, sample budget {})",
+        name,
+        fraction,
+        rows,
+        sampleAboveRows);
+    QueryPrecision precision =
+        new QueryPrecision(QueryPrecision.SAMPLED, fraction, "sample_clause", rows, bytes);
+    return new GuardedQuery(builder.build(sampling), precision);
+  }
+
+  /** Wrap a query that is cheap by construction, e.g. one that reads a rollup */
+  public static GuardedQuery unguarded(String sql) {
+    return new GuardedQuery(sql, exact(-1, -1));
+  }
+
+  private static QueryPrecision exact(long rows, long bytes) {
+    return new QueryPrecision(QueryPrecision.EXACT, 1.0, "none", rows, bytes);
+  }
+
+  /**
+   * Rows ClickHouse expects to read, after primary key and partition pruning, and the bytes they
+   * take on disk
+   */
+  private Estimate estimate(String sql) throws SQLException {
+    long now = System.nanoTime();
+    long ttlNanos = TimeUnit.SECONDS.toNanos(estimateTtlSeconds);
+    Estimate cached = estimates.get(sql);
+    if (cached != null && now - cached.estimatedAtNanos() < ttlNanos) {
+      return cached;
+    }
+    estimates.values().removeIf(stale -> now - stale.estimatedAtNanos() >= ttlNanos);
+
+    Map<String, TableStats> stats = currentTableStats();
+    long rows = 0;
+    long bytes = 0;
+    try (PreparedStatement stmt =
+            clickHouseReadConnection.prepareStatement("EXPLAIN ESTIMATE " + sql);
+        ResultSet rs = stmt.executeQuery()) {
+      while (rs.next()) {
+        TableStats tableStat = stats.get(rs.getString("table"));
+        long tableRows = rs.getLong("rows");
+        rows += tableRows;
+        bytes += tableStat == null ? 0 : (long) (tableRows * tableStat.avgRowBytes);
+      }
+    }
+    Estimate fresh = new Estimate(rows, bytes, now);
+    estimates.put(sql, fresh);
+    return fresh;
+  }
+
+  private Map<String, TableStats> currentTableStats() throws SQLException {
+    long now = System.nanoTime();
+    if (tableStatsLoadedAt != 0
+        && now - tableStatsLoadedAt < TimeUnit.SECONDS.toNanos(tableStatsTtlSeconds)) {
+      return tableStats;
+    }
+
+    synchronized (this) {
+      if (tableStatsLoadedAt != 0
+          && now - tableStatsLoadedAt < TimeUnit.SECONDS.toNanos(tableStatsTtlSeconds)) {
+        return tableStats;
+      }
+
+      String sql =
+          """
+              SELECT name, sampling_key, total_bytes, total_rows
+              FROM system.tables
+              WHERE database = 'default' AND total_rows > 0
+             \s""";
+      Map<String, TableStats> loaded = new HashMap<>();
+      try (PreparedStatement stmt = clickHouseReadConnection.prepareStatement(sql);
+          ResultSet rs = stmt.executeQuery()) {
+        while (rs.next()) {
+          String samplingKey = rs.getString("sampling_key");
+          loaded.put(
+              rs.getString("name"),
+              new TableStats(
+                  (double) rs.getLong("total_bytes") / rs.getLong("total_rows"),
+                  samplingKey != null && !samplingKey.isBlank()));
+        }
+      }
+      tableStats = Map.copyOf(loaded);
+      tableStatsLoadedAt = System.nanoTime();
+      return tableStats;
+    }
+  }
+
+  /** Average on-disk row size across all columns, so byte estimates are an upper bound */
+  private record TableStats(double avgRowBytes, boolean hasSamplingKey) {}
+
+  private record Estimate(long rows, long bytes, long estimatedAtNanos) {}
+}
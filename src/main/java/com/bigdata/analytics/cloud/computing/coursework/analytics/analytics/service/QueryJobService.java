@@ -0,0 +1,544 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service;
+
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto.QueryProgressRow;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service.QueryCostGuard.GuardedQuery;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PostConstruct;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+/**
+ * Runs heavy analytics reports in the background so they do not hold a request thread.
+ *
+ * <p>A submitted job is cost-checked straight away, then queued on a small dedicated executor.
+ * When it runs, the ClickHouse output is spooled as JSONEachRow to a local file, tagged with the
+ * job's query id so progress can be read from {@code system.processes} and the query killed on
+ * cancel. Results are paged from the spool file through a sparse line index. Finished jobs and
+ * their files are removed after a TTL.
+ *
+ * <p>Jobs and their spool files only exist on the pod that accepted them. With {@code pod-address}
+ * and {@code routing-secret} set, that pod's address is encoded into the job id, signed with an
+ * HMAC under the secret all pods share, so that any pod can tell from an id where to forward a
+ * request for it (see {@code QueryJobRoutingFilter}) and a client cannot choose the target.
+ */
+@Service
+public class QueryJobService {
+
+  private static final Logger logger = LoggerFactory.getLogger(QueryJobService.class);
+
+  /** Every this many rows the spool records a byte offset, so pages can seek close to a row */
+  private static final int INDEX_STRIDE = 1000;
+
+  private static final String SPOOL_SUFFIX = ".ndjson";
+
+  private static final Pattern IP_LITERAL = Pattern.compile("[0-9.]+|\\[[0-9a-fA-F:.]+]");
+
+  private static final String ROUTING_MAC = "HmacSHA256";
+
+  /** Bytes of the routing MAC kept in a job id */
+  private static final int ROUTING_MAC_BYTES = 16;
+
+  public enum Report {
+    PAGE_VIEWS,
+    TOP_PAGES,
+    CLICKS,
+    SCROLLS,
+    PERFORMANCE
+  }
+
+  public enum Status {
+    QUEUED,
+    RUNNING,
+    SUCCEEDED,
+    FAILED,
+    CANCELLED;
+
+    boolean isFinished() {
+      return this == SUCCEEDED || this == FAILED || this == CANCELLED;
+    }
+  }
+
+  @Autowired private ClickHouseService clickHouseService;
+
+  @Autowired private ClickHouseHttpClient clickHouseHttpClient;
+
+  @Autowired private ObjectMapper objectMapper;
+
+  @Autowired
+  @Qualifier("queryJobExecutor")
+  private AsyncTaskExecutor jobExecutor;
+
+  @Value("${analytics.jobs.spool-dir:${java.io.tmpdir}/analytics-jobs}")
+  private Path spoolDir;
+
+  @Value("${analytics.jobs.result-ttl-minutes:30}")
+  private long resultTtlMinutes;
+
+  @Value("${analytics.jobs.query-timeout-seconds:1800}")
+  private long queryTimeoutSeconds;
+
+  @Value("${analytics.jobs.pod-address:}")
+  private String podAddress;
+
+  @Value("${analytics.jobs.routing-secret:}")
+  private String routingSecret;
+
+  @Value("${server.port:8080}")
+  private int serverPort;
+
+  /** Prefix of the ids of jobs owned by this pod, empty when jobs are not routed */
+  private String idPrefix;
+
+  private final ConcurrentHashMap<String, Job> jobs = new ConcurrentHashMap<>();
+
+  @PostConstruct
+  void init() throws IOException {
+    Files.createDirectories(spoolDir);
+    String host = podAddress.contains(":") ? "[" + podAddress + "]" : podAddress;
+    String address = encodeAddress(host + ":" + serverPort);
+    if (!podAddress.isBlank() && routingSecret.isBlank()) {
+      logger.warn("analytics.jobs.routing-secret is not set, jobs will not be routed between pods");
+    }
+    idPrefix =
+        podAddress.isBlank() || routingSecret.isBlank()
+            ? ""
+            : address + "." + sign(address) + ".";
+
+    // Jobs do not survive a restart, so neither do their results
+    try (var files = Files.list(spoolDir)) {
+      for (Path file : files.filter(f -> f.toString().endsWith(SPOOL_SUFFIX)).toList()) {
+        Files.deleteIfExists(file);
+        logger.debug("Removed spool file {} left by a previous run", file);
+      }
+    }
+  }
+
+  /**
+   * The address of the pod that owns job {@code id}, if that is another pod; empty for this pod's
+   * jobs and for ids that carry no address. The address must carry a valid signature, so an id
+   * made up by a client cannot point requests at other hosts, and must still be an IP on this
+   * pod's port.
+   */
+  public Optional<InetSocketAddress> ownerOf(String id) {
+    int dot = id.indexOf('.');
+    int signatureEnd = id.indexOf('.', dot + 1);
+    if (routingSecret.isBlank()
+        || dot <= 0
+        || signatureEnd < 0
+        || !idPrefix.isEmpty() && id.startsWith(idPrefix)) {
+      return Optional.empty();
+    }
+    String encoded = id.substring(0, dot);
+    byte[] signature = id.substring(dot + 1, signatureEnd).getBytes(StandardCharsets.UTF_8);
+    if (!MessageDigest.isEqual(sign(encoded).getBytes(StandardCharsets.UTF_8), signature)) {
+      logger.warn("Ignoring job id {} with an invalid routing signature", id);
+      return Optional.empty();
+    }
+    try {
+      String address = new String(Base64.getUrlDecoder().decode(encoded), StandardCharsets.UTF_8);
+      int colon = address.lastIndexOf(':');
+      String host = address.substring(0, Math.max(colon, 0));
+      if (colon < 0
+          || !address.substring(colon + 1).equals(String.valueOf(serverPort))
+          || !IP_LITERAL.matcher(host).matches()) {
+        return Optional.empty();
+      }
+      return Optional.of(new InetSocketAddress(InetAddress.getByName(host), serverPort));
+    } catch (IllegalArgumentException | UnknownHostException e) {
+      return Optional.empty();
+    }
+  }
+
+  /**
+   * Plan and queue a report.
+   *
+   * @throws org.springframework.core.task.TaskRejectedException if the job queue is full
+   */
+  public Map<String, Object> submit(Report report, String timeRange) throws SQLException {
+    GuardedQuery query =
+        switch (report) {
+          case PAGE_VIEWS -> clickHouseService.planPageViewAnalytics(timeRange);
+          case TOP_PAGES -> clickHouseService.planTopPages(timeRange);
+          case CLICKS -> clickHouseService.planClickAnalytics(timeRange);
+          case SCROLLS -> clickHouseService.planScrollAnalytics(timeRange);
+          case PERFORMANCE -> clickHouseService.planPerformanceMetrics();
+        };
+
+    String id = idPrefix + UUID.randomUUID();
+    Job job = new Job(id, report, timeRange, query, spoolDir.resolve(id + SPOOL_SUFFIX));
+    jobs.put(id, job);
+    try {
+      job.future = jobExecutor.submit(() -> run(job));
+    } catch (RuntimeException e) {
+      jobs.remove(id);
+      throw e;
+    }
+
+    logger.info("Queued {} job {} for {}", report, id, timeRange);
+    return job.toView(null);
+  }
+
+  public Optional<Map<String, Object>> getJob(String id) {
+    Job job = jobs.get(id);
+    return job == null ? Optional.empty() : Optional.of(job.toView(progressOf(job)));
+  }
+
+  /**
+   * A page of a finished job's rows, parsed back from the spool file.
+   *
+   * @throws IllegalStateException if the job has not succeeded
+   */
+  public Optional<Map<String, Object>> getResults(String id, long offset, int limit)
+      throws IOException {
+    Job job = jobs.get(id);
+    if (job == null) {
+      return Optional.empty();
+    }
+    if (job.status != Status.SUCCEEDED) {
+      throw new IllegalStateException("Job " + id + " is " + job.status.name().toLowerCase());
+    }
+
+    List<JsonNode> rows = new ArrayList<>();
+    if (offset < job.rows) {
+      int block = (int) Math.min(offset / INDEX_STRIDE, job.index.length - 1);
+      try (FileChannel channel = FileChannel.open(job.spoolFile, StandardOpenOption.READ)) {
+        channel.position(job.index[block]);
+        BufferedReader reader =
+            new BufferedReader(
+                new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.UTF_8));
+        for (long skip = offset - (long) block * INDEX_STRIDE; skip > 0; skip--) {
+          reader.readLine();
+        }
+        String line;
+        while (rows.size() < limit && (line = reader.readLine()) != null) {
+          rows.add(objectMapper.readTree(line));
+        }
+      }
+    }
+
+    long nextOffset = offset + rows.size();
+    Map<String, Object> page = new LinkedHashMap<>();
+    page.put("job_id", id);
+    page.put("offset", offset);
+    page.put("total_rows", job.rows);
+    page.put("next_offset", nextOffset < job.rows ? nextOffset : null);
+    page.put("precision", job.query.precision());
+    page.put("rows", rows);
+    return Optional.of(page);
+  }
+
+  /** Stop a job, killing its ClickHouse query if it is already running */
+  public Optional<Map<String, Object>> cancel(String id) {
+    Job job = jobs.get(id);
+    if (job == null) {
+      return Optional.empty();
+    }
+
+    boolean wasRunning;
+    synchronized (job) {
+      if (job.status.isFinished()) {
+        return Optional.of(job.toView(null));
+      }
+      wasRunning = job.status == Status.RUNNING;
+      job.finish(Status.CANCELLED, null);
+    }
+
+    if (wasRunning) {
+      try {
+        clickHouseService.killQuery(job.queryId());
+      } catch (SQLException e) {
+        logger.warn("Failed to kill query for job {}: {}", id, e.getMessage());
+      }
+    }
+    if (job.future != null) {
+      job.future.cancel(true);
+    }
+    deleteSpool(job);
+    return Optional.of(job.toView(null));
+  }
+
+  /** Server-sent status events, once a second until the job finishes */
+  public Optional<SseEmitter> subscribe(String id) {
+    Job job = jobs.get(id);
+    if (job == null) {
+      return Optional.empty();
+    }
+
+    SseEmitter emitter = new SseEmitter(0L);
+    emitter.onCompletion(() -> job.subscribers.remove(emitter));
+    emitter.onTimeout(() -> job.subscribers.remove(emitter));
+    emitter.onError(e -> job.subscribers.remove(emitter));
+    job.subscribers.add(emitter);
+    publish(job);
+    return Optional.of(emitter);
+  }
+
+  @Scheduled(fixedDelayString = "${analytics.jobs.progress-interval-ms:1000}")
+  public void publishProgress() {
+    for (Job job : jobs.values()) {
+      if (!job.subscribers.isEmpty()) {
+        publish(job);
+      }
+    }
+  }
+
+  @Scheduled(fixedDelayString = "${analytics.jobs.cleanup-interval-ms:60000}")
+  public void removeExpiredJobs() {
+    Instant cutoff = Instant.now().minusSeconds(TimeUnit.MINUTES.toSeconds(resultTtlMinutes));
+    for (Job job : jobs.values()) {
+      if (job.status.isFinished() && job.finishedAt.isBefore(cutoff)) {
+        jobs.remove(job.id);
+        deleteSpool(job);
+        logger.debug("Removed expired job {}", job.id);
+      }
+    }
+  }
+
+  private void run(Job job) {
+    synchronized (job) {
+      if (job.status != Status.QUEUED) {
+        return;
+      }
+      job.status = Status.RUNNING;
+      job.startedAt = Instant.now();
+    }
+
+    try (SpoolOutputStream out =
+        new SpoolOutputStream(new BufferedOutputStream(Files.newOutputStream(job.spoolFile)))) {
+      // Jobs are the place for long scans, so they get a far longer deadline than interactive reads
+      QueryScope.open("job", Duration.ofSeconds(queryTimeoutSeconds))
+          .call(
+              () ->
+                  clickHouseHttpClient.streamQuery(
+                      job.query.sql(),
+                      Map.of(),
+                      ClickHouseHttpClient.Format.JSON_EACH_ROW,
+                      job.queryId(),
+                      out));
+      out.flush();
+      synchronized (job) {
+        if (job.status == Status.CANCELLED) {
+          return;
+        }
+        job.rows = out.lines;
+        job.bytes = out.bytes;
+        job.index = out.index();
+        job.finish(Status.SUCCEEDED, null);
+      }
+      logger.info("Job {} finished with {} rows", job.id, job.rows);
+    } catch (Exception e) {
+      // Gone before the job reads as failed, so no poll sees a failure with a spool left behind
+      deleteSpool(job);
+      synchronized (job) {
+        if (job.status == Status.CANCELLED) {
+          return;
+        }
+        job.finish(Status.FAILED, e.getMessage());
+      }
+      logger.error("Job {} failed", job.id, e);
+    } finally {
+      publish(job);
+    }
+  }
+
+  private QueryProgressRow progressOf(Job job) {
+    if (job.status != Status.RUNNING) {
+      return null;
+    }
+    try {
+      return clickHouseService.getQueryProgress(job.queryId()).orElse(null);
+    } catch (SQLException e) {
+      logger.debug("Could not read progress of job {}: {}", job.id, e.getMessage());
+      return null;
+    }
+  }
+
+  private void publish(Job job) {
+    if (job.subscribers.isEmpty()) {
+      return;
+    }
+    Map<String, Object> view = job.toView(progressOf(job));
+    for (SseEmitter emitter : job.subscribers) {
+      try {
+        emitter.send(SseEmitter.event().name("status").data(view));
+        if (job.status.isFinished()) {
+          emitter.complete();
+        }
+      } catch (IOException | IllegalStateException e) {
+        job.subscribers.remove(emitter);
+      }
+    }
+  }
+
+  private void deleteSpool(Job job) {
+    try {
+      Files.deleteIfExists(job.spoolFile);
+    } catch (IOException e) {
+      logger.warn("Failed to delete spool file {}: {}", job.spoolFile, e.getMessage());
+    }
+  }
+
+  private String sign(String encodedAddress) {
+    try {
+      Mac mac = Mac.getInstance(ROUTING_MAC);
+      mac.init(new SecretKeySpec(routingSecret.getBytes(StandardCharsets.UTF_8), ROUTING_MAC));
+      byte[] digest = mac.doFinal(encodedAddress.getBytes(StandardCharsets.UTF_8));
+      return Base64.getUrlEncoder()
+          .withoutPadding()
+          .encodeToString(Arrays.copyOf(digest, ROUTING_MAC_BYTES));
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("Cannot sign job ids with " + ROUTING_MAC, e);
+    }
+  }
+
+  private static String encodeAddress(String address) {
+    return Base64.getUrlEncoder()
+        .withoutPadding()
+        .encodeToString(address.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static final class Job {
+    private final String id;
+    private final Report report;
+    private final String timeRange;
+    private final GuardedQuery query;
+    private final Path spoolFile;
+    private final Instant createdAt = Instant.now();
+    private final List<SseEmitter> subscribers = new CopyOnWriteArrayList<>();
+    private volatile Status status = Status.QUEUED;
+    private volatile Instant startedAt;
+    private volatile Instant finishedAt;
+    private volatile String error;
+    private volatile long rows;
+    private volatile long bytes;
+    private volatile long[] index = {0};
+    private volatile Future<?> future;
+
+    private Job(String id, Report report, String timeRange, GuardedQuery query, Path spoolFile) {
+      this.id = id;
+      this.report = report;
+      this.timeRange = timeRange;
+      this.query = query;
+      this.spoolFile = spoolFile;
+    }
+
+    private String queryId() {
+      return "job-" + id.substring(id.lastIndexOf('.') + 1);
+    }
+
+    private void finish(Status finalStatus, String failure) {
+      status = finalStatus;
+      error = failure;
+      finishedAt = Instant.now();
+    }
+
+    private Map<String, Object> toView(QueryProgressRow progress) {
+      Map<String, Object> view = new LinkedHashMap<>();
+      view.put("job_id", id);
+      view.put("report", report.name().toLowerCase());
+      view.put("time_range", timeRange);
+      view.put("status", status.name().toLowerCase());
+      view.put("created_at", createdAt.toString());
+      view.put("started_at", startedAt == null ? null : startedAt.toString());
+      view.put("finished_at", finishedAt == null ? null : finishedAt.toString());
+      view.put("precision", query.precision());
+      if (progress != null) {
+        view.put("progress", progress);
+      }
+      if (status == Status.SUCCEEDED) {
+        view.put("total_rows", rows);
+        view.put("result_bytes", bytes);
+      }
+      if (error != null) {
+        view.put("error", error);
+      }
+      return view;
+    }
+  }
+
+  /** Counts rows as they are spooled and remembers where every {@link #INDEX_STRIDE}th starts */
+  private static final class SpoolOutputStream extends FilterOutputStream {
+    private long lines;
+    private long bytes;
+    private long[] index = new long[16];
+    private int indexSize = 1;
+
+    private SpoolOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      advance((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      for (int i = off; i < off + len; i++) {
+        advance(b[i]);
+      }
+    }
+
+    private void advance(byte b) {
+      bytes++;
+      if (b == '\n') {
+        lines++;
+        if (lines % INDEX_STRIDE == 0) {
+          if (indexSize == index.length) {
+            index = Arrays.copyOf(index, indexSize * 2);
+          }
+          index[indexSize++] = bytes;
+        }
+      }
+    }
+
+    private long[] index() {
+      return Arrays.copyOf(index, indexSize);
+    }
+  }
+}
@@ -0,0 +1,233 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service;
+
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.stereotype.Service;
+
+/**
+ * TTL cache for read-side ClickHouse query results, keyed by query name and time range.
+ *
+ * <p>Concurrent misses for the same key are coalesced into a single load, and entries that keep
+ * getting hit are reloaded in the background shortly before they expire so hot dashboards never
+ * see a cold miss.
+ */
+@Service
+public class QueryResultCache {
+
+  private static final Logger logger = LoggerFactory.getLogger(QueryResultCache.class);
+
+  @FunctionalInterface
+  public interface Loader<T> {
+    T load() throws SQLException;
+  }
+
+  @Autowired
+  @Qualifier("cacheRefreshExecutor")
+  private Executor refreshExecutor;
+
+  @Value("${analytics.cache.enabled:true}")
+  private boolean enabled;
+
+  @Value("${analytics.cache.ttl.1h:10}")
+  private long ttlSeconds1h;
+
+  @Value("${analytics.cache.ttl.24h:60}")
+  private long ttlSeconds24h;
+
+  @Value("${analytics.cache.ttl.7d:300}")
+  private long ttlSeconds7d;
+
+  @Value("${analytics.cache.ttl.30d:900}")
+  private long ttlSeconds30d;
+
+  @Value("${analytics.cache.refresh-ahead-ratio:0.8}")
+  private double refreshAheadRatio;
+
+  @Value("${analytics.cache.refresh-ahead-min-hits:3}")
+  private int refreshAheadMinHits;
+
+  private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, InFlight> inFlight = new ConcurrentHashMap<>();
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder coalesced = new LongAdder();
+  private final LongAdder loads = new LongAdder();
+  private final LongAdder loadFailures = new LongAdder();
+  private final LongAdder refreshes = new LongAdder();
+  private final LongAdder loadNanos = new LongAdder();
+
+  /** Return the cached result for the query, loading it at most once across concurrent callers */
+  @SuppressWarnings("unchecked")
+  public <T> T get(String query, String timeRange, Loader<T> loader) throws SQLException {
+    if (!enabled) {
+      return loader.load();
+    }
+
+    String key = query + ":" + timeRange;
+    long now = System.nanoTime();
+    Entry entry = entries.get(key);
+
+    if (entry != null && !entry.isExpired(now)) {
+      hits.increment();
+      if (entry.hits.incrementAndGet() >= refreshAheadMinHits
+          && entry.age(now) >= (long) (entry.ttlNanos * refreshAheadRatio)) {
+        scheduleRefresh(key, timeRange, entry, loader);
+      }
+      return (T) entry.value;
+    }
+
+    misses.increment();
+    return (T) load(key, timeRange, loader).value;
+  }
+
+  /** Drop every cached result, e.g. after a schema change */
+  public void invalidateAll() {
+    entries.clear();
+  }
+
+  public Map<String, Object> getStats() {
+    long loadCount = loads.sum();
+    long hitCount = hits.sum();
+    long missCount = misses.sum();
+
+    Map<String, Object> stats = new LinkedHashMap<>();
+    stats.put("enabled", enabled);
+    stats.put("entries", entries.size());
+    stats.put("hits", hitCount);
+    stats.put("misses", missCount);
+    stats.put(
+        "hit_ratio",
+        hitCount + missCount == 0 ? 0.0 : (double) hitCount / (hitCount + missCount));
+    stats.put("coalesced_misses", coalesced.sum());
+    stats.put("loads", loadCount);
+    stats.put("load_failures", loadFailures.sum());
+    stats.put("refresh_ahead_loads", refreshes.sum());
+    stats.put("total_load_time_ms", TimeUnit.NANOSECONDS.toMillis(loadNanos.sum()));
+    stats.put(
+        "avg_load_time_ms",
+        loadCount == 0 ? 0.0 : loadNanos.sum() / 1_000_000.0 / loadCount);
+    stats.put("queries_saved", hitCount + coalesced.sum());
+    return stats;
+  }
+
+  long ttlNanosFor(String timeRange) {
+    long seconds =
+        switch (timeRange) {
+          case "1h" -> ttlSeconds1h;
+          case "7d" -> ttlSeconds7d;
+          case "30d" -> ttlSeconds30d;
+          default -> ttlSeconds24h;
+        };
+    return TimeUnit.SECONDS.toNanos(seconds);
+  }
+
+  private Entry load(String key, String timeRange, Loader<?> loader) throws SQLException {
+    InFlight mine = new InFlight();
+    InFlight existing = inFlight.putIfAbsent(key, mine);
+
+    if (existing != null) {
+      coalesced.increment();
+      existing.waiters.incrementAndGet();
+      return await(existing.future);
+    }
+
+    long start = System.nanoTime();
+    try {
+      // Cancelling the loading request must not fail the requests coalesced onto its load
+      Object value = QueryScope.whileShared(() -> mine.waiters.get() == 0, loader);
+      long end = System.nanoTime();
+      Entry entry = new Entry(value, end, ttlNanosFor(timeRange));
+      entries.put(key, entry);
+      loads.increment();
+      loadNanos.add(end - start);
+      mine.future.complete(entry);
+      return entry;
+    } catch (SQLException | RuntimeException e) {
+      loadFailures.increment();
+      mine.future.completeExceptionally(e);
+      throw e;
+    } finally {
+      inFlight.remove(key, mine);
+    }
+  }
+
+  private void scheduleRefresh(String key, String timeRange, Entry entry, Loader<?> loader) {
+    if (!entry.refreshing.compareAndSet(false, true)) {
+      return;
+    }
+
+    try {
+      refreshExecutor.execute(
+          () -> {
+            try {
+              load(key, timeRange, loader);
+              refreshes.increment();
+            } catch (Exception e) {
+              logger.warn("Refresh-ahead failed for {}: {}", key, e.getMessage());
+              entry.refreshing.set(false);
+            }
+          });
+    } catch (TaskRejectedException e) {
+      logger.debug("Refresh-ahead for {} rejected, executor saturated", key);
+      entry.refreshing.set(false);
+    }
+  }
+
+  private Entry await(CompletableFuture<Entry> future) throws SQLException {
+    try {
+      return future.join();
+    } catch (CompletionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof SQLException sqlException) {
+        throw sqlException;
+      }
+      if (cause instanceof RuntimeException runtimeException) {
+        throw runtimeException;
+      }
+      throw e;
+    }
+  }
+
+  private static final class InFlight {
+    private final CompletableFuture<Entry> future = new CompletableFuture<>();
+    private final AtomicInteger waiters = new AtomicInteger();
+  }
+
+  private static final class Entry {
+    private final Object value;
+    private final long loadedAtNanos;
+    private final long ttlNanos;
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+
+    private Entry(Object value, long loadedAtNanos, long ttlNanos) {
+      this.value = value;
+      this.loadedAtNanos = loadedAtNanos;
+      this.ttlNanos = ttlNanos;
+    }
+
+    private long age(long now) {
+      return now - loadedAtNanos;
+    }
+
+    private boolean isExpired(long now) {
+      return age(now) >= ttlNanos;
+    }
+  }
+}
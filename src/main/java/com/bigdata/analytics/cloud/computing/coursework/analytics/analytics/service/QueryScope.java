@@ -0,0 +1,118 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service;
+
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BooleanSupplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Deadline and cancellation handle for the ClickHouse queries run on behalf of one HTTP request.
+ *
+ * <p>While {@link #call} runs, {@link ClickHouseService} passes the remaining time to ClickHouse
+ * as {@code max_execution_time}, tags each query with the scope id, and registers its statement
+ * here. {@link #cancel} kills whatever is still running, e.g. when the client has gone away.
+ * Statements belonging to a load that other requests are also waiting on are left alone.
+ */
+public final class QueryScope {
+
+  private static final Logger logger = LoggerFactory.getLogger(QueryScope.class);
+
+  private static final ThreadLocal<QueryScope> CURRENT = new ThreadLocal<>();
+  private static final ThreadLocal<BooleanSupplier> CANCELLABLE = new ThreadLocal<>();
+
+  private final String id;
+  private final String endpoint;
+  private final long deadlineNanos;
+  private final Map<Statement, BooleanSupplier> statements = new ConcurrentHashMap<>();
+  private volatile boolean cancelled;
+
+  private QueryScope(String endpoint, Duration timeout) {
+    this.id = UUID.randomUUID().toString();
+    this.endpoint = endpoint;
+    this.deadlineNanos = System.nanoTime() + timeout.toNanos();
+  }
+
+  public static QueryScope open(String endpoint, Duration timeout) {
+    return new QueryScope(endpoint, timeout);
+  }
+
+  /** The scope bound to the calling thread, or null outside a request */
+  static QueryScope current() {
+    return CURRENT.get();
+  }
+
+  /** Run {@code work} with this scope bound to the calling thread */
+  public <T> T call(Callable<T> work) throws Exception {
+    QueryScope previous = CURRENT.get();
+    CURRENT.set(this);
+    try {
+      return work.call();
+    } finally {
+      CURRENT.set(previous);
+    }
+  }
+
+  /**
+   * Run a load whose result is shared with other callers. Its statements are only cancelled
+   * while {@code cancellable} holds, i.e. while nobody else is waiting for the result.
+   */
+  static <T> T whileShared(BooleanSupplier cancellable, QueryResultCache.Loader<T> loader)
+      throws SQLException {
+    BooleanSupplier previous = CANCELLABLE.get();
+    CANCELLABLE.set(cancellable);
+    try {
+      return loader.load();
+    } finally {
+      CANCELLABLE.set(previous);
+    }
+  }
+
+  String tag() {
+    return endpoint + ":" + id;
+  }
+
+  /** Whole seconds left before the deadline, rounded up */
+  int remainingSeconds() throws SQLTimeoutException {
+    long remaining = deadlineNanos - System.nanoTime();
+    if (cancelled || remaining <= 0) {
+      throw new SQLTimeoutException("Query deadline for " + endpoint + " has passed");
+    }
+    return (int) Math.max(1, (remaining + 999_999_999L) / 1_000_000_000L);
+  }
+
+  void register(Statement statement) throws SQLException {
+    BooleanSupplier cancellable = CANCELLABLE.get();
+    statements.put(statement, cancellable == null ? () -> true : cancellable);
+    if (cancelled) {
+      statement.cancel();
+    }
+  }
+
+  void unregister(Statement statement) {
+    statements.remove(statement);
+  }
+
+  /** Kill every query of this scope that is still running and refuse new ones */
+  public void cancel(String reason) {
+    cancelled = true;
+    statements.forEach(
+        (statement, cancellable) -> {
+          if (!cancellable.getAsBoolean()) {
+            return;
+          }
+          try {
+            statement.cancel();
+            logger.info("Cancelled query of {} ({})", tag(), reason);
+          } catch (SQLException e) {
+            logger.warn("Failed to cancel query of {}: {}", tag(), e.getMessage());
+          }
+        });
+  }
+}
@@ -0,0 +1,346 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service;
+
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto.RealtimeMetricsRow;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.model.PageViewEvent;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.sketch.HyperLogLog;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.sketch.MinuteRing;
+import jakarta.annotation.PostConstruct;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+/**
+ * In-process replacement for the last-hour scalar subqueries behind {@code /analytics/realtime}.
+ *
+ * <p>Ingested events are counted into a ring of one-minute buckets, each holding plain counters
+ * plus HyperLogLog sketches for sessions and users. Every pod publishes its current and previous
+ * minute to a small ClickHouse table every {@code publish-interval-ms}, so a read on any pod sees
+ * the traffic of all of them. Closed minutes of all pods are merged once per minute; a read only
+ * adds the two open minutes on top, and the result is reused for a publish interval. Buckets are
+ * keyed by ingest time rather than the client-supplied event timestamp.
+ */
+@Service
+public class RealtimeMetricsAggregator {
+
+  private static final Logger logger = LoggerFactory.getLogger(RealtimeMetricsAggregator.class);
+
+  static final int WINDOW_MINUTES = 60;
+
+  /** The current minute and the one before it, which pods may still be publishing */
+  static final int OPEN_MINUTES = 2;
+
+  static final String TABLE = "default.realtime_minutes";
+
+  @Autowired private Connection clickHouseConnection;
+
+  @Autowired private ClusterLease clusterLease;
+
+  @Value("${analytics.realtime.in-memory.enabled:true}")
+  private boolean enabled;
+
+  @Value("${analytics.realtime.hll-precision:12}")
+  private int hllPrecision;
+
+  @Value("${analytics.realtime.publish-interval-ms:5000}")
+  private long publishIntervalMs;
+
+  private MinuteRing<Bucket> ring;
+  private volatile boolean tableReady;
+  private volatile ClosedMinutes closedMinutes;
+  private volatile Snapshot snapshot;
+
+  @PostConstruct
+  void init() {
+    ring = new MinuteRing<>(WINDOW_MINUTES, () -> new Bucket(hllPrecision));
+  }
+
+  public void recordPageViews(List<PageViewEvent> events) {
+    recordPageViews(events, System.currentTimeMillis());
+  }
+
+  void recordPageViews(List<PageViewEvent> events, long nowMillis) {
+    if (!enabled || events.isEmpty()) {
+      return;
+    }
+    synchronized (ring) {
+      Bucket bucket = ring.bucket(toMinute(nowMillis));
+      bucket.pageViews += events.size();
+      for (PageViewEvent event : events) {
+        bucket.sessions.offer(event.getSessionId());
+        bucket.users.offer(event.getUserId());
+      }
+    }
+  }
+
+  public void recordClicks(int count) {
+    recordClicks(count, System.currentTimeMillis());
+  }
+
+  void recordClicks(int count, long nowMillis) {
+    if (!enabled || count == 0) {
+      return;
+    }
+    synchronized (ring) {
+      ring.bucket(toMinute(nowMillis)).clicks += count;
+    }
+  }
+
+  public void recordScrolls(int count) {
+    recordScrolls(count, System.currentTimeMillis());
+  }
+
+  void recordScrolls(int count, long nowMillis) {
+    if (!enabled || count == 0) {
+      return;
+    }
+    synchronized (ring) {
+      ring.bucket(toMinute(nowMillis)).scrolls += count;
+    }
+  }
+
+  /**
+   * Last-hour metrics of all pods in the same shape as {@code ClickHouseService.getRealtimeMetrics},
+   * or empty until published minutes cover a whole window and callers should fall back to
+   * ClickHouse.
+   */
+  public Optional<RealtimeMetricsRow> getRealtimeMetrics() throws SQLException {
+    return getRealtimeMetrics(System.currentTimeMillis());
+  }
+
+  Optional<RealtimeMetricsRow> getRealtimeMetrics(long nowMillis) throws SQLException {
+    if (!enabled) {
+      return Optional.empty();
+    }
+    Snapshot current = currentSnapshot(nowMillis);
+    return current.warm ? Optional.of(current.totals.toMetrics()) : Optional.empty();
+  }
+
+  /** Write this pod's open minutes to the shared table, replacing what it published before */
+  @Scheduled(
+      initialDelayString = "${analytics.realtime.publish-interval-ms:5000}",
+      fixedDelayString = "${analytics.realtime.publish-interval-ms:5000}")
+  public void publish() {
+    if (!enabled) {
+      return;
+    }
+    try {
+      publish(System.currentTimeMillis());
+    } catch (SQLException e) {
+      logger.warn("Failed to publish realtime minutes, peers will undercount this pod", e);
+    }
+  }
+
+  void publish(long nowMillis) throws SQLException {
+    ensureTable();
+
+    long minute = toMinute(nowMillis);
+    List<Bucket> open = new ArrayList<>(OPEN_MINUTES);
+    synchronized (ring) {
+      // Also publishes empty minutes, which show that a pod was up and had nothing to count
+      for (long m = minute - OPEN_MINUTES + 1; m <= minute; m++) {
+        open.add(ring.bucket(m).copy());
+      }
+    }
+
+    try (PreparedStatement stmt =
+        clickHouseConnection.prepareStatement(
+            "INSERT INTO %s (minute, pod, version, page_views, clicks, scrolls, sessions, users)"
+                    .formatted(TABLE)
+                + " VALUES (?, ?, ?, ?, ?, ?, ?, ?)")) {
+      for (int i = 0; i < open.size(); i++) {
+        Bucket bucket = open.get(i);
+        stmt.setLong(1, minute - OPEN_MINUTES + 1 + i);
+        stmt.setString(2, clusterLease.getOwner());
+        stmt.setLong(3, nowMillis);
+        stmt.setLong(4, bucket.pageViews);
+        stmt.setLong(5, bucket.clicks);
+        stmt.setLong(6, bucket.scrolls);
+        stmt.setString(7, Base64.getEncoder().encodeToString(bucket.sessions.toBytes()));
+        stmt.setString(8, Base64.getEncoder().encodeToString(bucket.users.toBytes()));
+        stmt.addBatch();
+      }
+      stmt.executeBatch();
+    }
+  }
+
+  /**
+   * The window as of {@code nowMillis}: closed minutes of all pods, the open minutes other pods
+   * last published, and this pod's open minutes as they are now.
+   */
+  private Snapshot currentSnapshot(long nowMillis) throws SQLException {
+    Snapshot cached = snapshot;
+    if (cached != null && nowMillis - cached.takenAtMillis < publishIntervalMs) {
+      return cached;
+    }
+    synchronized (this) {
+      cached = snapshot;
+      if (cached != null && nowMillis - cached.takenAtMillis < publishIntervalMs) {
+        return cached;
+      }
+
+      long minute = toMinute(nowMillis);
+      ClosedMinutes closed = closedMinutes(minute);
+      Bucket totals = closed.totals.copy();
+      readPublished(totals, minute - OPEN_MINUTES + 1, minute, clusterLease.getOwner());
+      synchronized (ring) {
+        ring.forEachInWindow(minute, OPEN_MINUTES, totals::add);
+      }
+
+      Snapshot fresh = new Snapshot(nowMillis, closed.oldestMinute <= windowStart(minute), totals);
+      snapshot = fresh;
+      return fresh;
+    }
+  }
+
+  /** Closed minutes of the window ending at {@code minute}, read and merged once per minute */
+  private ClosedMinutes closedMinutes(long minute) throws SQLException {
+    ClosedMinutes cached = closedMinutes;
+    if (cached != null && cached.minute == minute) {
+      return cached;
+    }
+    Bucket totals = new Bucket(hllPrecision);
+    long oldest = readPublished(totals, windowStart(minute), minute - OPEN_MINUTES, null);
+    ClosedMinutes fresh = new ClosedMinutes(minute, oldest, totals);
+    closedMinutes = fresh;
+    return fresh;
+  }
+
+  /**
+   * Add the latest published version of each pod's minutes from {@code from} to {@code to} to
+   * {@code totals}, leaving out {@code excludedPod}; returns the oldest minute found.
+   */
+  private long readPublished(Bucket totals, long from, long to, String excludedPod)
+      throws SQLException {
+    ensureTable();
+
+    String sql =
+        """
+            SELECT minute,
+                   argMax(page_views, version) AS page_views,
+                   argMax(clicks, version) AS clicks,
+                   argMax(scrolls, version) AS scrolls,
+                   argMax(sessions, version) AS sessions,
+                   argMax(users, version) AS users
+            FROM %s
+            WHERE minute >= ? AND minute <= ?%s
+            GROUP BY minute, pod
+           \s"""
+            .formatted(TABLE, excludedPod == null ? "" : " AND pod != ?");
+    long oldest = Long.MAX_VALUE;
+    try (PreparedStatement stmt = clickHouseConnection.prepareStatement(sql)) {
+      stmt.setLong(1, from);
+      stmt.setLong(2, to);
+      if (excludedPod != null) {
+        stmt.setString(3, excludedPod);
+      }
+      try (ResultSet rs = stmt.executeQuery()) {
+        while (rs.next()) {
+          oldest = Math.min(oldest, rs.getLong("minute"));
+          totals.pageViews += rs.getLong("page_views");
+          totals.clicks += rs.getLong("clicks");
+          totals.scrolls += rs.getLong("scrolls");
+          totals.sessions.merge(decodeSketch(rs.getString("sessions")));
+          totals.users.merge(decodeSketch(rs.getString("users")));
+        }
+      }
+    }
+    return oldest;
+  }
+
+  private void ensureTable() throws SQLException {
+    if (tableReady) {
+      return;
+    }
+    try (Statement stmt = clickHouseConnection.createStatement()) {
+      stmt.execute(
+          """
+              CREATE TABLE IF NOT EXISTS %s (
+                  minute UInt64,
+                  pod String,
+                  version UInt64,
+                  page_views UInt64,
+                  clicks UInt64,
+                  scrolls UInt64,
+                  sessions String,
+                  users String
+              ) ENGINE = ReplacingMergeTree(version)
+              ORDER BY (minute, pod)
+              TTL toDateTime(minute * 60) + INTERVAL 2 HOUR
+             \s"""
+              .formatted(TABLE));
+    }
+    tableReady = true;
+  }
+
+  private static long windowStart(long minute) {
+    return minute - WINDOW_MINUTES + 1;
+  }
+
+  private static long toMinute(long epochMillis) {
+    return TimeUnit.MILLISECONDS.toMinutes(epochMillis);
+  }
+
+  private static HyperLogLog decodeSketch(String encoded) {
+    if (encoded == null || encoded.isEmpty()) {
+      throw new IllegalArgumentException("Published minute is missing a sketch");
+    }
+    return HyperLogLog.fromBytes(Base64.getDecoder().decode(encoded));
+  }
+
+  private static final class Bucket {
+    private long pageViews;
+    private long clicks;
+    private long scrolls;
+    private final HyperLogLog sessions;
+    private final HyperLogLog users;
+
+    private Bucket(int precision) {
+      this(new HyperLogLog(precision), new HyperLogLog(precision));
+    }
+
+    private Bucket(HyperLogLog sessions, HyperLogLog users) {
+      this.sessions = sessions;
+      this.users = users;
+    }
+
+    private Bucket copy() {
+      Bucket copy = new Bucket(sessions.copy(), users.copy());
+      copy.pageViews = pageViews;
+      copy.clicks = clicks;
+      copy.scrolls = scrolls;
+      return copy;
+    }
+
+    private void add(Bucket other) {
+      pageViews += other.pageViews;
+      clicks += other.clicks;
+      scrolls += other.scrolls;
+      sessions.merge(other.sessions);
+      users.merge(other.users);
+    }
+
+    private RealtimeMetricsRow toMetrics() {
+      return new RealtimeMetricsRow(
+          pageViews, clicks, scrolls, sessions.estimate(), users.estimate());
+    }
+  }
+
+  /** Merged closed minutes of all pods for the window ending at {@code minute} */
+  private record ClosedMinutes(long minute, long oldestMinute, Bucket totals) {}
+
+  /** Warm once some pod published the first minute of the window */
+  private record Snapshot(long takenAtMillis, boolean warm, Bucket totals) {}
+}
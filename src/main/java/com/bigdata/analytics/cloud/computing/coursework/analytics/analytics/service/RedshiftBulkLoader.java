@@ -0,0 +1,164 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service;
+
+import com.opencsv.CSVWriter;
+import com.opencsv.ICSVWriter;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
+
+/**
+ * Writes rows into a Redshift or PostgreSQL table, in chunks of at most {@code batchSize} rows.
+ *
+ * <p>Against a real PostgreSQL server each chunk is rendered as CSV and streamed through {@code
+ * COPY ... FROM STDIN}, the server's bulk path. Otherwise each chunk becomes one multi-row {@code
+ * INSERT ... VALUES}, capped so that it stays within the protocol's bind parameter limit. That
+ * includes Redshift reached through the PostgreSQL driver, as regular cluster endpoints are:
+ * Redshift only copies from S3 and rejects {@code FROM STDIN}. The caller owns the transaction.
+ */
+public class RedshiftBulkLoader {
+
+  /** Bind parameters one statement may carry: the wire protocol counts them in a signed short */
+  static final int MAX_BIND_PARAMETERS = 32_767;
+
+  public enum Mode {
+    /** COPY on a PostgreSQL server, multi-row INSERT elsewhere, including on Redshift */
+    AUTO,
+    COPY,
+    INSERT
+  }
+
+  private final Mode mode;
+  private final int batchSize;
+
+  /** Whether the server accepts COPY FROM STDIN; a loader only ever talks to one server */
+  private volatile Boolean copySupported;
+
+  public RedshiftBulkLoader(Mode mode, int batchSize) {
+    this.mode = mode;
+    this.batchSize = batchSize;
+  }
+
+  /**
+   * Load {@code rows}, each holding one value per entry of {@code columns}.
+   *
+   * @return the mode that was used
+   */
+  public Mode load(Connection connection, String table, List<String> columns, List<Object[]> rows)
+      throws SQLException {
+    Mode effective = effectiveMode(connection);
+    int chunkSize =
+        effective == Mode.COPY
+            ? batchSize
+            : Math.max(1, Math.min(batchSize, MAX_BIND_PARAMETERS / columns.size()));
+    for (int start = 0; start < rows.size(); start += chunkSize) {
+      List<Object[]> chunk = rows.subList(start, Math.min(rows.size(), start + chunkSize));
+      if (effective == Mode.COPY) {
+        copy(connection, table, columns, chunk);
+      } else {
+        insert(connection, table, columns, chunk);
+      }
+    }
+    return effective;
+  }
+
+  Mode effectiveMode(Connection connection) throws SQLException {
+    return switch (mode) {
+      case AUTO -> copySupported(connection) ? Mode.COPY : Mode.INSERT;
+      case COPY -> {
+        if (!copySupported(connection)) {
+          throw new SQLException("COPY FROM STDIN needs the PostgreSQL driver and server");
+        }
+        yield Mode.COPY;
+      }
+      case INSERT -> Mode.INSERT;
+    };
+  }
+
+  /**
+   * The PostgreSQL driver alone is not enough: regular Redshift clusters are reached through it
+   * too, and report a PostgreSQL 8.0 {@code server_version}. Only {@code version()} names Redshift.
+   */
+  private boolean copySupported(Connection connection) throws SQLException {
+    Boolean supported = copySupported;
+    if (supported == null) {
+      supported = connection.isWrapperFor(PGConnection.class) && isPostgresServer(connection);
+      copySupported = supported;
+    }
+    return supported;
+  }
+
+  private static boolean isPostgresServer(Connection connection) throws SQLException {
+    try (Statement stmt = connection.createStatement();
+        ResultSet rs = stmt.executeQuery("SELECT version()")) {
+      String version = rs.next() ? rs.getString(1) : null;
+      return version != null
+          && version.startsWith("PostgreSQL")
+          && !version.toLowerCase(Locale.ROOT).contains("redshift");
+    }
+  }
+
+  private void copy(Connection connection, String table, List<String> columns, List<Object[]> rows)
+      throws SQLException {
+    // Quoting every value keeps '' apart from NULL, which is written as a bare empty field
+    StringWriter csv = new StringWriter(rows.size() * 256);
+    try (CSVWriter writer =
+        new CSVWriter(
+            csv,
+            ICSVWriter.DEFAULT_SEPARATOR,
+            ICSVWriter.DEFAULT_QUOTE_CHARACTER,
+            ICSVWriter.DEFAULT_ESCAPE_CHARACTER,
+            "\n")) {
+      String[] line = new String[columns.size()];
+      for (Object[] row : rows) {
+        for (int i = 0; i < line.length; i++) {
+          line[i] = row[i] == null ? null : row[i].toString();
+        }
+        writer.writeNext(line, true);
+      }
+    } catch (IOException e) {
+      throw new SQLException("Failed to render COPY data for " + table, e);
+    }
+
+    String sql =
+        "COPY %s (%s) FROM STDIN WITH (FORMAT csv)".formatted(table, String.join(", ", columns));
+    try {
+      CopyManager copyManager = connection.unwrap(PGConnection.class).getCopyAPI();
+      copyManager.copyIn(sql, new StringReader(csv.toString()));
+    } catch (IOException e) {
+      throw new SQLException("COPY into " + table + " failed", e);
+    }
+  }
+
+  private void insert(
+      Connection connection, String table, List<String> columns, List<Object[]> rows)
+      throws SQLException {
+    String rowPlaceholders =
+        "(" + String.join(", ", Collections.nCopies(columns.size(), "?")) + ")";
+    String sql =
+        "INSERT INTO %s (%s) VALUES %s"
+            .formatted(
+                table,
+                String.join(", ", columns),
+                String.join(", ", Collections.nCopies(rows.size(), rowPlaceholders)));
+
+    try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+      int parameter = 1;
+      for (Object[] row : rows) {
+        for (Object value : row) {
+          stmt.setObject(parameter++, value);
+        }
+      }
+      stmt.executeUpdate();
+    }
+  }
+}
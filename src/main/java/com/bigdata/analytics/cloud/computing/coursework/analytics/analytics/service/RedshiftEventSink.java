@@ -0,0 +1,33 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service;
+
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.model.ClickEvent;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.model.PageViewEvent;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.model.ScrollEvent;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.model.SessionEvent;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+/** Hands batches to {@link RedshiftReplicationBuffer}, which batches them further per table */
+@Service
+@ConditionalOnProperty(name = "aws.redshift.enabled", havingValue = "true", matchIfMissing = false)
+public class RedshiftEventSink implements EventSink {
+
+  @Autowired private RedshiftReplicationBuffer redshiftReplicationBuffer;
+
+  @Override
+  public String name() {
+    return "redshift";
+  }
+
+  @Override
+  public void write(EventBatch batch) {
+    switch (batch.kind()) {
+      case PAGE_VIEWS ->
+          redshiftReplicationBuffer.addPageViews(batch.eventsAs(PageViewEvent.class));
+      case CLICKS -> redshiftReplicationBuffer.addClicks(batch.eventsAs(ClickEvent.class));
+      case SCROLLS -> redshiftReplicationBuffer.addScrolls(batch.eventsAs(ScrollEvent.class));
+      case SESSIONS -> redshiftReplicationBuffer.addSessions(batch.eventsAs(SessionEvent.class));
+    }
+  }
+}
@@ -0,0 +1,433 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service;
+
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto.HourDigest;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+/**
+ * Finds and repairs drift between ClickHouse and Redshift. Replication to Redshift is best effort,
+ * so events it gave up on would otherwise be missing from Redshift for good.
+ *
+ * <p>Each run compares the row count and checksum of every closed hour of the four event tables,
+ * one grouped query per store and table. An hour that differs is read from ClickHouse into a local
+ * spool file, loaded from there into a Redshift staging table in batches of {@code batch-rows},
+ * and swapped in for the hour's rows in one transaction, then compared once more. A checkpoint file
+ * records per table the first hour not yet verified; {@link #recheckFrom} moves it back for hours
+ * that were written to ClickHouse alone. An hour that cannot be repaired stops that table until the
+ * next run.
+ *
+ * <p>Runs are scheduled on every replica, but only the one holding the {@link ClusterLease} does
+ * any work. The repair yields to live replication. It waits while the replication buffer is
+ * further behind than {@code pause-above-lag-ms}, and loads at most {@code max-rows-per-second},
+ * on its own thread and connections from the shared Redshift pool.
+ */
+@Service
+@ConditionalOnProperty(
+    name = {"aws.redshift.enabled", "aws.redshift.reconcile.enabled"},
+    havingValue = "true")
+public class RedshiftReconciler {
+
+  private static final Logger logger = LoggerFactory.getLogger(RedshiftReconciler.class);
+
+  static final List<String> TABLES =
+      Arrays.stream(EventBatch.Kind.values()).map(EventBatch.Kind::table).toList();
+
+  private static final HourDigest EMPTY = new HourDigest(0, 0);
+
+  static final String LEASE = "redshift-reconcile";
+
+  /** Checkpoint key prefix for hours to verify again, see {@link #recheckFrom} */
+  private static final String RECHECK = "recheck.";
+
+  @Autowired private ClickHouseService clickHouseService;
+
+  @Autowired private RedshiftService redshiftService;
+
+  @Autowired private RedshiftReplicationBuffer replicationBuffer;
+
+  @Autowired private ClusterLease clusterLease;
+
+  @Value("${aws.redshift.reconcile.dir:${java.io.tmpdir}/redshift-reconcile}")
+  private Path stateDir;
+
+  @Value("${aws.redshift.reconcile.zone:UTC}")
+  private ZoneId zone;
+
+  @Value("${aws.redshift.reconcile.interval-ms:600000}")
+  private long intervalMs;
+
+  @Value("${aws.redshift.reconcile.initial-delay-ms:120000}")
+  private long initialDelayMs;
+
+  @Value("${aws.redshift.reconcile.lag-minutes:120}")
+  private long lagMinutes;
+
+  @Value("${aws.redshift.reconcile.initial-hours:168}")
+  private long initialHours;
+
+  @Value("${aws.redshift.reconcile.max-hours-per-run:48}")
+  private int maxHoursPerRun;
+
+  @Value("${aws.redshift.reconcile.batch-rows:10000}")
+  private int batchRows;
+
+  @Value("${aws.redshift.reconcile.max-rows-per-second:20000}")
+  private long maxRowsPerSecond;
+
+  @Value("${aws.redshift.reconcile.pause-above-lag-ms:60000}")
+  private long pauseAboveLagMs;
+
+  @Value("${aws.redshift.reconcile.query-timeout-seconds:1800}")
+  private long queryTimeoutSeconds;
+
+  /** How long the lease lasts without being extended; it is extended before every hour */
+  @Value("${aws.redshift.reconcile.lease-term:PT1H}")
+  private Duration leaseTerm;
+
+  private Path checkpointFile;
+  private final Properties checkpoint = new Properties();
+
+  private ScheduledExecutorService scheduler;
+
+  private final LongAdder checkedHours = new LongAdder();
+  private final LongAdder divergentHours = new LongAdder();
+  private final LongAdder repairedHours = new LongAdder();
+  private final LongAdder deletedRows = new LongAdder();
+  private final LongAdder reloadedRows = new LongAdder();
+  private final LongAdder pausedMillis = new LongAdder();
+  private final LongAdder failures = new LongAdder();
+  private volatile Instant lastRunAt;
+  private volatile String lastError;
+
+  @PostConstruct
+  void init() throws IOException {
+    Files.createDirectories(stateDir);
+    checkpointFile = stateDir.resolve("checkpoint.properties");
+    if (Files.exists(checkpointFile)) {
+      try (Reader reader = Files.newBufferedReader(checkpointFile)) {
+        checkpoint.load(reader);
+      }
+      logger.info("Resuming Redshift reconciliation from checkpoint {}", checkpoint);
+    }
+
+    scheduler =
+        Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+              Thread thread = new Thread(runnable, "RedshiftReconcile");
+              thread.setDaemon(true);
+              return thread;
+            });
+    scheduler.scheduleWithFixedDelay(
+        this::reconcile, initialDelayMs, intervalMs, TimeUnit.MILLISECONDS);
+  }
+
+  @PreDestroy
+  void shutdown() {
+    // An hour cut off mid-repair is left unverified and repaired again on the next start
+    scheduler.shutdownNow();
+  }
+
+  /** Queue a run now, behind any that is already going */
+  public void runNow() {
+    scheduler.execute(this::reconcile);
+  }
+
+  void reconcile() {
+    if (!holdLease()) {
+      logger.debug("Another pod is reconciling Redshift");
+      return;
+    }
+    try {
+      reconcileTables();
+    } finally {
+      clusterLease.release(LEASE);
+    }
+  }
+
+  private void reconcileTables() {
+    lastRunAt = Instant.now();
+    LocalDateTime firstOpenHour =
+        LocalDateTime.now(zone).minusMinutes(lagMinutes).truncatedTo(ChronoUnit.HOURS);
+
+    for (String table : TABLES) {
+      if (!holdLease()) {
+        return;
+      }
+      try {
+        LocalDateTime from = nextHour(table, firstOpenHour);
+        LocalDateTime to = from.plusHours(maxHoursPerRun);
+        if (to.isAfter(firstOpenHour)) {
+          to = firstOpenHour;
+        }
+        if (!from.isBefore(to)) {
+          continue;
+        }
+        reconcile(table, from, to);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      } catch (Exception e) {
+        // Left at the failed hour; the next run tries it again
+        failures.increment();
+        lastError = table + ": " + e.getMessage();
+        logger.error("Reconciliation of {} failed", table, e);
+      }
+    }
+  }
+
+  private void reconcile(String table, LocalDateTime from, LocalDateTime to) throws Exception {
+    yieldToIngest();
+    Map<Long, HourDigest> source =
+        inQueryScope(() -> clickHouseService.getHourlyDigests(table, from, to));
+    Map<Long, HourDigest> target = redshiftService.getHourlyDigests(table, from, to);
+
+    for (LocalDateTime hour = from; hour.isBefore(to); hour = hour.plusHours(1)) {
+      if (!holdLease()) {
+        throw new IllegalStateException("lost the reconcile lease to another pod");
+      }
+      long key = hour.toEpochSecond(ZoneOffset.UTC);
+      HourDigest expected = source.getOrDefault(key, EMPTY);
+      HourDigest actual = target.getOrDefault(key, EMPTY);
+      checkedHours.increment();
+
+      if (!expected.equals(actual)) {
+        divergentHours.increment();
+        logger.warn(
+            "{} hour {} differs: ClickHouse {} rows, Redshift {} rows; repairing",
+            table,
+            hour,
+            expected.rows(),
+            actual.rows());
+        repair(table, hour);
+      }
+      saveCheckpoint(table, hour.plusHours(1));
+    }
+  }
+
+  /** Replace one hour in Redshift with what ClickHouse holds, then check that they now agree */
+  private void repair(String table, LocalDateTime hour) throws Exception {
+    LocalDateTime end = hour.plusHours(1);
+    Path spool = stateDir.resolve("repair-" + table + ".bin");
+    long loaded = 0;
+    try {
+      // The whole hour is read before Redshift is touched, so the scan never waits on a load
+      long rows = spoolHour(table, hour, end, spool);
+
+      long startNanos = System.nanoTime();
+      try (RedshiftService.Staging staging = redshiftService.stage(table);
+          ObjectInputStream in =
+              new ObjectInputStream(new BufferedInputStream(Files.newInputStream(spool)))) {
+        List<Object[]> batch = new ArrayList<>(batchRows);
+        for (long i = 0; i < rows; i++) {
+          batch.add((Object[]) in.readObject());
+          if (batch.size() >= batchRows) {
+            loaded += loadBatch(staging, table, batch, startNanos, loaded);
+          }
+        }
+        loaded += loadBatch(staging, table, batch, startNanos, loaded);
+
+        yieldToIngest();
+        deletedRows.add(staging.replaceRange(hour, end));
+        reloadedRows.add(loaded);
+      }
+    } finally {
+      Files.deleteIfExists(spool);
+    }
+
+    long key = hour.toEpochSecond(ZoneOffset.UTC);
+    HourDigest expected =
+        inQueryScope(() -> clickHouseService.getHourlyDigests(table, hour, end))
+            .getOrDefault(key, EMPTY);
+    HourDigest actual =
+        redshiftService.getHourlyDigests(table, hour, end).getOrDefault(key, EMPTY);
+    if (!expected.equals(actual)) {
+      throw new IllegalStateException(
+          "hour " + hour + " still differs after reloading " + loaded + " rows");
+    }
+    repairedHours.increment();
+    logger.info("Repaired {} hour {}: reloaded {} rows", table, hour, loaded);
+  }
+
+  /** Write one hour of ClickHouse rows to {@code spool}, returning how many there were */
+  private long spoolHour(String table, LocalDateTime hour, LocalDateTime end, Path spool)
+      throws Exception {
+    try (ObjectOutputStream out =
+        new ObjectOutputStream(new BufferedOutputStream(Files.newOutputStream(spool)))) {
+      long[] count = {0};
+      inQueryScope(
+          () ->
+              clickHouseService.streamRows(
+                  table,
+                  RedshiftService.columnsOf(table),
+                  hour,
+                  end,
+                  row -> {
+                    out.writeObject(row);
+                    if (++count[0] % batchRows == 0) {
+                      // Forget written rows, or the stream keeps every one of them reachable
+                      out.reset();
+                    }
+                  }));
+      return count[0];
+    }
+  }
+
+  /** Stage and clear {@code batch}, pacing the repair to {@code max-rows-per-second} */
+  private int loadBatch(
+      RedshiftService.Staging staging,
+      String table,
+      List<Object[]> batch,
+      long startNanos,
+      long loadedBefore)
+      throws IOException, InterruptedException {
+    int size = batch.size();
+    if (size == 0) {
+      return 0;
+    }
+    yieldToIngest();
+    try {
+      staging.load(batch);
+    } catch (SQLException e) {
+      throw new IOException("Staging " + table + " in Redshift failed", e);
+    }
+    batch.clear();
+
+    long dueNanos = TimeUnit.SECONDS.toNanos(loadedBefore + size) / Math.max(1, maxRowsPerSecond);
+    long aheadNanos = dueNanos - (System.nanoTime() - startNanos);
+    if (aheadNanos > 0) {
+      TimeUnit.NANOSECONDS.sleep(aheadNanos);
+    }
+    return size;
+  }
+
+  /** Wait while live replication is behind, so a repair never holds it up further */
+  private void yieldToIngest() throws InterruptedException {
+    while (replicationBuffer.getLagMs() > pauseAboveLagMs) {
+      pausedMillis.add(1000);
+      Thread.sleep(1000);
+    }
+  }
+
+  /** Take or extend the cluster-wide lease, so that only one pod repairs at a time */
+  private boolean holdLease() {
+    try {
+      return clusterLease.tryAcquire(LEASE, leaseTerm);
+    } catch (SQLException e) {
+      logger.warn("Failed to take the reconcile lease, skipping this run: {}", e.getMessage());
+      return false;
+    }
+  }
+
+  private <T> T inQueryScope(Callable<T> query) throws Exception {
+    return QueryScope.open("reconcile", Duration.ofSeconds(queryTimeoutSeconds)).call(query);
+  }
+
+  /**
+   * Verify {@code table} again from the hour of {@code timestamp} on, starting with the next run.
+   * For rows that reached ClickHouse without being replicated, such as a bulk import.
+   */
+  public void recheckFrom(String table, LocalDateTime timestamp) throws IOException {
+    LocalDateTime hour = timestamp.truncatedTo(ChronoUnit.HOURS);
+    synchronized (checkpoint) {
+      String pending = checkpoint.getProperty(RECHECK + table);
+      if (pending != null && !LocalDateTime.parse(pending).isAfter(hour)) {
+        return;
+      }
+      saveCheckpoint(RECHECK + table, hour);
+    }
+  }
+
+  public Map<String, Object> getStatus() {
+    Map<String, Object> status = new LinkedHashMap<>();
+    status.put("last_run_at", lastRunAt);
+    status.put("checked_hours", checkedHours.sum());
+    status.put("divergent_hours", divergentHours.sum());
+    status.put("repaired_hours", repairedHours.sum());
+    status.put("deleted_rows", deletedRows.sum());
+    status.put("reloaded_rows", reloadedRows.sum());
+    status.put("paused_ms", pausedMillis.sum());
+    status.put("failures", failures.sum());
+    status.put("last_error", lastError);
+    Map<String, Object> nextHours = new LinkedHashMap<>();
+    synchronized (checkpoint) {
+      for (String table : TABLES) {
+        nextHours.put(table, checkpoint.getProperty(table));
+      }
+    }
+    status.put("next_hour", nextHours);
+    return status;
+  }
+
+  /** The checkpointed hour, moved back to a pending recheck if there is an earlier one */
+  private LocalDateTime nextHour(String table, LocalDateTime firstOpenHour) throws IOException {
+    synchronized (checkpoint) {
+      String saved = checkpoint.getProperty(table);
+      LocalDateTime next =
+          saved != null ? LocalDateTime.parse(saved) : firstOpenHour.minusHours(initialHours);
+      String pending = (String) checkpoint.remove(RECHECK + table);
+      if (pending == null) {
+        return next;
+      }
+      if (LocalDateTime.parse(pending).isBefore(next)) {
+        next = LocalDateTime.parse(pending);
+        logger.info("Verifying {} again from {}", table, next);
+      }
+      // Saved right away, so that a failure at the first hour does not forget the recheck
+      saveCheckpoint(table, next);
+      return next;
+    }
+  }
+
+  /**
+   * Written to a temporary file and moved over the old one, so a crash never leaves half of it.
+   * Both happen under the lock, as imports add rechecks from their own thread.
+   */
+  private void saveCheckpoint(String key, LocalDateTime nextHour) throws IOException {
+    Path temp = checkpointFile.resolveSibling(checkpointFile.getFileName() + ".tmp");
+    synchronized (checkpoint) {
+      checkpoint.setProperty(key, nextHour.toString());
+      try (Writer writer = Files.newBufferedWriter(temp)) {
+        checkpoint.store(writer, "First unverified hour per table");
+      }
+      Files.move(
+          temp,
+          checkpointFile,
+          StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+}
@@ -0,0 +1,691 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service;
+
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.model.ClickEvent;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.model.PageViewEvent;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.model.ScrollEvent;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.model.SessionEvent;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.SQLTransientException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+/**
+ * Collects ingested events per table across requests and replicates them to Redshift in large
+ * batches, so Redshift sees a few big transactions a minute rather than one tiny one per request.
+ *
+ * <p>A table is flushed once it holds {@code aws.redshift.batch.size} events or its oldest event
+ * has waited {@code aws.redshift.replication.max-age-ms}. Tables flush in parallel, each on its
+ * own pooled connection, while batches of one table are written strictly one after another.
+ *
+ * <p>Memory per table is capped at {@code max-pending} events. Past {@code spool.high-water}, and
+ * whenever a flush fails for a reason that may pass, batches overflow to NDJSON segments under
+ * {@code spool.dir}, which are replayed once Redshift keeps up again and survive a restart. Ingest
+ * only ever appends to memory; when even the spool cannot keep up, the {@link OverflowPolicy}
+ * decides. Batches are not replicated in arrival order once they have been spooled.
+ *
+ * <p>A batch Redshift rejects for its data (see {@link #classify}), or a segment that still fails
+ * after {@code spool.max-attempts} replays, is moved to {@code spool.dir/dead-letter} for someone
+ * to look at, so it neither blocks the segments behind it nor is retried forever.
+ */
+@Service
+@ConditionalOnProperty(name = "aws.redshift.enabled", havingValue = "true", matchIfMissing = false)
+public class RedshiftReplicationBuffer {
+
+  private static final Logger logger = LoggerFactory.getLogger(RedshiftReplicationBuffer.class);
+
+  /** What ingest does with events that find their table's memory queue full */
+  public enum OverflowPolicy {
+    /** Shed them at once and count them */
+    DROP,
+    /** Wait up to {@code block-timeout-ms} for room, then shed what still does not fit */
+    BLOCK
+  }
+
+  /** How a failed write is handled */
+  enum Failure {
+    /** Redshift cannot be reached; nothing else will get through either, so wait */
+    UNREACHABLE,
+    /** May succeed if tried again later, such as a timeout or a serialization conflict */
+    TRANSIENT,
+    /** Redshift refuses the data itself; trying again gives the same answer */
+    PERMANENT
+  }
+
+  @FunctionalInterface
+  interface BatchWriter<T> {
+    void write(List<T> batch) throws SQLException;
+  }
+
+  @Autowired private RedshiftService redshiftService;
+
+  @Autowired private ObjectMapper objectMapper;
+
+  @Autowired private IngestMetrics ingestMetrics;
+
+  @Value("${aws.redshift.async.enabled:true}")
+  private boolean enabled;
+
+  @Value("${aws.redshift.batch.size:1000}")
+  private int batchSize;
+
+  @Value("${aws.redshift.replication.max-age-ms:30000}")
+  private long maxAgeMs;
+
+  @Value("${aws.redshift.replication.max-pending:50000}")
+  private int maxPending;
+
+  @Value("${aws.redshift.replication.check-interval-ms:1000}")
+  private long checkIntervalMs;
+
+  @Value("${aws.redshift.replication.flush-threads:2}")
+  private int flushThreads;
+
+  @Value("${aws.redshift.replication.overflow-policy:drop}")
+  private OverflowPolicy overflowPolicy;
+
+  @Value("${aws.redshift.replication.block-timeout-ms:50}")
+  private long blockTimeoutMs;
+
+  @Value("${aws.redshift.replication.spool.enabled:true}")
+  private boolean spoolEnabled;
+
+  @Value("${aws.redshift.replication.spool.dir:${java.io.tmpdir}/redshift-spool}")
+  private Path spoolDir;
+
+  @Value("${aws.redshift.replication.spool.high-water:20000}")
+  private int spoolHighWater;
+
+  @Value("${aws.redshift.replication.spool.max-mb:512}")
+  private long spoolMaxMb;
+
+  @Value("${aws.redshift.replication.spool.max-attempts:5}")
+  private int maxAttempts;
+
+  private Accumulator<PageViewEvent> pageViews;
+  private Accumulator<ClickEvent> clicks;
+  private Accumulator<ScrollEvent> scrolls;
+  private Accumulator<SessionEvent> sessions;
+  private List<Accumulator<?>> accumulators;
+
+  private ScheduledExecutorService flusher;
+  private ExecutorService spiller;
+
+  private final AtomicLong spoolBytes = new AtomicLong();
+  private final AtomicLong segmentSequence = new AtomicLong();
+
+  @PostConstruct
+  void init() throws IOException {
+    pageViews =
+        new Accumulator<>(
+            EventBatch.Kind.PAGE_VIEWS, PageViewEvent.class, redshiftService::insertPageViewEvents);
+    clicks =
+        new Accumulator<>(
+            EventBatch.Kind.CLICKS, ClickEvent.class, redshiftService::insertClickEvents);
+    scrolls =
+        new Accumulator<>(
+            EventBatch.Kind.SCROLLS, ScrollEvent.class, redshiftService::insertScrollEvents);
+    sessions =
+        new Accumulator<>(
+            EventBatch.Kind.SESSIONS, SessionEvent.class, redshiftService::insertSessionEvents);
+    accumulators = List.of(pageViews, clicks, scrolls, sessions);
+
+    if (spoolEnabled) {
+      for (Accumulator<?> accumulator : accumulators) {
+        accumulator.recoverSegments();
+      }
+    }
+
+    AtomicInteger threadCount = new AtomicInteger();
+    flusher =
+        Executors.newScheduledThreadPool(
+            flushThreads,
+            runnable -> {
+              Thread thread =
+                  new Thread(runnable, "RedshiftFlush-" + threadCount.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            });
+    flusher.scheduleWithFixedDelay(
+        this::scheduleFlushes, checkIntervalMs, checkIntervalMs, TimeUnit.MILLISECONDS);
+
+    // Spilling has its own thread so it never waits behind a stalled Redshift flush
+    spiller =
+        Executors.newSingleThreadExecutor(
+            runnable -> {
+              Thread thread = new Thread(runnable, "RedshiftSpill");
+              thread.setDaemon(true);
+              return thread;
+            });
+  }
+
+  /** Write out whatever is pending before the pool goes away, spooling what Redshift refuses */
+  @PreDestroy
+  void shutdown() throws InterruptedException {
+    flusher.shutdown();
+    spiller.shutdown();
+    flusher.awaitTermination(30, TimeUnit.SECONDS);
+    spiller.awaitTermination(30, TimeUnit.SECONDS);
+    for (Accumulator<?> accumulator : accumulators) {
+      accumulator.flush(true);
+    }
+  }
+
+  public void addPageViews(List<PageViewEvent> events) {
+    add(pageViews, events);
+  }
+
+  public void addClicks(List<ClickEvent> events) {
+    add(clicks, events);
+  }
+
+  public void addScrolls(List<ScrollEvent> events) {
+    add(scrolls, events);
+  }
+
+  public void addSessions(List<SessionEvent> events) {
+    add(sessions, events);
+  }
+
+  /** Age of the oldest event not yet in Redshift, whether held in memory or spooled */
+  public long getLagMs() {
+    long now = System.currentTimeMillis();
+    long lagMs = 0;
+    for (Accumulator<?> accumulator : accumulators) {
+      lagMs = Math.max(lagMs, accumulator.lagMs(now));
+    }
+    return lagMs;
+  }
+
+  public Map<String, Object> getStats() {
+    long now = System.currentTimeMillis();
+    long lagMs = 0;
+    Map<String, Object> tables = new LinkedHashMap<>();
+    for (Accumulator<?> accumulator : accumulators) {
+      Map<String, Object> tableStats = accumulator.getStats(now);
+      lagMs = Math.max(lagMs, (long) tableStats.get("lag_ms"));
+      tables.put(accumulator.table, tableStats);
+    }
+
+    Map<String, Object> stats = new LinkedHashMap<>();
+    stats.put("enabled", enabled);
+    stats.put("batch_size", batchSize);
+    stats.put("max_age_ms", maxAgeMs);
+    stats.put("overflow_policy", overflowPolicy);
+    stats.put("spool_enabled", spoolEnabled);
+    stats.put("spool_bytes", spoolBytes.get());
+    stats.put("lag_ms", lagMs);
+    stats.putAll(tables);
+    return stats;
+  }
+
+  private <T> void add(Accumulator<T> accumulator, List<T> events) {
+    if (!enabled || events == null || events.isEmpty()) {
+      return;
+    }
+    int pending = accumulator.add(events);
+    if (pending >= batchSize) {
+      // A full batch is waiting; flush now instead of at the next check
+      accumulator.scheduleFlush();
+    }
+    if (spoolEnabled && pending >= spoolHighWater) {
+      accumulator.scheduleSpill();
+    }
+  }
+
+  /**
+   * Connection failures (class 08) mean Redshift is unreachable. Data exceptions (22), constraint
+   * violations (23), syntax or undefined objects (42) and unsupported features (0A) are permanent,
+   * as is anything thrown before the batch reached Redshift. Timeouts, cancellations (57),
+   * serialization conflicts (40), resource shortages (53), lock waits (55) and unknown states are
+   * treated as transient.
+   */
+  static Failure classify(Exception e) {
+    if (!(e instanceof SQLException sqlException)) {
+      return Failure.PERMANENT;
+    }
+    if (RedshiftService.isConnectionFailure(sqlException)) {
+      return Failure.UNREACHABLE;
+    }
+    if (sqlException instanceof SQLTimeoutException
+        || sqlException instanceof SQLTransientException) {
+      return Failure.TRANSIENT;
+    }
+    String sqlState = sqlStateOf(sqlException);
+    if (sqlState == null || sqlState.length() < 2) {
+      return Failure.TRANSIENT;
+    }
+    return switch (sqlState.substring(0, 2)) {
+      case "22", "23", "42", "0A" -> Failure.PERMANENT;
+      default -> Failure.TRANSIENT;
+    };
+  }
+
+  /** The first SQLState along the cause chain; drivers often wrap the server's error */
+  private static String sqlStateOf(SQLException e) {
+    for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+      if (cause instanceof SQLException sql && sql.getSQLState() != null) {
+        return sql.getSQLState();
+      }
+    }
+    return null;
+  }
+
+  private void scheduleFlushes() {
+    for (Accumulator<?> accumulator : accumulators) {
+      accumulator.scheduleFlush();
+    }
+  }
+
+  private record Batch<T>(List<T> events, long oldestAddedAt) {}
+
+  /** A spooled batch; its file name carries the oldest event time, size and sequence */
+  private record Segment(
+      Path file, long oldestAddedAt, int events, long bytes, AtomicInteger attempts) {
+
+    private Segment(Path file, long oldestAddedAt, int events, long bytes) {
+      this(file, oldestAddedAt, events, bytes, new AtomicInteger());
+    }
+  }
+
+  private final class Accumulator<T> {
+    private final EventBatch.Kind kind;
+    private final String table;
+    private final Class<T> type;
+    private final BatchWriter<T> writer;
+
+    private List<T> pending = new ArrayList<>();
+    private long oldestAddedAt;
+
+    private final ConcurrentLinkedDeque<Segment> segments = new ConcurrentLinkedDeque<>();
+
+    private final LongAdder flushes = new LongAdder();
+    private final LongAdder flushedEvents = new LongAdder();
+    private final LongAdder spilledEvents = new LongAdder();
+    private final LongAdder replayedEvents = new LongAdder();
+    private final LongAdder failedEvents = new LongAdder();
+    private final LongAdder droppedEvents = new LongAdder();
+    private final LongAdder deadLetteredEvents = new LongAdder();
+
+    /** Set while a flush of this table is queued or running, so its batches stay in order */
+    private final AtomicBoolean flushing = new AtomicBoolean();
+
+    private final AtomicBoolean spilling = new AtomicBoolean();
+
+    private Accumulator(EventBatch.Kind kind, Class<T> type, BatchWriter<T> writer) {
+      this.kind = kind;
+      this.table = kind.table();
+      this.type = type;
+      this.writer = writer;
+    }
+
+    /** Queue events for the next flush; returns how many are now pending */
+    private synchronized int add(List<T> events) {
+      if (overflowPolicy == OverflowPolicy.BLOCK) {
+        awaitRoom(Math.min(events.size(), maxPending));
+      }
+      int accepted = Math.max(0, Math.min(events.size(), maxPending - pending.size()));
+      if (accepted < events.size()) {
+        // Neither Redshift nor the spool keeps up; shed the overflow rather than grow
+        droppedEvents.add(events.size() - accepted);
+        logger.warn(
+            "Redshift replication buffer for {} is full, dropping {} events",
+            table,
+            events.size() - accepted);
+        events = events.subList(0, accepted);
+      }
+      if (pending.isEmpty()) {
+        oldestAddedAt = System.currentTimeMillis();
+      }
+      pending.addAll(events);
+      return pending.size();
+    }
+
+    private void awaitRoom(int wanted) {
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(blockTimeoutMs);
+      try {
+        while (pending.size() + wanted > maxPending) {
+          long remaining = deadline - System.nanoTime();
+          if (remaining <= 0) {
+            return;
+          }
+          TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    private void scheduleFlush() {
+      if (!flushing.compareAndSet(false, true)) {
+        return;
+      }
+      try {
+        flusher.execute(
+            () -> {
+              try {
+                flush(false);
+              } finally {
+                flushing.set(false);
+              }
+            });
+      } catch (RejectedExecutionException e) {
+        flushing.set(false);
+      }
+    }
+
+    private void scheduleSpill() {
+      if (!spilling.compareAndSet(false, true)) {
+        return;
+      }
+      try {
+        spiller.execute(
+            () -> {
+              try {
+                Batch<T> batch;
+                while ((batch = take(spoolHighWater)) != null) {
+                  spill(batch);
+                }
+              } finally {
+                spilling.set(false);
+              }
+            });
+      } catch (RejectedExecutionException e) {
+        spilling.set(false);
+      }
+    }
+
+    /**
+     * Write due batches from memory, then replay spooled segments. Stops once Redshift turns out to
+     * be unreachable and leaves the rest for the next check, so an outage costs one attempt per
+     * interval. With {@code all}, as on shutdown, everything left after a failure goes to the spool
+     * instead.
+     */
+    private void flush(boolean all) {
+      Failure failure = null;
+      Batch<T> batch;
+      while ((batch = nextBatch(all)) != null) {
+        if (failure == null && (failure = write(batch.events())) == null) {
+          continue;
+        }
+        if (failure == Failure.PERMANENT) {
+          deadLetter(batch);
+          failure = null;
+          continue;
+        }
+        if (spoolEnabled) {
+          spill(batch);
+        } else {
+          failedEvents.add(batch.events().size());
+        }
+        if (!all) {
+          return;
+        }
+      }
+      if (all) {
+        return;
+      }
+
+      // A segment that keeps failing is passed over, so it cannot hold up the ones behind it
+      for (Segment segment : List.copyOf(segments)) {
+        List<T> events;
+        try (MappingIterator<T> values =
+            objectMapper.readerFor(type).readValues(segment.file().toFile())) {
+          events = values.readAll();
+        } catch (IOException e) {
+          logger.error("Unreadable Redshift spool segment {}", segment.file(), e);
+          deadLetter(segment);
+          continue;
+        }
+        failure = write(events);
+        if (failure == null) {
+          removeSegment(segment);
+          replayedEvents.add(events.size());
+        } else if (failure == Failure.UNREACHABLE) {
+          return;
+        } else if (failure == Failure.PERMANENT
+            || segment.attempts().incrementAndGet() >= maxAttempts) {
+          deadLetter(segment);
+        }
+      }
+    }
+
+    /** Null once written, otherwise what kind of failure stopped it */
+    private Failure write(List<T> batch) {
+      long start = System.nanoTime();
+      try {
+        writer.write(batch);
+        flushes.increment();
+        flushedEvents.add(batch.size());
+        return null;
+      } catch (SQLException | RuntimeException e) {
+        Failure failure = classify(e);
+        logger.error(
+            "Failed to replicate {} {} to Redshift ({})", batch.size(), table, failure, e);
+        return failure;
+      } finally {
+        ingestMetrics.recordReplication(kind, System.nanoTime() - start);
+      }
+    }
+
+    /** Take the next batch if it is full or old enough, or null when nothing is due */
+    private synchronized Batch<T> nextBatch(boolean all) {
+      boolean due =
+          all
+              || pending.size() >= batchSize
+              || System.currentTimeMillis() - oldestAddedAt >= maxAgeMs;
+      return due ? take(0) : null;
+    }
+
+    /** Take up to a batch from the head once at least {@code threshold} events are pending */
+    private synchronized Batch<T> take(int threshold) {
+      if (pending.isEmpty() || pending.size() < threshold) {
+        return null;
+      }
+      Batch<T> batch;
+      if (pending.size() <= batchSize) {
+        batch = new Batch<>(pending, oldestAddedAt);
+        pending = new ArrayList<>();
+      } else {
+        batch = new Batch<>(new ArrayList<>(pending.subList(0, batchSize)), oldestAddedAt);
+        pending = new ArrayList<>(pending.subList(batchSize, pending.size()));
+      }
+      // The remainder keeps the old timestamp, so a backlog drains in back-to-back batches
+      notifyAll();
+      return batch;
+    }
+
+    private void spill(Batch<T> batch) {
+      int count = batch.events().size();
+      if (spoolBytes.get() >= spoolMaxMb * 1024 * 1024) {
+        droppedEvents.add(count);
+        logger.warn("Redshift spool is full, dropping {} {}", count, table);
+        return;
+      }
+
+      Path file =
+          spoolDir
+              .resolve(table)
+              .resolve(
+                  "%d-%d-%d.ndjson"
+                      .formatted(batch.oldestAddedAt(), count, segmentSequence.incrementAndGet()));
+      try {
+        try (BufferedWriter out = Files.newBufferedWriter(file)) {
+          for (T event : batch.events()) {
+            out.write(objectMapper.writeValueAsString(event));
+            out.newLine();
+          }
+        }
+        addSegment(new Segment(file, batch.oldestAddedAt(), count, Files.size(file)));
+        spilledEvents.add(count);
+      } catch (IOException e) {
+        failedEvents.add(count);
+        logger.error("Failed to spool {} {} to {}", count, table, file, e);
+        deleteQuietly(file);
+      }
+    }
+
+    /** Keep a batch Redshift refuses where it is not retried, or count it lost without a spool */
+    private void deadLetter(Batch<T> batch) {
+      int count = batch.events().size();
+      if (!spoolEnabled) {
+        failedEvents.add(count);
+        return;
+      }
+      Path file =
+          deadLetterDir()
+              .resolve(
+                  "%d-%d-%d.ndjson"
+                      .formatted(batch.oldestAddedAt(), count, segmentSequence.incrementAndGet()));
+      try {
+        Files.createDirectories(file.getParent());
+        try (BufferedWriter out = Files.newBufferedWriter(file)) {
+          for (T event : batch.events()) {
+            out.write(objectMapper.writeValueAsString(event));
+            out.newLine();
+          }
+        }
+        deadLetteredEvents.add(count);
+        logger.warn("Moved {} {} Redshift refused to {}", count, table, file);
+      } catch (IOException e) {
+        failedEvents.add(count);
+        logger.error("Failed to dead-letter {} {} to {}", count, table, file, e);
+        deleteQuietly(file);
+      }
+    }
+
+    private void deadLetter(Segment segment) {
+      Path target = deadLetterDir().resolve(segment.file().getFileName());
+      segments.remove(segment);
+      spoolBytes.addAndGet(-segment.bytes());
+      try {
+        Files.createDirectories(target.getParent());
+        Files.move(segment.file(), target, StandardCopyOption.REPLACE_EXISTING);
+        deadLetteredEvents.add(segment.events());
+        logger.warn(
+            "Moved Redshift spool segment {} to {} after {} attempts",
+            segment.file(),
+            target,
+            segment.attempts().get());
+      } catch (IOException e) {
+        failedEvents.add(segment.events());
+        logger.error("Failed to dead-letter {}, deleting it", segment.file(), e);
+        deleteQuietly(segment.file());
+      }
+    }
+
+    private Path deadLetterDir() {
+      return spoolDir.resolve("dead-letter").resolve(table);
+    }
+
+    /** Pick up segments a previous run left behind, oldest first */
+    private void recoverSegments() throws IOException {
+      Path dir = spoolDir.resolve(table);
+      Files.createDirectories(dir);
+      List<Segment> found = new ArrayList<>();
+      try (Stream<Path> files = Files.list(dir)) {
+        for (Path file : (Iterable<Path>) files::iterator) {
+          String[] parts = file.getFileName().toString().replace(".ndjson", "").split("-");
+          try {
+            found.add(
+                new Segment(
+                    file, Long.parseLong(parts[0]), Integer.parseInt(parts[1]), Files.size(file)));
+            segmentSequence.accumulateAndGet(Long.parseLong(parts[2]), Math::max);
+          } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            logger.warn("Ignoring unexpected file in Redshift spool: {}", file);
+          }
+        }
+      }
+      found.sort(Comparator.comparingLong(Segment::oldestAddedAt));
+      found.forEach(this::addSegment);
+      if (!found.isEmpty()) {
+        logger.info("Recovered {} spooled {} segments for replay", found.size(), table);
+      }
+    }
+
+    private void addSegment(Segment segment) {
+      segments.addLast(segment);
+      spoolBytes.addAndGet(segment.bytes());
+    }
+
+    private void removeSegment(Segment segment) {
+      segments.remove(segment);
+      spoolBytes.addAndGet(-segment.bytes());
+      deleteQuietly(segment.file());
+    }
+
+    private void deleteQuietly(Path file) {
+      try {
+        Files.deleteIfExists(file);
+      } catch (IOException e) {
+        logger.warn("Failed to delete Redshift spool file {}: {}", file, e.getMessage());
+      }
+    }
+
+    private long lagMs(long now) {
+      long oldest = Long.MAX_VALUE;
+      synchronized (this) {
+        if (!pending.isEmpty()) {
+          oldest = oldestAddedAt;
+        }
+      }
+      for (Segment segment : segments) {
+        oldest = Math.min(oldest, segment.oldestAddedAt());
+      }
+      return oldest == Long.MAX_VALUE ? 0L : Math.max(0, now - oldest);
+    }
+
+    private Map<String, Object> getStats(long now) {
+      int pendingCount;
+      synchronized (this) {
+        pendingCount = pending.size();
+      }
+      long spooled = 0;
+      for (Segment segment : segments) {
+        spooled += segment.events();
+      }
+
+      Map<String, Object> stats = new LinkedHashMap<>();
+      stats.put("pending", pendingCount);
+      stats.put("spooled", spooled);
+      stats.put("lag_ms", lagMs(now));
+      stats.put("flushes", flushes.sum());
+      stats.put("flushed_events", flushedEvents.sum());
+      stats.put("spilled_events", spilledEvents.sum());
+      stats.put("replayed_events", replayedEvents.sum());
+      stats.put("failed_events", failedEvents.sum());
+      stats.put("dropped_events", droppedEvents.sum());
+      stats.put("dead_lettered_events", deadLetteredEvents.sum());
+      return stats;
+    }
+  }
+}
@@ -1,26 +1,39 @@
 package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service;
 
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto.HourDigest;
 import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.model.ClickEvent;
 import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.model.PageViewEvent;
 import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.model.ScrollEvent;
 import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.model.SessionEvent;
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+import jakarta.annotation.PostConstruct;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
-import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Service;
-import software.amazon.awssdk.services.redshiftdata.RedshiftDataClient;
-import software.amazon.awssdk.services.redshiftdata.model.*;
+import software.amazon.awssdk.services.redshiftdata.RedshiftDataAsyncClient;
+import software.amazon.awssdk.services.redshiftdata.model.DescribeStatementResponse;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
 
 @Service
 @ConditionalOnProperty(name = "aws.redshift.enabled", havingValue = "true", matchIfMissing = false)
@@ -29,11 +42,14 @@ public class RedshiftService {
     private static final Logger logger = LoggerFactory.getLogger(RedshiftService.class);
 
     @Autowired
-    @Qualifier("redshiftConnection")
-    private Connection redshiftConnection;
+    @Qualifier("redshiftDataSource")
+    private HikariDataSource redshiftDataSource;
 
     @Autowired
-    private RedshiftDataClient redshiftDataClient;
+    private RedshiftDataAsyncClient redshiftDataAsyncClient;
+
+    @Autowired
+    private RedshiftStatementTracker statementTracker;
 
     @Value("${aws.redshift.cluster.id}")
     private String clusterId;
@@ -47,322 +63,310 @@ public class RedshiftService {
     @Value("${aws.redshift.schema:public}")
     private String schema;
 
-    @Value("${aws.redshift.async.enabled:true}")
-    private boolean asyncEnabled;
-
     @Value("${aws.redshift.batch.size:1000}")
     private int batchSize;
 
+    @Value("${aws.redshift.load.mode:auto}")
+    private RedshiftBulkLoader.Mode loadMode;
+
+    @Value("${aws.redshift.retry.max-attempts:3}")
+    private int maxAttempts;
+
+    @Value("${aws.redshift.retry.backoff-ms:500}")
+    private long retryBackoffMs;
+
+    private final LongAdder reconnects = new LongAdder();
+
     @Value("${aws.redshift.query.timeout:300}")
     private int queryTimeout;
 
-    /**
-     * Async insert of page view events to Redshift
-     */
-    @Async("s3ExportExecutor")
-    public CompletableFuture<Void> insertPageViewEventsAsync(List<PageViewEvent> events) {
-        if (!asyncEnabled || events == null || events.isEmpty()) {
-            logger.debug("Redshift async insert disabled or no page view events to insert");
-            return CompletableFuture.completedFuture(null);
-        }
+    private static final List<String> PAGE_VIEW_COLUMNS = List.of(
+            "session_id", "user_id", "page_url", "page_title", "referrer", "load_time",
+            "timestamp", "user_agent", "ip_address", "device_type", "browser", "os", "country", "city");
 
-        try {
-            insertPageViewEvents(events);
-            logger.info("Successfully inserted {} page view events to Redshift asynchronously", events.size());
-        } catch (Exception e) {
-            logger.error("Failed to insert page view events to Redshift asynchronously", e);
-            // Don't rethrow to avoid breaking main flow
-        }
+    private static final List<String> CLICK_COLUMNS = List.of(
+            "session_id", "user_id", "element_id", "element_text",
+            "page_url", "click_x", "click_y", "timestamp", "user_agent", "ip_address", "device_type",
+            "browser", "os", "country", "city");
+
+    private static final List<String> SCROLL_COLUMNS = List.of(
+            "session_id", "user_id", "page_url", "scroll_depth", "scroll_percentage",
+            "timestamp", "user_agent", "ip_address", "device_type", "browser", "os", "country", "city");
+
+    private static final List<String> SESSION_COLUMNS = List.of(
+            "session_id", "user_id", "event_type", "page_count",
+            "timestamp", "user_agent", "ip_address", "device_type", "browser", "os", "country", "city");
 
-        return CompletableFuture.completedFuture(null);
+    private RedshiftBulkLoader bulkLoader;
+
+    @PostConstruct
+    void init() {
+        bulkLoader = new RedshiftBulkLoader(loadMode, batchSize);
     }
 
     /**
      * Sync insert of page view events to Redshift
      */
     public void insertPageViewEvents(List<PageViewEvent> events) throws SQLException {
-        if (events == null || events.isEmpty()) {
-            return;
-        }
-
-        String sql = """
-            INSERT INTO %s.page_view_events (
-                session_id, user_id, page_url, page_title, referrer, load_time,
-                timestamp, user_agent, ip_address, device_type, browser, os, country, city
-            ) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)
-            """.formatted(schema);
-
-        try (PreparedStatement stmt = redshiftConnection.prepareStatement(sql)) {
-            int batchCount = 0;
-
-            for (PageViewEvent event : events) {
-                stmt.setString(1, event.getSessionId());
-                stmt.setString(2, event.getUserId());
-                stmt.setString(3, event.getPageUrl());
-                stmt.setString(4, event.getPageTitle());
-                stmt.setString(5, event.getReferrer());
-                stmt.setObject(6, event.getLoadTime());
-                stmt.setString(7, event.getTimestamp());
-                stmt.setString(8, event.getUserAgent());
-                stmt.setString(9, event.getIpAddress());
-                stmt.setString(10, event.getDeviceType());
-                stmt.setString(11, event.getBrowser());
-                stmt.setString(12, event.getOs());
-                stmt.setString(13, event.getCountry());
-                stmt.setString(14, event.getCity());
-
-                stmt.addBatch();
-                batchCount++;
-
-                // Execute batch when it reaches the configured size
-                if (batchCount >= batchSize) {
-                    stmt.executeBatch();
-                    redshiftConnection.commit();
-                    logger.debug("Executed batch of {} page view events", batchCount);
-                    batchCount = 0;
-                }
-            }
-
-            // Execute any remaining items in the batch
-            if (batchCount > 0) {
-                stmt.executeBatch();
-                redshiftConnection.commit();
-                logger.debug("Executed final batch of {} page view events", batchCount);
-            }
+        load("page_view_events", PAGE_VIEW_COLUMNS, events, event -> new Object[] {
+            event.getSessionId(), event.getUserId(), event.getPageUrl(), event.getPageTitle(),
+            event.getReferrer(), event.getLoadTime(), event.getTimestamp(), event.getUserAgent(),
+            event.getIpAddress(), event.getDeviceType(), event.getBrowser(), event.getOs(),
+            event.getCountry(), event.getCity()
+        });
+    }
 
-            logger.info("Successfully inserted {} page view events into Redshift", events.size());
-        }
+    /**
+     * Sync insert of click events to Redshift
+     */
+    public void insertClickEvents(List<ClickEvent> events) throws SQLException {
+        load("click_events", CLICK_COLUMNS, events, event -> new Object[] {
+            event.getSessionId(), event.getUserId(), event.getElementId(), event.getElementText(),
+            event.getPageUrl(), event.getClickX(), event.getClickY(), event.getTimestamp(),
+            event.getUserAgent(), event.getIpAddress(), event.getDeviceType(), event.getBrowser(),
+            event.getOs(), event.getCountry(), event.getCity()
+        });
     }
 
     /**
-     * Async insert of click events to Redshift
+     * Sync insert of scroll events to Redshift
      */
-    @Async("s3ExportExecutor")
-    public CompletableFuture<Void> insertClickEventsAsync(List<ClickEvent> events) {
-        if (!asyncEnabled || events == null || events.isEmpty()) {
-            logger.debug("Redshift async insert disabled or no click events to insert");
-            return CompletableFuture.completedFuture(null);
-        }
+    public void insertScrollEvents(List<ScrollEvent> events) throws SQLException {
+        load("scroll_events", SCROLL_COLUMNS, events, event -> new Object[] {
+            event.getSessionId(), event.getUserId(), event.getPageUrl(), event.getScrollDepth(),
+            event.getScrollPercentage(), event.getTimestamp(), event.getUserAgent(),
+            event.getIpAddress(), event.getDeviceType(), event.getBrowser(), event.getOs(),
+            event.getCountry(), event.getCity()
+        });
+    }
 
-        try {
-            insertClickEvents(events);
-            logger.info("Successfully inserted {} click events to Redshift asynchronously", events.size());
-        } catch (Exception e) {
-            logger.error("Failed to insert click events to Redshift asynchronously", e);
-        }
+    /**
+     * Sync insert of session events to Redshift
+     */
+    public void insertSessionEvents(List<SessionEvent> events) throws SQLException {
+        load("session_events", SESSION_COLUMNS, events, event -> new Object[] {
+            event.getSessionId(), event.getUserId(), event.getEventType(), event.getPageCount(),
+            event.getTimestamp(), event.getUserAgent(), event.getIpAddress(), event.getDeviceType(),
+            event.getBrowser(), event.getOs(), event.getCountry(), event.getCity()
+        });
+    }
 
-        return CompletableFuture.completedFuture(null);
+    /**
+     * Columns of each event table, in the order {@link Staging#load} expects them
+     */
+    public static List<String> columnsOf(String table) {
+        return switch (table) {
+            case "page_view_events" -> PAGE_VIEW_COLUMNS;
+            case "click_events" -> CLICK_COLUMNS;
+            case "scroll_events" -> SCROLL_COLUMNS;
+            case "session_events" -> SESSION_COLUMNS;
+            default -> throw new IllegalArgumentException("Unknown table: " + table);
+        };
     }
 
     /**
-     * Sync insert of click events to Redshift
+     * A temporary copy of one event table's layout on its own connection, to load rows into at any
+     * pace and then swap them into the table in one short transaction. Close it to drop the copy.
      */
-    public void insertClickEvents(List<ClickEvent> events) throws SQLException {
-        if (events == null || events.isEmpty()) {
-            return;
+    public Staging stage(String table) throws SQLException {
+        Connection connection = redshiftDataSource.getConnection();
+        Staging staging = new Staging(connection, checkedTable(table));
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("CREATE TEMP TABLE %s (LIKE %s.%s)".formatted(staging.name, schema, table));
+            connection.commit();
+        } catch (SQLException e) {
+            rollbackQuietly(connection);
+            connection.close();
+            throw e;
         }
+        return staging;
+    }
 
-        String sql = """
-            INSERT INTO %s.click_events (
-                session_id, user_id, element_id, element_text,
-                page_url, click_x, click_y, timestamp, user_agent, ip_address, device_type,
-                browser, os, country, city
-            ) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)
-            """.formatted(schema);
-
-        try (PreparedStatement stmt = redshiftConnection.prepareStatement(sql)) {
-            int batchCount = 0;
-
-            for (ClickEvent event : events) {
-                stmt.setString(1, event.getSessionId());
-                stmt.setString(2, event.getUserId());
-                stmt.setString(3, event.getElementId());
-                stmt.setString(4, event.getElementText());
-                stmt.setString(5, event.getPageUrl());
-                stmt.setObject(6, event.getClickX());
-                stmt.setObject(7, event.getClickY());
-                stmt.setString(8, event.getTimestamp());
-                stmt.setString(9, event.getUserAgent());
-                stmt.setString(10, event.getIpAddress());
-                stmt.setString(11, event.getDeviceType());
-                stmt.setString(12, event.getBrowser());
-                stmt.setString(13, event.getOs());
-                stmt.setString(14, event.getCountry());
-                stmt.setString(15, event.getCity());
-
-                stmt.addBatch();
-                batchCount++;
-
-                if (batchCount >= batchSize) {
-                    stmt.executeBatch();
-                    redshiftConnection.commit();
-                    logger.debug("Executed batch of {} click events", batchCount);
-                    batchCount = 0;
-                }
+    public class Staging implements AutoCloseable {
+
+        private final Connection connection;
+        private final String table;
+        private final String name;
+
+        private Staging(Connection connection, String table) {
+            this.connection = connection;
+            this.table = table;
+            this.name = "staging_" + table;
+        }
+
+        /**
+         * Add raw rows, one value per entry of {@link #columnsOf}
+         */
+        public void load(List<Object[]> rows) throws SQLException {
+            try {
+                bulkLoader.load(connection, name, columnsOf(table), rows);
+                connection.commit();
+            } catch (SQLException e) {
+                rollbackQuietly(connection);
+                throw e;
             }
+        }
 
-            if (batchCount > 0) {
-                stmt.executeBatch();
-                redshiftConnection.commit();
-                logger.debug("Executed final batch of {} click events", batchCount);
+        /**
+         * Delete the table's rows with timestamps in [from, to) and insert the staged rows in their
+         * place, in one transaction, so readers see either the old rows or the new ones
+         *
+         * @return the number of rows deleted
+         */
+        public int replaceRange(LocalDateTime from, LocalDateTime to) throws SQLException {
+            String columns = String.join(", ", columnsOf(table));
+            try (PreparedStatement delete = connection.prepareStatement(
+                         "DELETE FROM %s.%s WHERE timestamp >= ? AND timestamp < ?".formatted(schema, table));
+                 Statement insert = connection.createStatement()) {
+                delete.setTimestamp(1, Timestamp.valueOf(from));
+                delete.setTimestamp(2, Timestamp.valueOf(to));
+                int deleted = delete.executeUpdate();
+                insert.executeUpdate("INSERT INTO %s.%s (%s) SELECT %s FROM %s"
+                        .formatted(schema, table, columns, columns, name));
+                connection.commit();
+                return deleted;
+            } catch (SQLException e) {
+                rollbackQuietly(connection);
+                throw e;
             }
+        }
 
-            logger.info("Successfully inserted {} click events into Redshift", events.size());
+        @Override
+        public void close() throws SQLException {
+            try (connection; Statement stmt = connection.createStatement()) {
+                stmt.execute("DROP TABLE IF EXISTS " + name);
+                connection.commit();
+            }
         }
     }
 
     /**
-     * Async insert of scroll events to Redshift
+     * Row count and checksum per hour of one table over [from, to), keyed by the hour's epoch
+     * second; see {@link ClickHouseService#getHourlyDigests} for the ClickHouse side
      */
-    @Async("s3ExportExecutor")
-    public CompletableFuture<Void> insertScrollEventsAsync(List<ScrollEvent> events) {
-        if (!asyncEnabled || events == null || events.isEmpty()) {
-            logger.debug("Redshift async insert disabled or no scroll events to insert");
-            return CompletableFuture.completedFuture(null);
-        }
-
-        try {
-            insertScrollEvents(events);
-            logger.info("Successfully inserted {} scroll events to Redshift asynchronously", events.size());
-        } catch (Exception e) {
-            logger.error("Failed to insert scroll events to Redshift asynchronously", e);
+    public Map<Long, HourDigest> getHourlyDigests(String table, LocalDateTime from, LocalDateTime to)
+            throws SQLException {
+        String sql = """
+                SELECT
+                    CAST(EXTRACT(EPOCH FROM DATE_TRUNC('hour', timestamp)) AS BIGINT) AS hour,
+                    COUNT(*) AS row_count,
+                    SUM(CAST(FLOOR(EXTRACT(EPOCH FROM timestamp)) AS BIGINT) + OCTET_LENGTH(session_id)) AS checksum
+                FROM %s.%s
+                WHERE timestamp >= ? AND timestamp < ?
+                GROUP BY 1
+                """.formatted(schema, checkedTable(table));
+
+        Map<Long, HourDigest> digests = new HashMap<>();
+        try (Connection connection = redshiftDataSource.getConnection();
+             PreparedStatement stmt = connection.prepareStatement(sql)) {
+            stmt.setTimestamp(1, Timestamp.valueOf(from));
+            stmt.setTimestamp(2, Timestamp.valueOf(to));
+            stmt.setQueryTimeout(queryTimeout);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    digests.put(rs.getLong(1), new HourDigest(rs.getLong(2), rs.getLong(3)));
+                }
+            }
+            connection.commit();
         }
+        return digests;
+    }
 
-        return CompletableFuture.completedFuture(null);
+    /**
+     * The table name after checking it is one of ours, as it is formatted into SQL
+     */
+    private static String checkedTable(String table) {
+        columnsOf(table);
+        return table;
     }
 
     /**
-     * Sync insert of scroll events to Redshift
+     * Load events through the bulk loader in one transaction. Redshift runs a JDBC batch as one
+     * statement and one block write per row, so COPY or a single multi-row INSERT is far cheaper.
      */
-    public void insertScrollEvents(List<ScrollEvent> events) throws SQLException {
+    private <T> void load(String table, List<String> columns, List<T> events,
+                          Function<T, Object[]> toRow) throws SQLException {
         if (events == null || events.isEmpty()) {
             return;
         }
 
-        String sql = """
-            INSERT INTO %s.scroll_events (
-                session_id, user_id, page_url, scroll_depth, scroll_percentage,
-                timestamp, user_agent, ip_address, device_type, browser, os, country, city
-            ) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)
-            """.formatted(schema);
-
-        try (PreparedStatement stmt = redshiftConnection.prepareStatement(sql)) {
-            int batchCount = 0;
-
-            for (ScrollEvent event : events) {
-                stmt.setString(1, event.getSessionId());
-                stmt.setString(2, event.getUserId());
-                stmt.setString(3, event.getPageUrl());
-                stmt.setObject(4, event.getScrollDepth());
-                stmt.setObject(5, event.getScrollPercentage());
-                stmt.setString(6, event.getTimestamp());
-                stmt.setString(7, event.getUserAgent());
-                stmt.setString(8, event.getIpAddress());
-                stmt.setString(9, event.getDeviceType());
-                stmt.setString(10, event.getBrowser());
-                stmt.setString(11, event.getOs());
-                stmt.setString(12, event.getCountry());
-                stmt.setString(13, event.getCity());
-
-                stmt.addBatch();
-                batchCount++;
-
-                if (batchCount >= batchSize) {
-                    stmt.executeBatch();
-                    redshiftConnection.commit();
-                    logger.debug("Executed batch of {} scroll events", batchCount);
-                    batchCount = 0;
+        List<Object[]> rows = events.stream().map(toRow).toList();
+        for (int attempt = 1; ; attempt++) {
+            try (Connection connection = redshiftDataSource.getConnection()) {
+                RedshiftBulkLoader.Mode mode;
+                try {
+                    mode = bulkLoader.load(connection, schema + "." + table, columns, rows);
+                    connection.commit();
+                } catch (SQLException e) {
+                    rollbackQuietly(connection);
+                    throw e;
                 }
+                logger.info("Successfully inserted {} {} into Redshift via {}", events.size(), table, mode);
+                return;
+            } catch (SQLException e) {
+                if (!isConnectionFailure(e) || attempt >= maxAttempts) {
+                    throw e;
+                }
+                // The pool evicts the broken connection, so the next attempt reconnects
+                reconnects.increment();
+                logger.warn("Redshift connection failed while loading {} (attempt {}/{}), retrying: {}",
+                        table, attempt, maxAttempts, e.getMessage());
+                sleep(retryBackoffMs * attempt);
             }
-
-            if (batchCount > 0) {
-                stmt.executeBatch();
-                redshiftConnection.commit();
-                logger.debug("Executed final batch of {} scroll events", batchCount);
-            }
-
-            logger.info("Successfully inserted {} scroll events into Redshift", events.size());
         }
     }
 
     /**
-     * Async insert of session events to Redshift
+     * Connection-level failures (SQLState class 08 and the driver's connection exceptions) are
+     * worth retrying on a fresh connection; anything else is a problem with the data or SQL.
      */
-    @Async("s3ExportExecutor")
-    public CompletableFuture<Void> insertSessionEventsAsync(List<SessionEvent> events) {
-        if (!asyncEnabled || events == null || events.isEmpty()) {
-            logger.debug("Redshift async insert disabled or no session events to insert");
-            return CompletableFuture.completedFuture(null);
-        }
+    static boolean isConnectionFailure(SQLException e) {
+        String sqlState = e.getSQLState();
+        return e instanceof SQLTransientConnectionException
+                || e instanceof SQLNonTransientConnectionException
+                || (sqlState != null && sqlState.startsWith("08"));
+    }
 
+    private void rollbackQuietly(Connection connection) {
         try {
-            insertSessionEvents(events);
-            logger.info("Successfully inserted {} session events to Redshift asynchronously", events.size());
-        } catch (Exception e) {
-            logger.error("Failed to insert session events to Redshift asynchronously", e);
+            connection.rollback();
+        } catch (SQLException e) {
+            logger.debug("Rollback after failed Redshift load also failed: {}", e.getMessage());
         }
+    }
 
-        return CompletableFuture.completedFuture(null);
+    private void sleep(long millis) throws SQLException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting to retry", e);
+        }
     }
 
     /**
-     * Sync insert of session events to Redshift
+     * Connection pool usage and reconnect count
      */
-    public void insertSessionEvents(List<SessionEvent> events) throws SQLException {
-        if (events == null || events.isEmpty()) {
-            return;
-        }
-
-        String sql = """
-            INSERT INTO %s.session_events (
-                session_id, user_id, event_type, page_count,
-                timestamp, user_agent, ip_address, device_type, browser, os, country, city
-            ) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)
-            """.formatted(schema);
-
-        try (PreparedStatement stmt = redshiftConnection.prepareStatement(sql)) {
-            int batchCount = 0;
-
-            for (SessionEvent event : events) {
-                stmt.setString(1, event.getSessionId());
-                stmt.setString(2, event.getUserId());
-                stmt.setString(3, event.getEventType());
-                stmt.setObject(4, event.getPageCount());
-                stmt.setString(5, event.getTimestamp());
-                stmt.setString(6, event.getUserAgent());
-                stmt.setString(7, event.getIpAddress());
-                stmt.setString(8, event.getDeviceType());
-                stmt.setString(9, event.getBrowser());
-                stmt.setString(10, event.getOs());
-                stmt.setString(11, event.getCountry());
-                stmt.setString(12, event.getCity());
-
-                stmt.addBatch();
-                batchCount++;
-
-                if (batchCount >= batchSize) {
-                    stmt.executeBatch();
-                    redshiftConnection.commit();
-                    logger.debug("Executed batch of {} session events", batchCount);
-                    batchCount = 0;
-                }
-            }
-
-            if (batchCount > 0) {
-                stmt.executeBatch();
-                redshiftConnection.commit();
-                logger.debug("Executed final batch of {} session events", batchCount);
-            }
-
-            logger.info("Successfully inserted {} session events into Redshift", events.size());
+    public Map<String, Object> getPoolStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        HikariPoolMXBean pool = redshiftDataSource.getHikariPoolMXBean();
+        stats.put("max_size", redshiftDataSource.getMaximumPoolSize());
+        if (pool != null) {
+            stats.put("active", pool.getActiveConnections());
+            stats.put("idle", pool.getIdleConnections());
+            stats.put("total", pool.getTotalConnections());
+            stats.put("waiting_threads", pool.getThreadsAwaitingConnection());
         }
+        stats.put("reconnects", reconnects.sum());
+        return stats;
     }
 
     /**
      * Health check for Redshift connection
      */
     public boolean isHealthy() {
-        try (PreparedStatement stmt = redshiftConnection.prepareStatement("SELECT 1")) {
+        try (Connection connection = redshiftDataSource.getConnection();
+             PreparedStatement stmt = connection.prepareStatement("SELECT 1")) {
             ResultSet rs = stmt.executeQuery();
             return rs.next() && rs.getInt(1) == 1;
         } catch (SQLException e) {
@@ -372,70 +376,61 @@ public class RedshiftService {
     }
 
     /**
-     * Execute DDL using Redshift Data API for table creation
+     * Submit a statement through the Redshift Data API; completes with its id once accepted
      */
-    public void executeDDL(String sql) {
-        try {
-            ExecuteStatementRequest request = ExecuteStatementRequest.builder()
-                    .clusterIdentifier(clusterId)
-                    .database(database)
-                    .dbUser(username)
-                    .sql(sql)
-                    .build();
-
-            ExecuteStatementResponse response = redshiftDataClient.executeStatement(request);
-            logger.info("DDL executed successfully. Query ID: {}", response.id());
-
-            // Wait for completion
-            waitForQueryCompletion(response.id());
-
-        } catch (Exception e) {
-            logger.error("Failed to execute DDL: {}", sql, e);
-            throw new RuntimeException("Failed to execute DDL", e);
-        }
+    public CompletableFuture<String> executeStatement(String sql) {
+        return redshiftDataAsyncClient.executeStatement(request -> request
+                        .clusterIdentifier(clusterId)
+                        .database(database)
+                        .dbUser(username)
+                        .sql(sql))
+                .thenApply(response -> {
+                    logger.info("Submitted Redshift statement {}", response.id());
+                    return response.id();
+                });
     }
 
     /**
-     * Wait for query completion using Redshift Data API
+     * Submit statements that run in order in one transaction; completes with the batch id once
+     * accepted, while the outcome is logged when the batch finishes
      */
-    private void waitForQueryCompletion(String queryId) {
-        try {
-            int maxAttempts = 60; // 5 minutes max wait
-            int attempt = 0;
-
-            while (attempt < maxAttempts) {
-                DescribeStatementRequest describeRequest = DescribeStatementRequest.builder()
-                        .id(queryId)
-                        .build();
-
-                DescribeStatementResponse describeResponse = redshiftDataClient.describeStatement(describeRequest);
-                StatusString status = describeResponse.status();
-
-                if (status == StatusString.FINISHED) {
-                    logger.info("Query {} completed successfully", queryId);
-                    return;
-                } else if (status == StatusString.FAILED || status == StatusString.ABORTED) {
-                    logger.error("Query {} failed with status: {}", queryId, status);
-                    throw new RuntimeException("Query failed with status: " + status);
-                }
-
-                Thread.sleep(5000); // Wait 5 seconds before checking again
-                attempt++;
-            }
+    public CompletableFuture<String> executeBatch(List<String> sqls) {
+        return redshiftDataAsyncClient.batchExecuteStatement(request -> request
+                        .clusterIdentifier(clusterId)
+                        .database(database)
+                        .dbUser(username)
+                        .sqls(sqls))
+                .thenApply(response -> {
+                    String id = response.id();
+                    logger.info("Submitted batch of {} Redshift statements as {}", sqls.size(), id);
+                    statementTracker.track(id).whenComplete((description, error) -> {
+                        if (error != null) {
+                            logger.error("Redshift batch {} did not complete", id, error);
+                        } else {
+                            logger.info("Redshift batch {} finished", id);
+                        }
+                    });
+                    return id;
+                });
+    }
 
-            throw new RuntimeException("Query timed out after " + maxAttempts * 5 + " seconds");
+    /**
+     * Completes once the statement has finished, without holding a thread meanwhile
+     */
+    public CompletableFuture<DescribeStatementResponse> awaitStatement(String statementId) {
+        return statementTracker.track(statementId);
+    }
 
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            throw new RuntimeException("Query wait interrupted", e);
-        }
+    public CompletableFuture<DescribeStatementResponse> describeStatement(String statementId) {
+        return statementTracker.describe(statementId);
     }
 
     /**
      * Get current database name
      */
     public String getCurrentDatabase() {
-        try (PreparedStatement stmt = redshiftConnection.prepareStatement("SELECT current_database()")) {
+        try (Connection connection = redshiftDataSource.getConnection();
+             PreparedStatement stmt = connection.prepareStatement("SELECT current_database()")) {
             ResultSet rs = stmt.executeQuery();
             if (rs.next()) {
                 String currentDb = rs.getString(1);
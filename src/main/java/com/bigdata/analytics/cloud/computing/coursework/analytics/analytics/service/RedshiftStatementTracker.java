@@ -0,0 +1,143 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+import software.amazon.awssdk.services.redshiftdata.RedshiftDataAsyncClient;
+import software.amazon.awssdk.services.redshiftdata.model.DescribeStatementResponse;
+
+/**
+ * Follows Redshift Data API statements to completion without parking a thread on them.
+ *
+ * <p>Each statement is polled with {@code DescribeStatement} on a timer, first after {@code
+ * aws.redshift.data-api.initial-poll-ms} and then at doubling intervals capped at {@code max-poll-ms},
+ * so quick DDL is seen finished within a few hundred milliseconds while a long load costs one call
+ * every few seconds. A statement still running after {@code timeout-seconds} is cancelled.
+ */
+@Service
+@ConditionalOnProperty(name = "aws.redshift.enabled", havingValue = "true", matchIfMissing = false)
+public class RedshiftStatementTracker {
+
+  private static final Logger logger = LoggerFactory.getLogger(RedshiftStatementTracker.class);
+
+  @Autowired private RedshiftDataAsyncClient redshiftDataAsyncClient;
+
+  @Value("${aws.redshift.data-api.initial-poll-ms:100}")
+  private long initialPollMs;
+
+  @Value("${aws.redshift.data-api.max-poll-ms:5000}")
+  private long maxPollMs;
+
+  @Value("${aws.redshift.data-api.timeout-seconds:300}")
+  private long timeoutSeconds;
+
+  /** Only schedules polls; the describe calls themselves run on the SDK's event loop */
+  private ScheduledExecutorService timer;
+
+  @PostConstruct
+  void init() {
+    timer =
+        Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+              Thread thread = new Thread(runnable, "RedshiftStatementPoll");
+              thread.setDaemon(true);
+              return thread;
+            });
+  }
+
+  @PreDestroy
+  void shutdown() {
+    timer.shutdownNow();
+  }
+
+  /**
+   * Completes with the final description once the statement has finished. Fails if it fails or is
+   * aborted, and with a {@link TimeoutException} once it outlives the timeout.
+   */
+  public CompletableFuture<DescribeStatementResponse> track(String statementId) {
+    CompletableFuture<DescribeStatementResponse> result = new CompletableFuture<>();
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+    schedulePoll(statementId, result, initialPollMs, deadline);
+    return result;
+  }
+
+  /** The current description of a statement, as reported by the Data API */
+  public CompletableFuture<DescribeStatementResponse> describe(String statementId) {
+    return redshiftDataAsyncClient.describeStatement(request -> request.id(statementId));
+  }
+
+  private void schedulePoll(
+      String statementId,
+      CompletableFuture<DescribeStatementResponse> result,
+      long delayMs,
+      long deadline) {
+    try {
+      timer.schedule(
+          () -> poll(statementId, result, delayMs, deadline), delayMs, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      result.completeExceptionally(e);
+    }
+  }
+
+  private void poll(
+      String statementId,
+      CompletableFuture<DescribeStatementResponse> result,
+      long delayMs,
+      long deadline) {
+    if (result.isDone()) {
+      // The caller gave up on it
+      return;
+    }
+    describe(statementId)
+        .whenComplete(
+            (description, error) -> {
+              if (error != null) {
+                result.completeExceptionally(error);
+                return;
+              }
+              switch (description.status()) {
+                case FINISHED -> result.complete(description);
+                case FAILED, ABORTED -> result.completeExceptionally(
+                    new RuntimeException(
+                        "Redshift statement %s %s: %s"
+                            .formatted(statementId, description.status(), description.error())));
+                default -> {
+                  if (System.nanoTime() - deadline >= 0) {
+                    cancel(statementId);
+                    result.completeExceptionally(
+                        new TimeoutException(
+                            "Redshift statement %s still %s after %d seconds"
+                                .formatted(statementId, description.status(), timeoutSeconds)));
+                  } else {
+                    schedulePoll(
+                        statementId, result, Math.min(delayMs * 2, maxPollMs), deadline);
+                  }
+                }
+              }
+            });
+  }
+
+  private void cancel(String statementId) {
+    redshiftDataAsyncClient
+        .cancelStatement(request -> request.id(statementId))
+        .whenComplete(
+            (response, error) -> {
+              if (error != null) {
+                logger.warn("Failed to cancel Redshift statement {}", statementId, error);
+              } else {
+                logger.warn("Cancelled Redshift statement {} after its timeout", statementId);
+              }
+            });
+  }
+}
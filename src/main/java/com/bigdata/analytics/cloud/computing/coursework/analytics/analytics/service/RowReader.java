@@ -0,0 +1,93 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service;
+
+import java.io.IOException;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Typed reader for one query shape. Column positions are looked up by label once per result set,
+ * after which every row is mapped by index straight into a record.
+ */
+public final class RowReader<T> {
+
+  @FunctionalInterface
+  public interface Mapper<T> {
+    /** Build a record from the current row; {@code columns[i]} is the index of the i-th column */
+    T map(ResultSet rs, int[] columns) throws SQLException;
+  }
+
+  @FunctionalInterface
+  public interface RowHandler<T> {
+    void handle(T row) throws IOException;
+  }
+
+  private final String[] columnLabels;
+  private final Mapper<T> mapper;
+
+  private RowReader(Mapper<T> mapper, String[] columnLabels) {
+    this.mapper = mapper;
+    this.columnLabels = columnLabels;
+  }
+
+  public static <T> RowReader<T> of(Mapper<T> mapper, String... columnLabels) {
+    return new RowReader<>(mapper, columnLabels);
+  }
+
+  public List<T> readAll(ResultSet rs) throws SQLException {
+    List<T> rows = new ArrayList<>();
+    int[] columns = resolve(rs.getMetaData());
+    while (rs.next()) {
+      rows.add(mapper.map(rs, columns));
+    }
+    return rows;
+  }
+
+  /** Hand rows to {@code handler} one at a time without collecting them; returns the row count */
+  public long stream(ResultSet rs, RowHandler<T> handler) throws SQLException, IOException {
+    int[] columns = resolve(rs.getMetaData());
+    long count = 0;
+    while (rs.next()) {
+      handler.handle(mapper.map(rs, columns));
+      count++;
+    }
+    return count;
+  }
+
+  private int[] resolve(ResultSetMetaData metaData) throws SQLException {
+    int columnCount = metaData.getColumnCount();
+    int[] columns = new int[columnLabels.length];
+
+    for (int i = 0; i < columnLabels.length; i++) {
+      columns[i] = -1;
+      for (int c = 1; c <= columnCount; c++) {
+        if (columnLabels[i].equals(metaData.getColumnLabel(c))) {
+          columns[i] = c;
+          break;
+        }
+      }
+      if (columns[i] < 0) {
+        throw new SQLException("Result set has no column '" + columnLabels[i] + "'");
+      }
+    }
+    return columns;
+  }
+
+  /**
+   * The column as a Double, or null for SQL NULL and for the NaN that {@code avg} and {@code
+   * quantile} return over no values; {@link ResultSet#getDouble} would report both as a number
+   */
+  static Double getDouble(ResultSet rs, int column) throws SQLException {
+    double value = rs.getDouble(column);
+    return rs.wasNull() || Double.isNaN(value) ? null : value;
+  }
+
+  static LocalDateTime getLocalDateTime(ResultSet rs, int column) throws SQLException {
+    Timestamp timestamp = rs.getTimestamp(column);
+    return timestamp == null ? null : timestamp.toLocalDateTime();
+  }
+}
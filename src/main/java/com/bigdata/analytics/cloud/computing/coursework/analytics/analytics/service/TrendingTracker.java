@@ -0,0 +1,230 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service;
+
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.model.ClickEvent;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.model.PageViewEvent;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.sketch.CountMinSketch;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.sketch.MinuteRing;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.sketch.SpaceSaving;
+import jakarta.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Streaming top-K tracker for page URLs and clicked element ids over the last hour.
+ *
+ * <p>Each minute gets its own Space-Saving summary and Count-Min sketch. A query sums the
+ * Space-Saving bounds across the requested minutes, then tightens the best candidates with the
+ * Count-Min estimate. The merged ranking is reused for the rest of the second. Historical ranges
+ * are left to ClickHouse.
+ *
+ * <p>A window sums up to {@link #MAX_WINDOW_MINUTES} sketches, each of which may exceed its bound
+ * with probability {@code delta}. Each minute is therefore sized for {@code delta /
+ * MAX_WINDOW_MINUTES}, so that the summed estimate holds with probability {@code 1 - delta}.
+ *
+ * <p>Counts cover only the events this pod ingested; with several replicas each reports its own
+ * share of the traffic.
+ */
+@Service
+public class TrendingTracker {
+
+  public static final int MAX_WINDOW_MINUTES = 60;
+
+  public enum Dimension {
+    PAGES,
+    ELEMENTS
+  }
+
+  @Value("${analytics.trending.enabled:true}")
+  private boolean enabled;
+
+  @Value("${analytics.trending.capacity:128}")
+  private int capacity;
+
+  @Value("${analytics.trending.cms-epsilon:0.002}")
+  private double epsilon;
+
+  @Value("${analytics.trending.cms-delta:0.02}")
+  private double delta;
+
+  private final Map<Dimension, MinuteRing<Bucket>> rings = new HashMap<>();
+  private final ConcurrentHashMap<String, Ranking> rankings = new ConcurrentHashMap<>();
+
+  @PostConstruct
+  void init() {
+    for (Dimension dimension : Dimension.values()) {
+      rings.put(
+          dimension,
+          new MinuteRing<>(
+              MAX_WINDOW_MINUTES,
+              () ->
+                  new Bucket(
+                      new SpaceSaving(capacity),
+                      new CountMinSketch(epsilon, delta / MAX_WINDOW_MINUTES))));
+    }
+  }
+
+  public void recordPageViews(List<PageViewEvent> events) {
+    if (!enabled) {
+      return;
+    }
+    MinuteRing<Bucket> ring = rings.get(Dimension.PAGES);
+    synchronized (ring) {
+      Bucket bucket = ring.bucket(currentMinute());
+      for (PageViewEvent event : events) {
+        bucket.add(event.getPageUrl());
+      }
+    }
+  }
+
+  public void recordClicks(List<ClickEvent> events) {
+    if (!enabled) {
+      return;
+    }
+    MinuteRing<Bucket> ring = rings.get(Dimension.ELEMENTS);
+    synchronized (ring) {
+      Bucket bucket = ring.bucket(currentMinute());
+      for (ClickEvent event : events) {
+        String elementId = event.getElementId();
+        if (elementId != null && !elementId.isBlank()) {
+          bucket.add(elementId);
+        }
+      }
+    }
+  }
+
+  /** Heaviest items of the last {@code windowMinutes} minutes with their error bounds */
+  public Map<String, Object> getTrending(Dimension dimension, int windowMinutes, int limit) {
+    if (windowMinutes < 1 || windowMinutes > MAX_WINDOW_MINUTES) {
+      throw new IllegalArgumentException(
+          "Trending window must be between 1 and " + MAX_WINDOW_MINUTES + " minutes");
+    }
+
+    long start = System.nanoTime();
+    long epochSecond = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+    String key = dimension + ":" + windowMinutes;
+
+    Ranking ranking = rankings.get(key);
+    if (ranking == null || ranking.epochSecond != epochSecond) {
+      ranking = rank(dimension, windowMinutes, epochSecond);
+      rankings.put(key, ranking);
+    }
+
+    List<Map<String, Object>> items = new ArrayList<>();
+    for (Item item : ranking.items.subList(0, Math.min(limit, ranking.items.size()))) {
+      Map<String, Object> row = new LinkedHashMap<>();
+      row.put(dimension == Dimension.PAGES ? "page_url" : "element_id", item.key);
+      row.put("count", item.estimate);
+      row.put("lower_bound", item.lowerBound);
+      row.put("max_error", item.estimate - item.lowerBound);
+      items.add(row);
+    }
+
+    Map<String, Object> errorBounds = new LinkedHashMap<>();
+    errorBounds.put("space_saving_counters_per_minute", capacity);
+    errorBounds.put("count_min_epsilon", epsilon);
+    errorBounds.put("count_min_delta", delta);
+    errorBounds.put("max_overestimate", (long) Math.ceil(epsilon * ranking.totalEvents));
+    errorBounds.put(
+        "guarantee",
+        "count never underestimates; the true count lies in [lower_bound, count], and count"
+            + " exceeds it by at most max_overestimate with probability 1 - count_min_delta."
+            + " Counts cover the events received by this pod only");
+
+    Map<String, Object> result = new LinkedHashMap<>();
+    result.put("dimension", dimension.name().toLowerCase());
+    result.put("window_minutes", windowMinutes);
+    result.put("scope", "pod");
+    result.put("total_events", ranking.totalEvents);
+    result.put("items", items);
+    result.put("error_bounds", errorBounds);
+    result.put("computed_in_micros", TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+    return result;
+  }
+
+  private Ranking rank(Dimension dimension, int windowMinutes, long epochSecond) {
+    MinuteRing<Bucket> ring = rings.get(dimension);
+    List<Bucket> buckets = new ArrayList<>();
+    Map<String, long[]> bounds = new HashMap<>();
+    List<Item> items = new ArrayList<>();
+    long totalEvents = 0;
+
+    synchronized (ring) {
+      ring.forEachInWindow(currentMinute(), windowMinutes, buckets::add);
+
+      // Unmonitored minutes may still hide up to minCount occurrences of an item
+      long baseline = 0;
+      for (Bucket bucket : buckets) {
+        long minCount = bucket.summary.minCount();
+        baseline += minCount;
+        totalEvents += bucket.summary.getTotal();
+        for (Map.Entry<String, SpaceSaving.Counter> entry :
+            bucket.summary.getCounters().entrySet()) {
+          long[] bound = bounds.computeIfAbsent(entry.getKey(), k -> new long[2]);
+          SpaceSaving.Counter counter = entry.getValue();
+          bound[0] += counter.getCount() - minCount;
+          bound[1] += counter.getCount() - counter.getError();
+        }
+      }
+
+      for (Map.Entry<String, long[]> entry : bounds.entrySet()) {
+        items.add(new Item(entry.getKey(), baseline + entry.getValue()[0], entry.getValue()[1]));
+      }
+      items.sort(Comparator.comparingLong((Item item) -> item.estimate).reversed());
+
+      // Only the leading candidates are worth the Count-Min lookups
+      List<Item> candidates = new ArrayList<>(items.subList(0, Math.min(items.size(), capacity)));
+      for (Item item : candidates) {
+        long sketchEstimate = 0;
+        for (Bucket bucket : buckets) {
+          sketchEstimate += bucket.sketch.estimate(item.key);
+        }
+        item.estimate = Math.max(item.lowerBound, Math.min(item.estimate, sketchEstimate));
+      }
+      candidates.sort(Comparator.comparingLong((Item item) -> item.estimate).reversed());
+      items = candidates;
+    }
+
+    return new Ranking(epochSecond, totalEvents, items);
+  }
+
+  private static long currentMinute() {
+    return TimeUnit.MILLISECONDS.toMinutes(System.currentTimeMillis());
+  }
+
+  private static final class Bucket {
+    private final SpaceSaving summary;
+    private final CountMinSketch sketch;
+
+    private Bucket(SpaceSaving summary, CountMinSketch sketch) {
+      this.summary = summary;
+      this.sketch = sketch;
+    }
+
+    private void add(String item) {
+      summary.add(item);
+      sketch.add(item);
+    }
+  }
+
+  private static final class Item {
+    private final String key;
+    private final long lowerBound;
+    private long estimate;
+
+    private Item(String key, long estimate, long lowerBound) {
+      this.key = key;
+      this.estimate = estimate;
+      this.lowerBound = lowerBound;
+    }
+  }
+
+  private record Ranking(long epochSecond, long totalEvents, List<Item> items) {}
+}
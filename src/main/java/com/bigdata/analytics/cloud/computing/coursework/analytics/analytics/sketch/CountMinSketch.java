@@ -0,0 +1,60 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.sketch;
+
+/**
+ * Count-Min sketch for frequency estimation.
+ *
+ * <p>With width {@code ceil(e / epsilon)} and depth {@code ceil(ln(1 / delta))} an estimate never
+ * undercounts and overcounts by at most {@code epsilon * N} with probability {@code 1 - delta},
+ * where {@code N} is the total number of offers. Not thread-safe.
+ */
+public final class CountMinSketch {
+
+  private final double epsilon;
+  private final double delta;
+  private final int width;
+  private final int[][] table;
+  private long total;
+
+  public CountMinSketch(double epsilon, double delta) {
+    if (epsilon <= 0 || epsilon >= 1 || delta <= 0 || delta >= 1) {
+      throw new IllegalArgumentException("epsilon and delta must be between 0 and 1");
+    }
+    this.epsilon = epsilon;
+    this.delta = delta;
+    this.width = (int) Math.ceil(Math.E / epsilon);
+    this.table = new int[(int) Math.ceil(Math.log(1 / delta))][width];
+  }
+
+  public void add(String item) {
+    long hash = Hashing.hash64(item);
+    int h1 = (int) hash;
+    int h2 = (int) (hash >>> 32);
+    for (int row = 0; row < table.length; row++) {
+      table[row][Math.floorMod(h1 + row * h2, width)]++;
+    }
+    total++;
+  }
+
+  public long estimate(String item) {
+    long hash = Hashing.hash64(item);
+    int h1 = (int) hash;
+    int h2 = (int) (hash >>> 32);
+    long min = Long.MAX_VALUE;
+    for (int row = 0; row < table.length; row++) {
+      min = Math.min(min, table[row][Math.floorMod(h1 + row * h2, width)]);
+    }
+    return min;
+  }
+
+  public long getTotal() {
+    return total;
+  }
+
+  public double getEpsilon() {
+    return epsilon;
+  }
+
+  public double getDelta() {
+    return delta;
+  }
+}
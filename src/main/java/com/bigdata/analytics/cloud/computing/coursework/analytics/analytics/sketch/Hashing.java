@@ -0,0 +1,27 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.sketch;
+
+/** Hash functions shared by the streaming sketches */
+public final class Hashing {
+
+  private Hashing() {}
+
+  /** 64-bit FNV-1a over the UTF-16 code units, finished with the MurmurHash3 avalanche step */
+  public static long hash64(String value) {
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < value.length(); i++) {
+      hash ^= value.charAt(i);
+      hash *= 0x100000001b3L;
+    }
+    return mix64(hash);
+  }
+
+  /** MurmurHash3 fmix64 finaliser */
+  public static long mix64(long hash) {
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+}
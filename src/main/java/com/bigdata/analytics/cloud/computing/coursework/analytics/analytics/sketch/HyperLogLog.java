@@ -0,0 +1,121 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.sketch;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * HyperLogLog distinct counter with a fixed, mergeable binary encoding.
+ *
+ * <p>With precision {@code p} the sketch uses {@code 2^p} one-byte registers and has a standard
+ * error of roughly {@code 1.04 / sqrt(2^p)} (about 1.6% at the default {@code p = 12}). Sketches of
+ * the same precision built on different pods can be merged losslessly. Instances are not
+ * thread-safe; callers synchronise around updates.
+ */
+public final class HyperLogLog {
+
+  private static final byte FORMAT_VERSION = 1;
+
+  private final int precision;
+  private final byte[] registers;
+
+  public HyperLogLog(int precision) {
+    if (precision < 4 || precision > 16) {
+      throw new IllegalArgumentException("HyperLogLog precision must be between 4 and 16");
+    }
+    this.precision = precision;
+    this.registers = new byte[1 << precision];
+  }
+
+  public int getPrecision() {
+    return precision;
+  }
+
+  public void offer(String value) {
+    if (value == null || value.isEmpty()) {
+      return;
+    }
+    offerHash(Hashing.hash64(value));
+  }
+
+  void offerHash(long hash) {
+    int index = (int) (hash >>> (64 - precision));
+    long remaining = (hash << precision) | (1L << (precision - 1));
+    byte rank = (byte) (Long.numberOfLeadingZeros(remaining) + 1);
+    if (rank > registers[index]) {
+      registers[index] = rank;
+    }
+  }
+
+  public long estimate() {
+    int m = registers.length;
+    double sum = 0;
+    int zeros = 0;
+    for (byte register : registers) {
+      sum += 1.0 / (1L << register);
+      if (register == 0) {
+        zeros++;
+      }
+    }
+
+    double estimate = alpha(m) * m * m / sum;
+    if (estimate <= 2.5 * m && zeros > 0) {
+      estimate = m * Math.log((double) m / zeros);
+    }
+    return Math.round(estimate);
+  }
+
+  /** Fold another sketch of the same precision into this one */
+  public void merge(HyperLogLog other) {
+    if (other.precision != precision) {
+      throw new IllegalArgumentException(
+          "Cannot merge HyperLogLog sketches with precision "
+              + precision
+              + " and "
+              + other.precision);
+    }
+    for (int i = 0; i < registers.length; i++) {
+      if (other.registers[i] > registers[i]) {
+        registers[i] = other.registers[i];
+      }
+    }
+  }
+
+  public HyperLogLog copy() {
+    HyperLogLog copy = new HyperLogLog(precision);
+    System.arraycopy(registers, 0, copy.registers, 0, registers.length);
+    return copy;
+  }
+
+  public void clear() {
+    Arrays.fill(registers, (byte) 0);
+  }
+
+  public byte[] toBytes() {
+    return ByteBuffer.allocate(2 + registers.length)
+        .put(FORMAT_VERSION)
+        .put((byte) precision)
+        .put(registers)
+        .array();
+  }
+
+  public static HyperLogLog fromBytes(byte[] bytes) {
+    if (bytes == null || bytes.length < 2 || bytes[0] != FORMAT_VERSION) {
+      throw new IllegalArgumentException("Unsupported HyperLogLog encoding");
+    }
+    HyperLogLog sketch = new HyperLogLog(bytes[1]);
+    if (bytes.length != 2 + sketch.registers.length) {
+      throw new IllegalArgumentException("Truncated HyperLogLog encoding");
+    }
+    System.arraycopy(bytes, 2, sketch.registers, 0, sketch.registers.length);
+    return sketch;
+  }
+
+  private static double alpha(int m) {
+    return switch (m) {
+      case 16 -> 0.673;
+      case 32 -> 0.697;
+      case 64 -> 0.709;
+      default -> 0.7213 / (1 + 1.079 / m);
+    };
+  }
+}
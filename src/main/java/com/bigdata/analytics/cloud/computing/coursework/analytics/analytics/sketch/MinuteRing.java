@@ -0,0 +1,49 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.sketch;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Fixed-size ring of per-minute buckets. A slot is lazily reset the first time it is touched in a
+ * new minute, so memory stays constant no matter how long the service runs. Not thread-safe.
+ */
+public final class MinuteRing<T> {
+
+  private final Supplier<T> factory;
+  private final long[] minutes;
+  private final Object[] buckets;
+
+  public MinuteRing(int size, Supplier<T> factory) {
+    this.factory = factory;
+    this.minutes = new long[size];
+    this.buckets = new Object[size];
+    Arrays.fill(minutes, Long.MIN_VALUE);
+  }
+
+  public int size() {
+    return buckets.length;
+  }
+
+  /** Bucket for the given epoch minute, recycling whatever older minute occupied the slot */
+  @SuppressWarnings("unchecked")
+  public T bucket(long epochMinute) {
+    int slot = (int) Math.floorMod(epochMinute, (long) buckets.length);
+    if (minutes[slot] != epochMinute) {
+      minutes[slot] = epochMinute;
+      buckets[slot] = factory.get();
+    }
+    return (T) buckets[slot];
+  }
+
+  /** Visit buckets for the {@code windowMinutes} minutes ending at {@code nowMinute} inclusive */
+  @SuppressWarnings("unchecked")
+  public void forEachInWindow(long nowMinute, int windowMinutes, Consumer<T> visitor) {
+    long oldest = nowMinute - Math.min(windowMinutes, buckets.length) + 1;
+    for (int slot = 0; slot < buckets.length; slot++) {
+      if (minutes[slot] >= oldest && minutes[slot] <= nowMinute) {
+        visitor.accept((T) buckets[slot]);
+      }
+    }
+  }
+}
@@ -0,0 +1,171 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.sketch;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Space-Saving heavy-hitter summary (Metwally et al.) over a fixed number of counters.
+ *
+ * <p>Every monitored item carries a count that never underestimates its true frequency and an
+ * error term such that {@code count - error} never overestimates it. An item that is not monitored
+ * occurred at most {@link #minCount()} times. Any item with true frequency above {@code N /
+ * capacity} is guaranteed to be monitored.
+ *
+ * <p>Counters are kept in the paper's Stream-Summary: a list of buckets in ascending count order,
+ * each holding the counters that share its count. An offer moves one counter to the next bucket and
+ * an eviction takes a counter from the first, so both are O(1). Not thread-safe.
+ */
+public final class SpaceSaving {
+
+  public static final class Counter {
+    private String item;
+    private long count;
+    private long error;
+
+    private Bucket bucket;
+    private Counter previous;
+    private Counter next;
+
+    public long getCount() {
+      return count;
+    }
+
+    public long getError() {
+      return error;
+    }
+  }
+
+  /** Counters sharing one count, linked to the buckets of the next lower and higher counts */
+  private static final class Bucket {
+    private final long count;
+    private Bucket previous;
+    private Bucket next;
+    private Counter first;
+
+    private Bucket(long count) {
+      this.count = count;
+    }
+  }
+
+  private final int capacity;
+  private final Map<String, Counter> counters;
+  private Bucket smallest;
+  private long total;
+
+  public SpaceSaving(int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("capacity must be positive");
+    }
+    this.capacity = capacity;
+    this.counters = new HashMap<>(capacity * 2);
+  }
+
+  public void add(String item) {
+    total++;
+    Counter counter = counters.get(item);
+    if (counter != null) {
+      increment(counter);
+      return;
+    }
+
+    if (counters.size() < capacity) {
+      counter = new Counter();
+      counter.item = item;
+      counter.count = 1;
+      if (smallest == null || smallest.count != 1) {
+        insertBucket(new Bucket(1), null);
+      }
+      attach(counter, smallest);
+      counters.put(item, counter);
+      return;
+    }
+
+    // Replace a smallest counter; the newcomer inherits its count as potential error
+    counter = smallest.first;
+    counters.remove(counter.item);
+    counter.item = item;
+    counter.error = counter.count;
+    counters.put(item, counter);
+    increment(counter);
+  }
+
+  /** Upper bound on the frequency of any item that is not currently monitored */
+  public long minCount() {
+    return counters.size() < capacity ? 0 : smallest.count;
+  }
+
+  public Map<String, Counter> getCounters() {
+    return Collections.unmodifiableMap(counters);
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  public long getTotal() {
+    return total;
+  }
+
+  private void increment(Counter counter) {
+    Bucket from = counter.bucket;
+    long count = counter.count + 1;
+    Bucket to = from.next;
+    if (to == null || to.count != count) {
+      to = new Bucket(count);
+      insertBucket(to, from);
+    }
+    detach(counter);
+    counter.count = count;
+    attach(counter, to);
+  }
+
+  /** Link {@code bucket} in after {@code after}, or at the front when {@code after} is null */
+  private void insertBucket(Bucket bucket, Bucket after) {
+    bucket.previous = after;
+    bucket.next = after == null ? smallest : after.next;
+    if (bucket.next != null) {
+      bucket.next.previous = bucket;
+    }
+    if (after == null) {
+      smallest = bucket;
+    } else {
+      after.next = bucket;
+    }
+  }
+
+  private static void attach(Counter counter, Bucket bucket) {
+    counter.bucket = bucket;
+    counter.previous = null;
+    counter.next = bucket.first;
+    if (bucket.first != null) {
+      bucket.first.previous = counter;
+    }
+    bucket.first = counter;
+  }
+
+  /** Unlink {@code counter} from its bucket, dropping the bucket once it is empty */
+  private void detach(Counter counter) {
+    Bucket bucket = counter.bucket;
+    if (counter.previous != null) {
+      counter.previous.next = counter.next;
+    } else {
+      bucket.first = counter.next;
+    }
+    if (counter.next != null) {
+      counter.next.previous = counter.previous;
+    }
+    counter.bucket = null;
+
+    if (bucket.first == null) {
+      if (bucket.previous != null) {
+        bucket.previous.next = bucket.next;
+      } else {
+        smallest = bucket.next;
+      }
+      if (bucket.next != null) {
+        bucket.next.previous = bucket.previous;
+      }
+    }
+  }
+}
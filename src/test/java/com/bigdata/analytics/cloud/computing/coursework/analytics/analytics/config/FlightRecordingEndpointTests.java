@@ -0,0 +1,75 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.config;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.boot.actuate.endpoint.web.WebEndpointResponse;
+import org.springframework.core.io.Resource;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.unit.DataSize;
+
+class FlightRecordingEndpointTests {
+
+	@TempDir
+	private Path dir;
+
+	private final FlightRecordingEndpoint endpoint = endpoint();
+
+	@AfterEach
+	void discard() {
+		endpoint.discard();
+	}
+
+	@Test
+	void neverRecordsTheEnvironmentSystemPropertiesOrCommandLines() throws Exception {
+		long id = ((Number) endpoint.start(Duration.ofMinutes(1)).get("id")).longValue();
+
+		List<RecordedEvent> events = download(id);
+
+		assertThat(events).extracting(e -> e.getEventType().getName())
+				.contains("jdk.OSInformation")
+				.doesNotContainAnyElementsOf(FlightRecordingEndpoint.SENSITIVE_EVENTS);
+	}
+
+	@Test
+	void capsTheDurationAndKeepsOneRecordingAtATime() throws Exception {
+		Map<String, Object> started = endpoint.start(Duration.ofHours(5));
+		assertThat(started.get("duration")).isEqualTo(Duration.ofMinutes(2));
+
+		assertThat(endpoint.start(null).get("id")).isEqualTo(started.get("id"));
+		assertThat(endpoint.dump(((Number) started.get("id")).longValue() + 1).getStatus())
+				.isEqualTo(WebEndpointResponse.STATUS_NOT_FOUND);
+
+		endpoint.discard();
+		assertThat(endpoint.status()).containsEntry("state", "NONE");
+	}
+
+	private List<RecordedEvent> download(long id) throws Exception {
+		WebEndpointResponse<Resource> response = endpoint.dump(id);
+		assertThat(response.getStatus()).isEqualTo(WebEndpointResponse.STATUS_OK);
+		Path file = dir.resolve("recording.jfr");
+		try (InputStream in = response.getBody().getInputStream()) {
+			Files.copy(in, file);
+		}
+		return RecordingFile.readAllEvents(file);
+	}
+
+	private static FlightRecordingEndpoint endpoint() {
+		FlightRecordingEndpoint endpoint = new FlightRecordingEndpoint();
+		ReflectionTestUtils.setField(endpoint, "settings", "default");
+		ReflectionTestUtils.setField(endpoint, "maxDuration", Duration.ofMinutes(2));
+		ReflectionTestUtils.setField(endpoint, "maxAge", Duration.ofMinutes(2));
+		ReflectionTestUtils.setField(endpoint, "maxSize", DataSize.ofMegabytes(16));
+		return endpoint;
+	}
+}
@@ -0,0 +1,122 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.config;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service.QueryJobService;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.util.ReflectionTestUtils;
+
+class QueryJobRoutingFilterTests {
+
+	private final QueryJobService queryJobService = mock(QueryJobService.class);
+
+	/** Requests the owner pod received, as method, path and query */
+	private final List<String> received = new CopyOnWriteArrayList<>();
+
+	private HttpServer owner;
+	private QueryJobRoutingFilter filter;
+
+	@BeforeEach
+	void init() throws Exception {
+		owner = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		owner.createContext("/", exchange -> {
+			received.add(exchange.getRequestMethod() + " " + exchange.getRequestURI() + " "
+					+ exchange.getRequestHeaders().getFirst(QueryJobRoutingFilter.FORWARDED_HEADER));
+			byte[] body = "{\"status\":\"running\"}".getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().add("Content-Type", "application/json");
+			exchange.sendResponseHeaders(202, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		});
+		owner.start();
+
+		filter = new QueryJobRoutingFilter();
+		ReflectionTestUtils.setField(filter, "queryJobService", queryJobService);
+		ReflectionTestUtils.setField(filter, "objectMapper", new ObjectMapper());
+	}
+
+	@AfterEach
+	void close() {
+		owner.stop(0);
+	}
+
+	@Test
+	void forwardsAnotherPodsJobToItsOwner() throws Exception {
+		when(queryJobService.ownerOf("abc.123")).thenReturn(Optional.of(owner.getAddress()));
+		MockHttpServletRequest request = request("GET", "/analytics/jobs/abc.123/results");
+		request.setQueryString("offset=10&limit=5");
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		MockFilterChain chain = new MockFilterChain();
+
+		filter.doFilter(request, response, chain);
+
+		assertThat(received).containsExactly("GET /analytics-service/analytics/jobs/abc.123/results?offset=10&limit=5 1");
+		assertThat(response.getStatus()).isEqualTo(202);
+		assertThat(response.getContentType()).isEqualTo("application/json");
+		assertThat(response.getContentAsString()).isEqualTo("{\"status\":\"running\"}");
+		assertThat(chain.getRequest()).isNull();
+	}
+
+	@Test
+	void answersItsOwnJobsLocally() throws Exception {
+		when(queryJobService.ownerOf("local")).thenReturn(Optional.empty());
+		MockFilterChain chain = new MockFilterChain();
+
+		filter.doFilter(request("DELETE", "/analytics/jobs/local"), new MockHttpServletResponse(), chain);
+
+		assertThat(chain.getRequest()).isNotNull();
+		assertThat(received).isEmpty();
+	}
+
+	@Test
+	void neverForwardsAForwardedRequestAgain() throws Exception {
+		when(queryJobService.ownerOf("abc.123")).thenReturn(Optional.of(owner.getAddress()));
+		MockHttpServletRequest request = request("GET", "/analytics/jobs/abc.123");
+		request.addHeader(QueryJobRoutingFilter.FORWARDED_HEADER, "1");
+		MockFilterChain chain = new MockFilterChain();
+
+		filter.doFilter(request, new MockHttpServletResponse(), chain);
+
+		assertThat(chain.getRequest()).isNotNull();
+		assertThat(received).isEmpty();
+	}
+
+	@Test
+	void reportsTheJobsOfAGonePodAsNotFound() throws Exception {
+		InetSocketAddress gone;
+		try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+			gone = new InetSocketAddress(socket.getInetAddress(), socket.getLocalPort());
+		}
+		when(queryJobService.ownerOf("abc.123")).thenReturn(Optional.of(gone));
+		MockHttpServletResponse response = new MockHttpServletResponse();
+
+		filter.doFilter(request("GET", "/analytics/jobs/abc.123"), response, new MockFilterChain());
+
+		assertThat(response.getStatus()).isEqualTo(404);
+		assertThat(response.getContentAsString()).contains("was lost with the pod that ran it");
+	}
+
+	private static MockHttpServletRequest request(String method, String path) {
+		MockHttpServletRequest request = new MockHttpServletRequest(method, "/analytics-service" + path);
+		request.setContextPath("/analytics-service");
+		return request;
+	}
+}
@@ -0,0 +1,207 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.controller;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto.ApiResponse;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto.ClickAnalyticsRow;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto.QueryPrecision;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.exception.GlobalExceptionHandler;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.exception.ResponseAbortedException;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service.AnalyticsService;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service.Bulkhead;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service.ClickHouseService;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service.IngestMetrics;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service.RateLimitService;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service.QueryCostGuard.GuardedQuery;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service.RowReader.RowHandler;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockAsyncContext;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+class AnalyticsControllerTests {
+
+	private static final GuardedQuery QUERY = new GuardedQuery("SELECT 1",
+			new QueryPrecision(QueryPrecision.EXACT, 1.0, "none", 0, 0));
+
+	private static final ClickAnalyticsRow ROW = new ClickAnalyticsRow("/home", "button", "buy", "cta", 10, 4, 12.5,
+			40.0, 1);
+
+	private final ClickHouseService clickHouseService = mock(ClickHouseService.class);
+
+	private final AnalyticsService analyticsService = mock(AnalyticsService.class);
+
+	private final Bulkhead ingestBulkhead = new Bulkhead("ingest", 1, 1);
+
+	private MockMvc mockMvc;
+
+	@BeforeEach
+	void init() throws Exception {
+		AnalyticsController controller = new AnalyticsController();
+		ReflectionTestUtils.setField(controller, "clickHouseService", clickHouseService);
+		ReflectionTestUtils.setField(controller, "objectMapper", new ObjectMapper());
+		ReflectionTestUtils.setField(controller, "clicksTimeoutSeconds", 60);
+		ReflectionTestUtils.setField(controller, "analyticsService", analyticsService);
+		ReflectionTestUtils.setField(controller, "ingestBulkhead", ingestBulkhead);
+		ReflectionTestUtils.setField(controller, "ingestMetrics", mock(IngestMetrics.class));
+		ReflectionTestUtils.setField(controller, "ingestTimeoutMs", 60_000L);
+		RateLimitService rateLimitService = mock(RateLimitService.class);
+		when(rateLimitService.isAllowed(anyString())).thenReturn(true);
+		ReflectionTestUtils.setField(controller, "rateLimitService", rateLimitService);
+		mockMvc = MockMvcBuilders.standaloneSetup(controller).setControllerAdvice(new GlobalExceptionHandler()).build();
+
+		when(clickHouseService.planClickAnalytics(anyString())).thenReturn(QUERY);
+	}
+
+	@AfterEach
+	void close() {
+		ingestBulkhead.shutdown();
+	}
+
+	@Test
+	void asksForARetryOnlyWhenTheBatchNeverStarted() throws Exception {
+		CountDownLatch busy = new CountDownLatch(1);
+		ingestBulkhead.getExecutor().execute(() -> hold(busy));
+
+		MvcResult queued = postEvents();
+		timeOut(queued);
+		busy.countDown();
+		ingestBulkhead.drain(Duration.ofSeconds(5));
+
+		MvcResult result = mockMvc.perform(asyncDispatch(queued)).andReturn();
+		assertThat(result.getResponse().getStatus()).isEqualTo(503);
+		assertThat(result.getResponse().getHeader("Retry-After")).isEqualTo("1");
+		verify(analyticsService, never()).processEvents(any(), any());
+	}
+
+	@Test
+	void letsAStartedBatchFinishInsteadOfAskingForARetry() throws Exception {
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		AtomicBoolean interrupted = new AtomicBoolean();
+		when(analyticsService.processEvents(any(), any())).thenAnswer(invocation -> {
+			started.countDown();
+			hold(release);
+			interrupted.set(Thread.currentThread().isInterrupted());
+			return ApiResponse.success();
+		});
+
+		MvcResult writing = postEvents();
+		assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+		timeOut(writing);
+
+		MvcResult result = mockMvc.perform(asyncDispatch(writing)).andReturn();
+		assertThat(result.getResponse().getStatus()).isEqualTo(202);
+		assertThat(result.getResponse().getHeader("Retry-After")).isNull();
+
+		release.countDown();
+		ingestBulkhead.drain(Duration.ofSeconds(5));
+		verify(analyticsService, times(1)).processEvents(any(), any());
+		assertThat(interrupted).isFalse();
+	}
+
+	@Test
+	void streamsClickRowsAsOneJsonDocument() throws Exception {
+		answerRows(3, false);
+
+		MvcResult result = mockMvc.perform(asyncDispatch(start())).andReturn();
+
+		assertThat(result.getResponse().getStatus()).isEqualTo(200);
+		assertThat(new ObjectMapper().readTree(result.getResponse().getContentAsString()).get("count").asLong())
+			.isEqualTo(3);
+	}
+
+	@Test
+	void answersAnErrorStatusWhenTheQueryFailsBeforeTheFirstRow() throws Exception {
+		answerRows(0, true);
+
+		MvcResult result = mockMvc.perform(asyncDispatch(start())).andReturn();
+
+		assertThat(result.getResponse().getStatus()).isEqualTo(500);
+		assertThat(result.getResponse().getContentAsString()).contains("Internal server error")
+			.doesNotContain("clicks");
+	}
+
+	@Test
+	void abortsTheResponseWhenTheQueryFailsMidStream() throws Exception {
+		// Enough rows to get past the generator's buffer into the response
+		answerRows(500, true);
+		MvcResult started = start();
+
+		// Left to the container, which drops the connection instead of ending the body
+		assertThatThrownBy(() -> mockMvc.perform(asyncDispatch(started)))
+			.isInstanceOf(ResponseAbortedException.class)
+			.hasRootCauseInstanceOf(SQLException.class);
+		assertThat(started.getResponse().getContentAsString()).startsWith("{\"timeRange\":\"24h\"")
+			.doesNotContain("\"count\"");
+	}
+
+	private MvcResult postEvents() throws Exception {
+		MvcResult result = mockMvc.perform(post("/analytics/events").contentType(MediaType.APPLICATION_JSON).content("{}"))
+			.andReturn();
+		assertThat(result.getRequest().isAsyncStarted()).isTrue();
+		return result;
+	}
+
+	/** What the container does once the async timeout passes */
+	private static void timeOut(MvcResult result) throws IOException {
+		MockAsyncContext context = (MockAsyncContext) result.getRequest().getAsyncContext();
+		for (AsyncListener listener : context.getListeners()) {
+			listener.onTimeout(new AsyncEvent(context));
+		}
+	}
+
+	private static void hold(CountDownLatch release) {
+		try {
+			release.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private MvcResult start() throws Exception {
+		MvcResult result = mockMvc.perform(get("/analytics/clicks")).andReturn();
+		assertThat(result.getRequest().isAsyncStarted()).isTrue();
+		result.getAsyncResult(10_000);
+		return result;
+	}
+
+	private void answerRows(int rows, boolean thenFail) throws Exception {
+		doAnswer(invocation -> {
+			RowHandler<ClickAnalyticsRow> handler = invocation.getArgument(1);
+			for (int i = 0; i < rows; i++) {
+				handler.handle(ROW);
+			}
+			if (thenFail) {
+				throw new SQLException("Code: 241. DB::Exception: Memory limit exceeded");
+			}
+			return (long) rows;
+		}).when(clickHouseService).streamClickAnalytics(any(), any());
+	}
+}
@@ -0,0 +1,53 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.controller;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service.RedshiftService;
+import java.util.concurrent.CompletableFuture;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import software.amazon.awssdk.services.redshiftdata.model.DescribeStatementResponse;
+import software.amazon.awssdk.services.redshiftdata.model.ResourceNotFoundException;
+import software.amazon.awssdk.services.redshiftdata.model.ValidationException;
+
+class RedshiftControllerTests {
+
+	private final RedshiftService redshiftService = mock(RedshiftService.class);
+
+	private RedshiftController controller;
+
+	@BeforeEach
+	void init() {
+		controller = new RedshiftController();
+		ReflectionTestUtils.setField(controller, "redshiftService", redshiftService);
+	}
+
+	@Test
+	void answersNotFoundForAnUnknownStatement() {
+		describeFails("unknown", ResourceNotFoundException.builder().message("Query does not exist.").build());
+
+		assertThat(controller.getStatement("unknown").join().getStatusCode().value()).isEqualTo(404);
+	}
+
+	@Test
+	void answersBadRequestForAMalformedStatementId() {
+		describeFails("not-a-uuid", ValidationException.builder().message("id must be a UUID").build());
+
+		assertThat(controller.getStatement("not-a-uuid").join().getStatusCode().value()).isEqualTo(400);
+	}
+
+	@Test
+	void answersServerErrorForAnyOtherFailure() {
+		describeFails("f00d", new IllegalStateException("Connection reset"));
+
+		assertThat(controller.getStatement("f00d").join().getStatusCode().value()).isEqualTo(500);
+	}
+
+	private void describeFails(String id, Throwable error) {
+		when(redshiftService.describeStatement(id))
+			.thenReturn(CompletableFuture.<DescribeStatementResponse>failedFuture(error));
+	}
+}
@@ -0,0 +1,566 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.loadtest;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An in-process stand-in for the ClickHouse HTTP interface, enough for the JDBC driver and
+ * {@code ClickHouseHttpClient} to run against it without a server.
+ *
+ * <p>INSERTs are read to the end and discarded. DDL and other statements succeed without doing
+ * anything. A SELECT answers with the result registered for the first pattern that matches its
+ * SQL. Otherwise the column names are taken from the outermost select list and every column is a
+ * Nullable(String); the driver also learns the column types of an INSERT this way. A query with no GROUP BY, ORDER BY or LIMIT at the top level gets one row of zeros, the
+ * way an aggregate over an empty table would; anything else gets no rows. Results are written as
+ * RowBinaryWithNamesAndTypes, JSONEachRow, JSONCompact or TabSeparated.
+ *
+ * <p>Every request except the driver's handshake can be delayed by a fixed latency plus uniform
+ * jitter, failed with ClickHouse's error format at a configurable rate, and recorded for tests that
+ * check which statements were sent.
+ */
+public final class ClickHouseStandIn implements AutoCloseable {
+
+	public record Column(String name, String type) {
+	}
+
+	/** Rows hold Strings, Numbers, LocalDateTimes or Instants, matching their column types */
+	public record Result(List<Column> columns, List<Object[]> rows) {
+
+		public static Result of(List<Column> columns, List<Object[]> rows) {
+			return new Result(columns, rows);
+		}
+	}
+
+	private static final Pattern FORMAT = Pattern.compile("(?is)\\bFORMAT\\s+(\\w+)\\s*;?\\s*$");
+	private static final Pattern ALIAS = Pattern.compile("(?is).*\\s+as\\s+`?([A-Za-z_]\\w*)`?$");
+	private static final Pattern IDENTIFIER = Pattern.compile("[A-Za-z_][\\w.]*");
+
+	/** Answer to the query the JDBC driver runs when it connects */
+	private static final Result SERVER_INFO = Result.of(
+			List.of(new Column("user", "String"), new Column("timezone", "String"), new Column("version", "String"),
+					new Column("readonly", "UInt8"),
+					new Column("throw_on_unsupported_query_inside_transaction", "Int8"),
+					new Column("wait_changes_become_visible_after_commit_mode", "String"),
+					new Column("implicit_transaction", "Int8"), new Column("max_insert_block_size", "UInt64"),
+					new Column("allow_experimental_lightweight_delete", "Int8"),
+					new Column("custom_jdbc_config", "String")),
+			List.<Object[]>of(new Object[] { "default", "UTC", "23.8.1.1", 0, -1, "", -1, 1_048_449L, 1, "" }));
+
+	private static final List<Column> EXPLAIN_ESTIMATE_COLUMNS = List.of(new Column("database", "String"),
+			new Column("table", "String"), new Column("parts", "UInt64"), new Column("rows", "UInt64"),
+			new Column("marks", "UInt64"));
+
+	/** Nothing to read, so the cost guard lets every query through unsampled */
+	private static final Result EXPLAIN_ESTIMATE = Result.of(EXPLAIN_ESTIMATE_COLUMNS, List.of());
+
+	static {
+		// The driver writes headers and body separately; with Nagle on, every request waits out a delayed ACK
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+	}
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final List<Map.Entry<Pattern, Result>> results = new CopyOnWriteArrayList<>();
+	private final List<Map.Entry<Pattern, Result>> estimates = new CopyOnWriteArrayList<>();
+
+	private volatile long latencyMicros;
+	private volatile long jitterMicros;
+	private volatile double failureRate;
+	private volatile List<String> statements;
+
+	private final LongAdder inserts = new LongAdder();
+	private final LongAdder insertedBytes = new LongAdder();
+	private final LongAdder selects = new LongAdder();
+	private final LongAdder otherStatements = new LongAdder();
+	private final LongAdder injectedFailures = new LongAdder();
+
+	private ClickHouseStandIn(HttpServer server, int threads) {
+		this.server = server;
+		this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+			Thread thread = new Thread(runnable, "ClickHouseStandIn");
+			thread.setDaemon(true);
+			return thread;
+		});
+		server.setExecutor(executor);
+		server.createContext("/", this::handle);
+	}
+
+	/** Listen on a free local port, serving {@code threads} requests at a time */
+	public static ClickHouseStandIn start(int threads) throws IOException {
+		ClickHouseStandIn standIn = new ClickHouseStandIn(
+				HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1_024), threads);
+		standIn.server.start();
+		return standIn;
+	}
+
+	/** Base URL, as {@code clickhouse.host} takes it */
+	public String url() {
+		return "http://127.0.0.1:" + server.getAddress().getPort();
+	}
+
+	/** Answer SELECTs whose SQL contains a match for {@code regex} with {@code result} */
+	public ClickHouseStandIn respond(String regex, Result result) {
+		results.add(Map.entry(Pattern.compile(regex, Pattern.CASE_INSENSITIVE | Pattern.DOTALL), result));
+		return this;
+	}
+
+	/**
+	 * Answer {@code EXPLAIN ESTIMATE} for queries whose SQL contains a match for {@code regex} with
+	 * {@code rows} rows to read from {@code table}
+	 */
+	public ClickHouseStandIn estimate(String regex, String table, long rows) {
+		estimates.add(Map.entry(Pattern.compile(regex, Pattern.CASE_INSENSITIVE | Pattern.DOTALL),
+				Result.of(EXPLAIN_ESTIMATE_COLUMNS, List.<Object[]>of(new Object[] { "default", table, 1, rows, 1 }))));
+		return this;
+	}
+
+	/** Delay every answer by {@code latency} plus a uniformly distributed share of {@code jitter} */
+	public ClickHouseStandIn latency(Duration latency, Duration jitter) {
+		latencyMicros = TimeUnit.NANOSECONDS.toMicros(latency.toNanos());
+		jitterMicros = TimeUnit.NANOSECONDS.toMicros(jitter.toNanos());
+		return this;
+	}
+
+	/** Fail this fraction of requests, between 0 and 1, with a ClickHouse exception */
+	public ClickHouseStandIn failureRate(double failureRate) {
+		this.failureRate = failureRate;
+		return this;
+	}
+
+	/** Keep the SQL of every request from now on, for {@link #getStatements} */
+	public ClickHouseStandIn recordStatements() {
+		statements = new CopyOnWriteArrayList<>();
+		return this;
+	}
+
+	/** SQL received since {@link #recordStatements}, in order, without the driver's handshake */
+	public List<String> getStatements() {
+		return statements == null ? List.of() : List.copyOf(statements);
+	}
+
+	public Map<String, Long> getStats() {
+		Map<String, Long> stats = new HashMap<>();
+		stats.put("inserts", inserts.sum());
+		stats.put("inserted_bytes", insertedBytes.sum());
+		stats.put("selects", selects.sum());
+		stats.put("other_statements", otherStatements.sum());
+		stats.put("injected_failures", injectedFailures.sum());
+		return stats;
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		try {
+			Map<String, String> params = queryParams(exchange.getRequestURI().getRawQuery());
+			String queryParam = params.getOrDefault("query", "");
+			String sql;
+			long bodyBytes;
+			try (InputStream body = exchange.getRequestBody()) {
+				if (keyword(queryParam).equals("INSERT")) {
+					// The statement is in the URL and the body is row data
+					sql = queryParam;
+					bodyBytes = body.transferTo(OutputStream.nullOutputStream());
+				} else {
+					byte[] bytes = body.readAllBytes();
+					sql = queryParam + new String(bytes, StandardCharsets.UTF_8);
+					bodyBytes = bytes.length;
+				}
+			}
+
+			boolean handshake = sql.contains("currentUser()");
+			if (!handshake) {
+				List<String> recorded = statements;
+				if (recorded != null) {
+					recorded.add(sql.strip());
+				}
+				delay();
+				if (failureRate > 0 && ThreadLocalRandom.current().nextDouble() < failureRate) {
+					injectedFailures.increment();
+					fail(exchange, 241, "Memory limit (total) exceeded: injected by stand-in. (MEMORY_LIMIT_EXCEEDED)");
+					return;
+				}
+			}
+
+			switch (keyword(sql)) {
+				case "INSERT" -> {
+					inserts.increment();
+					insertedBytes.add(bodyBytes);
+					exchange.getResponseHeaders().set("X-ClickHouse-Summary", "{\"written_bytes\":\"" + bodyBytes + "\"}");
+					exchange.sendResponseHeaders(200, -1);
+				}
+				case "SELECT", "WITH", "EXPLAIN" -> {
+					selects.increment();
+					String format = format(sql, exchange, params);
+					Result result = handshake ? SERVER_INFO
+							: keyword(sql).equals("EXPLAIN") ? estimateFor(sql) : resultFor(sql);
+					byte[] encoded;
+					try {
+						encoded = encode(result, format);
+					} catch (IllegalArgumentException e) {
+						fail(exchange, 73, e.getMessage() + " (UNKNOWN_FORMAT)");
+						return;
+					}
+					exchange.getResponseHeaders().set("X-ClickHouse-Format", format);
+					exchange.getResponseHeaders().set("X-ClickHouse-Timezone", "UTC");
+					exchange.sendResponseHeaders(200, encoded.length == 0 ? -1 : encoded.length);
+					exchange.getResponseBody().write(encoded);
+				}
+				default -> {
+					otherStatements.increment();
+					exchange.sendResponseHeaders(200, -1);
+				}
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private void delay() {
+		long micros = latencyMicros + (jitterMicros > 0 ? ThreadLocalRandom.current().nextLong(jitterMicros) : 0);
+		if (micros > 0) {
+			try {
+				TimeUnit.MICROSECONDS.sleep(micros);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private static void fail(HttpExchange exchange, int code, String message) throws IOException {
+		byte[] body = ("Code: " + code + ". DB::Exception: " + message + "\n").getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("X-ClickHouse-Exception-Code", String.valueOf(code));
+		exchange.sendResponseHeaders(500, body.length);
+		exchange.getResponseBody().write(body);
+	}
+
+	private Result resultFor(String sql) {
+		for (Map.Entry<Pattern, Result> entry : results) {
+			if (entry.getKey().matcher(sql).find()) {
+				return entry.getValue();
+			}
+		}
+		return inferResult(stripFormat(sql));
+	}
+
+	private Result estimateFor(String sql) {
+		for (Map.Entry<Pattern, Result> entry : estimates) {
+			if (entry.getKey().matcher(sql).find()) {
+				return entry.getValue();
+			}
+		}
+		return EXPLAIN_ESTIMATE;
+	}
+
+	/** Column names from the outermost select list, with one row of zeros for an ungrouped query */
+	static Result inferResult(String sql) {
+		List<String> topLevel = splitTopLevel(sql);
+		String selectList = null;
+		boolean ungrouped = true;
+		for (int i = 0; i < topLevel.size(); i++) {
+			String clause = topLevel.get(i).toUpperCase(Locale.ROOT);
+			if (selectList == null && clause.equals("SELECT")) {
+				StringBuilder list = new StringBuilder();
+				for (i++; i < topLevel.size() && !isClauseKeyword(topLevel.get(i)); i++) {
+					list.append(topLevel.get(i)).append(' ');
+				}
+				i--;
+				selectList = list.toString();
+			} else if (clause.equals("GROUP") || clause.equals("ORDER") || clause.equals("LIMIT")) {
+				ungrouped = false;
+			}
+		}
+		if (selectList == null || selectList.isBlank() || selectList.trim().equals("*")) {
+			return Result.of(List.of(), List.of());
+		}
+
+		List<Column> columns = new ArrayList<>();
+		List<Object> zeros = new ArrayList<>();
+		for (String item : splitOnTopLevelCommas(selectList)) {
+			item = item.trim();
+			Matcher alias = ALIAS.matcher(item);
+			String name;
+			if (alias.matches()) {
+				name = alias.group(1);
+			} else if (IDENTIFIER.matcher(item).matches()) {
+				name = item.substring(item.lastIndexOf('.') + 1);
+			} else {
+				name = item;
+			}
+			columns.add(new Column(name, "Nullable(String)"));
+			zeros.add(item.matches("\\d+") ? item : "0");
+		}
+		return Result.of(columns, ungrouped ? List.<Object[]>of(zeros.toArray()) : List.of());
+	}
+
+	private static boolean isClauseKeyword(String token) {
+		return switch (token.toUpperCase(Locale.ROOT)) {
+			case "FROM", "WHERE", "GROUP", "HAVING", "ORDER", "LIMIT", "SETTINGS", "FORMAT", "UNION" -> true;
+			default -> false;
+		};
+	}
+
+	/**
+	 * Words and bracketed groups outside any brackets or quotes. Text inside brackets stays in the
+	 * token that precedes it, so {@code count()} and {@code (SELECT ...)} are single tokens.
+	 */
+	private static List<String> splitTopLevel(String sql) {
+		List<String> tokens = new ArrayList<>();
+		StringBuilder token = new StringBuilder();
+		int depth = 0;
+		char quote = 0;
+		for (int i = 0; i < sql.length(); i++) {
+			char c = sql.charAt(i);
+			if (quote != 0) {
+				token.append(c);
+				if (c == '\\' && i + 1 < sql.length()) {
+					token.append(sql.charAt(++i));
+				} else if (c == quote) {
+					quote = 0;
+				}
+				continue;
+			}
+			if (c == '\'' || c == '`' || c == '"') {
+				quote = c;
+				token.append(c);
+			} else if (c == '(') {
+				depth++;
+				token.append(c);
+			} else if (c == ')') {
+				depth--;
+				token.append(c);
+			} else if (depth == 0 && (Character.isWhitespace(c) || c == ',')) {
+				if (!token.isEmpty()) {
+					tokens.add(token.toString());
+					token.setLength(0);
+				}
+				if (c == ',') {
+					tokens.add(",");
+				}
+			} else {
+				token.append(c);
+			}
+		}
+		if (!token.isEmpty()) {
+			tokens.add(token.toString());
+		}
+		return tokens;
+	}
+
+	private static List<String> splitOnTopLevelCommas(String selectList) {
+		List<String> items = new ArrayList<>();
+		StringBuilder item = new StringBuilder();
+		for (String token : splitTopLevel(selectList)) {
+			if (token.equals(",")) {
+				items.add(item.toString());
+				item.setLength(0);
+			} else {
+				item.append(item.isEmpty() ? "" : " ").append(token);
+			}
+		}
+		if (!item.isEmpty()) {
+			items.add(item.toString());
+		}
+		return items;
+	}
+
+	private static String keyword(String sql) {
+		String trimmed = sql.stripLeading();
+		int end = 0;
+		while (end < trimmed.length() && Character.isLetter(trimmed.charAt(end))) {
+			end++;
+		}
+		return trimmed.substring(0, end).toUpperCase(Locale.ROOT);
+	}
+
+	private static String stripFormat(String sql) {
+		return FORMAT.matcher(sql).replaceFirst("");
+	}
+
+	private static String format(String sql, HttpExchange exchange, Map<String, String> params) {
+		Matcher inline = FORMAT.matcher(sql);
+		if (inline.find()) {
+			return inline.group(1);
+		}
+		String header = exchange.getRequestHeaders().getFirst("X-ClickHouse-Format");
+		if (header != null) {
+			return header;
+		}
+		return params.getOrDefault("default_format", "TabSeparated");
+	}
+
+	private static Map<String, String> queryParams(String rawQuery) {
+		Map<String, String> params = new HashMap<>();
+		if (rawQuery == null) {
+			return params;
+		}
+		for (String pair : rawQuery.split("&")) {
+			int eq = pair.indexOf('=');
+			String key = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), StandardCharsets.UTF_8);
+			String value = eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8);
+			params.put(key, value);
+		}
+		return params;
+	}
+
+	static byte[] encode(Result result, String format) {
+		return switch (format) {
+			case "RowBinaryWithNamesAndTypes" -> rowBinary(result);
+			case "JSONEachRow" -> jsonEachRow(result);
+			case "JSONCompact" -> jsonCompact(result);
+			case "TabSeparated", "TSV", "TabSeparatedWithNames", "TSVWithNames" -> tabSeparated(result,
+					format.endsWith("WithNames"));
+			default -> throw new IllegalArgumentException("Format " + format + " is not served by the stand-in");
+		};
+	}
+
+	private static byte[] rowBinary(Result result) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		writeVarInt(out, result.columns().size());
+		for (Column column : result.columns()) {
+			writeString(out, column.name());
+		}
+		for (Column column : result.columns()) {
+			writeString(out, column.type());
+		}
+		for (Object[] row : result.rows()) {
+			for (int i = 0; i < row.length; i++) {
+				writeValue(out, result.columns().get(i).type(), row[i]);
+			}
+		}
+		return out.toByteArray();
+	}
+
+	private static void writeValue(ByteArrayOutputStream out, String type, Object value) {
+		if (type.startsWith("Nullable(")) {
+			out.write(value == null ? 1 : 0);
+			if (value != null) {
+				writeValue(out, type.substring(9, type.length() - 1), value);
+			}
+			return;
+		}
+		switch (type) {
+			case "String" -> writeString(out, String.valueOf(value));
+			case "UInt8", "Int8" -> writeLittleEndian(out, ((Number) value).longValue(), 1);
+			case "UInt16", "Int16" -> writeLittleEndian(out, ((Number) value).longValue(), 2);
+			case "UInt32", "Int32" -> writeLittleEndian(out, ((Number) value).longValue(), 4);
+			case "UInt64", "Int64" -> writeLittleEndian(out, ((Number) value).longValue(), 8);
+			case "Float32" -> writeLittleEndian(out, Float.floatToIntBits(((Number) value).floatValue()), 4);
+			case "Float64" -> writeLittleEndian(out, Double.doubleToLongBits(((Number) value).doubleValue()), 8);
+			case "DateTime" -> writeLittleEndian(out, toInstant(value).getEpochSecond(), 4);
+			case "DateTime64(3)" -> writeLittleEndian(out, toInstant(value).toEpochMilli(), 8);
+			default -> throw new IllegalArgumentException("Type " + type + " is not served by the stand-in");
+		}
+	}
+
+	private static Instant toInstant(Object value) {
+		return value instanceof LocalDateTime dateTime ? dateTime.toInstant(ZoneOffset.UTC) : (Instant) value;
+	}
+
+	private static void writeLittleEndian(ByteArrayOutputStream out, long value, int bytes) {
+		for (int i = 0; i < bytes; i++) {
+			out.write((int) (value >>> (8 * i)) & 0xFF);
+		}
+	}
+
+	private static void writeVarInt(ByteArrayOutputStream out, long value) {
+		while ((value & ~0x7FL) != 0) {
+			out.write((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	private static void writeString(ByteArrayOutputStream out, String value) {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		writeVarInt(out, bytes.length);
+		out.writeBytes(bytes);
+	}
+
+	private static byte[] jsonEachRow(Result result) {
+		StringBuilder json = new StringBuilder();
+		for (Object[] row : result.rows()) {
+			json.append('{');
+			for (int i = 0; i < row.length; i++) {
+				json.append(i == 0 ? "" : ",").append(jsonString(result.columns().get(i).name())).append(':')
+						.append(jsonValue(row[i]));
+			}
+			json.append("}\n");
+		}
+		return json.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static byte[] jsonCompact(Result result) {
+		StringBuilder json = new StringBuilder("{\"meta\":[");
+		for (int i = 0; i < result.columns().size(); i++) {
+			Column column = result.columns().get(i);
+			json.append(i == 0 ? "" : ",").append("{\"name\":").append(jsonString(column.name()))
+					.append(",\"type\":").append(jsonString(column.type())).append('}');
+		}
+		json.append("],\"data\":[");
+		for (int r = 0; r < result.rows().size(); r++) {
+			Object[] row = result.rows().get(r);
+			json.append(r == 0 ? "[" : ",[");
+			for (int i = 0; i < row.length; i++) {
+				json.append(i == 0 ? "" : ",").append(jsonValue(row[i]));
+			}
+			json.append(']');
+		}
+		json.append("],\"rows\":").append(result.rows().size()).append('}');
+		return json.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static byte[] tabSeparated(Result result, boolean withNames) {
+		StringBuilder tsv = new StringBuilder();
+		if (withNames) {
+			tsv.append(String.join("\t", result.columns().stream().map(Column::name).toList())).append('\n');
+		}
+		for (Object[] row : result.rows()) {
+			tsv.append(String.join("\t", Arrays.stream(row).map(String::valueOf).toList())).append('\n');
+		}
+		return tsv.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static String jsonValue(Object value) {
+		if (value == null) {
+			return "null";
+		}
+		if (value instanceof Number) {
+			return value.toString();
+		}
+		return jsonString(value.toString());
+	}
+
+	private static String jsonString(String value) {
+		return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + "\"";
+	}
+}
@@ -0,0 +1,114 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.loadtest;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Properties;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class ClickHouseStandInTests {
+
+	private ClickHouseStandIn standIn;
+	private Connection connection;
+
+	@BeforeEach
+	void connect() throws Exception {
+		standIn = ClickHouseStandIn.start(4);
+		Properties properties = new Properties();
+		properties.setProperty("user", "default");
+		properties.setProperty("password", "");
+		connection = DriverManager.getConnection("jdbc:ch://" + standIn.url() + "/default?compress=0&decompress=0",
+				properties);
+	}
+
+	@AfterEach
+	void close() throws Exception {
+		connection.close();
+		standIn.close();
+	}
+
+	@Test
+	void acceptsBatchInsertsFromTheJdbcDriver() throws Exception {
+		try (PreparedStatement stmt = connection
+				.prepareStatement("INSERT INTO default.click_events (session_id, page_url, click_x) VALUES (?, ?, ?)")) {
+			for (int i = 0; i < 3; i++) {
+				stmt.setString(1, "s" + i);
+				stmt.setString(2, "/games");
+				stmt.setObject(3, i);
+				stmt.addBatch();
+			}
+			stmt.executeBatch();
+		}
+
+		assertThat(standIn.getStats()).containsEntry("inserts", 1L);
+		assertThat(standIn.getStats().get("inserted_bytes")).isPositive();
+	}
+
+	@Test
+	void namesColumnsOfAnUnregisteredSelectAfterItsSelectList() throws Exception {
+		try (Statement stmt = connection.createStatement();
+				ResultSet rs = stmt.executeQuery("""
+						SELECT
+						    (SELECT count() FROM default.click_events WHERE timestamp >= now() - INTERVAL 1 HOUR) as clicks_last_hour,
+						    uniq(session_id) AS active_sessions,
+						    page_url
+						FROM default.page_view_events
+						""")) {
+			assertThat(rs.getMetaData().getColumnCount()).isEqualTo(3);
+			assertThat(rs.getMetaData().getColumnLabel(1)).isEqualTo("clicks_last_hour");
+			assertThat(rs.getMetaData().getColumnLabel(2)).isEqualTo("active_sessions");
+			assertThat(rs.getMetaData().getColumnLabel(3)).isEqualTo("page_url");
+			// Ungrouped, so one row the way an aggregate over an empty table answers
+			assertThat(rs.next()).isTrue();
+			assertThat(rs.getLong(1)).isZero();
+			assertThat(rs.next()).isFalse();
+		}
+
+		try (Statement stmt = connection.createStatement();
+				ResultSet rs = stmt.executeQuery("SELECT page_url, count() as views FROM t GROUP BY page_url")) {
+			assertThat(rs.next()).isFalse();
+		}
+	}
+
+	@Test
+	void answersRegisteredSelectsWithTypedRows() throws Exception {
+		LocalDateTime hour = LocalDateTime.of(2024, 1, 1, 10, 0);
+		standIn.respond("FROM default\\.page_view_events", ClickHouseStandIn.Result.of(
+				List.of(new ClickHouseStandIn.Column("hour", "DateTime"),
+						new ClickHouseStandIn.Column("page_views", "UInt64"),
+						new ClickHouseStandIn.Column("avg_load_time", "Float64"),
+						new ClickHouseStandIn.Column("title", "Nullable(String)")),
+				List.<Object[]>of(new Object[] { hour, 42L, 12.5, null })));
+
+		try (Statement stmt = connection.createStatement();
+				ResultSet rs = stmt.executeQuery("SELECT * FROM default.page_view_events")) {
+			assertThat(rs.next()).isTrue();
+			assertThat(rs.getTimestamp("hour").toLocalDateTime()).isEqualTo(hour);
+			assertThat(rs.getLong("page_views")).isEqualTo(42);
+			assertThat(rs.getDouble("avg_load_time")).isEqualTo(12.5);
+			assertThat(rs.getString("title")).isNull();
+		}
+	}
+
+	@Test
+	void failsRequestsAtTheInjectedRate() {
+		standIn.failureRate(1.0);
+
+		assertThatThrownBy(() -> {
+			try (Statement stmt = connection.createStatement()) {
+				stmt.executeQuery("SELECT 1");
+			}
+		}).isInstanceOf(SQLException.class).hasMessageContaining("MEMORY_LIMIT_EXCEEDED");
+		assertThat(standIn.getStats()).containsEntry("injected_failures", 1L);
+	}
+}
@@ -0,0 +1,189 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.loadtest;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfEnvironmentVariable;
+import org.springframework.boot.test.autoconfigure.actuate.observability.AutoConfigureObservability;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalManagementPort;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+/**
+ * Runs the whole service against {@link ClickHouseStandIn} under SDK-shaped traffic and prints
+ * p50/p99/p999 latency and throughput per endpoint. Full distributions go to
+ * {@code target/loadtest/*.hgrm}, a scrape of {@code /actuator/prometheus} to
+ * {@code target/loadtest/metrics.prom} and a flight recording of the run to
+ * {@code target/loadtest/ingest.jfr}.
+ *
+ * <p>Only runs when {@code LOAD_TEST_SECONDS} is set. Other settings, with their defaults:
+ * {@code LOAD_TEST_RPS} (200), {@code LOAD_TEST_READ_SHARE} (0.1),
+ * {@code CLICKHOUSE_STANDIN_LATENCY_MS} (2), {@code CLICKHOUSE_STANDIN_JITTER_MS} (3) and
+ * {@code CLICKHOUSE_STANDIN_FAILURE_RATE} (0).
+ */
+@EnabledIfEnvironmentVariable(named = "LOAD_TEST_SECONDS", matches = "\\d+")
+@AutoConfigureObservability(tracing = false)
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = {
+		"aws.redshift.enabled=false",
+		"aws.s3.export.enabled=false",
+		"clickhouse.rollups.enabled=false",
+		"clickhouse.projections.enabled=false",
+		"rate.limit.max-requests=1000000000",
+		"logging.level.com.bigdata.analytics=WARN" })
+class IngestLoadTests {
+
+	private static ClickHouseStandIn standIn;
+
+	@LocalServerPort
+	private int port;
+
+	@LocalManagementPort
+	private int managementPort;
+
+	@DynamicPropertySource
+	static void clickHouse(DynamicPropertyRegistry registry) throws IOException {
+		standIn = ClickHouseStandIn.start(64)
+				.latency(Duration.ofMillis(setting("CLICKHOUSE_STANDIN_LATENCY_MS", 2)),
+						Duration.ofMillis(setting("CLICKHOUSE_STANDIN_JITTER_MS", 3)))
+				.failureRate(Double.parseDouble(System.getenv().getOrDefault("CLICKHOUSE_STANDIN_FAILURE_RATE", "0")));
+		registerReadResults(standIn);
+		registry.add("clickhouse.host", standIn::url);
+	}
+
+	@AfterAll
+	static void stopStandIn() {
+		if (standIn != null) {
+			standIn.close();
+		}
+	}
+
+	@Test
+	void reportsLatencyUnderSdkTraffic() throws Exception {
+		Duration duration = Duration.ofSeconds(setting("LOAD_TEST_SECONDS", 60));
+		LoadGenerator generator = new LoadGenerator(URI.create("http://127.0.0.1:" + port + "/analytics-service"),
+				(int) setting("LOAD_TEST_RPS", 200),
+				Double.parseDouble(System.getenv().getOrDefault("LOAD_TEST_READ_SHARE", "0.1")), 42);
+
+		HttpClient client = HttpClient.newHttpClient();
+		String actuator = "http://127.0.0.1:" + managementPort + "/actuator";
+		String recording = client.send(HttpRequest.newBuilder(URI.create(actuator + "/flightrecording"))
+				.header("Content-Type", "application/json")
+				.POST(HttpRequest.BodyPublishers.ofString("{}"))
+				.build(), HttpResponse.BodyHandlers.ofString()).body();
+		long recordingId = new ObjectMapper().readTree(recording).get("id").asLong();
+
+		Map<String, LoadGenerator.Endpoint> endpoints = generator.run(Duration.ofSeconds(10), duration);
+
+		System.out.printf("%nLoad test: %s at %s req/s against the ClickHouse stand-in %s%n", duration,
+				setting("LOAD_TEST_RPS", 200), standIn.getStats());
+		LoadGenerator.printReport(endpoints, duration, System.out);
+		LoadGenerator.writeDistributions(endpoints, Path.of("target", "loadtest"));
+		// Where the time went: per-stage ingest timers and per-method ClickHouse timers
+		String metrics = client.send(HttpRequest.newBuilder(URI.create(actuator + "/prometheus")).build(),
+				HttpResponse.BodyHandlers.ofString()).body();
+		Files.writeString(Path.of("target", "loadtest", "metrics.prom"), metrics);
+		// And per call: analytics.* JFR events next to the JVM's own
+		Path jfr = Path.of("target", "loadtest", "ingest.jfr");
+		client.send(HttpRequest.newBuilder(URI.create(actuator + "/flightrecording/" + recordingId)).build(),
+				HttpResponse.BodyHandlers.ofFile(jfr, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+						StandardOpenOption.TRUNCATE_EXISTING));
+		client.send(HttpRequest.newBuilder(URI.create(actuator + "/flightrecording")).DELETE().build(),
+				HttpResponse.BodyHandlers.discarding());
+		assertThat(RecordingFile.readAllEvents(jfr)).anySatisfy(event -> {
+			assertThat(event.getEventType().getName()).isEqualTo("analytics.ClickHouseCall");
+			assertThat(event.getString("operation")).isEqualTo("insert");
+		});
+
+		LoadGenerator.Endpoint events = endpoints.get(LoadGenerator.EVENTS);
+		assertThat(events.latency.getTotalCount()).isPositive();
+		if (standIn.getStats().get("injected_failures") == 0) {
+			assertThat(events.errors.sum()).as("failed event posts; the service did not keep up with the rate").isZero();
+		}
+	}
+
+	/** Rows for the read endpoints whose queries the stand-in cannot answer from the SQL alone */
+	private static void registerReadResults(ClickHouseStandIn standIn) {
+		LocalDateTime now = LocalDateTime.now().withNano(0);
+
+		List<Object[]> hours = new ArrayList<>();
+		for (int hour = 23; hour >= 0; hour--) {
+			hours.add(new Object[] { now.minusHours(hour).withMinute(0).withSecond(0), 1_000L + hour, 400L, 90L });
+		}
+		standIn.respond("toStartOfHour\\(timestamp\\) as hour", ClickHouseStandIn.Result.of(List.of(
+				column("hour", "DateTime"), column("page_views", "UInt64"), column("unique_sessions", "UInt64"),
+				column("unique_users", "UInt64")), hours));
+
+		List<Object[]> pages = new ArrayList<>();
+		for (int i = 0; i < 20; i++) {
+			pages.add(new Object[] { "/shop/game-" + i, "Game " + i, 5_000L - i, 1_200L, 850.0, 32.5, 300L, 25.0 });
+		}
+		standIn.respond("as bounce_rate", ClickHouseStandIn.Result.of(List.of(
+				column("page_url", "String"), column("page_title", "String"), column("views", "UInt64"),
+				column("unique_sessions", "UInt64"), column("avg_load_time", "Float64"),
+				column("avg_time_on_page", "Float64"), column("bounces", "UInt64"), column("bounce_rate", "Float64")),
+				pages));
+
+		List<Object[]> clicks = new ArrayList<>();
+		for (int i = 0; i < 50; i++) {
+			clicks.add(new Object[] { "/shop/game-" + i % 10, "BUTTON", "add-to-cart-" + i, "btn", 900L - i, 300L,
+					640.0, 480.0, 2L });
+		}
+		standIn.respond("as double_clicks", ClickHouseStandIn.Result.of(List.of(
+				column("page_url", "String"), column("element_tag", "String"), column("element_id", "String"),
+				column("element_class", "String"), column("clicks", "UInt64"), column("unique_sessions", "UInt64"),
+				column("avg_x", "Float64"), column("avg_y", "Float64"), column("double_clicks", "UInt64")), clicks));
+
+		List<Object[]> journey = new ArrayList<>();
+		for (int i = 0; i < 12; i++) {
+			LocalDateTime at = now.minusMinutes(12 - i);
+			journey.add(new Object[] { i % 3 == 0 ? "page_view" : "click", at, 1_000_000L + i, "/shop/game-1",
+					"Game 1", "BUTTON", "add-to-cart", 0L, 0L, at.toInstant(ZoneOffset.UTC).toEpochMilli() });
+		}
+		standIn.respond("ORDER BY timestamp_ms, event_key\\s+LIMIT", ClickHouseStandIn.Result.of(List.of(
+				column("event_type", "String"), column("timestamp", "DateTime"), column("event_key", "UInt64"),
+				column("page_url", "String"), column("page_title", "String"), column("element_tag", "String"),
+				column("element_id", "String"), column("scroll_depth", "UInt32"),
+				column("session_duration", "UInt32"), column("timestamp_ms", "Int64")), journey));
+		standIn.respond("as total_events", ClickHouseStandIn.Result.of(List.of(
+				column("total_events", "UInt64"), column("pages_visited", "UInt64"),
+				column("first_event_at", "DateTime"), column("last_event_at", "DateTime")),
+				List.<Object[]>of(new Object[] { 12L, 4L, now.minusMinutes(12), now })));
+
+		List<Object[]> performance = new ArrayList<>();
+		for (int i = 0; i < 10; i++) {
+			performance.add(new Object[] { "/shop/game-" + i, 900.0 + i, 800.0, 2_400.0, 500L });
+		}
+		standIn.respond("as p95_load_time", ClickHouseStandIn.Result.of(List.of(
+				column("page_url", "String"), column("avg_load_time", "Float64"),
+				column("median_load_time", "Float64"), column("p95_load_time", "Float64"),
+				column("samples", "UInt64")), performance));
+	}
+
+	private static ClickHouseStandIn.Column column(String name, String type) {
+		return new ClickHouseStandIn.Column(name, type);
+	}
+
+	private static long setting(String name, long defaultValue) {
+		String value = System.getenv(name);
+		return value == null || value.isBlank() ? defaultValue : Long.parseLong(value);
+	}
+}
@@ -0,0 +1,180 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.loadtest;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+/**
+ * Open-loop load against a running service: requests start on a fixed schedule whether or not
+ * earlier ones have answered, and each latency is measured from when its request was due. A slow
+ * server therefore shows up in the percentiles instead of quietly lowering the request rate.
+ *
+ * <p>Most requests are SDK event posts from {@link SdkTraffic}; {@code readShare} of them go to
+ * the read endpoints instead.
+ */
+final class LoadGenerator {
+
+	/** Latencies and failures of one endpoint, in microseconds */
+	static final class Endpoint {
+
+		final String name;
+		final Histogram latency = new ConcurrentHistogram(TimeUnit.MINUTES.toMicros(2), 3);
+		final LongAdder errors = new LongAdder();
+
+		Endpoint(String name) {
+			this.name = name;
+		}
+	}
+
+	/** Read endpoints and how often each is picked, relative to the others */
+	private static final Map<String, Integer> READS = Map.of(
+			"/analytics/dashboard", 30,
+			"/analytics/realtime", 30,
+			"/analytics/clicks", 15,
+			"/analytics/user-journey/{sessionId}", 15,
+			"/analytics/performance", 10);
+
+	static final String EVENTS = "/analytics/events";
+
+	private final URI baseUri;
+	private final int requestsPerSecond;
+	private final double readShare;
+	private final SdkTraffic traffic;
+	private final Random random;
+	private final HttpClient client = HttpClient.newBuilder()
+			.version(HttpClient.Version.HTTP_1_1)
+			.connectTimeout(Duration.ofSeconds(5))
+			.build();
+	private final List<String> readPaths = new ArrayList<>();
+	private final Map<String, Endpoint> endpoints = new LinkedHashMap<>();
+
+	LoadGenerator(URI baseUri, int requestsPerSecond, double readShare, long seed) {
+		this.baseUri = baseUri;
+		this.requestsPerSecond = requestsPerSecond;
+		this.readShare = readShare;
+		this.traffic = new SdkTraffic(seed, 200);
+		this.random = new Random(seed);
+		endpoints.put(EVENTS, new Endpoint("POST " + EVENTS));
+		READS.forEach((path, weight) -> {
+			endpoints.put(path, new Endpoint("GET " + path));
+			for (int i = 0; i < weight; i++) {
+				readPaths.add(path);
+			}
+		});
+	}
+
+	/**
+	 * Send traffic for {@code warmup}, forget what was measured, then send it for {@code duration}
+	 * and wait for the stragglers
+	 */
+	Map<String, Endpoint> run(Duration warmup, Duration duration) throws InterruptedException {
+		send(warmup);
+		endpoints.values().forEach(endpoint -> {
+			endpoint.latency.reset();
+			endpoint.errors.reset();
+		});
+		send(duration);
+		return endpoints;
+	}
+
+	private void send(Duration duration) throws InterruptedException {
+		long intervalNanos = TimeUnit.SECONDS.toNanos(1) / requestsPerSecond;
+		long start = System.nanoTime();
+		long end = start + duration.toNanos();
+		List<CompletableFuture<?>> inFlight = new ArrayList<>();
+
+		for (long due = start; due < end; due += intervalNanos) {
+			long wait = due - System.nanoTime();
+			if (wait > 0) {
+				LockSupport.parkNanos(wait);
+			}
+			inFlight.add(sendOne(due));
+			if (inFlight.size() % 1_000 == 0) {
+				inFlight.removeIf(CompletableFuture::isDone);
+			}
+		}
+		try {
+			CompletableFuture.allOf(inFlight.toArray(CompletableFuture[]::new)).get(2, TimeUnit.MINUTES);
+		} catch (Exception e) {
+			// Failed requests are already counted against their endpoint
+		}
+	}
+
+	private CompletableFuture<?> sendOne(long dueNanos) {
+		Endpoint endpoint;
+		HttpRequest request;
+		if (random.nextDouble() >= readShare) {
+			SdkTraffic.SdkRequest event = traffic.next();
+			endpoint = endpoints.get(EVENTS);
+			request = HttpRequest.newBuilder(baseUri.resolve(baseUri.getPath() + EVENTS))
+					.timeout(Duration.ofSeconds(30))
+					.header("Content-Type", "application/json")
+					.header("User-Agent", event.userAgent())
+					.POST(HttpRequest.BodyPublishers.ofString(event.body()))
+					.build();
+		} else {
+			String path = readPaths.get(random.nextInt(readPaths.size()));
+			endpoint = endpoints.get(path);
+			String resolved = path.replace("{sessionId}",
+					URLEncoder.encode(traffic.recentSession(), StandardCharsets.UTF_8));
+			request = HttpRequest.newBuilder(baseUri.resolve(baseUri.getPath() + resolved))
+					.timeout(Duration.ofSeconds(30))
+					.GET()
+					.build();
+		}
+
+		return client.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+				.whenComplete((response, failure) -> {
+					long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - dueNanos);
+					endpoint.latency.recordValue(Math.min(micros, endpoint.latency.getHighestTrackableValue()));
+					if (failure != null || response.statusCode() >= 400) {
+						endpoint.errors.increment();
+					}
+				});
+	}
+
+	/** One line per endpoint: requests, errors, throughput and latency percentiles in milliseconds */
+	static void printReport(Map<String, Endpoint> endpoints, Duration duration, PrintStream out) {
+		out.printf("%-42s %9s %7s %9s %9s %9s %9s %9s%n", "endpoint", "requests", "errors", "req/s", "p50 ms",
+				"p99 ms", "p999 ms", "max ms");
+		for (Endpoint endpoint : endpoints.values()) {
+			Histogram latency = endpoint.latency;
+			long count = latency.getTotalCount();
+			out.printf("%-42s %,9d %,7d %,9.1f %9.2f %9.2f %9.2f %9.2f%n", endpoint.name, count,
+					endpoint.errors.sum(), count / (double) duration.toSeconds(),
+					latency.getValueAtPercentile(50) / 1000.0, latency.getValueAtPercentile(99) / 1000.0,
+					latency.getValueAtPercentile(99.9) / 1000.0, latency.getMaxValue() / 1000.0);
+		}
+	}
+
+	/** Full percentile distribution per endpoint, in milliseconds, for HdrHistogram's plotter */
+	static void writeDistributions(Map<String, Endpoint> endpoints, Path dir) throws IOException {
+		Files.createDirectories(dir);
+		for (Endpoint endpoint : endpoints.values()) {
+			String file = endpoint.name.replaceAll("[^A-Za-z0-9]+", "_").replaceAll("^_|_$", "") + ".hgrm";
+			try (PrintStream out = new PrintStream(Files.newOutputStream(dir.resolve(file)), false,
+					StandardCharsets.UTF_8)) {
+				endpoint.latency.outputPercentileDistribution(out, 1000.0);
+			}
+		}
+	}
+}
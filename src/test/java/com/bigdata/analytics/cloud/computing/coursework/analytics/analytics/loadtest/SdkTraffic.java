@@ -0,0 +1,143 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.loadtest;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Request bodies in the shapes {@code frontend-integration/analytics-sdk.js} sends them. The SDK
+ * posts every event on its own as soon as it happens: a page view and a session start when a page
+ * loads, one request per click on a button or link, one per throttled scroll, and a session end on
+ * unload. A visit here is that sequence for one page, with a few clicks and scrolls.
+ */
+final class SdkTraffic {
+
+	/** One POST to /analytics/events, with the browser's User-Agent header */
+	record SdkRequest(String sessionId, String body, String userAgent) {
+	}
+
+	/** {@code Date.toISOString()} */
+	private static final DateTimeFormatter ISO_STRING =
+			DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'").withZone(ZoneOffset.UTC);
+
+	private static final String SITE = "https://lugx-gaming.example";
+
+	private static final String[] PAGES = { "/", "/shop", "/shop/cyberpunk-2077", "/shop/elden-ring", "/shop/fifa-24",
+			"/shop/starfield", "/cart", "/checkout", "/about", "/contact" };
+
+	private static final String[] USER_AGENTS = {
+			"Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0.0.0 Safari/537.36",
+			"Mozilla/5.0 (Macintosh; Intel Mac OS X 10_15_7) AppleWebKit/605.1.15 (KHTML, like Gecko) Version/17.2 Safari/605.1.15",
+			"Mozilla/5.0 (iPhone; CPU iPhone OS 17_2 like Mac OS X) AppleWebKit/605.1.15 (KHTML, like Gecko) Version/17.2 Mobile/15E148 Safari/604.1",
+			"Mozilla/5.0 (Linux; Android 14; Pixel 8) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0.6099.144 Mobile Safari/537.36",
+			"Mozilla/5.0 (X11; Linux x86_64; rv:121.0) Gecko/20100101 Firefox/121.0" };
+
+	private static final String[] BUTTONS = { "add-to-cart", "buy-now", "wishlist", "nav-shop", "nav-cart", "" };
+
+	private final ObjectMapper objectMapper = new ObjectMapper();
+	private final Random random;
+	private final List<Deque<SdkRequest>> openVisits = new ArrayList<>();
+	private final List<String> recentSessions = new ArrayList<>();
+
+	/** Interleaves requests of {@code concurrentVisits} visits, as that many open tabs would */
+	SdkTraffic(long seed, int concurrentVisits) {
+		this.random = new Random(seed);
+		for (int i = 0; i < concurrentVisits; i++) {
+			openVisits.add(visit());
+		}
+	}
+
+	/** The next request of a random open visit; a finished visit is replaced by a new one */
+	synchronized SdkRequest next() {
+		int index = random.nextInt(openVisits.size());
+		Deque<SdkRequest> visit = openVisits.get(index);
+		SdkRequest request = visit.poll();
+		if (visit.isEmpty()) {
+			openVisits.set(index, visit());
+		}
+		return request;
+	}
+
+	/** A session that has sent events, to look up its journey */
+	synchronized String recentSession() {
+		return recentSessions.get(random.nextInt(recentSessions.size()));
+	}
+
+	private Deque<SdkRequest> visit() {
+		String sessionId = "session_" + System.currentTimeMillis() + "_" + Long.toString(random.nextLong() >>> 12, 36);
+		String userId = random.nextInt(4) == 0 ? "user_" + random.nextInt(5_000) : null;
+		String userAgent = USER_AGENTS[random.nextInt(USER_AGENTS.length)];
+		String pageUrl = SITE + PAGES[random.nextInt(PAGES.length)];
+		recentSessions.add(sessionId);
+		if (recentSessions.size() > 1_000) {
+			recentSessions.remove(0);
+		}
+
+		Deque<SdkRequest> requests = new ArrayDeque<>();
+		Map<String, Object> pageView = event(sessionId, userId, pageUrl);
+		pageView.put("page_title", "LUGX Gaming");
+		pageView.put("referrer", random.nextBoolean() ? "https://www.google.com/" : "");
+		pageView.put("load_time", 200 + random.nextInt(2_800));
+		requests.add(request(sessionId, "page_views", pageView, userAgent));
+		requests.add(request(sessionId, "sessions", session(sessionId, userId, pageUrl, "session_start"), userAgent));
+
+		int clicks = random.nextInt(6);
+		int scrolls = random.nextInt(5);
+		while (clicks > 0 || scrolls > 0) {
+			if (clicks > 0 && (scrolls == 0 || random.nextBoolean())) {
+				Map<String, Object> click = event(sessionId, userId, pageUrl);
+				String button = BUTTONS[random.nextInt(BUTTONS.length)];
+				click.put("element_id", button);
+				click.put("element_text", button.isEmpty() ? "Read more" : button.replace('-', ' '));
+				click.put("click_x", random.nextInt(1_920));
+				click.put("click_y", random.nextInt(1_080));
+				requests.add(request(sessionId, "clicks", click, userAgent));
+				clicks--;
+			} else {
+				Map<String, Object> scroll = event(sessionId, userId, pageUrl);
+				int percentage = random.nextInt(101);
+				scroll.put("scroll_depth", percentage * 40);
+				scroll.put("scroll_percentage", percentage);
+				requests.add(request(sessionId, "scrolls", scroll, userAgent));
+				scrolls--;
+			}
+		}
+
+		requests.add(request(sessionId, "sessions", session(sessionId, userId, pageUrl, "session_end"), userAgent));
+		return requests;
+	}
+
+	private Map<String, Object> session(String sessionId, String userId, String pageUrl, String eventType) {
+		Map<String, Object> session = event(sessionId, userId, pageUrl);
+		session.put("event_type", eventType);
+		session.put("duration", 0);
+		session.put("page_count", 1);
+		return session;
+	}
+
+	private static Map<String, Object> event(String sessionId, String userId, String pageUrl) {
+		Map<String, Object> event = new LinkedHashMap<>();
+		event.put("session_id", sessionId);
+		event.put("user_id", userId);
+		event.put("page_url", pageUrl);
+		return event;
+	}
+
+	private SdkRequest request(String sessionId, String key, Map<String, Object> event, String userAgent) {
+		event.put("timestamp", ISO_STRING.format(Instant.now()));
+		try {
+			return new SdkRequest(sessionId, objectMapper.writeValueAsString(Map.of(key, List.of(event))), userAgent);
+		} catch (JsonProcessingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
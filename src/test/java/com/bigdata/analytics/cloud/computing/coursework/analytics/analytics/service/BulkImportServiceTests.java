@@ -0,0 +1,178 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.model.BaseAnalyticsEvent;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.model.PageViewEvent;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.model.SessionEvent;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.unit.DataSize;
+
+class BulkImportServiceTests {
+
+	@TempDir
+	Path importDir;
+
+	private final ClickHouseService clickHouseService = mock(ClickHouseService.class);
+	private final List<BaseAnalyticsEvent> inserted = new CopyOnWriteArrayList<>();
+	private final AtomicBoolean failNextClickInsert = new AtomicBoolean();
+	private final List<String> clickTokens = new CopyOnWriteArrayList<>();
+	private final EventSinkDispatcher sinkDispatcher = mock(EventSinkDispatcher.class);
+	private final RedshiftReconciler redshiftReconciler = mock(RedshiftReconciler.class);
+
+	@Test
+	void importsLegacyEventsInChunksAndResumesAfterAFailedInsert() throws Exception {
+		Files.writeString(importDir.resolve("legacy.ndjson"), String.join("\n",
+				"{\"event_type\":\"page_view\",\"session_id\":\"s1\",\"page_url\":\"/a\",\"page_load_time\":120,\"timestamp\":\"2024-01-01T10:00:00.000Z\"}",
+				"{\"event_type\":\"custom\",\"session_id\":\"s1\",\"page_url\":\"/a\",\"timestamp\":\"2024-01-01T10:00:01.000Z\"}",
+				"not json at all",
+				"{\"event_type\":\"click\",\"session_id\":\"s1\",\"page_url\":\"/a\",\"click_x\":5,\"timestamp\":\"2024-01-01T10:00:02.000Z\"}\r",
+				"{\"event_type\":\"page_view\",\"session_id\":\"s1\",\"timestamp\":\"2024-01-01T10:00:03.000Z\"}",
+				"",
+				"{\"clicks\":[{\"session_id\":\"s2\",\"page_url\":\"/b\"},{\"session_id\":\"s2\",\"page_url\":\"/c\"}]}",
+				"{\"event_type\":\"session_end\",\"session_id\":\"s1\",\"page_url\":\"/a\",\"session_duration\":90,\"timestamp\":\"2024-01-01T10:05:00.000Z\"}"));
+		stubInserts();
+
+		failNextClickInsert.set(true);
+		Map<String, Object> failed = awaitImport(service(), "legacy.ndjson");
+		assertThat(failed).containsEntry("state", BulkImportService.State.FAILED);
+		// Only the chunks before the failed click insert were committed
+		assertThat(inserted).hasSize(1);
+
+		Map<String, Object> completed = awaitImport(service(), "legacy.ndjson");
+		assertThat(completed).containsEntry("state", BulkImportService.State.COMPLETED);
+		assertThat(completed).containsEntry("resumed_from", failed.get("committed_offset"));
+		assertThat(completed).containsEntry("committed_offset", Files.size(importDir.resolve("legacy.ndjson")));
+		assertThat(completed).containsEntry("imported_events", 4L);
+		assertThat(completed).containsEntry("skipped_events", 0L);
+		assertThat(failed).containsEntry("skipped_events", 1L);
+
+		// Page view, then the three clicks, then the session end, each exactly once and in file order
+		assertThat(inserted).extracting(BaseAnalyticsEvent::getSessionId)
+				.containsExactly("s1", "s1", "s2", "s2", "s1");
+		PageViewEvent pageView = (PageViewEvent) inserted.get(0);
+		assertThat(pageView.getLoadTime()).isEqualTo(120);
+		assertThat(pageView.getTimestamp()).isEqualTo("2024-01-01 10:00:00.000");
+		assertThat(pageView.getBrowser()).isEqualTo("Unknown");
+		assertThat(((SessionEvent) inserted.get(4)).getDuration()).isEqualTo(90);
+
+		// The retried chunk is sent with the token of the failed attempt, so ClickHouse would drop a repeat
+		assertThat(clickTokens).hasSize(3);
+		assertThat(clickTokens.get(1)).isEqualTo(clickTokens.get(0))
+				.startsWith("import:legacy.ndjson:")
+				.endsWith(":click_events");
+		assertThat(clickTokens.get(2)).isNotEqualTo(clickTokens.get(1));
+	}
+
+	@Test
+	void leavesImportedHoursToTheReconcilerInsteadOfTheSinks() throws Exception {
+		Files.writeString(importDir.resolve("history.ndjson"), String.join("\n",
+				"{\"event_type\":\"page_view\",\"session_id\":\"s1\",\"page_url\":\"/a\",\"timestamp\":\"2024-01-01T10:20:00.000Z\"}",
+				"{\"event_type\":\"page_view\",\"session_id\":\"s1\",\"page_url\":\"/b\",\"timestamp\":\"2024-01-01T09:59:00.000Z\"}"));
+		stubInserts();
+		BulkImportService service = service();
+		ReflectionTestUtils.setField(service, "dispatchToSinks", false);
+		ReflectionTestUtils.setField(service, "redshiftReconciler", redshiftReconciler);
+
+		assertThat(awaitImport(service, "history.ndjson")).containsEntry("state", BulkImportService.State.COMPLETED);
+
+		verify(redshiftReconciler).recheckFrom("page_view_events", LocalDateTime.of(2024, 1, 1, 10, 20));
+		verify(redshiftReconciler).recheckFrom("page_view_events", LocalDateTime.of(2024, 1, 1, 9, 59));
+		verifyNoInteractions(sinkDispatcher);
+	}
+
+	@Test
+	void reportsEventsTheSinksCouldNotTake() throws Exception {
+		Files.writeString(importDir.resolve("history.ndjson"),
+				"{\"clicks\":[{\"session_id\":\"s2\",\"page_url\":\"/b\"},{\"session_id\":\"s2\",\"page_url\":\"/c\"}]}");
+		stubInserts();
+		when(sinkDispatcher.dispatchAndWait(any())).thenReturn(2L);
+
+		Map<String, Object> status = awaitImport(service(), "history.ndjson");
+
+		assertThat(status).containsEntry("imported_events", 2L);
+		assertThat(status).containsEntry("sink_dropped_events", 2L);
+	}
+
+	@Test
+	void refusesFilesOutsideTheImportDirectory() throws Exception {
+		BulkImportService service = service();
+
+		assertThatThrownBy(() -> service.start("../etc/passwd"))
+				.isInstanceOf(IllegalArgumentException.class);
+	}
+
+	private BulkImportService service() throws Exception {
+		BulkImportService service = new BulkImportService();
+		ReflectionTestUtils.setField(service, "analyticsService", new AnalyticsService());
+		ReflectionTestUtils.setField(service, "enrichmentService", new EventEnrichmentService());
+		ReflectionTestUtils.setField(service, "clickHouseService", clickHouseService);
+		ReflectionTestUtils.setField(service, "sinkDispatcher", sinkDispatcher);
+		ReflectionTestUtils.setField(service, "objectMapper",
+				new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false));
+		ReflectionTestUtils.setField(service, "importDir", importDir);
+		// Smaller than a line, so every line is a chunk of its own
+		ReflectionTestUtils.setField(service, "chunkSize", DataSize.ofBytes(16));
+		ReflectionTestUtils.setField(service, "parallelism", 3);
+		ReflectionTestUtils.setField(service, "dispatchToSinks", true);
+		service.init();
+		return service;
+	}
+
+	private void stubInserts() throws Exception {
+		doAnswer(invocation -> record(invocation.getArgument(0), invocation.getArgument(1)))
+				.when(clickHouseService).insertPageViewEvents(anyList(), any());
+		doAnswer(invocation -> {
+			clickTokens.add(invocation.getArgument(1));
+			if (failNextClickInsert.getAndSet(false)) {
+				throw new SQLException("ClickHouse unavailable");
+			}
+			return record(invocation.getArgument(0), invocation.getArgument(1));
+		}).when(clickHouseService).insertClickEvents(anyList(), any());
+		doAnswer(invocation -> record(invocation.getArgument(0), invocation.getArgument(1)))
+				.when(clickHouseService).insertScrollEvents(anyList(), any());
+		doAnswer(invocation -> record(invocation.getArgument(0), invocation.getArgument(1)))
+				.when(clickHouseService).insertSessionEvents(anyList(), any());
+	}
+
+	private Object record(List<? extends BaseAnalyticsEvent> events, String token) {
+		assertThat(token).isNotNull();
+		inserted.addAll(events);
+		return null;
+	}
+
+	private static Map<String, Object> awaitImport(BulkImportService service, String file) throws InterruptedException {
+		service.start(file);
+		long deadline = System.currentTimeMillis() + 10_000;
+		while (true) {
+			Map<String, Object> status = service.getStatus(file).orElseThrow();
+			Object state = status.get("state");
+			if (state == BulkImportService.State.COMPLETED || state == BulkImportService.State.FAILED) {
+				service.shutdown();
+				return status;
+			}
+			assertThat(System.currentTimeMillis()).isLessThan(deadline);
+			Thread.sleep(10);
+		}
+	}
+}
@@ -0,0 +1,36 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.util.concurrent.CountDownLatch;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.task.TaskRejectedException;
+
+class BulkheadTests {
+
+	@Test
+	void rejectsWorkBeyondThreadsAndQueue() throws Exception {
+		Bulkhead bulkhead = new Bulkhead("Test", 1, 1);
+		CountDownLatch release = new CountDownLatch(1);
+		try {
+			bulkhead.getExecutor().execute(() -> await(release));
+			bulkhead.getExecutor().execute(() -> await(release));
+
+			assertThatThrownBy(() -> bulkhead.getExecutor().execute(() -> {}))
+					.isInstanceOf(TaskRejectedException.class);
+			assertThat(bulkhead.getStats()).containsEntry("rejected", 1L).containsEntry("queued", 1);
+		} finally {
+			release.countDown();
+			bulkhead.shutdown();
+		}
+	}
+
+	private static void await(CountDownLatch latch) {
+		try {
+			latch.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,194 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service.ClickHouseHttpClient.Format;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.reactive.function.client.WebClient;
+
+class ClickHouseHttpClientTests {
+
+	private static final int CHUNK = 64 * 1024;
+
+	/** Bytes the server managed to hand to its socket */
+	private final AtomicLong sent = new AtomicLong();
+
+	/** Completed by the server with the failure of its last write, or null once all was sent */
+	private final CompletableFuture<IOException> serverOutcome = new CompletableFuture<>();
+
+	private HttpServer server;
+
+	@BeforeEach
+	void init() throws Exception {
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		server.createContext("/", exchange -> {
+			int chunks = Integer.parseInt(exchange.getRequestURI().getQuery().replaceAll(".*param_chunks=(\\d+).*", "$1"));
+			exchange.sendResponseHeaders(200, (long) chunks * CHUNK);
+			try (OutputStream out = exchange.getResponseBody()) {
+				byte[] chunk = new byte[CHUNK];
+				for (int i = 0; i < chunks; i++) {
+					out.write(chunk);
+					sent.addAndGet(CHUNK);
+				}
+				serverOutcome.complete(null);
+			} catch (IOException e) {
+				serverOutcome.complete(e);
+			}
+		});
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.start();
+	}
+
+	@AfterEach
+	void close() {
+		server.stop(0);
+	}
+
+	@Test
+	void copiesTheBodyOnTheCallingThread() throws Exception {
+		Set<Thread> writers = ConcurrentHashMap.newKeySet();
+		ByteArrayOutputStream received = new ByteArrayOutputStream();
+		OutputStream out = new OutputStream() {
+			@Override
+			public void write(int b) {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+				writers.add(Thread.currentThread());
+				received.write(b, off, len);
+			}
+		};
+
+		long written = client("http://" + address(server)).streamQuery("SELECT 1", Map.of("chunks", "32"),
+				Format.JSON_EACH_ROW, out);
+
+		assertThat(written).isEqualTo(32L * CHUNK);
+		assertThat(received.size()).isEqualTo(32 * CHUNK);
+		assertThat(writers).containsExactly(Thread.currentThread());
+	}
+
+	@Test
+	void stopsReadingFromTheServerWhileTheConsumerIsSlow() throws Exception {
+		int chunks = 1024;
+		CountDownLatch resume = new CountDownLatch(1);
+		AtomicLong received = new AtomicLong();
+		OutputStream out = new OutputStream() {
+			@Override
+			public void write(int b) {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+				try {
+					resume.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				received.addAndGet(len);
+			}
+		};
+		CompletableFuture<Long> written = CompletableFuture.supplyAsync(() -> {
+			try {
+				return client("http://" + address(server)).streamQuery("SELECT 1",
+						Map.of("chunks", String.valueOf(chunks)), Format.JSON_EACH_ROW, out);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		});
+
+		Thread.sleep(500);
+		// Held back by the prefetch and the socket buffers, far short of the 64MB body
+		assertThat(sent.get()).isLessThan((long) chunks * CHUNK / 4);
+		assertThat(serverOutcome).isNotDone();
+
+		resume.countDown();
+
+		assertThat(written.get(10, TimeUnit.SECONDS)).isEqualTo((long) chunks * CHUNK);
+		assertThat(received.get()).isEqualTo((long) chunks * CHUNK);
+	}
+
+	@Test
+	void failsWhenTheServerBreaksOffMidStream() throws Exception {
+		try (ServerSocket broken = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+			CompletableFuture.runAsync(() -> {
+				try (Socket socket = broken.accept()) {
+					// Promises a megabyte and hangs up after a kilobyte, as a server dying mid-query does
+					socket.getInputStream().read(new byte[8192]);
+					OutputStream response = socket.getOutputStream();
+					response.write("HTTP/1.1 200 OK\r\nContent-Length: 1048576\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+					response.write(new byte[1024]);
+					response.flush();
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			});
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+			assertThatThrownBy(() -> client("http://127.0.0.1:" + broken.getLocalPort()).streamQuery("SELECT 1",
+					Map.of(), Format.JSON_EACH_ROW, out)).isInstanceOf(IOException.class)
+				.hasMessage("ClickHouse HTTP query failed");
+			assertThat(out.size()).isEqualTo(1024);
+		}
+	}
+
+	@Test
+	void hangsUpOnTheServerWhenTheConsumerFails() throws Exception {
+		OutputStream out = new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				throw new IOException("Broken pipe");
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				throw new IOException("Broken pipe");
+			}
+		};
+
+		assertThatThrownBy(() -> client("http://" + address(server)).streamQuery("SELECT 1",
+				Map.of("chunks", "1024"), Format.JSON_EACH_ROW, out)).isInstanceOf(IOException.class)
+			.hasRootCauseMessage("Broken pipe");
+		// The closed connection is what makes ClickHouse cancel the query
+		assertThat(serverOutcome.get(10, TimeUnit.SECONDS)).isNotNull();
+	}
+
+	private static ClickHouseHttpClient client(String host) {
+		ClickHouseHttpClient client = new ClickHouseHttpClient();
+		ReflectionTestUtils.setField(client, "webClientBuilder", WebClient.builder());
+		ReflectionTestUtils.setField(client, "host", host);
+		ReflectionTestUtils.setField(client, "username", "default");
+		ReflectionTestUtils.setField(client, "password", "");
+		ReflectionTestUtils.setField(client, "database", "default");
+		ReflectionTestUtils.setField(client, "timeoutSeconds", 60L);
+		client.init();
+		return client;
+	}
+
+	private static String address(HttpServer server) {
+		return "127.0.0.1:" + server.getAddress().getPort();
+	}
+}
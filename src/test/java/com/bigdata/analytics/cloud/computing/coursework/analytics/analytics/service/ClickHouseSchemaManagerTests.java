@@ -0,0 +1,207 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.loadtest.ClickHouseStandIn;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.loadtest.ClickHouseStandIn.Column;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.loadtest.ClickHouseStandIn.Result;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service.ClickHouseSchemaManager.Rollup;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.time.Duration;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+class ClickHouseSchemaManagerTests {
+
+	private static final String BOUNDARY = "2026-01-01 00:00:01";
+
+	private final ClusterLease clusterLease = mock(ClusterLease.class);
+
+	/** Rows of the state table and of the system tables, changed by the tests as they go */
+	private final List<Object[]> ingestClock = new CopyOnWriteArrayList<>();
+	private final List<Object[]> completion = new CopyOnWriteArrayList<>();
+	private final List<Object[]> mutations = new CopyOnWriteArrayList<>();
+	private final List<Object[]> mutationDone = new CopyOnWriteArrayList<>();
+
+	private ClickHouseStandIn standIn;
+	private Connection connection;
+	private ClickHouseSchemaManager schemaManager;
+
+	@BeforeEach
+	void init() throws Exception {
+		standIn = ClickHouseStandIn.start(4).recordStatements()
+				.respond("system\\.columns", Result.of(List.of(new Column("count()", "UInt64")), ingestClock))
+				.respond("argMax\\(complete", Result.of(List.of(new Column("complete", "UInt8")), completion))
+				.respond("SELECT mutation_id", Result.of(
+						List.of(new Column("mutation_id", "String"), new Column("is_done", "String")), mutations))
+				.respond("SELECT is_done", Result.of(
+						List.of(new Column("is_done", "UInt8"), new Column("latest_fail_reason", "String")),
+						mutationDone))
+				.respond("system\\.tables", Result.of(List.of(new Column("count()", "UInt64")),
+						List.<Object[]>of(new Object[] { 1 })))
+				.respond("INTERVAL 0 SECOND", Result.of(List.of(new Column("now", "String")),
+						List.<Object[]>of(new Object[] { "2026-01-01 00:00:00" })))
+				.respond("INTERVAL 1 SECOND", Result.of(List.of(new Column("boundary", "String")),
+						List.<Object[]>of(new Object[] { BOUNDARY })));
+		Properties properties = new Properties();
+		properties.setProperty("user", "default");
+		properties.setProperty("password", "");
+		connection = DriverManager.getConnection("jdbc:ch://" + standIn.url() + "/default?compress=0&decompress=0",
+				properties);
+
+		schemaManager = new ClickHouseSchemaManager();
+		ReflectionTestUtils.setField(schemaManager, "clickHouseConnection", connection);
+		ReflectionTestUtils.setField(schemaManager, "clusterLease", clusterLease);
+		ReflectionTestUtils.setField(schemaManager, "buildExecutor", (Executor) Runnable::run);
+		ReflectionTestUtils.setField(schemaManager, "rollupsEnabled", true);
+		ReflectionTestUtils.setField(schemaManager, "buildEnabled", true);
+		ReflectionTestUtils.setField(schemaManager, "boundaryLeadSeconds", 1);
+		ReflectionTestUtils.setField(schemaManager, "settleSeconds", 0L);
+		ReflectionTestUtils.setField(schemaManager, "buildTimeout", Duration.ofHours(6));
+		ReflectionTestUtils.setField(schemaManager, "mutationTimeout", Duration.ofMinutes(1));
+	}
+
+	@AfterEach
+	void close() throws Exception {
+		connection.close();
+		standIn.close();
+	}
+
+	@Test
+	void rebuildsAViewWithoutCompletionMarkAndSplitsRowsOnIngestTime() throws Exception {
+		ingestClock.add(new Object[] { 1 });
+		when(clusterLease.tryAcquire(anyString(), any())).thenReturn(true);
+
+		schemaManager.ensureRollups();
+
+		List<String> statements = statements();
+		String view = statement(statements, "CREATE MATERIALIZED VIEW default.page_views_hourly_agg_mv");
+		String backfill = statement(statements, "INSERT INTO default.page_views_hourly_agg SELECT");
+		assertThat(view).contains("WHERE ingested_at >= toDateTime('" + BOUNDARY + "') GROUP BY period");
+		assertThat(backfill).contains("WHERE ingested_at < toDateTime('" + BOUNDARY + "') GROUP BY period");
+		assertThat(statement(statements, "INSERT INTO default.sessions_daily_agg SELECT"))
+				.contains("WHERE event_type = 'session_end'")
+				.contains("AND ingested_at < toDateTime('" + BOUNDARY + "')");
+		// The leftover view and table go first, the backfill runs last
+		assertThat(statements.indexOf(statement(statements, "DROP VIEW IF EXISTS default.page_views_hourly_agg_mv")))
+				.isLessThan(statements.indexOf(statement(statements, "CREATE TABLE default.page_views_hourly_agg")))
+				.isLessThan(statements.indexOf(view));
+		assertThat(statements.indexOf(view)).isLessThan(statements.indexOf(backfill));
+		verify(clusterLease).release("rollup:page_views_hourly_agg");
+		// Nothing marked it complete in the stand-in, so reads stay on raw events
+		assertThat(schemaManager.isAvailable(Rollup.PAGE_VIEWS_HOURLY)).isFalse();
+	}
+
+	@Test
+	void leavesTheBuildToThePodHoldingTheLease() throws Exception {
+		ingestClock.add(new Object[] { 1 });
+		when(clusterLease.tryAcquire(anyString(), any())).thenReturn(false);
+
+		schemaManager.ensureRollups();
+
+		assertThat(standIn.getStatements())
+				.noneMatch(sql -> sql.startsWith("DROP") || sql.startsWith("CREATE MATERIALIZED"));
+		for (Rollup rollup : Rollup.values()) {
+			assertThat(schemaManager.isAvailable(rollup)).isFalse();
+		}
+	}
+
+	@Test
+	void routesToARollupOnceAnotherPodHasMarkedItComplete() throws Exception {
+		ingestClock.add(new Object[] { 1 });
+
+		schemaManager.ensureRollups();
+		assertThat(schemaManager.isAvailable(Rollup.SESSIONS_HOURLY)).isFalse();
+
+		completion.add(new Object[] { 1 });
+		standIn.recordStatements();
+		clearInvocations(clusterLease);
+		schemaManager.ensureRollups();
+
+		for (Rollup rollup : Rollup.values()) {
+			assertThat(schemaManager.isAvailable(rollup)).isTrue();
+		}
+		assertThat(standIn.getStatements()).noneMatch(sql -> sql.startsWith("DROP"));
+		verify(clusterLease, never()).tryAcquire(anyString(), any());
+	}
+
+	@Test
+	void onlyChecksForCompletedRollupsWhereBuildsAreDisabled() throws Exception {
+		ReflectionTestUtils.setField(schemaManager, "buildEnabled", false);
+		when(clusterLease.tryAcquire(anyString(), any())).thenReturn(true);
+
+		schemaManager.ensureRollups();
+
+		assertThat(standIn.getStatements()).noneMatch(sql -> sql.startsWith("ALTER") || sql.startsWith("DROP")
+				|| sql.startsWith("INSERT INTO default.page_views_hourly_agg"));
+		verify(clusterLease, never()).tryAcquire(anyString(), any());
+
+		completion.add(new Object[] { 1 });
+		schemaManager.ensureRollups();
+		assertThat(schemaManager.isAvailable(Rollup.PAGE_VIEWS_HOURLY)).isTrue();
+	}
+
+	@Test
+	void givesUpOnAPendingIngestClockMutationAfterTheTimeout() throws Exception {
+		ReflectionTestUtils.setField(schemaManager, "mutationTimeout", Duration.ZERO);
+		when(clusterLease.tryAcquire("ingest-clock", Duration.ofHours(6))).thenReturn(true);
+		// Left running by an earlier attempt
+		mutations.add(new Object[] { "mutation_7.txt", "0" });
+		mutationDone.add(new Object[] { 0, "" });
+
+		schemaManager.ensureRollups();
+
+		assertThat(statements()).noneMatch(sql -> sql.startsWith("ALTER TABLE default.page_view_events MATERIALIZE")
+				|| sql.contains("MODIFY COLUMN") || sql.startsWith("CREATE MATERIALIZED VIEW"));
+		assertThat(statements()).anyMatch(sql -> sql.startsWith("SELECT is_done") && sql.contains("'mutation_7.txt'"));
+		verify(clusterLease).release("ingest-clock");
+	}
+
+	@Test
+	void writesOldRowsAsZeroBeforeSwitchingTheIngestClockToNow() throws Exception {
+		when(clusterLease.tryAcquire("ingest-clock", Duration.ofHours(6))).thenReturn(true);
+		mutations.add(new Object[] { "mutation_3.txt", "1" });
+		mutationDone.add(new Object[] { 1, "" });
+
+		schemaManager.ensureRollups();
+
+		List<String> statements = statements();
+		for (String table : List.of("page_view_events", "session_events")) {
+			int add = statements.indexOf(
+					statement(statements, "ALTER TABLE default." + table + " ADD COLUMN IF NOT EXISTS ingested_at"));
+			int materialize = statements.indexOf(
+					statement(statements, "ALTER TABLE default." + table + " MATERIALIZE COLUMN ingested_at"));
+			int modify = statements.indexOf(
+					statement(statements, "ALTER TABLE default." + table + " MODIFY COLUMN ingested_at"));
+			assertThat(statements.get(add)).endsWith("MATERIALIZED toDateTime(0)");
+			assertThat(statements.get(modify)).endsWith("MATERIALIZED now()");
+			assertThat(add).isLessThan(materialize);
+			assertThat(materialize).isLessThan(modify);
+		}
+		verify(clusterLease).release("ingest-clock");
+	}
+
+	/** Recorded statements with runs of whitespace collapsed */
+	private List<String> statements() {
+		return standIn.getStatements().stream().map(sql -> sql.replaceAll("\\s+", " ")).toList();
+	}
+
+	private static String statement(List<String> statements, String prefix) {
+		return statements.stream().filter(sql -> sql.startsWith(prefix)).findFirst()
+				.orElseThrow(() -> new AssertionError("No statement starting with " + prefix + " in " + statements));
+	}
+}
@@ -0,0 +1,158 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto.JourneyPage;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto.PagePerformanceRow;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.loadtest.ClickHouseStandIn;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.loadtest.ClickHouseStandIn.Column;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.loadtest.ClickHouseStandIn.Result;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service.ClickHouseSchemaManager.Rollup;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service.QueryCostGuard.Sampling;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service.QueryCostGuard.SqlBuilder;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Properties;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.test.util.ReflectionTestUtils;
+
+class ClickHouseServiceTests {
+
+	private final ClickHouseSchemaManager schemaManager = mock(ClickHouseSchemaManager.class);
+
+	private ClickHouseService clickHouseService;
+
+	@BeforeEach
+	void init() {
+		clickHouseService = new ClickHouseService();
+		QueryCostGuard costGuard = new QueryCostGuard();
+		ReflectionTestUtils.setField(costGuard, "enabled", false);
+		ReflectionTestUtils.setField(clickHouseService, "schemaManager", schemaManager);
+		ReflectionTestUtils.setField(clickHouseService, "costGuard", costGuard);
+	}
+
+	@Test
+	void scansRawEventsUntilTheRollupIsComplete() throws Exception {
+		when(schemaManager.isAvailable(Rollup.PAGE_VIEWS_HOURLY)).thenReturn(false);
+
+		String sql = clickHouseService.planPageViewAnalytics("7d").sql().replaceAll("\\s+", " ");
+
+		assertThat(sql).contains("FROM default.page_view_events").doesNotContain("page_views_hourly_agg")
+				.contains("WHERE timestamp >= now() - INTERVAL 7 DAY");
+	}
+
+	@Test
+	void samplesTheRawPageViewScanThroughTheCostGuard() throws Exception {
+		QueryCostGuard costGuard = mock(QueryCostGuard.class);
+		ReflectionTestUtils.setField(clickHouseService, "costGuard", costGuard);
+		when(schemaManager.isAvailable(Rollup.PAGE_VIEWS_HOURLY)).thenReturn(false);
+
+		clickHouseService.planPageViewAnalytics("30d");
+
+		ArgumentCaptor<SqlBuilder> builder = ArgumentCaptor.forClass(SqlBuilder.class);
+		verify(costGuard).guard(eq("page_views_30d"), eq("default.page_view_events"), builder.capture());
+		assertThat(builder.getValue().build(new Sampling(0.5)).replaceAll("\\s+", " "))
+				.contains("FROM default.page_view_events SAMPLE 0.5 ")
+				.contains("round(count() / 0.5) as page_views")
+				.contains("round(uniq(session_id) / 0.5) as unique_sessions");
+	}
+
+	@Test
+	void keepsTheLastHourOnRawEvents() throws Exception {
+		when(schemaManager.isAvailable(Rollup.PAGE_VIEWS_HOURLY)).thenReturn(true);
+
+		assertThat(clickHouseService.planPageViewAnalytics("1h").sql()).doesNotContain("page_views_hourly_agg");
+	}
+
+	@Test
+	void readsWholeHoursFromTheRollupAndTheFirstPartialHourFromRawEvents() throws Exception {
+		when(schemaManager.isAvailable(Rollup.PAGE_VIEWS_HOURLY)).thenReturn(true);
+
+		String sql = clickHouseService.planPageViewAnalytics("24h").sql().replaceAll("\\s+", " ");
+
+		// Together the two branches cover exactly what the raw scan covers, from now() - 24 HOUR
+		assertThat(sql)
+				.contains("FROM default.page_views_hourly_agg "
+						+ "WHERE period >= toStartOfHour(now() - INTERVAL 24 HOUR) + INTERVAL 1 HOUR")
+				.contains("FROM default.page_view_events "
+						+ "WHERE timestamp >= now() - INTERVAL 24 HOUR "
+						+ "AND timestamp < toStartOfHour(now() - INTERVAL 24 HOUR) + INTERVAL 1 HOUR GROUP BY period")
+				.contains("UNION ALL")
+				.contains("toUInt64(page_views) AS page_views")
+				.contains("count() as page_views");
+	}
+
+	@Test
+	void readsNullAndNanAggregatesAsMissingRatherThanZero() throws Exception {
+		// avg() over NULLs is NULL and quantile() over no values is NaN
+		List<Object[]> rows = List.<Object[]>of(new Object[] { "/empty", null, Double.NaN, Double.NaN, 0L },
+				new Object[] { "/home", 120.5, 100.0, 300.0, 42L });
+		try (ClickHouseStandIn standIn = ClickHouseStandIn.start(2)
+			.respond("FROM default\\.page_view_events",
+					Result.of(List.of(new Column("page_url", "String"),
+							new Column("avg_load_time", "Nullable(Float64)"),
+							new Column("median_load_time", "Float64"), new Column("p95_load_time", "Float64"),
+							new Column("samples", "UInt64")), rows));
+				Connection connection = connect(standIn)) {
+			ReflectionTestUtils.setField(clickHouseService, "clickHouseReadConnection", connection);
+
+			List<PagePerformanceRow> result = clickHouseService.getPerformanceMetrics().rows();
+
+			assertThat(result).containsExactly(new PagePerformanceRow("/empty", null, null, null, 0),
+					new PagePerformanceRow("/home", 120.5, 100.0, 300.0, 42));
+			assertThat(new ObjectMapper().writeValueAsString(result.get(0)))
+				.contains("\"avg_load_time\":null", "\"median_load_time\":null")
+				.doesNotContain("NaN");
+		}
+	}
+
+	@Test
+	void resumesAJourneyAtTheCursorPastTheDuplicatesItHasSeen() throws Exception {
+		Object[] click = { "click", LocalDateTime.of(2025, 7, 28, 12, 0), 9L, "/home", "", "button", "buy", 0, 0,
+				1_753_704_000_000L };
+		try (ClickHouseStandIn standIn = ClickHouseStandIn.start(2).recordStatements()
+			.respond("UNION ALL",
+					Result.of(List.of(new Column("event_type", "String"), new Column("timestamp", "DateTime64(3)"),
+							new Column("event_key", "UInt64"), new Column("page_url", "String"),
+							new Column("page_title", "String"), new Column("element_tag", "String"),
+							new Column("element_id", "String"), new Column("scroll_depth", "UInt64"),
+							new Column("session_duration", "UInt64"), new Column("timestamp_ms", "Int64")),
+							List.of(click, click, click)));
+				Connection connection = connect(standIn)) {
+			ReflectionTestUtils.setField(clickHouseService, "clickHouseReadConnection", connection);
+
+			JourneyPage first = clickHouseService.getUserJourney("s-1", null, 2);
+			clickHouseService.getUserJourney("s-1", first.nextCursor(), 2);
+
+			assertThat(first.events()).hasSize(2);
+			assertThat(JourneyCursor.decode(first.nextCursor()))
+				.isEqualTo(new JourneyCursor(1_753_704_000_000L, "9", 2));
+			// Starts at the duplicates' position and skips the two already returned
+			assertThat(standIn.getStatements().get(standIn.getStatements().size() - 1).replaceAll("\\s+", " "))
+				.contains("WHERE (timestamp_ms, event_key) >= (1753704000000, toUInt64('9'))")
+				.endsWith("LIMIT 3 OFFSET 2");
+			// Valid whether the raw tables declare timestamp as DateTime or DateTime64(3)
+			assertThat(standIn.getStatements().get(standIn.getStatements().size() - 1))
+				.contains("toUnixTimestamp64Milli(toDateTime64(timestamp, 3)) as timestamp_ms")
+				.doesNotContain("toUnixTimestamp64Milli(timestamp)")
+				.contains("AND timestamp >= toDateTime(intDiv(toInt64(1753704000000), 1000))");
+		}
+	}
+
+	private static Connection connect(ClickHouseStandIn standIn) throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty("user", "default");
+		properties.setProperty("password", "");
+		return DriverManager.getConnection("jdbc:ch://" + standIn.url() + "/default?compress=0&decompress=0",
+				properties);
+	}
+}
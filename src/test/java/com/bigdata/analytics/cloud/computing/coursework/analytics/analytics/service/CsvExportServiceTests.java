@@ -0,0 +1,133 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.time.Instant;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.test.util.ReflectionTestUtils;
+
+class CsvExportServiceTests {
+
+	private static final Instant FROM = Instant.parse("2024-01-01T00:00:00Z");
+	private static final Instant TO = Instant.parse("2024-01-02T00:00:00Z");
+
+	private final Connection connection = mock(Connection.class);
+	private final PreparedStatement statement = mock(PreparedStatement.class);
+
+	@Test
+	void streamsGzippedCsvWithAResumeCursorPerRow() throws Exception {
+		stubRows(List.of(
+				new String[] { "s1", "", "1704067200", "7", "1704067200000", "18446744073709551615" },
+				new String[] { "s2", null, "1704067200", "18446744073709551610", "1704067201000", "42" }));
+
+		CsvExportService service = service();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		long rows = service.write(service.plan("click_events", FROM, TO, null), out);
+
+		assertThat(rows).isEqualTo(2);
+		List<String> lines = gunzip(out.toByteArray()).lines().toList();
+		assertThat(lines).hasSize(3);
+		assertThat(lines.get(0)).isEqualTo("\"session_id\",\"page_url\",\"export_cursor\"");
+		// An empty string stays quoted while NULL becomes a bare empty field
+		assertThat(lines.get(1)).startsWith("\"s1\",\"\",");
+		assertThat(lines.get(2)).startsWith("\"s2\",,");
+
+		String cursor = lines.get(2).substring(lines.get(2).lastIndexOf(',') + 1).replace("\"", "");
+		assertThat(ExportCursor.decode(cursor, "click_events"))
+				.isEqualTo(new ExportCursor("click_events", 1_704_067_200L, "18446744073709551610", 1_704_067_201_000L,
+						"42"));
+	}
+
+	@Test
+	void resumesAfterTheCursorRowInTheTablesSortOrder() throws Exception {
+		stubRows(List.of());
+		String cursor = new ExportCursor("click_events", 1_704_070_800L, "9", 1_704_071_000_000L, "42").encode();
+
+		CsvExportService service = service();
+		service.write(service.plan("click_events", FROM, TO, cursor), new ByteArrayOutputStream());
+
+		// Later sessions of the cursor's hour may hold earlier timestamps, so the scan starts at the hour
+		verify(statement).setLong(1, 1_704_070_800_000L);
+		verify(statement).setLong(2, TO.toEpochMilli());
+		verify(statement).setLong(3, 1_704_070_800L);
+		verify(statement).setString(4, "9");
+		verify(statement).setLong(5, 1_704_071_000_000L);
+		verify(statement).setString(6, "42");
+	}
+
+	@Test
+	void ordersByTheSortingKeyPrefixSoTheServerNeedNotSortTheRange() throws Exception {
+		stubRows(List.of());
+
+		CsvExportService service = service();
+		service.write(service.plan("click_events", FROM, TO, null), new ByteArrayOutputStream());
+
+		ArgumentCaptor<String> sql = ArgumentCaptor.forClass(String.class);
+		verify(connection).prepareStatement(sql.capture());
+		assertThat(sql.getValue().replaceAll("\\s+", " "))
+				.contains("toUnixTimestamp64Milli(toDateTime64(timestamp, 3)) AS export_ts")
+				.endsWith("ORDER BY toStartOfHour(timestamp), cityHash64(session_id), timestamp, export_key ");
+	}
+
+	@Test
+	void rejectsUnknownTablesAndForeignCursors() {
+		CsvExportService service = new CsvExportService();
+		String cursor = new ExportCursor("scroll_events", 0L, "1", 1L, "1").encode();
+
+		assertThatThrownBy(() -> service.plan("system.users", FROM, TO, null))
+				.isInstanceOf(IllegalArgumentException.class);
+		assertThatThrownBy(() -> service.plan("click_events", TO, FROM, null))
+				.isInstanceOf(IllegalArgumentException.class);
+		assertThatThrownBy(() -> service.plan("click_events", FROM, TO, cursor))
+				.isInstanceOf(IllegalArgumentException.class);
+	}
+
+	private CsvExportService service() {
+		CsvExportService service = new CsvExportService();
+		ReflectionTestUtils.setField(service, "clickHouseReadConnection", connection);
+		ReflectionTestUtils.setField(service, "clickHouseService", mock(ClickHouseService.class));
+		return service;
+	}
+
+	/** Rows of session_id, page_url and the four trailing key columns */
+	private void stubRows(List<String[]> rows) throws Exception {
+		ResultSetMetaData metaData = mock(ResultSetMetaData.class);
+		when(metaData.getColumnCount()).thenReturn(6);
+		when(metaData.getColumnLabel(1)).thenReturn("session_id");
+		when(metaData.getColumnLabel(2)).thenReturn("page_url");
+
+		ResultSet rs = mock(ResultSet.class);
+		int[] row = { -1 };
+		when(rs.getMetaData()).thenReturn(metaData);
+		when(rs.next()).thenAnswer(invocation -> ++row[0] < rows.size());
+		when(rs.getString(anyInt())).thenAnswer(
+				invocation -> rows.get(row[0])[invocation.getArgument(0, Integer.class) - 1]);
+		when(rs.getLong(anyInt())).thenAnswer(
+				invocation -> Long.parseLong(rows.get(row[0])[invocation.getArgument(0, Integer.class) - 1]));
+
+		when(connection.prepareStatement(anyString())).thenReturn(statement);
+		when(statement.executeQuery()).thenReturn(rs);
+	}
+
+	private static String gunzip(byte[] bytes) throws Exception {
+		try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes))) {
+			return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+		}
+	}
+}
@@ -0,0 +1,139 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.model.ClickEvent;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.test.util.ReflectionTestUtils;
+
+class EventSinkDispatcherTests {
+
+	@Test
+	void aStuckSinkOnlyBacksUpItsOwnQueue() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		AtomicInteger fastBatches = new AtomicInteger();
+		AtomicInteger flakyCalls = new AtomicInteger();
+
+		EventSink stuck = sink("stuck", batch -> release.await());
+		EventSink fast = sink("fast", batch -> fastBatches.incrementAndGet());
+		EventSink flaky = sink("flaky", batch -> {
+			if (flakyCalls.incrementAndGet() == 1) {
+				throw new IllegalStateException("first attempt fails");
+			}
+		});
+
+		EventSinkDispatcher dispatcher = dispatcher(List.of(stuck, fast, flaky));
+		try {
+			long start = System.nanoTime();
+			for (int i = 0; i < 5; i++) {
+				dispatcher.dispatch(EventBatch.clicks(List.of(new ClickEvent())));
+			}
+			assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isLessThan(1000);
+
+			awaitStat(dispatcher, "fast", "delivered_batches", 5L);
+			awaitStat(dispatcher, "flaky", "delivered_batches", 5L);
+			assertThat(stats(dispatcher, "flaky")).containsEntry("retries", 1L);
+			// One batch is stuck in the worker and one waits in the queue; the rest were shed
+			assertThat(stats(dispatcher, "stuck")).containsEntry("dropped_events", 3L);
+		} finally {
+			release.countDown();
+			dispatcher.shutdown();
+		}
+	}
+
+	@Test
+	void bulkDispatchWaitsForRoomAndLeavesHalfTheQueueToLiveTraffic() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		AtomicInteger delivered = new AtomicInteger();
+		EventSink slow = sink("slow", batch -> {
+			release.await();
+			delivered.incrementAndGet();
+		});
+		EventSinkDispatcher dispatcher = dispatcher(List.of(slow));
+		try {
+			// One batch in the worker and two in the queue, then the bulk caller waits
+			CompletableFuture<Long> bulk = CompletableFuture.supplyAsync(() -> {
+				long dropped = 0;
+				for (int i = 0; i < 5; i++) {
+					try {
+						dropped += dispatcher.dispatchAndWait(EventBatch.clicks(List.of(new ClickEvent())));
+					} catch (InterruptedException e) {
+						throw new IllegalStateException(e);
+					}
+				}
+				return dropped;
+			});
+			Thread.sleep(200);
+			assertThat(bulk).isNotDone();
+			assertThat(stats(dispatcher, "slow")).containsEntry("queued", 2);
+
+			dispatcher.dispatch(EventBatch.clicks(List.of(new ClickEvent())));
+			dispatcher.dispatch(EventBatch.clicks(List.of(new ClickEvent())));
+			assertThat(stats(dispatcher, "slow")).containsEntry("queued", 4).containsEntry("dropped_events", 0L);
+
+			release.countDown();
+			assertThat(bulk.get(5, TimeUnit.SECONDS)).isZero();
+			awaitStat(dispatcher, "slow", "delivered_batches", 7L);
+			assertThat(stats(dispatcher, "slow")).containsEntry("dropped_events", 0L);
+		} finally {
+			release.countDown();
+			dispatcher.shutdown();
+		}
+	}
+
+	private static EventSinkDispatcher dispatcher(List<EventSink> sinks) {
+		MockEnvironment environment = new MockEnvironment()
+				.withProperty("analytics.sinks.stuck.threads", "1")
+				.withProperty("analytics.sinks.stuck.queue", "1")
+				.withProperty("analytics.sinks.slow.queue", "4");
+		EventSinkDispatcher dispatcher = new EventSinkDispatcher();
+		ReflectionTestUtils.setField(dispatcher, "sinks", sinks);
+		ReflectionTestUtils.setField(dispatcher, "environment", environment);
+		ReflectionTestUtils.setField(dispatcher, "defaultThreads", 1);
+		ReflectionTestUtils.setField(dispatcher, "defaultQueue", 100);
+		ReflectionTestUtils.setField(dispatcher, "defaultMaxAttempts", 3);
+		ReflectionTestUtils.setField(dispatcher, "defaultBackoffMs", 1L);
+		ReflectionTestUtils.setField(dispatcher, "drainTimeoutMs", 1000L);
+		dispatcher.init();
+		return dispatcher;
+	}
+
+	private interface Writer {
+		void write(EventBatch batch) throws Exception;
+	}
+
+	private static EventSink sink(String name, Writer writer) {
+		return new EventSink() {
+			@Override
+			public String name() {
+				return name;
+			}
+
+			@Override
+			public void write(EventBatch batch) throws Exception {
+				writer.write(batch);
+			}
+		};
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Map<String, Object> stats(EventSinkDispatcher dispatcher, String sink) {
+		return (Map<String, Object>) dispatcher.getStats().get(sink);
+	}
+
+	private static void awaitStat(EventSinkDispatcher dispatcher, String sink, String key, Object value)
+			throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!value.equals(stats(dispatcher, sink).get(key))) {
+			assertThat(System.currentTimeMillis()).as(sink + " " + key).isLessThan(deadline);
+			Thread.sleep(10);
+		}
+	}
+}
@@ -0,0 +1,149 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.contains;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.loadtest.ClickHouseStandIn;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.loadtest.ClickHouseStandIn.Column;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.loadtest.ClickHouseStandIn.Result;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service.HourlyArchiveExporter.ExportFormat;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+class HourlyArchiveExporterTests {
+
+	private static final Instant FIRST_OPEN_HOUR = Instant.now().minus(10, ChronoUnit.MINUTES)
+		.truncatedTo(ChronoUnit.HOURS);
+
+	/** The older of the two hours to export, which has no rows */
+	private static final Instant EMPTY_HOUR = FIRST_OPEN_HOUR.minus(2, ChronoUnit.HOURS);
+
+	@TempDir
+	Path exportDir;
+
+	private final ClickHouseHttpClient clickHouseHttpClient = mock(ClickHouseHttpClient.class);
+	private final ClusterLease clusterLease = mock(ClusterLease.class);
+
+	/** The shared checkpoint as the stand-in reports it, changed by the tests as they go */
+	private final List<Object[]> checkpoint = new CopyOnWriteArrayList<>();
+
+	private ClickHouseStandIn standIn;
+	private Connection connection;
+
+	@BeforeEach
+	void init() throws Exception {
+		List<Column> count = List.of(new Column("count()", "UInt64"));
+		standIn = ClickHouseStandIn.start(4).recordStatements()
+			.respond("SELECT count\\(\\).*toDateTime\\(" + EMPTY_HOUR.getEpochSecond() + "\\)",
+					Result.of(count, List.<Object[]>of(new Object[] { 0 })))
+			.respond("SELECT count\\(\\)", Result.of(count, List.<Object[]>of(new Object[] { 5 })))
+			.respond("FROM default\\.archive_export_checkpoints",
+					Result.of(List.of(new Column("table_name", "String"), new Column("next_hour", "UInt32")),
+							checkpoint));
+		Properties properties = new Properties();
+		properties.setProperty("user", "default");
+		properties.setProperty("password", "");
+		connection = DriverManager.getConnection("jdbc:ch://" + standIn.url() + "/default?compress=0&decompress=0",
+				properties);
+
+		when(clusterLease.tryAcquire(eq(HourlyArchiveExporter.LEASE), any())).thenReturn(true);
+		when(clickHouseHttpClient.streamQuery(anyString(), anyMap(), any(), any(OutputStream.class)))
+			.thenAnswer(invocation -> {
+				invocation.getArgument(3, OutputStream.class).write(new byte[] { 'P', 'A', 'R', '1' });
+				return 4L;
+			});
+	}
+
+	@AfterEach
+	void close() throws Exception {
+		connection.close();
+		standIn.close();
+	}
+
+	@Test
+	void exportsEachClosedHourWithRowsAndCheckpointsItForAllPods() throws Exception {
+		exporter().exportClosedHours();
+
+		// Four tables, two hours each, of which only the second has rows
+		verify(clickHouseHttpClient, times(4)).streamQuery(anyString(), anyMap(),
+				eq(ClickHouseHttpClient.Format.PARQUET), any(OutputStream.class));
+		assertThat(countFiles(".parquet")).isEqualTo(4);
+		assertThat(countFiles(".part")).isZero();
+		assertThat(standIn.getStatements())
+			.filteredOn(sql -> sql.startsWith("INSERT INTO default.archive_export_checkpoints"))
+			.hasSize(8)
+			.anyMatch(sql -> sql.contains("'page_view_events'") && sql.contains(String.valueOf(FIRST_OPEN_HOUR.getEpochSecond())));
+		verify(clusterLease).release(HourlyArchiveExporter.LEASE);
+	}
+
+	@Test
+	void resumesWhereThePodBeforeItStopped() throws Exception {
+		checkpoint.add(new Object[] { "page_view_events", FIRST_OPEN_HOUR.getEpochSecond() });
+		checkpoint.add(new Object[] { "click_events", FIRST_OPEN_HOUR.minus(1, ChronoUnit.HOURS).getEpochSecond() });
+
+		exporter().exportClosedHours();
+
+		verify(clickHouseHttpClient, never()).streamQuery(contains("page_view_events"), anyMap(), any(),
+				any(OutputStream.class));
+		verify(clickHouseHttpClient, times(1)).streamQuery(contains("click_events"), anyMap(), any(),
+				any(OutputStream.class));
+		verify(clickHouseHttpClient, times(3)).streamQuery(anyString(), anyMap(), any(), any(OutputStream.class));
+	}
+
+	@Test
+	void leavesTheExportToThePodHoldingTheLease() throws Exception {
+		when(clusterLease.tryAcquire(eq(HourlyArchiveExporter.LEASE), any())).thenReturn(false);
+
+		exporter().exportClosedHours();
+
+		verify(clickHouseHttpClient, never()).streamQuery(anyString(), anyMap(), any(), any(OutputStream.class));
+		assertThat(standIn.getStatements()).isEmpty();
+		verify(clusterLease, never()).release(anyString());
+	}
+
+	private HourlyArchiveExporter exporter() throws IOException {
+		HourlyArchiveExporter exporter = new HourlyArchiveExporter();
+		ReflectionTestUtils.setField(exporter, "clickHouseHttpClient", clickHouseHttpClient);
+		ReflectionTestUtils.setField(exporter, "clickHouseConnection", connection);
+		ReflectionTestUtils.setField(exporter, "clusterLease", clusterLease);
+		ReflectionTestUtils.setField(exporter, "exportDir", exportDir);
+		ReflectionTestUtils.setField(exporter, "exportFormat", ExportFormat.PARQUET);
+		ReflectionTestUtils.setField(exporter, "lagMinutes", 10L);
+		ReflectionTestUtils.setField(exporter, "initialHours", 2L);
+		ReflectionTestUtils.setField(exporter, "maxHoursPerRun", 24);
+		ReflectionTestUtils.setField(exporter, "queryTimeoutSeconds", 60L);
+		ReflectionTestUtils.setField(exporter, "leaseTerm", Duration.ofHours(1));
+		exporter.init();
+		return exporter;
+	}
+
+	private long countFiles(String suffix) throws IOException {
+		try (var files = Files.walk(exportDir)) {
+			return files.filter(file -> file.toString().endsWith(suffix)).count();
+		}
+	}
+}
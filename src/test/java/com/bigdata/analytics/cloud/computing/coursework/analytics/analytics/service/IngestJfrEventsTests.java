@@ -0,0 +1,116 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto.AnalyticsEventRequest;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto.ClientInfo;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.model.ClickEvent;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.model.PageViewEvent;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.test.util.ReflectionTestUtils;
+
+class IngestJfrEventsTests {
+
+	@TempDir
+	private Path dir;
+
+	@Test
+	void recordsTheRequestEachBatchAndEachEnrichedEvent() throws Exception {
+		AnalyticsEventRequest request = new AnalyticsEventRequest();
+		request.setPageViews(List.of(pageView("s1", "/a"), pageView("s1", null)));
+		request.setClicks(List.of(click("s1", "/a")));
+		MockHttpServletRequest httpRequest = new MockHttpServletRequest();
+		httpRequest.setContent(new byte[321]);
+		httpRequest.addHeader("User-Agent", "Mozilla/5.0 (Windows NT 10.0; Win64; x64) Chrome/120.0 Safari/537.36");
+
+		List<RecordedEvent> events = record(() -> analyticsService().processEvents(request, ClientInfo.of(httpRequest)));
+
+		RecordedEvent ingest = single(events, "analytics.IngestRequest");
+		assertThat(ingest.getInt("events")).isEqualTo(3);
+		assertThat(ingest.getInt("processed")).isEqualTo(2);
+		assertThat(ingest.getInt("errors")).isEqualTo(1);
+		assertThat(ingest.getLong("bodyBytes")).isEqualTo(321);
+		assertThat(ingest.getBoolean("success")).isTrue();
+
+		List<RecordedEvent> batches = named(events, "analytics.IngestBatch");
+		assertThat(batches).extracting(e -> e.getString("eventType")).containsExactly("page_views", "clicks");
+		RecordedEvent pageViews = batches.get(0);
+		assertThat(pageViews.getInt("batchSize")).isEqualTo(2);
+		assertThat(pageViews.getInt("accepted")).isEqualTo(1);
+		assertThat(pageViews.getInt("rejected")).isEqualTo(1);
+		assertThat(pageViews.getInt("failed")).isZero();
+
+		List<RecordedEvent> enrichments = named(events, "analytics.Enrichment");
+		assertThat(enrichments).extracting(e -> e.getString("eventType")).containsExactly("PageViewEvent",
+				"ClickEvent");
+		assertThat(enrichments).allSatisfy(e -> assertThat(e.getBoolean("userAgentParsed")).isTrue());
+	}
+
+	@Test
+	void commitsNothingWithoutARecording() {
+		AnalyticsEventRequest request = new AnalyticsEventRequest();
+		request.setPageViews(List.of(pageView("s1", "/a")));
+
+		assertThat(analyticsService().processEvents(request, ClientInfo.of(new MockHttpServletRequest())).isSuccess()).isTrue();
+	}
+
+	private List<RecordedEvent> record(Runnable work) throws Exception {
+		Path file = dir.resolve("ingest.jfr");
+		try (Recording recording = new Recording()) {
+			recording.enable("analytics.IngestRequest");
+			recording.enable("analytics.IngestBatch");
+			recording.enable("analytics.Enrichment");
+			recording.start();
+			work.run();
+			recording.stop();
+			recording.dump(file);
+		}
+		assertThat(Files.size(file)).isPositive();
+		return RecordingFile.readAllEvents(file);
+	}
+
+	private static List<RecordedEvent> named(List<RecordedEvent> events, String name) {
+		return events.stream().filter(e -> e.getEventType().getName().equals(name)).toList();
+	}
+
+	private static RecordedEvent single(List<RecordedEvent> events, String name) {
+		List<RecordedEvent> matching = named(events, name);
+		assertThat(matching).hasSize(1);
+		return matching.get(0);
+	}
+
+	private AnalyticsService analyticsService() {
+		AnalyticsService service = new AnalyticsService();
+		ReflectionTestUtils.setField(service, "enrichmentService", new EventEnrichmentService());
+		ReflectionTestUtils.setField(service, "clickHouseService", mock(ClickHouseService.class));
+		ReflectionTestUtils.setField(service, "realtimeMetricsAggregator", mock(RealtimeMetricsAggregator.class));
+		ReflectionTestUtils.setField(service, "trendingTracker", mock(TrendingTracker.class));
+		ReflectionTestUtils.setField(service, "sinkDispatcher", mock(EventSinkDispatcher.class));
+		ReflectionTestUtils.setField(service, "ingestMetrics", IngestMetricsTests.ingestMetrics(new SimpleMeterRegistry()));
+		return service;
+	}
+
+	private static PageViewEvent pageView(String sessionId, String pageUrl) {
+		PageViewEvent event = new PageViewEvent();
+		event.setSessionId(sessionId);
+		event.setPageUrl(pageUrl);
+		return event;
+	}
+
+	private static ClickEvent click(String sessionId, String pageUrl) {
+		ClickEvent event = new ClickEvent();
+		event.setSessionId(sessionId);
+		event.setPageUrl(pageUrl);
+		return event;
+	}
+}
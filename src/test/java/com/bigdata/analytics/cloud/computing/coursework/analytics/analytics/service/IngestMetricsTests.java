@@ -0,0 +1,104 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto.AnalyticsEventRequest;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto.ApiResponse;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto.ClientInfo;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.model.ClickEvent;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.model.PageViewEvent;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.sql.SQLException;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.test.util.ReflectionTestUtils;
+
+class IngestMetricsTests {
+
+	private final MeterRegistry registry = new SimpleMeterRegistry();
+	private final ClickHouseService clickHouseService = mock(ClickHouseService.class);
+
+	@Test
+	void countsEventsByOutcomeAndTimesEachStageOncePerBatch() throws Exception {
+		doThrow(new SQLException("Code: 241. DB::Exception: Memory limit exceeded"))
+				.when(clickHouseService).insertClickEvents(anyList());
+		AnalyticsEventRequest request = new AnalyticsEventRequest();
+		request.setPageViews(List.of(pageView("s1", "/a"), pageView("s1", "/b"), pageView("s1", null)));
+		request.setClicks(List.of(click("s1", "/a"), click("s1", "/b")));
+
+		ApiResponse<Void> response = analyticsService().processEvents(request, ClientInfo.of(new MockHttpServletRequest()));
+
+		assertThat(response.isSuccess()).isFalse();
+		assertThat(events("page_views", "accepted")).isEqualTo(2);
+		assertThat(events("page_views", "rejected")).isEqualTo(1);
+		assertThat(events("clicks", "failed")).isEqualTo(2);
+		assertThat(events("clicks", "accepted")).isZero();
+		assertThat(registry.get("analytics.ingest.batch.size").tag("event_type", "page_views").summary().totalAmount())
+				.isEqualTo(3);
+		for (String stage : List.of("validate", "enrich", "clickhouse_insert")) {
+			assertThat(stageCount(stage, "page_views")).as(stage).isEqualTo(1);
+			assertThat(stageCount(stage, "clicks")).as(stage).isEqualTo(1);
+		}
+		assertThat(stageCount("clickhouse_insert", "scrolls")).isZero();
+	}
+
+	@Test
+	void countsEveryEventOfARefusedRequestAsRejected() {
+		AnalyticsEventRequest request = new AnalyticsEventRequest();
+		request.setPageViews(List.of(pageView("s1", "/a"), pageView("s1", "/b")));
+		request.setClicks(List.of(click("s1", "/a")));
+
+		ingestMetrics(registry).rejected(request);
+
+		assertThat(events("page_views", "rejected")).isEqualTo(2);
+		assertThat(events("clicks", "rejected")).isEqualTo(1);
+		assertThat(events("sessions", "rejected")).isZero();
+	}
+
+	static IngestMetrics ingestMetrics(MeterRegistry registry) {
+		IngestMetrics ingestMetrics = new IngestMetrics();
+		ReflectionTestUtils.setField(ingestMetrics, "meterRegistry", registry);
+		ingestMetrics.init();
+		return ingestMetrics;
+	}
+
+	private AnalyticsService analyticsService() {
+		AnalyticsService service = new AnalyticsService();
+		ReflectionTestUtils.setField(service, "enrichmentService", new EventEnrichmentService());
+		ReflectionTestUtils.setField(service, "clickHouseService", clickHouseService);
+		ReflectionTestUtils.setField(service, "realtimeMetricsAggregator", mock(RealtimeMetricsAggregator.class));
+		ReflectionTestUtils.setField(service, "trendingTracker", mock(TrendingTracker.class));
+		ReflectionTestUtils.setField(service, "sinkDispatcher", mock(EventSinkDispatcher.class));
+		ReflectionTestUtils.setField(service, "ingestMetrics", ingestMetrics(registry));
+		return service;
+	}
+
+	private double events(String eventType, String outcome) {
+		return registry.get("analytics.ingest.events").tag("event_type", eventType).tag("outcome", outcome)
+				.counter().count();
+	}
+
+	private long stageCount(String stage, String eventType) {
+		return registry.get("analytics.ingest.stage").tag("stage", stage).tag("event_type", eventType).timer()
+				.count();
+	}
+
+	private static PageViewEvent pageView(String sessionId, String pageUrl) {
+		PageViewEvent event = new PageViewEvent();
+		event.setSessionId(sessionId);
+		event.setPageUrl(pageUrl);
+		return event;
+	}
+
+	private static ClickEvent click(String sessionId, String pageUrl) {
+		ClickEvent event = new ClickEvent();
+		event.setSessionId(sessionId);
+		event.setPageUrl(pageUrl);
+		return event;
+	}
+}
@@ -0,0 +1,84 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto.JourneyEventRow;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class JourneyCursorTests {
+
+	@Test
+	void roundTripsUnsignedEventKeys() {
+		JourneyCursor cursor = new JourneyCursor(1_722_000_000_123L, "18446744073709551615", 3);
+
+		assertThat(JourneyCursor.decode(cursor.encode())).isEqualTo(cursor);
+	}
+
+	@Test
+	void rejectsCursorsWithoutExactlyThreeParts() {
+		for (String raw : List.of("1722000000123:42", "1722000000123:42:1:7", "1722000000123:42:1:")) {
+			String cursor = Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+
+			assertThatThrownBy(() -> JourneyCursor.decode(cursor)).isInstanceOf(IllegalArgumentException.class);
+		}
+	}
+
+	@Test
+	void blankCursorStartsFromTheBeginning() {
+		assertThat(JourneyCursor.decode(null)).isNull();
+		assertThat(JourneyCursor.decode("")).isNull();
+	}
+
+	@Test
+	void rejectsTamperedCursors() {
+		assertThatThrownBy(() -> JourneyCursor.decode("not-a-cursor"))
+				.isInstanceOf(IllegalArgumentException.class);
+	}
+
+	@Test
+	void pagesThroughDuplicatesStraddlingPageBoundaries() {
+		// Five identical clicks, e.g. a retried batch, across the boundaries of pages of two
+		List<JourneyEventRow> journey = List.of(event(1_000, "7"), event(2_000, "5"), event(2_000, "9"),
+				event(2_000, "9"), event(2_000, "9"), event(2_000, "9"), event(2_000, "9"), event(3_000, "1"));
+
+		List<JourneyEventRow> read = new ArrayList<>();
+		JourneyCursor cursor = null;
+		int pages = 0;
+		do {
+			List<JourneyEventRow> page = page(journey, cursor, 2);
+			read.addAll(page.subList(0, Math.min(2, page.size())));
+			cursor = page.size() > 2 ? JourneyCursor.decode(JourneyCursor.after(page.subList(0, 2), cursor).encode())
+					: null;
+			pages++;
+		} while (cursor != null);
+
+		assertThat(read).containsExactlyElementsOf(journey);
+		assertThat(pages).isEqualTo(4);
+	}
+
+	/** What getUserJourney's query returns: from the cursor's position on, past its seen events */
+	private static List<JourneyEventRow> page(List<JourneyEventRow> journey, JourneyCursor after, int limit) {
+		Comparator<JourneyEventRow> order = Comparator.comparingLong(JourneyEventRow::timestampMillis)
+			.thenComparing(event -> Long.parseUnsignedLong(event.eventKey()), Long::compareUnsigned);
+		return journey.stream()
+			.filter(event -> after == null || event.timestampMillis() > after.timestampMillis()
+					|| event.timestampMillis() == after.timestampMillis() && Long
+						.compareUnsigned(Long.parseUnsignedLong(event.eventKey()), Long.parseUnsignedLong(after.eventKey())) >= 0)
+			.sorted(order)
+			.skip(after == null ? 0 : after.seen())
+			.limit(limit + 1)
+			.toList();
+	}
+
+	private static JourneyEventRow event(long timestampMillis, String eventKey) {
+		return new JourneyEventRow("click", LocalDateTime.of(2025, 7, 28, 12, 0), eventKey, "/home", "", "button",
+				"buy", 0, 0, timestampMillis);
+	}
+}
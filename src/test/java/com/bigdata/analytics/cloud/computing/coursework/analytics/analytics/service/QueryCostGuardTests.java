@@ -0,0 +1,145 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto.QueryPrecision;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.exception.QueryBudgetExceededException;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.loadtest.ClickHouseStandIn;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.loadtest.ClickHouseStandIn.Column;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.loadtest.ClickHouseStandIn.Result;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service.QueryCostGuard.GuardedQuery;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service.QueryCostGuard.Sampling;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service.QueryCostGuard.SqlBuilder;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.util.List;
+import java.util.Properties;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+class QueryCostGuardTests {
+
+	/** Counts clicks per page, the way the guarded reports are built */
+	private static final SqlBuilder CLICKS = sampling -> "SELECT page_url, " + sampling.scaled("count()")
+			+ " AS clicks FROM " + sampling.from("default.click_events")
+			+ " WHERE timestamp >= now() - INTERVAL 1 DAY GROUP BY page_url";
+
+	private ClickHouseStandIn standIn;
+	private Connection connection;
+	private QueryCostGuard guard;
+
+	@BeforeEach
+	void init() throws Exception {
+		// 100 bytes a row; click_events has a sampling key, page_view_events was created without one
+		standIn = ClickHouseStandIn.start(4).recordStatements()
+			.respond("FROM system\\.tables",
+					Result.of(List.of(new Column("name", "String"), new Column("sampling_key", "String"),
+							new Column("total_bytes", "UInt64"), new Column("total_rows", "UInt64")),
+							List.<Object[]>of(
+									new Object[] { "click_events", "cityHash64(session_id)", 100_000_000_000L,
+											1_000_000_000L },
+									new Object[] { "page_view_events", "", 100_000_000_000L, 1_000_000_000L })));
+		Properties properties = new Properties();
+		properties.setProperty("user", "default");
+		properties.setProperty("password", "");
+		connection = DriverManager.getConnection("jdbc:ch://" + standIn.url() + "/default?compress=0&decompress=0",
+				properties);
+
+		guard = new QueryCostGuard();
+		ReflectionTestUtils.setField(guard, "clickHouseReadConnection", connection);
+		ReflectionTestUtils.setField(guard, "enabled", true);
+		ReflectionTestUtils.setField(guard, "sampleAboveRows", 50_000_000L);
+		ReflectionTestUtils.setField(guard, "rejectAboveRows", 5_000_000_000L);
+		ReflectionTestUtils.setField(guard, "rejectAboveBytes", 200_000_000_000L);
+		ReflectionTestUtils.setField(guard, "minSampleFraction", 0.01);
+		ReflectionTestUtils.setField(guard, "tableStatsTtlSeconds", 300L);
+		ReflectionTestUtils.setField(guard, "estimateTtlSeconds", 60L);
+	}
+
+	@AfterEach
+	void close() throws Exception {
+		connection.close();
+		standIn.close();
+	}
+
+	@Test
+	void runsQueriesUnderTheSampleBudgetExact() throws Exception {
+		standIn.estimate("click_events", "click_events", 10_000_000L);
+
+		GuardedQuery query = guard.guard("clicks", "default.click_events", CLICKS);
+
+		assertThat(query.sql()).isEqualTo(CLICKS.build(Sampling.EXACT));
+		assertThat(query.precision().mode()).isEqualTo(QueryPrecision.EXACT);
+		assertThat(query.precision().estimatedRows()).isEqualTo(10_000_000L);
+		assertThat(query.precision().estimatedBytes()).isEqualTo(1_000_000_000L);
+	}
+
+	@Test
+	void samplesLargerQueriesThroughTheSamplingKey() throws Exception {
+		standIn.estimate("click_events", "click_events", 200_000_000L);
+
+		GuardedQuery query = guard.guard("clicks", "default.click_events", CLICKS);
+
+		assertThat(query.sql()).contains("FROM default.click_events SAMPLE 0.25 ")
+			.contains("round(count() / 0.25) AS clicks");
+		assertThat(query.precision()).isEqualTo(
+				new QueryPrecision(QueryPrecision.SAMPLED, 0.25, "sample_clause", 200_000_000L, 20_000_000_000L));
+	}
+
+	@Test
+	void runsLargerQueriesExactOnATableWithoutSamplingKey() throws Exception {
+		standIn.estimate("page_view_events", "page_view_events", 200_000_000L);
+		SqlBuilder views = sampling -> "SELECT " + sampling.scaled("count()") + " FROM "
+				+ sampling.from("default.page_view_events");
+
+		GuardedQuery query = guard.guard("views", "default.page_view_events", views);
+
+		assertThat(query.sql()).isEqualTo("SELECT count() FROM default.page_view_events");
+		assertThat(query.precision().mode()).isEqualTo(QueryPrecision.EXACT);
+	}
+
+	@Test
+	void rejectsOnTheUnsampledEstimate() throws Exception {
+		// Sampled at the 1% floor this would fit, but only the unsampled estimate counts
+		standIn.estimate("click_events", "click_events", 6_000_000_000L);
+
+		assertThatThrownBy(() -> guard.guard("clicks", "default.click_events", CLICKS))
+			.isInstanceOf(QueryBudgetExceededException.class)
+			.satisfies(e -> assertThat(((QueryBudgetExceededException) e).getEstimatedRows())
+				.isEqualTo(6_000_000_000L));
+	}
+
+	@Test
+	void reusesTheEstimateOfAQueryShape() throws Exception {
+		standIn.estimate("click_events", "click_events", 200_000_000L);
+
+		guard.guard("clicks", "default.click_events", CLICKS);
+		guard.guard("clicks", "default.click_events", CLICKS);
+
+		assertThat(standIn.getStatements()).filteredOn(sql -> sql.startsWith("EXPLAIN ESTIMATE")).hasSize(1);
+
+		ReflectionTestUtils.setField(guard, "estimateTtlSeconds", 0L);
+		guard.guard("clicks", "default.click_events", CLICKS);
+
+		assertThat(standIn.getStatements()).filteredOn(sql -> sql.startsWith("EXPLAIN ESTIMATE")).hasSize(2);
+	}
+
+	@Test
+	void exactSamplingLeavesQueryUntouched() {
+		Sampling sampling = Sampling.EXACT;
+
+		assertThat(sampling.from("default.click_events")).isEqualTo("default.click_events");
+		assertThat(sampling.scaled("count()")).isEqualTo("count()");
+	}
+
+	@Test
+	void samplingAddsSampleClauseAndScalesCounts() {
+		Sampling sampling = new Sampling(0.25);
+
+		assertThat(sampling.from("default.click_events")).isEqualTo("default.click_events SAMPLE 0.25");
+		assertThat(sampling.scaled("count()")).isEqualTo("round(count() / 0.25)");
+	}
+}
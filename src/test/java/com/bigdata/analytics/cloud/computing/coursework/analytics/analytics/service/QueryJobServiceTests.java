@@ -0,0 +1,233 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto.QueryPrecision;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service.ClickHouseHttpClient.Format;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service.QueryCostGuard.GuardedQuery;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service.QueryJobService.Report;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.BooleanSupplier;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.test.util.ReflectionTestUtils;
+
+class QueryJobServiceTests {
+
+	private static final GuardedQuery QUERY = new GuardedQuery("SELECT page_url FROM default.page_view_events",
+			new QueryPrecision(QueryPrecision.EXACT, 1.0, null, 0, 0));
+
+	@TempDir
+	Path spoolDir;
+
+	private final ClickHouseService clickHouseService = mock(ClickHouseService.class);
+	private final ClickHouseHttpClient clickHouseHttpClient = mock(ClickHouseHttpClient.class);
+	private final ThreadPoolTaskExecutor jobExecutor = new ThreadPoolTaskExecutor();
+
+	private QueryJobService queryJobService;
+
+	@BeforeEach
+	void init() throws Exception {
+		when(clickHouseService.planPageViewAnalytics(anyString())).thenReturn(QUERY);
+		jobExecutor.setCorePoolSize(2);
+		jobExecutor.initialize();
+		queryJobService = service("");
+	}
+
+	@AfterEach
+	void close() {
+		jobExecutor.shutdown();
+	}
+
+	@Test
+	void spoolsAFinishedJobAndPagesThroughItsRows() throws Exception {
+		answerRows(2500);
+
+		String id = (String) queryJobService.submit(Report.PAGE_VIEWS, "24h").get("job_id");
+		awaitStatus(id, "succeeded");
+
+		assertThat(queryJobService.getJob(id).orElseThrow()).containsEntry("total_rows", 2500L);
+		Map<String, Object> page = queryJobService.getResults(id, 1999, 3).orElseThrow();
+		assertThat(page).containsEntry("next_offset", 2002L);
+		assertThat(rowsOf(page)).extracting(row -> row.get("n").asInt()).containsExactly(1999, 2000, 2001);
+		assertThat(rowsOf(queryJobService.getResults(id, 2499, 10).orElseThrow())).hasSize(1);
+		assertThat(queryJobService.getResults(id, 2499, 10).orElseThrow()).containsEntry("next_offset", null);
+	}
+
+	@Test
+	void cancelKillsTheRunningQueryAndDropsTheSpool() throws Exception {
+		CountDownLatch started = new CountDownLatch(1);
+		doAnswer(invocation -> {
+			OutputStream out = invocation.getArgument(4);
+			out.write("{\"n\":0}\n".getBytes(StandardCharsets.UTF_8));
+			out.flush();
+			started.countDown();
+			Thread.sleep(60_000);
+			return 0L;
+		}).when(clickHouseHttpClient).streamQuery(anyString(), anyMap(), any(Format.class), anyString(),
+				any(OutputStream.class));
+
+		String id = (String) queryJobService.submit(Report.PAGE_VIEWS, "24h").get("job_id");
+		started.await();
+		assertThat(spoolFiles()).hasSize(1);
+
+		assertThat(queryJobService.cancel(id).orElseThrow()).containsEntry("status", "cancelled");
+
+		verify(clickHouseService).killQuery("job-" + id);
+		assertThat(spoolFiles()).isEmpty();
+		// The interrupted run must not turn the job into a failure afterwards
+		Thread.sleep(100);
+		assertThat(queryJobService.getJob(id).orElseThrow()).containsEntry("status", "cancelled");
+	}
+
+	@Test
+	void keepsTheErrorOfAFailedJobButNotItsSpool() throws Exception {
+		doAnswer(invocation -> {
+			throw new IOException("Code: 241. DB::Exception: Memory limit exceeded");
+		}).when(clickHouseHttpClient).streamQuery(anyString(), anyMap(), any(Format.class), anyString(),
+				any(OutputStream.class));
+
+		String id = (String) queryJobService.submit(Report.PAGE_VIEWS, "24h").get("job_id");
+		awaitStatus(id, "failed");
+
+		assertThat((String) queryJobService.getJob(id).orElseThrow().get("error")).contains("Memory limit exceeded");
+		assertThat(spoolFiles()).isEmpty();
+	}
+
+	@Test
+	void removesExpiredJobsWithTheirSpool() throws Exception {
+		answerRows(10);
+		ReflectionTestUtils.setField(queryJobService, "resultTtlMinutes", 0L);
+		String id = (String) queryJobService.submit(Report.PAGE_VIEWS, "24h").get("job_id");
+		awaitStatus(id, "succeeded");
+		assertThat(spoolFiles()).hasSize(1);
+
+		Thread.sleep(5);
+		queryJobService.removeExpiredJobs();
+
+		assertThat(queryJobService.getJob(id)).isEmpty();
+		assertThat(spoolFiles()).isEmpty();
+	}
+
+	@Test
+	void removesSpoolFilesLeftByAPreviousRun() throws Exception {
+		Files.writeString(spoolDir.resolve("a-job-of-the-last-run.ndjson"), "{\"n\":0}\n");
+		Files.writeString(spoolDir.resolve("notes.txt"), "kept");
+
+		service("");
+
+		assertThat(spoolFiles()).isEmpty();
+		assertThat(spoolDir.resolve("notes.txt")).exists();
+	}
+
+	@Test
+	void tellsWhichPodOwnsAJob() throws Exception {
+		answerRows(1);
+		QueryJobService owner = service("10.0.3.7");
+		QueryJobService peer = service("10.0.3.8");
+
+		String id = (String) owner.submit(Report.PAGE_VIEWS, "24h").get("job_id");
+
+		assertThat(owner.ownerOf(id)).isEmpty();
+		assertThat(peer.ownerOf(id)).contains(new InetSocketAddress("10.0.3.7", 8080));
+		// Plain ids, and ids naming a host name or another port, are answered locally
+		assertThat(peer.ownerOf("0b7f7c1e-5d7a-4d0e-9c57-2f1f1f0b9b7a")).isEmpty();
+		assertThat(peer.ownerOf(encode("metadata.internal:8080") + ".x")).isEmpty();
+		assertThat(peer.ownerOf(encode("10.0.3.7:22") + ".x")).isEmpty();
+	}
+
+	@Test
+	void forwardsOnlyJobIdsSignedWithTheSharedSecret() throws Exception {
+		answerRows(1);
+		QueryJobService owner = service("10.0.3.7");
+		QueryJobService peer = service("10.0.3.8");
+		String id = (String) owner.submit(Report.PAGE_VIEWS, "24h").get("job_id");
+		String signature = id.split("\\.")[1];
+
+		// Another pod's address under a signature made for 10.0.3.7, or under none at all
+		assertThat(peer.ownerOf(encode("10.0.3.9:8080") + "." + signature + ".x")).isEmpty();
+		assertThat(peer.ownerOf(encode("10.0.3.9:8080") + ".x")).isEmpty();
+
+		ReflectionTestUtils.setField(peer, "routingSecret", "another-secret");
+		assertThat(peer.ownerOf(id)).isEmpty();
+		ReflectionTestUtils.setField(peer, "routingSecret", "");
+		assertThat(peer.ownerOf(id)).isEmpty();
+	}
+
+	private QueryJobService service(String podAddress) throws IOException {
+		QueryJobService service = new QueryJobService();
+		ReflectionTestUtils.setField(service, "clickHouseService", clickHouseService);
+		ReflectionTestUtils.setField(service, "clickHouseHttpClient", clickHouseHttpClient);
+		ReflectionTestUtils.setField(service, "objectMapper", new ObjectMapper());
+		ReflectionTestUtils.setField(service, "jobExecutor", jobExecutor);
+		ReflectionTestUtils.setField(service, "spoolDir", spoolDir);
+		ReflectionTestUtils.setField(service, "resultTtlMinutes", 30L);
+		ReflectionTestUtils.setField(service, "queryTimeoutSeconds", 60L);
+		ReflectionTestUtils.setField(service, "podAddress", podAddress);
+		ReflectionTestUtils.setField(service, "routingSecret", "shared-secret");
+		ReflectionTestUtils.setField(service, "serverPort", 8080);
+		service.init();
+		return service;
+	}
+
+	private void answerRows(int rows) throws IOException {
+		doAnswer(invocation -> {
+			OutputStream out = invocation.getArgument(4);
+			for (int i = 0; i < rows; i++) {
+				out.write(("{\"n\":" + i + "}\n").getBytes(StandardCharsets.UTF_8));
+			}
+			return (long) rows;
+		}).when(clickHouseHttpClient).streamQuery(anyString(), anyMap(), any(Format.class), anyString(),
+				any(OutputStream.class));
+	}
+
+	private void awaitStatus(String id, String status) throws InterruptedException {
+		awaitTrue(() -> status.equals(queryJobService.getJob(id).orElseThrow().get("status")));
+	}
+
+	private List<Path> spoolFiles() throws IOException {
+		try (var files = Files.list(spoolDir)) {
+			return files.filter(file -> file.toString().endsWith(".ndjson")).toList();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static List<JsonNode> rowsOf(Map<String, Object> page) {
+		return (List<JsonNode>) page.get("rows");
+	}
+
+	private static String encode(String address) {
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(address.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!condition.getAsBoolean()) {
+			if (System.currentTimeMillis() > deadline) {
+				throw new AssertionError("Condition not met within 5s");
+			}
+			Thread.sleep(10);
+		}
+	}
+}
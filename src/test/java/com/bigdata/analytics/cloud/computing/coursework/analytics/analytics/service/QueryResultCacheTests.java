@@ -0,0 +1,132 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+class QueryResultCacheTests {
+
+	private final ExecutorService callers = Executors.newFixedThreadPool(8);
+
+	private QueryResultCache cache;
+
+	@BeforeEach
+	void init() {
+		cache = new QueryResultCache();
+		ReflectionTestUtils.setField(cache, "refreshExecutor", (Executor) Runnable::run);
+		ReflectionTestUtils.setField(cache, "enabled", true);
+		ReflectionTestUtils.setField(cache, "ttlSeconds1h", 0L);
+		ReflectionTestUtils.setField(cache, "ttlSeconds24h", 60L);
+		ReflectionTestUtils.setField(cache, "ttlSeconds7d", 300L);
+		ReflectionTestUtils.setField(cache, "ttlSeconds30d", 900L);
+		ReflectionTestUtils.setField(cache, "refreshAheadRatio", 0.8);
+		// Refresh-ahead stays out of the way of these tests
+		ReflectionTestUtils.setField(cache, "refreshAheadMinHits", Integer.MAX_VALUE);
+	}
+
+	@AfterEach
+	void close() {
+		callers.shutdownNow();
+	}
+
+	@Test
+	void coalescesConcurrentMissesIntoOneLoad() throws Exception {
+		AtomicInteger loads = new AtomicInteger();
+		CountDownLatch release = new CountDownLatch(1);
+		List<Future<String>> results = new ArrayList<>();
+
+		for (int i = 0; i < 8; i++) {
+			results.add(callers.submit(() -> cache.get("top_pages", "24h", () -> {
+				loads.incrementAndGet();
+				hold(release);
+				return "rows";
+			})));
+		}
+		// Hold the load until every other caller is waiting on it
+		awaitTrue(() -> (long) cache.getStats().get("coalesced_misses") == 7);
+		release.countDown();
+
+		for (Future<String> result : results) {
+			assertThat(result.get(5, TimeUnit.SECONDS)).isEqualTo("rows");
+		}
+		assertThat(loads).hasValue(1);
+		assertThat(cache.getStats()).containsEntry("loads", 1L).containsEntry("misses", 8L);
+	}
+
+	@Test
+	void servesHitsUntilTheEntryExpires() throws Exception {
+		AtomicInteger loads = new AtomicInteger();
+
+		cache.get("top_pages", "24h", loads::incrementAndGet);
+		assertThat(cache.get("top_pages", "24h", loads::incrementAndGet)).isEqualTo(1);
+
+		// A zero TTL expires the entry as soon as it is stored
+		cache.get("top_pages", "1h", loads::incrementAndGet);
+		assertThat(cache.get("top_pages", "1h", loads::incrementAndGet)).isEqualTo(3);
+
+		assertThat(cache.getStats()).containsEntry("hits", 1L).containsEntry("loads", 3L);
+	}
+
+	@Test
+	void doesNotCacheAFailedLoad() throws Exception {
+		assertThatThrownBy(() -> cache.get("top_pages", "24h", () -> {
+			throw new SQLException("Code: 241. DB::Exception: Memory limit exceeded");
+		})).isInstanceOf(SQLException.class).hasMessageContaining("Memory limit exceeded");
+
+		assertThat(cache.get("top_pages", "24h", () -> "rows")).isEqualTo("rows");
+		assertThat(cache.getStats()).containsEntry("load_failures", 1L).containsEntry("loads", 1L);
+	}
+
+	@Test
+	void failsEveryCallerCoalescedOntoAFailedLoad() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		List<Future<Object>> results = new ArrayList<>();
+
+		for (int i = 0; i < 4; i++) {
+			results.add(callers.submit(() -> cache.get("top_pages", "24h", () -> {
+				hold(release);
+				throw new SQLException("Code: 159. DB::Exception: Timeout exceeded");
+			})));
+		}
+		awaitTrue(() -> (long) cache.getStats().get("coalesced_misses") == 3);
+		release.countDown();
+
+		for (Future<Object> result : results) {
+			assertThatThrownBy(() -> result.get(5, TimeUnit.SECONDS)).hasCauseInstanceOf(SQLException.class);
+		}
+		assertThat(cache.getStats()).containsEntry("entries", 0).containsEntry("load_failures", 1L);
+	}
+
+	private static void hold(CountDownLatch release) {
+		try {
+			release.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!condition.getAsBoolean()) {
+			if (System.currentTimeMillis() > deadline) {
+				throw new AssertionError("Condition not met within 5s");
+			}
+			Thread.sleep(10);
+		}
+	}
+}
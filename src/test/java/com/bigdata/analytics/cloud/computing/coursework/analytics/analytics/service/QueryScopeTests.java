@@ -0,0 +1,52 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.jupiter.api.Test;
+
+class QueryScopeTests {
+
+	@Test
+	void cancelKillsRegisteredStatements() throws Exception {
+		QueryScope scope = QueryScope.open("dashboard", Duration.ofSeconds(10));
+		Statement statement = mock(Statement.class);
+		scope.register(statement);
+
+		scope.cancel("client disconnected");
+
+		verify(statement).cancel();
+		assertThatThrownBy(scope::remainingSeconds).isInstanceOf(SQLTimeoutException.class);
+	}
+
+	@Test
+	void sharedLoadsSurviveWhileOthersWait() throws Exception {
+		QueryScope scope = QueryScope.open("dashboard", Duration.ofSeconds(10));
+		Statement statement = mock(Statement.class);
+		AtomicBoolean othersWaiting = new AtomicBoolean(true);
+		QueryScope.whileShared(() -> !othersWaiting.get(), () -> {
+			scope.register(statement);
+			return null;
+		});
+
+		scope.cancel("client disconnected");
+
+		verify(statement, never()).cancel();
+	}
+
+	@Test
+	void remainingTimeRoundsUpAndIsBoundToTheCallingThread() throws Exception {
+		QueryScope scope = QueryScope.open("realtime", Duration.ofMillis(1500));
+
+		assertThat(scope.remainingSeconds()).isEqualTo(2);
+		assertThat(scope.call(QueryScope::current)).isSameAs(scope);
+		assertThat(QueryScope.current()).isNull();
+	}
+}
@@ -0,0 +1,149 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto.RealtimeMetricsRow;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.loadtest.ClickHouseStandIn;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.loadtest.ClickHouseStandIn.Column;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.loadtest.ClickHouseStandIn.Result;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.model.PageViewEvent;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.sketch.HyperLogLog;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.util.Base64;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.IntStream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+class RealtimeMetricsAggregatorTests {
+
+	private static final long MINUTE = 29_000_000L;
+	private static final long NOW = MINUTE * 60_000 + 30_000;
+	private static final long WINDOW_START = MINUTE - RealtimeMetricsAggregator.WINDOW_MINUTES + 1;
+
+	private static final List<Column> COLUMNS = List.of(new Column("minute", "UInt64"),
+			new Column("page_views", "UInt64"), new Column("clicks", "UInt64"), new Column("scrolls", "UInt64"),
+			new Column("sessions", "String"), new Column("users", "String"));
+
+	/** Minutes as the stand-in publishes them, changed by the tests as they go */
+	private final List<Object[]> closedMinutes = new CopyOnWriteArrayList<>();
+	private final List<Object[]> peerOpenMinutes = new CopyOnWriteArrayList<>();
+
+	private ClickHouseStandIn standIn;
+	private Connection connection;
+	private RealtimeMetricsAggregator aggregator;
+
+	@BeforeEach
+	void init() throws Exception {
+		standIn = ClickHouseStandIn.start(4).recordStatements()
+				.respond("pod != ", Result.of(COLUMNS, peerOpenMinutes))
+				.respond("FROM default\\.realtime_minutes", Result.of(COLUMNS, closedMinutes));
+		Properties properties = new Properties();
+		properties.setProperty("user", "default");
+		properties.setProperty("password", "");
+		connection = DriverManager.getConnection("jdbc:ch://" + standIn.url() + "/default?compress=0&decompress=0",
+				properties);
+
+		ClusterLease clusterLease = mock(ClusterLease.class);
+		when(clusterLease.getOwner()).thenReturn("pod-a/12345678");
+
+		aggregator = new RealtimeMetricsAggregator();
+		ReflectionTestUtils.setField(aggregator, "clickHouseConnection", connection);
+		ReflectionTestUtils.setField(aggregator, "clusterLease", clusterLease);
+		ReflectionTestUtils.setField(aggregator, "enabled", true);
+		ReflectionTestUtils.setField(aggregator, "hllPrecision", 12);
+		ReflectionTestUtils.setField(aggregator, "publishIntervalMs", 5000L);
+		aggregator.init();
+	}
+
+	@AfterEach
+	void close() throws Exception {
+		connection.close();
+		standIn.close();
+	}
+
+	@Test
+	void countsTheTrafficOfEveryPod() throws Exception {
+		closedMinutes.add(minute(WINDOW_START, 100, sessions(0, 50)));
+		closedMinutes.add(minute(MINUTE - 2, 10, sessions(0, 10)));
+		peerOpenMinutes.add(minute(MINUTE, 5, sessions(40, 60)));
+		aggregator.recordPageViews(pageViews(100, 103), NOW);
+		aggregator.recordClicks(7, NOW);
+
+		RealtimeMetricsRow metrics = aggregator.getRealtimeMetrics(NOW).orElseThrow();
+
+		assertThat(metrics.pageViewsLastHour()).isEqualTo(118);
+		assertThat(metrics.clicksLastHour()).isEqualTo(3 * 7 + 7);
+		assertThat(metrics.activeSessions()).isBetween(62L, 64L);
+	}
+
+	@Test
+	void fallsBackUntilSomePodPublishedTheStartOfTheWindow() throws Exception {
+		closedMinutes.add(minute(WINDOW_START + 1, 100, sessions(0, 50)));
+		aggregator.recordPageViews(pageViews(0, 3), NOW);
+
+		assertThat(aggregator.getRealtimeMetrics(NOW)).isEmpty();
+	}
+
+	@Test
+	void mergesClosedMinutesOncePerMinute() throws Exception {
+		closedMinutes.add(minute(WINDOW_START, 100, sessions(0, 50)));
+
+		aggregator.getRealtimeMetrics(NOW);
+		aggregator.getRealtimeMetrics(NOW + 1000);
+		aggregator.getRealtimeMetrics(NOW + 5000);
+		aggregator.getRealtimeMetrics(NOW + 10_000);
+
+		assertThat(reads(false)).isEqualTo(1);
+		assertThat(reads(true)).isEqualTo(3);
+
+		aggregator.getRealtimeMetrics(NOW + 60_000);
+
+		assertThat(reads(false)).isEqualTo(2);
+	}
+
+	@Test
+	void publishesBothOpenMinutesOfThisPod() throws Exception {
+		aggregator.recordPageViews(pageViews(0, 3), NOW);
+
+		aggregator.publish(NOW);
+
+		assertThat(standIn.getStatements())
+				.anyMatch(sql -> sql.startsWith("CREATE TABLE IF NOT EXISTS default.realtime_minutes"))
+				.anyMatch(sql -> sql.startsWith("INSERT INTO default.realtime_minutes"));
+		assertThat(standIn.getStats()).containsEntry("inserts", 1L);
+	}
+
+	/** Reads of the shared table, either of peers' open minutes or of everyone's closed ones */
+	private long reads(boolean open) {
+		return standIn.getStatements().stream()
+				.filter(sql -> sql.startsWith("SELECT minute") && sql.contains("pod != ") == open).count();
+	}
+
+	private static Object[] minute(long minute, long pageViews, HyperLogLog sessions) {
+		String encoded = Base64.getEncoder().encodeToString(sessions.toBytes());
+		return new Object[] { minute, pageViews, 7, 0, encoded, encoded };
+	}
+
+	private static HyperLogLog sessions(int from, int to) {
+		HyperLogLog sketch = new HyperLogLog(12);
+		IntStream.range(from, to).forEach(i -> sketch.offer("session-" + i));
+		return sketch;
+	}
+
+	private static List<PageViewEvent> pageViews(int from, int to) {
+		return IntStream.range(from, to).mapToObj(i -> {
+			PageViewEvent event = new PageViewEvent();
+			event.setSessionId("session-" + i);
+			event.setUserId("user-" + i);
+			return event;
+		}).toList();
+	}
+}
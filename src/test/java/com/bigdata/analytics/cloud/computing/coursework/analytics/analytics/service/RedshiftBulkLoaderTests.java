@@ -0,0 +1,169 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service.RedshiftBulkLoader.Mode;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfEnvironmentVariable;
+import org.mockito.ArgumentCaptor;
+import org.postgresql.PGConnection;
+
+class RedshiftBulkLoaderTests {
+
+	private static final List<String> COLUMNS = List.of("session_id", "page_url", "load_time");
+
+	@Test
+	void fallsBackToMultiRowInsertWithoutThePostgresDriver() throws SQLException {
+		Connection connection = mock(Connection.class);
+		PreparedStatement stmt = mock(PreparedStatement.class);
+		when(connection.prepareStatement(anyString())).thenReturn(stmt);
+
+		Mode used = new RedshiftBulkLoader(Mode.AUTO, 2).load(connection, "public.page_views", COLUMNS, rows(3));
+
+		assertThat(used).isEqualTo(Mode.INSERT);
+		ArgumentCaptor<String> sql = ArgumentCaptor.forClass(String.class);
+		verify(connection, times(2)).prepareStatement(sql.capture());
+		assertThat(sql.getAllValues()).containsExactly(
+				"INSERT INTO public.page_views (session_id, page_url, load_time) VALUES (?, ?, ?), (?, ?, ?)",
+				"INSERT INTO public.page_views (session_id, page_url, load_time) VALUES (?, ?, ?)");
+		verify(stmt).setObject(4, "session-1");
+		verify(stmt, times(2)).executeUpdate();
+	}
+
+	@Test
+	void insertsIntoRedshiftReachedThroughThePostgresDriver() throws SQLException {
+		Connection connection = mock(Connection.class);
+		when(connection.isWrapperFor(PGConnection.class)).thenReturn(true);
+		Statement versionStmt = mock(Statement.class);
+		ResultSet version = mock(ResultSet.class);
+		when(connection.createStatement()).thenReturn(versionStmt);
+		when(versionStmt.executeQuery("SELECT version()")).thenReturn(version);
+		when(version.next()).thenReturn(true);
+		when(version.getString(1)).thenReturn(
+				"PostgreSQL 8.0.2 on i686-pc-linux-gnu, compiled by GCC gcc (GCC) 3.4.2 20041017, Redshift 1.0.75379");
+		when(connection.prepareStatement(anyString())).thenReturn(mock(PreparedStatement.class));
+
+		RedshiftBulkLoader loader = new RedshiftBulkLoader(Mode.AUTO, 10);
+		assertThat(loader.load(connection, "public.page_views", COLUMNS, rows(3))).isEqualTo(Mode.INSERT);
+		assertThat(loader.load(connection, "public.page_views", COLUMNS, rows(3))).isEqualTo(Mode.INSERT);
+
+		// Asked once per loader, never by COPY
+		verify(versionStmt, times(1)).executeQuery("SELECT version()");
+		verify(connection, never()).unwrap(PGConnection.class);
+	}
+
+	@Test
+	void capsMultiRowInsertsAtTheBindParameterLimit() throws SQLException {
+		Connection connection = mock(Connection.class);
+		when(connection.prepareStatement(anyString())).thenReturn(mock(PreparedStatement.class));
+		List<String> columns = new ArrayList<>();
+		for (int i = 0; i < 15; i++) {
+			columns.add("c" + i);
+		}
+		List<Object[]> rows = new ArrayList<>();
+		for (int i = 0; i < 5000; i++) {
+			rows.add(new Object[columns.size()]);
+		}
+
+		new RedshiftBulkLoader(Mode.INSERT, 5000).load(connection, "wide", columns, rows);
+
+		ArgumentCaptor<String> sql = ArgumentCaptor.forClass(String.class);
+		verify(connection, times(3)).prepareStatement(sql.capture());
+		assertThat(sql.getAllValues()).allSatisfy(statement -> assertThat(statement.chars().filter(c -> c == '?').count())
+				.isLessThanOrEqualTo(RedshiftBulkLoader.MAX_BIND_PARAMETERS));
+	}
+
+	@Test
+	void forcedCopyNeedsThePostgresDriver() {
+		Connection connection = mock(Connection.class);
+
+		assertThatThrownBy(() -> new RedshiftBulkLoader(Mode.COPY, 10).load(connection, "t", COLUMNS, rows(1)))
+				.isInstanceOf(SQLException.class);
+	}
+
+	/**
+	 * Loads the same rows through COPY, multi-row INSERT and the former row-by-row JDBC batch into
+	 * a local PostgreSQL and prints rows/s for each, e.g.
+	 * {@code POSTGRES_TEST_URL=jdbc:postgresql://localhost/postgres?user=postgres&password=postgres}.
+	 */
+	@Test
+	@EnabledIfEnvironmentVariable(named = "POSTGRES_TEST_URL", matches = ".+")
+	void comparesLoadPathsAgainstPostgres() throws SQLException {
+		int rowCount = 50_000;
+		List<Object[]> rows = rows(rowCount);
+		rows.set(0, new Object[] { "quote \"and\", comma", "", null });
+
+		try (Connection connection = DriverManager.getConnection(System.getenv("POSTGRES_TEST_URL"))) {
+			connection.setAutoCommit(false);
+			try (Statement stmt = connection.createStatement()) {
+				stmt.execute("CREATE TEMP TABLE bulk_load_test (session_id varchar, page_url varchar, load_time int)");
+			}
+
+			for (Mode mode : List.of(Mode.COPY, Mode.INSERT)) {
+				long start = System.nanoTime();
+				assertThat(new RedshiftBulkLoader(mode, 1000).load(connection, "bulk_load_test", COLUMNS, rows))
+						.isEqualTo(mode);
+				connection.commit();
+				report(mode.name(), rowCount, start);
+				assertRoundTrip(connection, rowCount);
+			}
+
+			long start = System.nanoTime();
+			try (PreparedStatement stmt = connection.prepareStatement(
+					"INSERT INTO bulk_load_test (session_id, page_url, load_time) VALUES (?, ?, ?)")) {
+				for (Object[] row : rows) {
+					for (int i = 0; i < row.length; i++) {
+						stmt.setObject(i + 1, row[i]);
+					}
+					stmt.addBatch();
+				}
+				stmt.executeBatch();
+			}
+			connection.commit();
+			report("JDBC batch", rowCount, start);
+			assertRoundTrip(connection, rowCount);
+		}
+	}
+
+	private static void assertRoundTrip(Connection connection, int rowCount) throws SQLException {
+		try (Statement stmt = connection.createStatement()) {
+			try (ResultSet rs = stmt.executeQuery(
+					"SELECT count(*), count(*) FILTER (WHERE session_id = 'quote \"and\", comma'"
+							+ " AND page_url = '' AND load_time IS NULL) FROM bulk_load_test")) {
+				rs.next();
+				assertThat(rs.getInt(1)).isEqualTo(rowCount);
+				assertThat(rs.getInt(2)).isEqualTo(1);
+			}
+			stmt.execute("TRUNCATE bulk_load_test");
+		}
+		connection.commit();
+	}
+
+	private static void report(String path, int rowCount, long startNanos) {
+		double seconds = (System.nanoTime() - startNanos) / 1e9;
+		System.out.printf("%-10s %,d rows in %.2fs: %,.0f rows/s%n", path, rowCount, seconds, rowCount / seconds);
+	}
+
+	private static List<Object[]> rows(int count) {
+		List<Object[]> rows = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			rows.add(new Object[] { "session-" + i, "/page/" + (i % 50), i % 3000 });
+		}
+		return rows;
+	}
+}
@@ -0,0 +1,208 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.dto.HourDigest;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+class RedshiftReconcilerTests {
+
+	@TempDir
+	Path stateDir;
+
+	private final ClickHouseService clickHouseService = mock(ClickHouseService.class);
+	private final RedshiftService redshiftService = mock(RedshiftService.class);
+	private final RedshiftReplicationBuffer replicationBuffer = mock(RedshiftReplicationBuffer.class);
+	private final ClusterLease clusterLease = mock(ClusterLease.class);
+
+	private RedshiftReconciler reconciler;
+
+	@AfterEach
+	void shutdown() {
+		if (reconciler != null) {
+			reconciler.shutdown();
+		}
+	}
+
+	@Test
+	void reloadsOnlyTheDivergentHourAndAdvancesTheCheckpoint() throws Exception {
+		LocalDateTime firstOpenHour = LocalDateTime.now(ZoneOffset.UTC).truncatedTo(ChronoUnit.HOURS);
+		LocalDateTime good = firstOpenHour.minusHours(2);
+		LocalDateTime bad = firstOpenHour.minusHours(1);
+
+		Map<Long, HourDigest> clickHouse = new HashMap<>();
+		clickHouse.put(key(good), new HourDigest(2, 100));
+		clickHouse.put(key(bad), new HourDigest(3, 300));
+		Map<Long, HourDigest> redshift = new HashMap<>();
+		redshift.put(key(good), new HourDigest(2, 100));
+		redshift.put(key(bad), new HourDigest(1, 90));
+
+		when(clickHouseService.getHourlyDigests(anyString(), any(), any())).thenAnswer(
+				invocation -> slice(clickHouse, invocation.getArgument(0), invocation.getArgument(1),
+						invocation.getArgument(2)));
+		when(redshiftService.getHourlyDigests(anyString(), any(), any())).thenAnswer(
+				invocation -> slice(redshift, invocation.getArgument(0), invocation.getArgument(1),
+						invocation.getArgument(2)));
+		RedshiftService.Staging staging = mock(RedshiftService.Staging.class);
+		when(redshiftService.stage("click_events")).thenReturn(staging);
+		when(clickHouseService.streamRows(eq("click_events"), anyList(), eq(bad), eq(bad.plusHours(1)), any()))
+				.thenAnswer(invocation -> {
+					// Nothing is written to Redshift while ClickHouse is being read
+					verify(redshiftService, never()).stage(anyString());
+					RowReader.RowHandler<Object[]> handler = invocation.getArgument(4);
+					for (int i = 0; i < 3; i++) {
+						handler.handle(new Object[] { "s" + i, (long) i });
+					}
+					return 3L;
+				});
+		List<List<Object>> batches = new ArrayList<>();
+		doAnswer(invocation -> {
+			List<Object[]> rows = invocation.getArgument(0);
+			batches.add(rows.stream().map(row -> row[1]).toList());
+			return null;
+		}).when(staging).load(anyList());
+		when(staging.replaceRange(bad, bad.plusHours(1))).thenAnswer(invocation -> {
+			// Once swapped in, Redshift holds what ClickHouse does
+			redshift.put(key(bad), clickHouse.get(key(bad)));
+			return 1;
+		});
+
+		reconciler = reconciler(2);
+		reconciler.reconcile();
+
+		// Batches of two read back from the spool in order, then one swap of the whole hour
+		assertThat(batches).containsExactly(List.of(0L, 1L), List.of(2L));
+		verify(staging).replaceRange(bad, bad.plusHours(1));
+		verify(staging, never()).replaceRange(good, good.plusHours(1));
+		verify(staging).close();
+		verify(clusterLease).release(RedshiftReconciler.LEASE);
+		try (var spool = Files.list(stateDir)) {
+			assertThat(spool).noneMatch(file -> file.getFileName().toString().startsWith("repair-"));
+		}
+
+		Map<String, Object> status = reconciler.getStatus();
+		assertThat(status).containsEntry("checked_hours", 8L);
+		assertThat(status).containsEntry("divergent_hours", 1L);
+		assertThat(status).containsEntry("repaired_hours", 1L);
+		assertThat(status).containsEntry("deleted_rows", 1L);
+		assertThat(status).containsEntry("reloaded_rows", 3L);
+		assertThat(status).containsEntry("failures", 0L);
+		assertThat(Files.readString(stateDir.resolve("checkpoint.properties")))
+				.contains("click_events=" + firstOpenHour.toString().replace(":", "\\:"));
+	}
+
+	@Test
+	void leavesTheCheckpointAtAnHourThatStillDiffersAfterTheReload() throws Exception {
+		LocalDateTime firstOpenHour = LocalDateTime.now(ZoneOffset.UTC).truncatedTo(ChronoUnit.HOURS);
+		LocalDateTime bad = firstOpenHour.minusHours(1);
+		when(clickHouseService.getHourlyDigests(eq("page_view_events"), any(), any()))
+				.thenReturn(Map.of(key(bad), new HourDigest(1, 10)));
+		when(redshiftService.getHourlyDigests(anyString(), any(), any())).thenReturn(Map.of());
+		when(redshiftService.stage("page_view_events")).thenReturn(mock(RedshiftService.Staging.class));
+
+		reconciler = reconciler(10);
+		reconciler.reconcile();
+
+		Map<String, Object> status = reconciler.getStatus();
+		assertThat(status).containsEntry("repaired_hours", 0L);
+		assertThat(status).containsEntry("failures", 1L);
+		assertThat((String) status.get("last_error")).startsWith("page_view_events");
+		// The next run starts at the hour that failed
+		assertThat(((Map<?, ?>) status.get("next_hour")).get("page_view_events")).isEqualTo(bad.toString());
+	}
+
+	@Test
+	void leavesTheRunToThePodHoldingTheLease() throws Exception {
+		reconciler = reconciler(10);
+		when(clusterLease.tryAcquire(eq(RedshiftReconciler.LEASE), any())).thenReturn(false);
+
+		reconciler.reconcile();
+
+		verify(clickHouseService, never()).getHourlyDigests(anyString(), any(), any());
+		verify(redshiftService, never()).stage(anyString());
+		assertThat(reconciler.getStatus()).containsEntry("checked_hours", 0L);
+	}
+
+	@Test
+	void verifiesImportedHoursAgainOnTheNextRun() throws Exception {
+		LocalDateTime firstOpenHour = LocalDateTime.now(ZoneOffset.UTC).truncatedTo(ChronoUnit.HOURS);
+		when(clickHouseService.getHourlyDigests(anyString(), any(), any())).thenReturn(Map.of());
+		when(redshiftService.getHourlyDigests(anyString(), any(), any())).thenReturn(Map.of());
+		reconciler = reconciler(10);
+		reconciler.reconcile();
+
+		reconciler.recheckFrom("click_events", firstOpenHour.minusHours(30).plusMinutes(17));
+		reconciler.recheckFrom("click_events", firstOpenHour.minusHours(20));
+		reconciler.reconcile();
+
+		verify(clickHouseService).getHourlyDigests("click_events", firstOpenHour.minusHours(30), firstOpenHour);
+		// Two hours of each table on the first run, then the thirty imported ones
+		assertThat(reconciler.getStatus()).containsEntry("checked_hours", 38L);
+		assertThat(Files.readString(stateDir.resolve("checkpoint.properties"))).doesNotContain("recheck.")
+				.contains("click_events=" + firstOpenHour.toString().replace(":", "\\:"));
+	}
+
+	private RedshiftReconciler reconciler(int batchRows) throws Exception {
+		RedshiftReconciler reconciler = new RedshiftReconciler();
+		ReflectionTestUtils.setField(reconciler, "clickHouseService", clickHouseService);
+		ReflectionTestUtils.setField(reconciler, "redshiftService", redshiftService);
+		ReflectionTestUtils.setField(reconciler, "replicationBuffer", replicationBuffer);
+		ReflectionTestUtils.setField(reconciler, "clusterLease", clusterLease);
+		ReflectionTestUtils.setField(reconciler, "leaseTerm", Duration.ofHours(1));
+		when(clusterLease.tryAcquire(eq(RedshiftReconciler.LEASE), any())).thenReturn(true);
+		ReflectionTestUtils.setField(reconciler, "stateDir", stateDir);
+		ReflectionTestUtils.setField(reconciler, "zone", ZoneOffset.UTC);
+		ReflectionTestUtils.setField(reconciler, "intervalMs", 3_600_000L);
+		ReflectionTestUtils.setField(reconciler, "initialDelayMs", 3_600_000L);
+		ReflectionTestUtils.setField(reconciler, "lagMinutes", 0L);
+		ReflectionTestUtils.setField(reconciler, "initialHours", 2L);
+		ReflectionTestUtils.setField(reconciler, "maxHoursPerRun", 48);
+		ReflectionTestUtils.setField(reconciler, "batchRows", batchRows);
+		ReflectionTestUtils.setField(reconciler, "maxRowsPerSecond", 1_000_000L);
+		ReflectionTestUtils.setField(reconciler, "pauseAboveLagMs", 60_000L);
+		ReflectionTestUtils.setField(reconciler, "queryTimeoutSeconds", 60L);
+		reconciler.init();
+		return reconciler;
+	}
+
+	/** Digests of one table, click_events holding all of them and the other tables none */
+	private static Map<Long, HourDigest> slice(Map<Long, HourDigest> digests, String table,
+			LocalDateTime from, LocalDateTime to) {
+		if (!table.equals("click_events")) {
+			return Map.of();
+		}
+		Map<Long, HourDigest> slice = new HashMap<>();
+		digests.forEach((hour, digest) -> {
+			if (hour >= key(from) && hour < key(to)) {
+				slice.put(hour, digest);
+			}
+		});
+		return slice;
+	}
+
+	private static long key(LocalDateTime hour) {
+		return hour.toEpochSecond(ZoneOffset.UTC);
+	}
+}
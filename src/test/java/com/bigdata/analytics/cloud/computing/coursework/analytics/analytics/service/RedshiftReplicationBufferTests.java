@@ -0,0 +1,263 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.model.ClickEvent;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service.RedshiftReplicationBuffer.Failure;
+import com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service.RedshiftReplicationBuffer.OverflowPolicy;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.SQLTransientConnectionException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.BooleanSupplier;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+class RedshiftReplicationBufferTests {
+
+	@TempDir
+	Path spoolDir;
+
+	@Test
+	void spoolsBatchesWhileRedshiftIsDownAndReplaysThemAfterwards() throws Exception {
+		RedshiftService redshiftService = mock(RedshiftService.class);
+		doThrow(new SQLTransientConnectionException("down")).when(redshiftService).insertClickEvents(anyList());
+
+		RedshiftReplicationBuffer buffer = buffer(redshiftService);
+		try {
+			buffer.addClicks(clicks(10));
+
+			awaitTrue(() -> clickStats(buffer).get("spooled").equals(10L));
+			assertThat(clickStats(buffer)).containsEntry("pending", 0).containsEntry("spilled_events", 10L);
+			assertThat((long) buffer.getStats().get("lag_ms")).isGreaterThanOrEqualTo(0L);
+			assertThat(Files.list(spoolDir.resolve("click_events"))).hasSize(1);
+
+			doNothing().when(redshiftService).insertClickEvents(anyList());
+
+			awaitTrue(() -> clickStats(buffer).get("replayed_events").equals(10L));
+			assertThat(clickStats(buffer)).containsEntry("spooled", 0L).containsEntry("lag_ms", 0L);
+			assertThat(Files.list(spoolDir.resolve("click_events"))).isEmpty();
+		} finally {
+			buffer.shutdown();
+		}
+	}
+
+	@Test
+	void dropsWhatDoesNotFitUnderTheDropPolicy() throws Exception {
+		RedshiftReplicationBuffer buffer = buffer(mock(RedshiftService.class));
+		holdInMemory(buffer);
+		try {
+			buffer.addClicks(clicks(150));
+
+			assertThat(clickStats(buffer)).containsEntry("pending", 100).containsEntry("dropped_events", 50L);
+		} finally {
+			buffer.shutdown();
+		}
+	}
+
+	@Test
+	void waitsForRoomUnderTheBlockPolicyBeforeDropping() throws Exception {
+		RedshiftReplicationBuffer buffer = buffer(mock(RedshiftService.class));
+		holdInMemory(buffer);
+		ReflectionTestUtils.setField(buffer, "overflowPolicy", OverflowPolicy.BLOCK);
+		ReflectionTestUtils.setField(buffer, "blockTimeoutMs", 100L);
+		try {
+			buffer.addClicks(clicks(100));
+
+			long start = System.nanoTime();
+			buffer.addClicks(clicks(10));
+			long waitedMs = (System.nanoTime() - start) / 1_000_000;
+
+			assertThat(waitedMs).isGreaterThanOrEqualTo(90L);
+			assertThat(clickStats(buffer)).containsEntry("pending", 100).containsEntry("dropped_events", 10L);
+		} finally {
+			buffer.shutdown();
+		}
+	}
+
+	@Test
+	void spillsPastTheHighWaterMarkWhileAFlushIsStuck() throws Exception {
+		RedshiftService redshiftService = mock(RedshiftService.class);
+		CountDownLatch release = new CountDownLatch(1);
+		doAnswer(invocation -> {
+			release.await();
+			return null;
+		}).when(redshiftService).insertClickEvents(anyList());
+
+		RedshiftReplicationBuffer buffer = buffer(redshiftService);
+		try {
+			buffer.addClicks(clicks(80));
+
+			awaitTrue(() -> (int) clickStats(buffer).get("pending") < 50);
+			assertThat((long) clickStats(buffer).get("spilled_events")).isPositive();
+			assertThat(Files.list(spoolDir.resolve("click_events"))).isNotEmpty();
+
+			release.countDown();
+			awaitTrue(() -> (long) clickStats(buffer).get("flushed_events") == 80L);
+			assertThat(clickStats(buffer)).containsEntry("spooled", 0L).containsEntry("dropped_events", 0L);
+		} finally {
+			release.countDown();
+			buffer.shutdown();
+		}
+	}
+
+	@Test
+	void replaysSegmentsLeftBehindByAPreviousRun() throws Exception {
+		RedshiftService down = mock(RedshiftService.class);
+		doThrow(new SQLTransientConnectionException("down")).when(down).insertClickEvents(anyList());
+		RedshiftReplicationBuffer before = buffer(down);
+		before.addClicks(clicks(10));
+		awaitTrue(() -> clickStats(before).get("spooled").equals(10L));
+		before.shutdown();
+		Files.writeString(spoolDir.resolve("click_events").resolve("notes.txt"), "not a segment");
+
+		RedshiftService up = mock(RedshiftService.class);
+		RedshiftReplicationBuffer after = buffer(up);
+		try {
+			assertThat((long) after.getStats().get("lag_ms")).isPositive();
+
+			awaitTrue(() -> clickStats(after).get("replayed_events").equals(10L));
+			verify(up).insertClickEvents(argThat(events -> events.size() == 10));
+			assertThat(Files.list(spoolDir.resolve("click_events")))
+					.extracting(file -> file.getFileName().toString()).containsExactly("notes.txt");
+		} finally {
+			after.shutdown();
+		}
+	}
+
+	@Test
+	void setsAsideWhatRedshiftRefusesAndReplaysTheRest() throws Exception {
+		RedshiftService redshiftService = mock(RedshiftService.class);
+		doThrow(new SQLTransientConnectionException("down")).when(redshiftService).insertClickEvents(anyList());
+		RedshiftReplicationBuffer buffer = buffer(redshiftService);
+		try {
+			List<ClickEvent> bad = clicks(10);
+			bad.forEach(event -> event.setPageUrl("bad"));
+			buffer.addClicks(bad);
+			awaitTrue(() -> clickStats(buffer).get("spooled").equals(10L));
+			buffer.addClicks(clicks(10));
+			awaitTrue(() -> clickStats(buffer).get("spooled").equals(20L));
+
+			// The oldest segment is refused for its data; it must not hold up the one behind it
+			doAnswer(invocation -> {
+				List<ClickEvent> events = invocation.getArgument(0);
+				if (events.get(0).getPageUrl().equals("bad")) {
+					throw new SQLException("value too long for type character varying(2048)", "22001");
+				}
+				return null;
+			}).when(redshiftService).insertClickEvents(anyList());
+
+			awaitTrue(() -> clickStats(buffer).get("replayed_events").equals(10L));
+			awaitTrue(() -> clickStats(buffer).get("dead_lettered_events").equals(10L));
+			assertThat(clickStats(buffer)).containsEntry("spooled", 0L);
+			assertThat(Files.list(spoolDir.resolve("dead-letter").resolve("click_events"))).hasSize(1);
+		} finally {
+			buffer.shutdown();
+		}
+	}
+
+	@Test
+	void deadLettersASegmentThatKeepsTimingOut() throws Exception {
+		RedshiftService redshiftService = mock(RedshiftService.class);
+		doThrow(new SQLTransientConnectionException("down")).when(redshiftService).insertClickEvents(anyList());
+		RedshiftReplicationBuffer buffer = buffer(redshiftService);
+		try {
+			buffer.addClicks(clicks(10));
+			awaitTrue(() -> clickStats(buffer).get("spooled").equals(10L));
+
+			doThrow(new SQLException("canceling statement due to statement timeout", "57014"))
+					.when(redshiftService).insertClickEvents(anyList());
+
+			awaitTrue(() -> clickStats(buffer).get("dead_lettered_events").equals(10L));
+			verify(redshiftService, atLeast(3)).insertClickEvents(anyList());
+		} finally {
+			buffer.shutdown();
+		}
+	}
+
+	@Test
+	void classifiesFailuresBySqlState() {
+		assertThat(RedshiftReplicationBuffer.classify(new SQLException("connection reset", "08006")))
+				.isEqualTo(Failure.UNREACHABLE);
+		assertThat(RedshiftReplicationBuffer.classify(new SQLTimeoutException("timed out")))
+				.isEqualTo(Failure.TRANSIENT);
+		assertThat(RedshiftReplicationBuffer.classify(new SQLException("serializable isolation violation", "40001")))
+				.isEqualTo(Failure.TRANSIENT);
+		assertThat(RedshiftReplicationBuffer.classify(new SQLException("no state")))
+				.isEqualTo(Failure.TRANSIENT);
+		assertThat(RedshiftReplicationBuffer.classify(new SQLException("invalid input syntax", "22P02")))
+				.isEqualTo(Failure.PERMANENT);
+		assertThat(RedshiftReplicationBuffer.classify(new SQLException("batch failed", null,
+				new SQLException("not-null violation", "23502")))).isEqualTo(Failure.PERMANENT);
+		assertThat(RedshiftReplicationBuffer.classify(new IllegalArgumentException("unmapped column")))
+				.isEqualTo(Failure.PERMANENT);
+	}
+
+	/** Nothing is due for a flush or a spill, so events stay pending in memory */
+	private static void holdInMemory(RedshiftReplicationBuffer buffer) {
+		ReflectionTestUtils.setField(buffer, "batchSize", 1000);
+		ReflectionTestUtils.setField(buffer, "maxAgeMs", 3_600_000L);
+		ReflectionTestUtils.setField(buffer, "spoolEnabled", false);
+	}
+
+	private RedshiftReplicationBuffer buffer(RedshiftService redshiftService) throws Exception {
+		RedshiftReplicationBuffer buffer = new RedshiftReplicationBuffer();
+		ReflectionTestUtils.setField(buffer, "redshiftService", redshiftService);
+		ReflectionTestUtils.setField(buffer, "objectMapper", new ObjectMapper());
+		ReflectionTestUtils.setField(buffer, "ingestMetrics", IngestMetricsTests.ingestMetrics(new SimpleMeterRegistry()));
+		ReflectionTestUtils.setField(buffer, "enabled", true);
+		ReflectionTestUtils.setField(buffer, "batchSize", 10);
+		ReflectionTestUtils.setField(buffer, "maxAgeMs", 0L);
+		ReflectionTestUtils.setField(buffer, "maxPending", 100);
+		ReflectionTestUtils.setField(buffer, "checkIntervalMs", 20L);
+		ReflectionTestUtils.setField(buffer, "flushThreads", 1);
+		ReflectionTestUtils.setField(buffer, "overflowPolicy", OverflowPolicy.DROP);
+		ReflectionTestUtils.setField(buffer, "spoolEnabled", true);
+		ReflectionTestUtils.setField(buffer, "spoolDir", spoolDir);
+		ReflectionTestUtils.setField(buffer, "spoolHighWater", 50);
+		ReflectionTestUtils.setField(buffer, "spoolMaxMb", 1L);
+		ReflectionTestUtils.setField(buffer, "maxAttempts", 3);
+		buffer.init();
+		return buffer;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Map<String, Object> clickStats(RedshiftReplicationBuffer buffer) {
+		return (Map<String, Object>) buffer.getStats().get("click_events");
+	}
+
+	private static List<ClickEvent> clicks(int count) {
+		List<ClickEvent> events = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			ClickEvent event = new ClickEvent();
+			event.setSessionId("session-" + i);
+			event.setPageUrl("/page");
+			events.add(event);
+		}
+		return events;
+	}
+
+	private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!condition.getAsBoolean()) {
+			assertThat(System.currentTimeMillis()).as("condition not met in time").isLessThan(deadline);
+			Thread.sleep(10);
+		}
+	}
+}
@@ -0,0 +1,71 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import software.amazon.awssdk.services.redshiftdata.RedshiftDataAsyncClient;
+import software.amazon.awssdk.services.redshiftdata.model.DescribeStatementResponse;
+import software.amazon.awssdk.services.redshiftdata.model.StatusString;
+
+class RedshiftStatementTrackerTests {
+
+	private final RedshiftDataAsyncClient client = mock(RedshiftDataAsyncClient.class);
+
+	@Test
+	@SuppressWarnings("unchecked")
+	void pollsUntilTheStatementFinishes() throws Exception {
+		when(client.describeStatement(any(Consumer.class))).thenReturn(
+				described(StatusString.SUBMITTED), described(StatusString.STARTED), described(StatusString.FINISHED));
+
+		RedshiftStatementTracker tracker = tracker();
+		try {
+			DescribeStatementResponse result = tracker.track("stmt-1").get(5, TimeUnit.SECONDS);
+
+			assertThat(result.status()).isEqualTo(StatusString.FINISHED);
+			verify(client, times(3)).describeStatement(any(Consumer.class));
+		} finally {
+			tracker.shutdown();
+		}
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	void failsWithTheStatementError() {
+		when(client.describeStatement(any(Consumer.class))).thenReturn(CompletableFuture.completedFuture(
+				DescribeStatementResponse.builder().id("stmt-1").status(StatusString.FAILED).error("syntax error").build()));
+
+		RedshiftStatementTracker tracker = tracker();
+		try {
+			assertThatThrownBy(() -> tracker.track("stmt-1").get(5, TimeUnit.SECONDS))
+					.isInstanceOf(ExecutionException.class)
+					.hasMessageContaining("syntax error");
+		} finally {
+			tracker.shutdown();
+		}
+	}
+
+	private RedshiftStatementTracker tracker() {
+		RedshiftStatementTracker tracker = new RedshiftStatementTracker();
+		ReflectionTestUtils.setField(tracker, "redshiftDataAsyncClient", client);
+		ReflectionTestUtils.setField(tracker, "initialPollMs", 1L);
+		ReflectionTestUtils.setField(tracker, "maxPollMs", 10L);
+		ReflectionTestUtils.setField(tracker, "timeoutSeconds", 5L);
+		tracker.init();
+		return tracker;
+	}
+
+	private static CompletableFuture<DescribeStatementResponse> described(StatusString status) {
+		return CompletableFuture.completedFuture(DescribeStatementResponse.builder().id("stmt-1").status(status).build());
+	}
+}
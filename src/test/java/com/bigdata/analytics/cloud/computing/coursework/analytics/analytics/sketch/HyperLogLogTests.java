@@ -0,0 +1,53 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.sketch;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.within;
+
+import org.junit.jupiter.api.Test;
+
+class HyperLogLogTests {
+
+	@Test
+	void estimatesDistinctCountWithinStandardError() {
+		HyperLogLog sketch = new HyperLogLog(12);
+		for (int i = 0; i < 100_000; i++) {
+			sketch.offer("session-" + i);
+			sketch.offer("session-" + i);
+		}
+
+		assertThat((double) sketch.estimate()).isCloseTo(100_000, within(100_000 * 0.05));
+	}
+
+	@Test
+	void smallCardinalitiesAreNearlyExact() {
+		HyperLogLog sketch = new HyperLogLog(12);
+		for (int i = 0; i < 50; i++) {
+			sketch.offer("user-" + i);
+		}
+
+		assertThat(sketch.estimate()).isBetween(49L, 51L);
+	}
+
+	@Test
+	void mergeOfSerialisedSketchesMatchesUnion() {
+		HyperLogLog podA = new HyperLogLog(12);
+		HyperLogLog podB = new HyperLogLog(12);
+		for (int i = 0; i < 20_000; i++) {
+			podA.offer("user-" + i);
+			podB.offer("user-" + (i + 10_000));
+		}
+
+		HyperLogLog merged = HyperLogLog.fromBytes(podA.toBytes());
+		merged.merge(HyperLogLog.fromBytes(podB.toBytes()));
+
+		assertThat((double) merged.estimate()).isCloseTo(30_000, within(30_000 * 0.05));
+	}
+
+	@Test
+	void rejectsMergeAcrossPrecisions() {
+		assertThatThrownBy(() -> new HyperLogLog(12).merge(new HyperLogLog(10)))
+				.isInstanceOf(IllegalArgumentException.class);
+	}
+
+}
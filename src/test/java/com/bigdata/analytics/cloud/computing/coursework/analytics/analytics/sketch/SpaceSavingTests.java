@@ -0,0 +1,78 @@
+package com.bigdata.analytics.cloud.computing.coursework.analytics.analytics.sketch;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class SpaceSavingTests {
+
+	@Test
+	void heavyHittersAreMonitoredWithValidBounds() {
+		SpaceSaving summary = new SpaceSaving(32);
+		CountMinSketch sketch = new CountMinSketch(0.01, 0.01);
+		Map<String, Integer> truth = new HashMap<>();
+		Random random = new Random(42);
+
+		for (int i = 0; i < 50_000; i++) {
+			// A few hot pages over a long tail of rarely visited ones
+			String page = random.nextInt(10) < 6 ? "/hot-" + random.nextInt(5) : "/tail-" + random.nextInt(5_000);
+			summary.add(page);
+			sketch.add(page);
+			truth.merge(page, 1, Integer::sum);
+		}
+
+		for (int hot = 0; hot < 5; hot++) {
+			String page = "/hot-" + hot;
+			SpaceSaving.Counter counter = summary.getCounters().get(page);
+			assertThat(counter).isNotNull();
+			assertThat(counter.getCount()).isGreaterThanOrEqualTo(truth.get(page));
+			assertThat(counter.getCount() - counter.getError()).isLessThanOrEqualTo(truth.get(page));
+			assertThat(sketch.estimate(page)).isGreaterThanOrEqualTo(truth.get(page));
+			assertThat(sketch.estimate(page) - truth.get(page)).isLessThanOrEqualTo((long) (0.01 * 50_000));
+		}
+	}
+
+	@Test
+	void unmonitoredItemsAreBoundedByMinCount() {
+		SpaceSaving summary = new SpaceSaving(2);
+		summary.add("a");
+		summary.add("a");
+		summary.add("b");
+		summary.add("c");
+
+		assertThat(summary.getCounters()).containsKeys("a", "c");
+		assertThat(summary.minCount()).isEqualTo(2);
+	}
+
+	@Test
+	void keepsEveryBoundThroughManyEvictions() {
+		SpaceSaving summary = new SpaceSaving(16);
+		Map<String, Integer> truth = new HashMap<>();
+		Random random = new Random(7);
+
+		for (int i = 0; i < 20_000; i++) {
+			String page = "/page-" + (int) Math.abs(random.nextGaussian() * 40);
+			summary.add(page);
+			truth.merge(page, 1, Integer::sum);
+
+			if (i % 997 == 0) {
+				long min = Long.MAX_VALUE;
+				long sum = 0;
+				for (Map.Entry<String, SpaceSaving.Counter> entry : summary.getCounters().entrySet()) {
+					SpaceSaving.Counter counter = entry.getValue();
+					assertThat(counter.getCount()).isGreaterThanOrEqualTo(truth.get(entry.getKey()));
+					assertThat(counter.getCount() - counter.getError()).isLessThanOrEqualTo(truth.get(entry.getKey()));
+					min = Math.min(min, counter.getCount());
+					sum += counter.getCount();
+				}
+				assertThat(summary.minCount()).isEqualTo(summary.getCounters().size() < 16 ? 0 : min);
+				assertThat(sum).isEqualTo(summary.getTotal());
+			}
+		}
+		assertThat(summary.getCounters()).hasSize(16);
+	}
+
+}